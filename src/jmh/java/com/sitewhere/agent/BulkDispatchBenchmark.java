@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sitewhere.agent.Agent.MQTTOutbound;
+import com.sitewhere.agent.EventEncodingBenchmark.DiscardingPublisher;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Compares sending a set of measurements one call at a time with sending them
+ * in a single bulk call, as a processor reading many registers at once would.
+ * Payloads are discarded so only encoding and dispatch are measured.
+ * 
+ * @author Derek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkDispatchBenchmark {
+
+    /** Device token used for events */
+    private static final String DEVICE_TOKEN = "123-TEST-439829343897429";
+
+    /** Number of measurements sent per invocation */
+    @Param({ "10", "200" })
+    private int count;
+
+    /** Measurements sent per invocation */
+    private List<DeviceMeasurement> measurements;
+
+    /** Outbound that discards published payloads */
+    private MQTTOutbound outbound;
+
+    @Setup
+    public void setup() {
+	outbound = new MQTTOutbound(new DiscardingPublisher(), "SiteWhere/default/input/protobuf");
+	measurements = new ArrayList<DeviceMeasurement>(count);
+	for (int i = 0; i < count; i++) {
+	    measurements.add(DeviceMeasurement.newBuilder()
+		    .setMeasurementName(GOptionalString.newBuilder().setValue("register." + i))
+		    .setMeasurementValue(GOptionalDouble.newBuilder().setValue(i * 1.5)).build());
+	}
+    }
+
+    /**
+     * One call and one publish per measurement.
+     * 
+     * @param blackhole
+     * @throws SiteWhereAgentException
+     */
+    @Benchmark
+    public void individual(Blackhole blackhole) throws SiteWhereAgentException {
+	for (DeviceMeasurement measurement : measurements) {
+	    blackhole.consume(outbound.sendMeasurementAsync(measurement, DEVICE_TOKEN, null));
+	}
+    }
+
+    /**
+     * All measurements encoded together and published once.
+     * 
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    @Benchmark
+    public CompletableFuture<Void> bulk() throws SiteWhereAgentException {
+	return outbound.sendMeasurementsAsync(measurements, DEVICE_TOKEN, null);
+    }
+}
\ No newline at end of file
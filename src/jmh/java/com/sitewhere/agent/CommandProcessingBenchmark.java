@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.CodedOutputStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.Header;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.RegistrationAck;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Measures inbound command handling: parsing SiteWhere system messages and
+ * dispatching specification commands in both the hybrid Java serialization
+ * format and the protobuf format.
+ * 
+ * @author Derek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandProcessingBenchmark {
+
+    /** Processor receiving commands */
+    private BenchmarkProcessor processor;
+
+    /** Encoded registration acknowledgement */
+    private byte[] registrationAck;
+
+    /** Encoded hybrid command */
+    private byte[] hybridCommand;
+
+    /** Encoded protobuf command */
+    private byte[] protobufCommand;
+
+    /** Encoded registration acknowledgement in a direct buffer */
+    private ByteBuffer registrationAckBuffer;
+
+    /** Encoded protobuf command in a direct buffer */
+    private ByteBuffer protobufCommandBuffer;
+
+    @Setup
+    public void setup() throws Exception {
+	processor = new BenchmarkProcessor();
+	processor.setCommandDecoder(ProtobufCommandDecoder.parse("ping,setReportInterval"));
+
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	Header.newBuilder().setCommand(Device.Command.REGISTRATION_ACK).build().writeDelimitedTo(out);
+	RegistrationAck.newBuilder().setState(Device.RegistrationAckState.ALREADY_REGISTERED).build()
+		.writeDelimitedTo(out);
+	registrationAck = out.toByteArray();
+
+	out = new ByteArrayOutputStream();
+	ObjectOutputStream objects = new ObjectOutputStream(out);
+	objects.writeObject("setReportInterval");
+	objects.writeObject(new Object[] { "engine", Integer.valueOf(30) });
+	objects.writeObject(null);
+	objects.close();
+	hybridCommand = out.toByteArray();
+
+	protobufCommand = encodeProtobufCommand(2, "engine", 30);
+
+	registrationAckBuffer = toDirectBuffer(registrationAck);
+	protobufCommandBuffer = toDirectBuffer(protobufCommand);
+    }
+
+    @Benchmark
+    public int processSiteWhereCommand() throws SiteWhereAgentException {
+	processor.processSiteWhereCommand(registrationAck, null);
+	return processor.count;
+    }
+
+    @Benchmark
+    public int processSiteWhereCommandBuffer() throws SiteWhereAgentException {
+	processor.processSiteWhereCommand(registrationAckBuffer, null);
+	return processor.count;
+    }
+
+    @Benchmark
+    public int processHybridCommand() throws SiteWhereAgentException {
+	processor.processSpecificationCommand(hybridCommand, null);
+	return processor.count;
+    }
+
+    @Benchmark
+    public int processProtobufCommand() throws SiteWhereAgentException {
+	processor.processSpecificationCommand(protobufCommand, null);
+	return processor.count;
+    }
+
+    @Benchmark
+    public int processProtobufCommandBuffer() throws SiteWhereAgentException {
+	processor.processSpecificationCommand(protobufCommandBuffer, null);
+	return processor.count;
+    }
+
+    /**
+     * Copy bytes into a direct buffer, as delivered by a network transport.
+     * 
+     * @param bytes
+     * @return
+     */
+    protected static ByteBuffer toDirectBuffer(byte[] bytes) {
+	ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+	buffer.put(bytes).flip();
+	return buffer;
+    }
+
+    /**
+     * Encode a command in the protobuf format with a header and one field per
+     * parameter.
+     * 
+     * @param command
+     * @param name
+     * @param interval
+     * @return
+     * @throws IOException
+     */
+    protected static byte[] encodeProtobufCommand(int command, String name, int interval) throws IOException {
+	ByteArrayOutputStream header = new ByteArrayOutputStream();
+	CodedOutputStream output = CodedOutputStream.newInstance(header);
+	output.writeEnum(1, command);
+	output.writeBytes(2,
+		GOptionalString.newBuilder().setValue("5a95f3f2-96f0-47f9-b98d-f5c081d01948").build().toByteString());
+	output.flush();
+
+	ByteArrayOutputStream body = new ByteArrayOutputStream();
+	output = CodedOutputStream.newInstance(body);
+	output.writeString(1, name);
+	output.writeInt32(2, interval);
+	output.flush();
+
+	ByteArrayOutputStream message = new ByteArrayOutputStream();
+	output = CodedOutputStream.newInstance(message);
+	output.writeUInt32NoTag(header.size());
+	output.writeRawBytes(header.toByteArray());
+	output.writeUInt32NoTag(body.size());
+	output.writeRawBytes(body.toByteArray());
+	output.flush();
+	return message.toByteArray();
+    }
+
+    /**
+     * Processor with handlers that only count invocations.
+     * 
+     * @author Derek
+     */
+    public static class BenchmarkProcessor extends BaseCommandProcessor {
+
+	/** Number of commands handled */
+	private int count;
+
+	@Override
+	public void handleRegistrationAck(Header header, RegistrationAck ack) {
+	    count++;
+	}
+
+	public void ping(IDeviceEventOriginator originator) {
+	    count++;
+	}
+
+	public void setReportInterval(String name, int interval, IDeviceEventOriginator originator) {
+	    count += interval;
+	}
+    }
+}
\ No newline at end of file
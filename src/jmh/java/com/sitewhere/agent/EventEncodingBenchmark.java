@@ -0,0 +1,177 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.mqtt.client.QoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.protobuf.GeneratedMessageV3;
+import com.sitewhere.agent.Agent.MQTTOutbound;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAcknowledge;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAlert;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceLocation;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceRegistrationRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Header;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Measures the cost of encoding each type of outbound event, both through the
+ * {@link MQTTOutbound} send path and with the encoder alone. A builder-based
+ * encoding is included as a baseline. Payloads are handed to a publisher that
+ * discards them so that no I/O is involved.
+ * 
+ * @author Derek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventEncodingBenchmark {
+
+    /** Device token used for events */
+    private static final String DEVICE_TOKEN = "123-TEST-439829343897429";
+
+    /** Originating event id */
+    private static final String ORIGINATOR = "5a95f3f2-96f0-47f9-b98d-f5c081d01948";
+
+    /** Type of event being encoded */
+    @Param({ "registration", "ack", "measurement", "location", "alert" })
+    private String eventType;
+
+    /** Command for event type */
+    private Command command;
+
+    /** Event message for event type */
+    private GeneratedMessageV3 message;
+
+    /** Outbound that discards published payloads */
+    private MQTTOutbound outbound;
+
+    /** Encoder used directly */
+    private EventEncoder encoder = new EventEncoder();
+
+    @Setup
+    public void setup() {
+	outbound = new MQTTOutbound(new DiscardingPublisher(), "SiteWhere/default/input/protobuf");
+	if ("registration".equals(eventType)) {
+	    command = Command.SendRegistration;
+	    message = DeviceRegistrationRequest.newBuilder()
+		    .setAreaToken(GOptionalString.newBuilder().setValue("southeast"))
+		    .setCustomerToken(GOptionalString.newBuilder().setValue("acme"))
+		    .setDeviceTypeToken(GOptionalString.newBuilder().setValue("galaxytab3")).build();
+	} else if ("ack".equals(eventType)) {
+	    command = Command.SendAcknowledgement;
+	    message = DeviceAcknowledge.newBuilder().setMessage(GOptionalString.newBuilder().setValue("Acknowledged."))
+		    .build();
+	} else if ("measurement".equals(eventType)) {
+	    command = Command.SendMeasurement;
+	    message = DeviceMeasurement.newBuilder()
+		    .setMeasurementName(GOptionalString.newBuilder().setValue("engine.temperature"))
+		    .setMeasurementValue(GOptionalDouble.newBuilder().setValue(98.6)).build();
+	} else if ("location".equals(eventType)) {
+	    command = Command.SendLocation;
+	    message = DeviceLocation.newBuilder().setLatitude(GOptionalDouble.newBuilder().setValue(33.7490))
+		    .setLongitude(GOptionalDouble.newBuilder().setValue(-84.3880))
+		    .setElevation(GOptionalDouble.newBuilder().setValue(320.0)).build();
+	} else {
+	    command = Command.SendAlert;
+	    message = DeviceAlert.newBuilder().setAlertType(GOptionalString.newBuilder().setValue("engine.overheat"))
+		    .setAlertMessage(GOptionalString.newBuilder().setValue("Engine temperature is too high.")).build();
+	}
+    }
+
+    /**
+     * Full send path including future handling.
+     * 
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    @Benchmark
+    public CompletableFuture<Void> sendMessage() throws SiteWhereAgentException {
+	return outbound.sendMessageAsync(command, message, DEVICE_TOKEN, ORIGINATOR, eventType);
+    }
+
+    /**
+     * Encoder only.
+     * 
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public byte[] encode() throws IOException {
+	return encoder.encode(command, message, DEVICE_TOKEN, ORIGINATOR);
+    }
+
+    /**
+     * Baseline that builds a header and copies through a stream for each event.
+     * 
+     * @param blackhole
+     * @throws IOException
+     */
+    @Benchmark
+    public void builderEncode(Blackhole blackhole) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	Header.newBuilder().setCommand(command).setDeviceToken(GOptionalString.newBuilder().setValue(DEVICE_TOKEN))
+		.setOriginator(GOptionalString.newBuilder().setValue(ORIGINATOR)).build().writeDelimitedTo(out);
+	message.writeDelimitedTo(out);
+	blackhole.consume(out.toByteArray());
+    }
+
+    /**
+     * Publisher that completes immediately without sending anything.
+     * 
+     * @author Derek
+     */
+    public static class DiscardingPublisher implements IOutboundPublisher {
+
+	/** Future returned for every publish */
+	private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+	/** Most recent payload, kept so encoding is not optimized away */
+	private volatile byte[] last;
+
+	@Override
+	public CompletableFuture<Void> publish(String topic, byte[] payload, QoS qos, boolean retain) {
+	    last = payload;
+	    return DONE;
+	}
+
+	public byte[] getLast() {
+	    return last;
+	}
+    }
+}
\ No newline at end of file
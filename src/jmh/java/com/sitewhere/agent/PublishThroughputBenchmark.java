@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.broker.BrokerService;
+import org.fusesource.mqtt.client.MQTT;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sitewhere.agent.Agent.MQTTOutbound;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Measures end-to-end publish throughput against an in-process ActiveMQ
+ * broker. Each invocation sends a fixed number of measurements and waits until
+ * the broker has acknowledged all of them.
+ * 
+ * @author Derek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PublishThroughputBenchmark {
+
+    /** Number of events sent per invocation */
+    private static final int EVENTS = 1000;
+
+    /** Number of publishes allowed in flight */
+    @Param({ "1", "32" })
+    private int maxInFlight;
+
+    /** Indicates whether events are batched */
+    @Param({ "false", "true" })
+    private boolean batched;
+
+    /** Embedded broker */
+    private BrokerService broker;
+
+    /** Connection to broker */
+    private MQTTConnectionManager connection;
+
+    /** Dispatcher events are sent through */
+    private IAsyncEventDispatcher dispatcher;
+
+    /** Measurement sent for each event */
+    private DeviceMeasurement measurement;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+	int port;
+	ServerSocket socket = new ServerSocket(0);
+	try {
+	    port = socket.getLocalPort();
+	} finally {
+	    socket.close();
+	}
+	broker = new BrokerService();
+	broker.setPersistent(false);
+	broker.setUseJmx(false);
+	broker.addConnector("mqtt://localhost:" + port);
+	broker.start();
+
+	MQTT mqtt = new MQTT();
+	mqtt.setHost("localhost", port);
+	mqtt.setClientId("benchmark");
+	connection = new MQTTConnectionManager(mqtt);
+	connection.connect();
+
+	MQTTOutbound outbound = new MQTTOutbound(new MQTTPublisher(connection, maxInFlight),
+		"SiteWhere/default/input/protobuf");
+	dispatcher = batched ? new BatchingEventDispatcher(outbound) : outbound;
+	measurement = DeviceMeasurement.newBuilder()
+		.setMeasurementName(GOptionalString.newBuilder().setValue("engine.temperature"))
+		.setMeasurementValue(GOptionalDouble.newBuilder().setValue(98.6)).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+	if (dispatcher instanceof Closeable) {
+	    ((Closeable) dispatcher).close();
+	}
+	connection.disconnect();
+	broker.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void publish() throws Exception {
+	CompletableFuture<?>[] futures = new CompletableFuture<?>[EVENTS];
+	for (int i = 0; i < EVENTS; i++) {
+	    futures[i] = dispatcher.sendMeasurementAsync(measurement, "benchmark-device", null);
+	}
+	if (dispatcher instanceof BatchingEventDispatcher) {
+	    ((BatchingEventDispatcher) dispatcher).flush();
+	}
+	CompletableFuture.allOf(futures).get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.mqtt.client.QoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sitewhere.agent.EventEncodingBenchmark.DiscardingPublisher;
+
+/**
+ * Measures the cost for each of several producer threads to hand a payload to
+ * a shared {@link RingBufferPublisher}, compared with calling a synchronized
+ * publisher directly. Payloads are discarded by the writer.
+ * 
+ * @author Derek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class RingBufferPublisherBenchmark {
+
+    /** Topic payloads are published to */
+    private static final String TOPIC = "SiteWhere/default/input/protobuf";
+
+    /** Payload published */
+    private static final byte[] PAYLOAD = new byte[64];
+
+    /** Ring shared by producer threads */
+    private RingBufferPublisher ring;
+
+    /** Publisher shared by producer threads behind a lock */
+    private IOutboundPublisher locked;
+
+    @Setup
+    public void setup() {
+	ring = new RingBufferPublisher(new DiscardingPublisher(), 4096);
+	ring.start();
+	final IOutboundPublisher discarding = new DiscardingPublisher();
+	locked = new IOutboundPublisher() {
+
+	    @Override
+	    public synchronized CompletableFuture<Void> publish(String topic, byte[] payload, QoS qos, boolean retain)
+		    throws InterruptedException {
+		return discarding.publish(topic, payload, qos, retain);
+	    }
+	};
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+	ring.close();
+    }
+
+    /**
+     * Producers hand payloads to the writer thread.
+     * 
+     * @return
+     * @throws InterruptedException
+     */
+    @Benchmark
+    public CompletableFuture<Void> ring() throws InterruptedException {
+	return ring.publish(TOPIC, PAYLOAD, QoS.AT_LEAST_ONCE, false);
+    }
+
+    /**
+     * Producers contend for a lock around the publisher.
+     * 
+     * @return
+     * @throws InterruptedException
+     */
+    @Benchmark
+    public CompletableFuture<Void> locked() throws InterruptedException {
+	return locked.publish(TOPIC, PAYLOAD, QoS.AT_LEAST_ONCE, false);
+    }
+}
\ No newline at end of file
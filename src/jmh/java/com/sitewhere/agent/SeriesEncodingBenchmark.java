@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sitewhere.agent.Agent.MQTTOutbound;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+
+/**
+ * Compares encoding the samples of a high-rate sensor as a compact series with
+ * encoding them as measurement events in one bulk payload. Samples are taken at
+ * a steady rate from a slowly varying signal.
+ * 
+ * @author Derek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SeriesEncodingBenchmark {
+
+    /** Device token used for events */
+    private static final String DEVICE_TOKEN = "123-TEST-439829343897429";
+
+    /** Number of samples encoded per invocation */
+    @Param({ "100", "1000" })
+    private int count;
+
+    /** Samples encoded per invocation */
+    private MeasurementSeries series;
+
+    @Setup
+    public void setup() {
+	series = new MeasurementSeries("vibration.x", count);
+	long start = System.currentTimeMillis();
+	for (int i = 0; i < count; i++) {
+	    series.add(start + i, Math.round(Math.sin(i / 25.0) * 1000) / 100.0);
+	}
+    }
+
+    /**
+     * Samples encoded with delta times and XOR values.
+     * 
+     * @return
+     */
+    @Benchmark
+    public byte[] series() {
+	return SeriesCodec.encode(series, DEVICE_TOKEN, null);
+    }
+
+    /**
+     * Samples encoded as measurement events with an event date each.
+     * 
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    @Benchmark
+    public byte[] measurements() throws SiteWhereAgentException {
+	List<OutboundEvent> events = new ArrayList<OutboundEvent>(count);
+	for (DeviceMeasurement measurement : series.toMeasurements()) {
+	    events.add(OutboundEvent.measurement(measurement, DEVICE_TOKEN, null));
+	}
+	return MQTTOutbound.encode(events);
+    }
+}
\ No newline at end of file
@@ -15,14 +15,15 @@
  */
 package com.example;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.logging.Level;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import com.sitewhere.agent.BaseCommandProcessor;
 import com.sitewhere.agent.ISiteWhereEventDispatcher;
+import com.sitewhere.agent.ITelemetryTask;
 import com.sitewhere.agent.SiteWhereAgentException;
+import com.sitewhere.agent.TelemetryScheduler;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.Header;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.RegistrationAck;
 import com.sitewhere.spi.device.event.IDeviceEventOriginator;
@@ -38,8 +39,11 @@ public class ExampleCommandProcessor extends BaseCommandProcessor {
     /** Static logger instance */
     private static Logger LOGGER = Logger.getLogger(ExampleCommandProcessor.class.getName());
 
-    /** Executor for background processing */
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    /** Interval in milliseconds between batches of JVM memory statistics */
+    private static final long SEND_INTERVAL_MS = 5000;
+
+    /** Task sending JVM memory statistics */
+    private TelemetryScheduler.ScheduledTask sender;
 
     /*
      * (non-Javadoc)
@@ -96,41 +100,32 @@ public class ExampleCommandProcessor extends BaseCommandProcessor {
     }
 
     /**
-     * This is an example of creating a thread that will send data to SiteWhere
-     * every so often, sleeping between cycles.
+     * This is an example of sending data to SiteWhere every so often. The task
+     * runs on the scheduler shared by all devices in the agent rather than on a
+     * thread of its own, and is aligned to the interval so that statistics from
+     * every device are sampled together.
      */
-    public void sendDataAtInterval() {
-
-	// Run processing in another thread.
-	LOGGER.info("Starting JVM memory statistics sender thread.");
-	executor.execute(new Runnable() {
+    public synchronized void sendDataAtInterval() {
+	if (sender != null) {
+	    return;
+	}
+	LOGGER.info("Scheduling JVM memory statistics every " + SEND_INTERVAL_MS + " ms.");
+	sender = getTelemetryScheduler().scheduleAligned(new ITelemetryTask() {
 
 	    @Override
-	    public void run() {
-		while (true) {
-
-		    // Get Java memory values from the runtime.
-		    long free = Runtime.getRuntime().freeMemory();
-		    long max = Runtime.getRuntime().maxMemory();
-		    long total = Runtime.getRuntime().totalMemory();
-
-		    try {
-			// Send events to SiteWhere.
-			sendMeasurement(getDeviceToken(), "jvmFreeMemory", free, null);
-			sendMeasurement(getDeviceToken(), "jvmMaxMemory", max, null);
-			sendMeasurement(getDeviceToken(), "jvmTotalMemory", total, null);
-			LOGGER.info("Sent a batch of JVM memory statistics.");
-
-			// Wait five second before sending next events.
-			Thread.sleep(5000);
-		    } catch (SiteWhereAgentException e) {
-			LOGGER.log(Level.WARNING, "Unable to send measurements to SiteWhere.", e);
-		    } catch (InterruptedException e) {
-			LOGGER.log(Level.WARNING, "Event sender thread shut down.", e);
-		    }
-		}
+	    public void run() throws SiteWhereAgentException {
+
+		// Get Java memory values from the runtime.
+		Map<String, Double> values = new LinkedHashMap<String, Double>();
+		values.put("jvmFreeMemory", (double) Runtime.getRuntime().freeMemory());
+		values.put("jvmMaxMemory", (double) Runtime.getRuntime().maxMemory());
+		values.put("jvmTotalMemory", (double) Runtime.getRuntime().totalMemory());
+
+		// Send events to SiteWhere together.
+		sendMeasurements(getDeviceToken(), values, null);
+		LOGGER.info("Sent a batch of JVM memory statistics.");
 	    }
-	});
+	}, SEND_INTERVAL_MS);
     }
 
     /**
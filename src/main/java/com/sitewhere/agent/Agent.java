@@ -15,30 +15,47 @@
  */
 package com.sitewhere.agent;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
-import org.fusesource.mqtt.client.BlockingConnection;
 import org.fusesource.mqtt.client.MQTT;
-import org.fusesource.mqtt.client.Message;
 import org.fusesource.mqtt.client.QoS;
 import org.fusesource.mqtt.client.Topic;
 
 import com.google.protobuf.GeneratedMessageV3;
+import com.sitewhere.agent.PriorityEventDispatcher.Lane;
+import com.sitewhere.agent.PriorityEventDispatcher.OverflowPolicy;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAcknowledge;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAlert;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceLocation;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceRegistrationRequest;
-import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Header;
-import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamDataRequest;
 
 /**
  * Agent that handles message processing.
@@ -59,6 +76,21 @@ public class Agent {
     /** Default MQTT port */
     private static final int DEFAULT_MQTT_PORT = 1883;
 
+    /** Topic level that matches any device token */
+    private static final String SINGLE_LEVEL_WILDCARD = "+";
+
+    /** Maximum client id length allowed by MQTT 3.1 */
+    private static final int MAX_CLIENT_ID_LENGTH = 23;
+
+    /** Default directory for outbound journal */
+    private static final String DEFAULT_JOURNAL_DIRECTORY = "journal";
+
+    /** Default number of inbound workers (commands run on receive thread) */
+    private static final int DEFAULT_INBOUND_THREADS = 1;
+
+    /** Default MQTT publish mode */
+    private static final PublishMode DEFAULT_PUBLISH_MODE = PublishMode.BLOCKING;
+
     /** Command processor Java classname */
     private String commandProcessorClassname;
 
@@ -83,9 +115,180 @@ public class Agent {
     /** MQTT server port */
     private int mqttPort;
 
+    /** MQTT client id used to resume persistent sessions */
+    private String mqttClientId;
+
+    /** Indicates whether broker discards session state on connect */
+    private boolean mqttCleanSession = false;
+
+    /** Initial delay in milliseconds before reconnecting */
+    private long reconnectDelayMs = MQTTConnectionManager.DEFAULT_RECONNECT_DELAY_MS;
+
+    /** Maximum delay in milliseconds before reconnecting */
+    private long reconnectDelayMaxMs = MQTTConnectionManager.DEFAULT_RECONNECT_DELAY_MAX_MS;
+
+    /** Number of inbound messages buffered before reading is suspended */
+    private int receiveBuffer = MQTTConnectionManager.DEFAULT_RECEIVE_BUFFER;
+
+    /** Indicates whether agent serves multiple devices over one connection */
+    private boolean gatewayEnabled = false;
+
+    /** Tokens for devices served in gateway mode */
+    private List<String> gatewayDeviceTokens = new ArrayList<String>();
+
+    /** Number of workers processing inbound commands */
+    private int inboundThreads = DEFAULT_INBOUND_THREADS;
+
+    /** Number of inbound commands queued per worker */
+    private int inboundQueueSize = OrderedExecutor.DEFAULT_QUEUE_SIZE;
+
+    /** Indicates whether inbound workers use virtual threads */
+    private boolean inboundVirtualThreads = false;
+
+    /** Format expected for specification commands */
+    private BaseCommandProcessor.CommandFormat commandFormat = BaseCommandProcessor.CommandFormat.AUTO;
+
+    /** Decoder for protobuf specification commands */
+    private ProtobufCommandDecoder commandDecoder;
+
+    /** Indicates whether sends wait for publish to complete */
+    private PublishMode publishMode = DEFAULT_PUBLISH_MODE;
+
+    /** QoS used to publish each type of event */
+    private Map<Command, QoS> outboundQos = new EnumMap<Command, QoS>(Command.class);
+
+    /** QoS for inbound SiteWhere topic subscription */
+    private QoS inboundSiteWhereQos = QoS.AT_LEAST_ONCE;
+
+    /** QoS for inbound command topic subscription */
+    private QoS inboundCommandQos = QoS.AT_LEAST_ONCE;
+
+    /** Maximum number of outbound publishes in flight */
+    private int maxInFlight = MQTTPublisher.DEFAULT_MAX_IN_FLIGHT;
+
+    /** Number of dedicated outbound connections (zero to share inbound connection) */
+    private int outboundConnections = 0;
+
+    /** Indicates whether outbound events are coalesced into batches */
+    private boolean batchEnabled = false;
+
+    /** Maximum number of events per outbound batch */
+    private int batchMaxEvents = BatchingEventDispatcher.DEFAULT_MAX_EVENTS;
+
+    /** Maximum number of bytes per outbound batch */
+    private int batchMaxBytes = BatchingEventDispatcher.DEFAULT_MAX_BYTES;
+
+    /** Time in milliseconds an outbound batch may wait before being sent */
+    private long batchLingerMs = BatchingEventDispatcher.DEFAULT_LINGER_MS;
+
+    /** Indicates whether outbound payloads are compressed */
+    private boolean compressionEnabled = false;
+
+    /** Deflate compression level */
+    private int compressionLevel = PayloadCompressor.DEFAULT_LEVEL;
+
+    /** Size in bytes below which payloads are not compressed */
+    private int compressionMinBytes = PayloadCompressor.DEFAULT_MIN_BYTES;
+
+    /** File holding preset compression dictionary (null to derive from tokens) */
+    private String compressionDictionary;
+
+    /** Indicates whether outbound payloads pass through a ring to a single writer */
+    private boolean ringEnabled = false;
+
+    /** Number of slots in each outbound ring */
+    private int ringSize = RingBufferPublisher.DEFAULT_CAPACITY;
+
+    /** Indicates whether outbound events are queued in priority lanes */
+    private boolean priorityEnabled = false;
+
+    /** Events per second allowed in each lane (unlimited if missing) */
+    private Map<Lane, Double> laneRates = new EnumMap<Lane, Double>(Lane.class);
+
+    /** Events each lane may send at once after an idle period */
+    private Map<Lane, Integer> laneBursts = new EnumMap<Lane, Integer>(Lane.class);
+
+    /** Maximum number of events queued in each lane */
+    private Map<Lane, Integer> laneCapacities = new EnumMap<Lane, Integer>(Lane.class);
+
+    /** Policy used when the low lane is full */
+    private OverflowPolicy laneOverflowPolicy = PriorityEventDispatcher.DEFAULT_OVERFLOW_POLICY;
+
+    /** Indicates whether measurements are aggregated before sending */
+    private boolean aggregationEnabled = false;
+
+    /** Length of measurement aggregation window in milliseconds */
+    private long aggregationIntervalMs = AggregatingEventDispatcher.DEFAULT_INTERVAL_MS;
+
+    /** Indicates how aggregated measurements are summarized */
+    private AggregatingEventDispatcher.Mode aggregationMode = AggregatingEventDispatcher.DEFAULT_MODE;
+
+    /** Absolute change needed before an aggregated value is sent */
+    private double aggregationDeadband = 0;
+
+    /** Percentage change needed before an aggregated value is sent */
+    private double aggregationDeviationPercent = 0;
+
+    /** Time in milliseconds after which an unchanged aggregated value is sent */
+    private long aggregationHeartbeatMs = 0;
+
+    /** Indicates whether metrics are collected */
+    private boolean metricsEnabled = false;
+
+    /** Indicates whether metrics are exposed over JMX */
+    private boolean metricsJmxEnabled = true;
+
+    /** Host the metrics endpoint binds to */
+    private String metricsHttpHost = HttpMetricsExporter.DEFAULT_HOST;
+
+    /** Port for metrics endpoint (zero if disabled) */
+    private int metricsHttpPort = 0;
+
+    /** Indicates whether outbound payloads are journaled to disk before sending */
+    private boolean journalEnabled = false;
+
+    /** Directory holding outbound journal segments */
+    private String journalDirectory = DEFAULT_JOURNAL_DIRECTORY;
+
+    /** Size in bytes at which a new journal segment is started */
+    private long journalSegmentBytes = OutboundJournal.DEFAULT_SEGMENT_BYTES;
+
+    /** Maximum number of journal segments retained */
+    private int journalMaxSegments = OutboundJournal.DEFAULT_MAX_SEGMENTS;
+
+    /** Number of bytes per uploaded device stream chunk */
+    private int streamChunkSize = DeviceStreamManager.DEFAULT_CHUNK_SIZE;
+
+    /** Number of device stream chunks outstanding per transfer */
+    private int streamWindow = DeviceStreamManager.DEFAULT_WINDOW;
+
+    /** Indicates whether stream uploads read files through a memory mapping */
+    private boolean streamMemoryMapped = true;
+
+    /** Milliseconds to wait for a stream acknowledgement or data (zero to wait forever) */
+    private long streamTimeoutMs = DeviceStreamManager.DEFAULT_TIMEOUT_MS;
+
+    /** Number of threads running periodic telemetry tasks */
+    private int telemetryThreads = TelemetryScheduler.DEFAULT_THREADS;
+
+    /** Indicates whether events are dated when they are created */
+    private boolean timestampsEnabled = true;
+
+    /** Clock used to date events (null if timestamps are disabled) */
+    private EventClock eventClock;
+
+    /** Indicates whether startup continues while the broker connection is made */
+    private boolean fastStartEnabled = false;
+
+    /** Number of outbound payloads held per connection until it is established */
+    private int startupQueueSize = DeferredPublisher.DEFAULT_CAPACITY;
+
     /** Outbound SiteWhere MQTT topic */
     private String outboundSiteWhereTopic;
 
+    /** Outbound MQTT topic for compact measurement series (null to send samples as events) */
+    private String outboundSeriesTopic;
+
     /** Inbound SiteWhere MQTT topic */
     private String inboundSiteWhereTopic;
 
@@ -95,11 +298,50 @@ public class Agent {
     /** MQTT client */
     private MQTT mqtt;
 
-    /** MQTT connection */
-    private BlockingConnection connection;
+    /** MQTT connection lifecycle */
+    private MQTTConnectionManager connection;
+
+    /** Dedicated outbound connections (empty if sharing inbound connection) */
+    private List<MQTTConnectionManager> outboundConnectionManagers = new ArrayList<MQTTConnectionManager>();
+
+    /** Publishers that deliver outbound payloads, one per outbound connection */
+    private List<IOutboundPublisher> publishers = new ArrayList<IOutboundPublisher>();
 
-    /** Outbound message processing */
-    private MQTTOutbound outbound;
+    /** MQTT publishers at the end of each publisher chain */
+    private List<MQTTPublisher> mqttPublishers = new ArrayList<MQTTPublisher>();
+
+    /** Publishers journaling outbound payloads to disk */
+    private List<JournalingPublisher> journals = new ArrayList<JournalingPublisher>();
+
+    /** Rings handing outbound payloads to writer threads */
+    private List<RingBufferPublisher> rings = new ArrayList<RingBufferPublisher>();
+
+    /** Publishers holding outbound payloads until their connection is established */
+    private List<DeferredPublisher> deferred = new ArrayList<DeferredPublisher>();
+
+    /** Completed as each broker connection is first established in fast start mode */
+    private List<CompletableFuture<Void>> connecting = new ArrayList<CompletableFuture<Void>>();
+
+    /** Durations of startup phases */
+    private StartupTimings startupTimings;
+
+    /** Runs startup work alongside connecting in fast start mode */
+    private ExecutorService startupExecutor;
+
+    /** Completed once the agent is connected and startup logic has finished */
+    private CompletableFuture<Void> ready = new CompletableFuture<Void>();
+
+    /** Event dispatcher handed to the command processor */
+    private ISiteWhereEventDispatcher dispatcher;
+
+    /** Command processors for devices served by the agent */
+    private DeviceRegistry registry = new DeviceRegistry();
+
+    /** Coordinates device stream transfers */
+    private DeviceStreamManager streamManager;
+
+    /** Runs periodic telemetry tasks for command processors */
+    private TelemetryScheduler telemetryScheduler;
 
     /** Inbound message processing */
     private MQTTInbound inbound;
@@ -107,6 +349,18 @@ public class Agent {
     /** Used to execute MQTT inbound in separate thread */
     private ExecutorService executor = Executors.newSingleThreadExecutor();
 
+    /** Metrics for agent components */
+    private MetricsRegistry metrics;
+
+    /** Stops the agent when the JVM exits */
+    private ShutdownHandler shutdownHook;
+
+    /** Indicates whether the agent has been stopped */
+    private boolean stopped;
+
+    /** Exporters that expose metrics */
+    private List<IMetricsExporter> metricsExporters = new ArrayList<IMetricsExporter>();
+
     /**
      * Start the agent using the command processor specified by classname.
      * 
@@ -119,444 +373,2463 @@ public class Agent {
     /**
      * Start the agent.
      */
-    public void start(IAgentCommandProcessor processor) throws SiteWhereAgentException {
+    public void start(final IAgentCommandProcessor processor) throws SiteWhereAgentException {
 	LOGGER.info("SiteWhere agent starting...");
 
+	// Collect metrics if enabled, unless a registry was supplied.
+	if (getMetrics() == null) {
+	    setMetrics(isMetricsEnabled() ? new MetricsRegistry() : MetricsRegistry.DISABLED);
+	}
+	startupTimings = new StartupTimings();
+	startupTimings.setMetrics(getMetrics());
+
+	// In fast start mode, command processors are constructed while connecting.
+	Future<Map<String, IAgentCommandProcessor>> constructing = null;
+	if (isFastStartEnabled()) {
+	    startupExecutor = Executors
+		    .newSingleThreadExecutor(OrderedExecutor.createThreadFactory("sitewhere-fast-start-", false));
+	    constructing = startupExecutor.submit(new Callable<Map<String, IAgentCommandProcessor>>() {
+
+		@Override
+		public Map<String, IAgentCommandProcessor> call() throws Exception {
+		    long phaseStart = System.nanoTime();
+		    Map<String, IAgentCommandProcessor> processors = createProcessors(processor);
+		    getStartupTimings().record("processors", phaseStart);
+		    return processors;
+		}
+	    });
+	}
+
 	this.mqtt = new MQTT();
 	try {
 	    mqtt.setHost(getMqttHostname(), getMqttPort());
 	} catch (URISyntaxException e) {
 	    throw new SiteWhereAgentException("Invalid hostname for MQTT server.", e);
 	}
-	LOGGER.info("Connecting to MQTT broker at '" + getMqttHostname() + ":" + getMqttPort() + "'...");
-	connection = mqtt.blockingConnection();
-	try {
+	if (getMqttClientId() == null) {
+	    setMqttClientId(calculateClientId());
+	}
+	mqtt.setClientId(getMqttClientId());
+	mqtt.setCleanSession(isMqttCleanSession());
+	LOGGER.info("Connecting to MQTT broker at '" + getMqttHostname() + ":" + getMqttPort() + "' as client '"
+		+ getMqttClientId() + "'...");
+
+	// Subscriptions are restored each time the connection is established.
+	connection = new MQTTConnectionManager(mqtt);
+	connection.setReconnectDelayMs(getReconnectDelayMs());
+	connection.setReconnectDelayMaxMs(getReconnectDelayMaxMs());
+	connection.setReceiveBuffer(getReceiveBuffer());
+	connection.setSuspendWhenFull(getOutboundConnections() > 0);
+	connection.setMetrics(getMetrics());
+	connection.setSubscriptions(new Topic(getInboundSiteWhereTopic(), getInboundSiteWhereQos()),
+		new Topic(getInboundCommandTopic(), getInboundCommandQos()));
+	long phaseStart = System.nanoTime();
+	if (isFastStartEnabled()) {
+	    connecting.add(connection.connectAsync());
+	} else {
 	    connection.connect();
-	} catch (Exception e) {
-	    throw new SiteWhereAgentException("Unable to establish MQTT connection.", e);
+	    getStartupTimings().record("connect", phaseStart);
+	}
+
+	// Create outbound message processing, on dedicated connections if configured.
+	phaseStart = System.nanoTime();
+	List<IAsyncEventDispatcher> shards = new ArrayList<IAsyncEventDispatcher>();
+	if (getOutboundConnections() == 0) {
+	    shards.add(createOutbound(connection, getJournalDirectory()));
+	} else {
+	    for (int i = 0; i < getOutboundConnections(); i++) {
+		String journal = (getOutboundConnections() == 1) ? getJournalDirectory()
+			: new File(getJournalDirectory(), "shard-" + i).getPath();
+		shards.add(createOutbound(createOutboundConnection(i), journal));
+	    }
+	    LOGGER.info("Publishing outbound events over " + getOutboundConnections() + " dedicated connections.");
+	}
+	LOGGER.info("Publishing outbound events in " + getPublishMode() + " mode with up to " + getMaxInFlight()
+		+ " messages in flight per connection.");
+	if (isCompressionEnabled()) {
+	    LOGGER.info("Compressing outbound payloads of " + getCompressionMinBytes() + " bytes or more.");
+	}
+	if (isRingEnabled()) {
+	    LOGGER.info("Handing outbound payloads to a writer thread per connection through a ring of "
+		    + rings.get(0).getCapacity() + " slots.");
+	}
+	if (isBatchEnabled()) {
+	    LOGGER.info("Batching outbound events (max " + getBatchMaxEvents() + " events, " + getBatchMaxBytes()
+		    + " bytes, " + getBatchLingerMs() + " ms linger).");
+	}
+	dispatcher = (shards.size() == 1) ? shards.get(0) : new ShardedEventDispatcher(shards);
+
+	// Queue outbound events in priority lanes if enabled.
+	if (isPriorityEnabled()) {
+	    PriorityEventDispatcher prioritized = new PriorityEventDispatcher((IAsyncEventDispatcher) dispatcher);
+	    for (Lane lane : Lane.values()) {
+		if (getLaneRates().containsKey(lane)) {
+		    double rate = getLaneRates().get(lane);
+		    Integer burst = getLaneBursts().get(lane);
+		    prioritized.setRateLimit(lane, rate, (burst != null) ? burst : (int) Math.ceil(rate));
+		    LOGGER.info("Limiting " + lane + " priority events to " + rate + " per second.");
+		}
+		if (getLaneCapacities().containsKey(lane)) {
+		    prioritized.setCapacity(lane, getLaneCapacities().get(lane));
+		}
+	    }
+	    prioritized.setOverflowPolicy(getLaneOverflowPolicy());
+	    prioritized.setBlocking(getPublishMode() == PublishMode.BLOCKING);
+	    prioritized.setMetrics(getMetrics());
+	    prioritized.start();
+	    dispatcher = prioritized;
+	    LOGGER.info("Queueing outbound events in priority lanes (" + getLaneOverflowPolicy() + " on overflow).");
 	}
-	LOGGER.info("Connected to MQTT broker.");
 
-	// Create outbound message processor.
-	outbound = new MQTTOutbound(connection, getOutboundSiteWhereTopic());
+	// Aggregate measurements ahead of the dispatcher if enabled.
+	if (isAggregationEnabled()) {
+	    AggregatingEventDispatcher aggregator = new AggregatingEventDispatcher((IAsyncEventDispatcher) dispatcher,
+		    getAggregationIntervalMs(), getAggregationMode());
+	    aggregator.setDeadband(getAggregationDeadband());
+	    aggregator.setDeviationPercent(getAggregationDeviationPercent());
+	    aggregator.setHeartbeatMs(getAggregationHeartbeatMs());
+	    aggregator.setMetrics(getMetrics());
+	    aggregator.start();
+	    dispatcher = aggregator;
+	    LOGGER.info("Aggregating measurements every " + getAggregationIntervalMs() + " ms using "
+		    + getAggregationMode() + " mode.");
+	}
 
-	// Create an instance of the command processor.
-	if (processor == null) {
-	    processor = createProcessor();
+	// Date events as they enter the dispatcher so queuing does not skew them.
+	if (isTimestampsEnabled()) {
+	    eventClock = new EventClock();
+	    dispatcher = new TimestampingEventDispatcher((IAsyncEventDispatcher) dispatcher, eventClock);
+	}
+
+	// Device streams are sent through the same dispatcher as events.
+	streamManager = new DeviceStreamManager(dispatcher);
+	streamManager.setChunkSize(getStreamChunkSize());
+	streamManager.setWindow(getStreamWindow());
+	streamManager.setMemoryMapped(isStreamMemoryMapped());
+	streamManager.setTimeoutMs(getStreamTimeoutMs());
+	streamManager.setMetrics(getMetrics());
+
+	// Periodic telemetry for all devices shares one scheduler.
+	telemetryScheduler = new TelemetryScheduler(getTelemetryThreads());
+	telemetryScheduler.setMetrics(getMetrics());
+
+	getStartupTimings().record("outbound", phaseStart);
+
+	// Create command processors, one per device in gateway mode.
+	Map<String, IAgentCommandProcessor> processors;
+	if (constructing != null) {
+	    processors = awaitProcessors(constructing);
+	} else {
+	    phaseStart = System.nanoTime();
+	    processors = createProcessors(processor);
+	    getStartupTimings().record("processors", phaseStart);
+	}
+	for (Map.Entry<String, IAgentCommandProcessor> entry : processors.entrySet()) {
+	    registry.register(entry.getKey(), configureProcessor(entry.getValue(), entry.getKey()));
+	}
+	if (isGatewayEnabled()) {
+	    LOGGER.info("Running in gateway mode for " + registry.size() + " devices.");
 	}
-	processor.setDeviceToken(deviceToken);
-	processor.setAreaToken(areaToken);
-	processor.setCustomerToken(customerToken);
-	processor.setDeviceTypeToken(deviceTypeToken);
-	processor.setEventDispatcher(outbound);
 
 	// Create inbound message processing thread.
-	inbound = new MQTTInbound(connection, getInboundSiteWhereTopic(), getInboundCommandTopic(), processor,
-		outbound);
+	inbound = new MQTTInbound(connection, getInboundSiteWhereTopic(), getInboundCommandTopic(),
+		processors.get(getDeviceToken()), dispatcher);
+	inbound.setRegistry(registry);
+	inbound.setMetrics(getMetrics());
+	if (getInboundThreads() > 1) {
+	    inbound.setWorkers(new OrderedExecutor(getInboundThreads(), getInboundQueueSize(),
+		    OrderedExecutor.createThreadFactory("sitewhere-inbound-", isInboundVirtualThreads())));
+	    LOGGER.info("Processing inbound commands on " + getInboundThreads() + " workers.");
+	}
+
+	// Expose metrics if enabled.
+	if (getMetrics().isEnabled()) {
+	    registerGauges();
+	    if (isMetricsJmxEnabled()) {
+		getMetricsExporters().add(new JmxMetricsExporter(getMqttClientId()));
+	    }
+	    if (getMetricsHttpPort() > 0) {
+		getMetricsExporters().add(new HttpMetricsExporter(getMetricsHttpHost(), getMetricsHttpPort()));
+	    }
+	    for (IMetricsExporter exporter : getMetricsExporters()) {
+		exporter.start(getMetrics());
+	    }
+	}
 
 	// Handle shutdown gracefully.
-	Runtime.getRuntime().addShutdownHook(new ShutdownHandler());
+	shutdownHook = new ShutdownHandler();
+	Runtime.getRuntime().addShutdownHook(shutdownHook);
 
 	// Starts inbound processing loop in a separate thread.
 	executor.execute(inbound);
 
-	// Executes any custom startup logic.
-	processor.executeStartupLogic(getDeviceToken(), getAreaToken(), getCustomerToken(), getDeviceTypeToken(),
-		outbound);
+	// Executes any custom startup logic, without waiting for it in fast start mode.
+	if (isFastStartEnabled()) {
+	    startAsync();
+	} else {
+	    phaseStart = System.nanoTime();
+	    executeStartupLogic();
+	    getStartupTimings().record("startup.logic", phaseStart);
+	}
 
-	LOGGER.info("SiteWhere agent started.");
+	getStartupTimings().record("started", getStartupTimings().getStartNanos());
+	LOGGER.info("SiteWhere agent started (" + getStartupTimings() + ").");
+	if (!isFastStartEnabled()) {
+	    ready.complete(null);
+	}
     }
 
     /**
-     * Create an instance of the command processor. FOs * @return
+     * Run startup logic in the background and report when the agent is connected
+     * and startup logic has finished. Events sent before the broker connection is
+     * established are held until it is.
+     */
+    protected void startAsync() {
+	final CompletableFuture<Void> logicDone = new CompletableFuture<Void>();
+	final long phaseStart = System.nanoTime();
+	startupExecutor.execute(new Runnable() {
+
+	    @Override
+	    public void run() {
+		try {
+		    executeStartupLogic();
+		    getStartupTimings().record("startup.logic", phaseStart);
+		    logicDone.complete(null);
+		} catch (Throwable e) {
+		    LOGGER.log(Level.SEVERE, "Exception executing command processor startup logic.", e);
+		    logicDone.completeExceptionally(e);
+		}
+	    }
+	});
+	startupExecutor.shutdown();
+
+	CompletableFuture<?>[] connections = connecting.toArray(new CompletableFuture<?>[connecting.size()]);
+	CompletableFuture<Void> connected = CompletableFuture.allOf(connections).thenRun(new Runnable() {
+
+	    @Override
+	    public void run() {
+		getStartupTimings().record("connect", getStartupTimings().getStartNanos());
+	    }
+	});
+	CompletableFuture.allOf(connected, logicDone).whenComplete(new BiConsumer<Void, Throwable>() {
+
+	    @Override
+	    public void accept(Void result, Throwable error) {
+		if (error != null) {
+		    ready.completeExceptionally(error);
+		    return;
+		}
+		getStartupTimings().record("ready", getStartupTimings().getStartNanos());
+		LOGGER.info("SiteWhere agent ready (" + getStartupTimings() + ").");
+		ready.complete(null);
+	    }
+	});
+    }
+
+    /**
+     * Execute startup logic for each registered device.
      * 
      * @throws SiteWhereAgentException
      */
-    protected IAgentCommandProcessor createProcessor() throws SiteWhereAgentException {
-	try {
-	    Class<?> clazz = Class.forName(getCommandProcessorClassname());
-	    IAgentCommandProcessor processor = (IAgentCommandProcessor) clazz.newInstance();
-	    return processor;
-	} catch (ClassNotFoundException e) {
-	    throw new SiteWhereAgentException(e);
-	} catch (InstantiationException e) {
-	    throw new SiteWhereAgentException(e);
-	} catch (IllegalAccessException e) {
-	    throw new SiteWhereAgentException(e);
+    protected void executeStartupLogic() throws SiteWhereAgentException {
+	for (String token : registry.getDeviceTokens()) {
+	    registry.getProcessor(token).executeStartupLogic(token, getAreaToken(), getCustomerToken(),
+		    getDeviceTypeToken(), dispatcher);
 	}
     }
 
     /**
-     * Internal class for sending MQTT outbound messages.
+     * Create an outbound connection with a client id derived from the agent
+     * client id and wait for it to connect, or start it connecting in fast start
+     * mode.
      * 
-     * @author Derek
+     * @param index
+     * @return
+     * @throws SiteWhereAgentException
      */
-    public static class MQTTOutbound implements ISiteWhereEventDispatcher {
-
-	/** MQTT outbound topic */
-	private String topic;
-
-	/** MQTT connection */
-	private BlockingConnection connection;
-
-	public MQTTOutbound(BlockingConnection connection, String topic) {
-	    this.connection = connection;
-	    this.topic = topic;
+    protected MQTTConnectionManager createOutboundConnection(int index) throws SiteWhereAgentException {
+	MQTT outboundMqtt = new MQTT(mqtt);
+	outboundMqtt.setClientId(calculateOutboundClientId(getMqttClientId(), index));
+	MQTTConnectionManager outboundConnection = new MQTTConnectionManager(outboundMqtt);
+	outboundConnection.setReconnectDelayMs(getReconnectDelayMs());
+	outboundConnection.setReconnectDelayMaxMs(getReconnectDelayMaxMs());
+	outboundConnection.setMetrics(getMetrics());
+	if (isFastStartEnabled()) {
+	    connecting.add(outboundConnection.connectAsync());
+	} else {
+	    outboundConnection.connect();
 	}
+	outboundConnectionManagers.add(outboundConnection);
+	return outboundConnection;
+    }
 
-	@Override
-	public void registerDevice(DeviceRegistrationRequest register, String deviceToken, String originator)
-		throws SiteWhereAgentException {
-	    sendMessage(Command.SendRegistration, register, deviceToken, originator, "registration");
+    /**
+     * Create the chain that publishes outbound events over a connection,
+     * journaling and batching them if enabled. In fast start mode the connection
+     * may not be established yet, so payloads are held until it is.
+     * 
+     * @param outboundConnection
+     * @param journalDirectory
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    protected IAsyncEventDispatcher createOutbound(MQTTConnectionManager outboundConnection,
+	    String journalDirectory) throws SiteWhereAgentException {
+	MQTTPublisher mqttPublisher = new MQTTPublisher(outboundConnection, getMaxInFlight());
+	mqttPublishers.add(mqttPublisher);
+	IOutboundPublisher publisher = mqttPublisher;
+
+	// Hold payloads until the connection is established in fast start mode.
+	if (isFastStartEnabled()) {
+	    DeferredPublisher held = new DeferredPublisher(publisher, getStartupQueueSize());
+	    outboundConnection.addListener(held);
+	    if (outboundConnection.isConnected()) {
+		held.onConnected();
+	    }
+	    deferred.add(held);
+	    publisher = held;
 	}
 
-	@Override
-	public void acknowledge(DeviceAcknowledge ack, String deviceToken, String originator)
-		throws SiteWhereAgentException {
-	    sendMessage(Command.SendAcknowledgement, ack, deviceToken, originator, "ack");
+	// Journal outbound payloads to disk if enabled.
+	if (isJournalEnabled()) {
+	    JournalingPublisher journaling = new JournalingPublisher(publisher, new OutboundJournal(
+		    new File(journalDirectory), getJournalSegmentBytes(), getJournalMaxSegments()));
+	    try {
+		journaling.start();
+	    } catch (IOException e) {
+		throw new SiteWhereAgentException("Unable to open outbound journal.", e);
+	    }
+	    outboundConnection.addListener(journaling);
+	    journals.add(journaling);
+	    publisher = journaling;
 	}
 
-	@Override
-	public void sendMeasurement(DeviceMeasurement measurement, String deviceToken, String originator)
-		throws SiteWhereAgentException {
-	    sendMessage(Command.SendMeasurement, measurement, deviceToken, originator, "measurement");
+	// Compress payloads if enabled. With a ring, this runs on its writer thread
+	// rather than on the producers.
+	PayloadCompressor compressor = null;
+	if (isCompressionEnabled()) {
+	    compressor = new PayloadCompressor(getCompressionLevel(), loadCompressionDictionary(),
+		    getCompressionMinBytes());
+	}
+	if ((compressor != null) && isRingEnabled()) {
+	    CompressingPublisher compressing = new CompressingPublisher(publisher, compressor);
+	    compressing.setMetrics(getMetrics());
+	    publisher = compressing;
+	    compressor = null;
 	}
 
-	@Override
-	public void sendLocation(DeviceLocation location, String deviceToken, String originator)
-		throws SiteWhereAgentException {
-	    sendMessage(Command.SendLocation, location, deviceToken, originator, "location");
+	// Hand payloads to a single writer thread if enabled.
+	if (isRingEnabled()) {
+	    RingBufferPublisher ring = new RingBufferPublisher(publisher, getRingSize());
+	    ring.start();
+	    rings.add(ring);
+	    publisher = ring;
+	}
+	publishers.add(publisher);
+
+	MQTTOutbound outbound = new MQTTOutbound(publisher, getOutboundSiteWhereTopic());
+	outbound.setSeriesTopic(getOutboundSeriesTopic());
+	outbound.setBlocking(getPublishMode() == PublishMode.BLOCKING);
+	outbound.setMetrics(getMetrics());
+	outbound.setCompressor(compressor);
+	for (Map.Entry<Command, QoS> entry : getOutboundQos().entrySet()) {
+	    outbound.setQos(entry.getKey(), entry.getValue());
 	}
 
-	@Override
-	public void sendAlert(DeviceAlert alert, String deviceToken, String originator) throws SiteWhereAgentException {
-	    sendMessage(Command.SendAlert, alert, deviceToken, originator, "alert");
+	// Coalesce outbound events into batches if enabled.
+	if (isBatchEnabled()) {
+	    return new BatchingEventDispatcher(outbound, getBatchMaxEvents(), getBatchMaxBytes(), getBatchLingerMs());
 	}
+	return outbound;
+    }
 
-	/**
-	 * Common logic for sending messages via protocol buffers.
-	 * 
-	 * @param command
-	 * @param message
-	 * @param originator
-	 * @param label
-	 * @throws SiteWhereAgentException
-	 */
-	protected void sendMessage(Command command, GeneratedMessageV3 message, String deviceToken, String originator,
-		String label) throws SiteWhereAgentException {
-	    ByteArrayOutputStream out = new ByteArrayOutputStream();
-	    try {
-		Header.Builder builder = Header.newBuilder();
-
-		// Command
-		builder.setCommand(command);
-		// Device Token
-		builder.setDeviceToken(GOptionalString.newBuilder().setValue(deviceToken));
-		// Originator
-		if (originator != null) {
-		    builder.setOriginator(GOptionalString.newBuilder().setValue(originator));
+    /**
+     * Register gauges that sample the state of agent components.
+     */
+    protected void registerGauges() {
+	getMetrics().gauge("connection.connected", new IGauge() {
+
+	    @Override
+	    public double getValue() {
+		return connection.isConnected() ? 1 : 0;
+	    }
+	});
+	getMetrics().gauge("inbound.queue.depth", new IGauge() {
+
+	    @Override
+	    public double getValue() {
+		return connection.getReceivedCount();
+	    }
+	});
+	getMetrics().gauge("outbound.inflight", new IGauge() {
+
+	    @Override
+	    public double getValue() {
+		int inFlight = 0;
+		for (MQTTPublisher mqttPublisher : mqttPublishers) {
+		    inFlight += mqttPublisher.getInFlightCount();
 		}
-		builder.build().writeDelimitedTo(out);
-		message.writeDelimitedTo(out);
-		connection.publish(getTopic(), out.toByteArray(), QoS.EXACTLY_ONCE, false);
-	    } catch (IOException e) {
-		throw new SiteWhereAgentException("Problem encoding " + label + " message.", e);
-	    } catch (Exception e) {
-		throw new SiteWhereAgentException(e);
+		return inFlight;
 	    }
+	});
+	if (!outboundConnectionManagers.isEmpty()) {
+	    getMetrics().gauge("outbound.connections.connected", new IGauge() {
+
+		@Override
+		public double getValue() {
+		    int connected = 0;
+		    for (MQTTConnectionManager outboundConnection : outboundConnectionManagers) {
+			connected += outboundConnection.isConnected() ? 1 : 0;
+		    }
+		    return connected;
+		}
+	    });
+	}
+	if (!rings.isEmpty()) {
+	    getMetrics().gauge("outbound.ring.depth", new IGauge() {
+
+		@Override
+		public double getValue() {
+		    int depth = 0;
+		    for (RingBufferPublisher ring : rings) {
+			depth += ring.getDepth();
+		    }
+		    return depth;
+		}
+	    });
+	}
+	if (!deferred.isEmpty()) {
+	    getMetrics().gauge("outbound.startup.held", new IGauge() {
+
+		@Override
+		public double getValue() {
+		    int held = 0;
+		    for (DeferredPublisher publisher : deferred) {
+			held += publisher.getHeldCount();
+		    }
+		    return held;
+		}
+	    });
+	}
+	if (!journals.isEmpty()) {
+	    getMetrics().gauge("journal.backlog.bytes", new IGauge() {
+
+		@Override
+		public double getValue() {
+		    long backlog = 0;
+		    for (JournalingPublisher journaling : journals) {
+			backlog += journaling.getJournal().getBacklogBytes();
+		    }
+		    return backlog;
+		}
+	    });
 	}
+	getMetrics().gauge("devices", new IGauge() {
 
-	public BlockingConnection getConnection() {
-	    return connection;
+	    @Override
+	    public double getValue() {
+		return registry.size();
+	    }
+	});
+	if (inbound.getWorkers() != null) {
+	    getMetrics().gauge("inbound.workers.queued", new IGauge() {
+
+		@Override
+		public double getValue() {
+		    return inbound.getWorkers().getQueuedCount();
+		}
+	    });
 	}
+    }
 
-	public void setConnection(BlockingConnection connection) {
-	    this.connection = connection;
+    /**
+     * Add a device to an agent running in gateway mode. A command processor is
+     * created for the device and its startup logic is executed.
+     * 
+     * @param deviceToken
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public IAgentCommandProcessor addDevice(String deviceToken) throws SiteWhereAgentException {
+	if (!isGatewayEnabled()) {
+	    throw new SiteWhereAgentException("Devices may only be added when running in gateway mode.");
 	}
+	IAgentCommandProcessor processor = configureProcessor(createProcessor(), deviceToken);
+	registry.register(deviceToken, processor);
+	processor.executeStartupLogic(deviceToken, getAreaToken(), getCustomerToken(), getDeviceTypeToken(),
+		dispatcher);
+	return processor;
+    }
 
-	public String getTopic() {
-	    return topic;
+    /**
+     * Remove a device from an agent running in gateway mode. Commands for the
+     * device are ignored once it has been removed, its periodic telemetry is
+     * cancelled and its pending stream creations and downloads are stopped.
+     * 
+     * @param deviceToken
+     * @return
+     */
+    public IAgentCommandProcessor removeDevice(String deviceToken) {
+	IAgentCommandProcessor processor = registry.unregister(deviceToken);
+	if ((processor instanceof BaseCommandProcessor)
+		&& (((BaseCommandProcessor) processor).getTelemetryScheduler() != null)) {
+	    ((BaseCommandProcessor) processor).getTelemetryScheduler().close();
 	}
+	if (getStreamManager() != null) {
+	    getStreamManager().closeStreams(deviceToken);
+	}
+	return processor;
+    }
 
-	public void setTopic(String topic) {
-	    this.topic = topic;
+    /**
+     * Load the preset compression dictionary from the configured file, or derive
+     * one from the tokens that appear in every outbound header.
+     * 
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    protected byte[] loadCompressionDictionary() throws SiteWhereAgentException {
+	if (getCompressionDictionary() != null) {
+	    try {
+		return Files.readAllBytes(new File(getCompressionDictionary()).toPath());
+	    } catch (IOException e) {
+		throw new SiteWhereAgentException("Unable to read compression dictionary.", e);
+	    }
 	}
+	List<String> tokens = new ArrayList<String>(getGatewayDeviceTokens());
+	tokens.add(getDeviceToken());
+	return PayloadCompressor.buildDictionary(tokens);
     }
 
     /**
-     * Handles inbound commands. Monitors two topics for messages. One contains
-     * SiteWhere system messages and the other contains messages defined in the
-     * device specification.
+     * Pass device context and event dispatcher to a command processor.
      * 
-     * @author Derek
+     * @param processor
+     * @param deviceToken
+     * @return
+     * @throws SiteWhereAgentException
      */
-    public static class MQTTInbound implements Runnable {
+    protected IAgentCommandProcessor configureProcessor(IAgentCommandProcessor processor, String deviceToken)
+	    throws SiteWhereAgentException {
+	processor.setDeviceToken(deviceToken);
+	processor.setAreaToken(getAreaToken());
+	processor.setCustomerToken(getCustomerToken());
+	processor.setDeviceTypeToken(getDeviceTypeToken());
+	processor.setEventDispatcher(dispatcher);
+	if (processor instanceof BaseCommandProcessor) {
+	    ((BaseCommandProcessor) processor).setCommandFormat(getCommandFormat());
+	    ((BaseCommandProcessor) processor).setCommandDecoder(getCommandDecoder());
+	    ((BaseCommandProcessor) processor).setStreamManager(getStreamManager());
+	    ((BaseCommandProcessor) processor).setTelemetryScheduler(getTelemetryScheduler().createChild());
+	    ((BaseCommandProcessor) processor).setEventClock(getEventClock());
+	}
+	return processor;
+    }
+
+    /**
+     * Create the command processor for the agent device and, in gateway mode, one
+     * for each gateway device.
+     * 
+     * @param processor
+     *            processor for the agent device or null to create one
+     * @return processors keyed by device token
+     * @throws SiteWhereAgentException
+     */
+    protected Map<String, IAgentCommandProcessor> createProcessors(IAgentCommandProcessor processor)
+	    throws SiteWhereAgentException {
+	Map<String, IAgentCommandProcessor> processors = new LinkedHashMap<String, IAgentCommandProcessor>();
+	processors.put(getDeviceToken(), (processor != null) ? processor : createProcessor());
+	if (isGatewayEnabled()) {
+	    for (String token : getGatewayDeviceTokens()) {
+		if (!processors.containsKey(token)) {
+		    processors.put(token, createProcessor());
+		}
+	    }
+	}
+	return processors;
+    }
+
+    /**
+     * Wait for command processors being constructed in the background.
+     * 
+     * @param constructing
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    protected Map<String, IAgentCommandProcessor> awaitProcessors(
+	    Future<Map<String, IAgentCommandProcessor>> constructing) throws SiteWhereAgentException {
+	try {
+	    return constructing.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SiteWhereAgentException("Interrupted while creating command processors.", e);
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof SiteWhereAgentException) {
+		throw (SiteWhereAgentException) e.getCause();
+	    }
+	    throw new SiteWhereAgentException(e.getCause());
+	}
+    }
+
+    /**
+     * Create an instance of the command processor. FOs * @return
+     * 
+     * @throws SiteWhereAgentException
+     */
+    protected IAgentCommandProcessor createProcessor() throws SiteWhereAgentException {
+	try {
+	    Class<?> clazz = Class.forName(getCommandProcessorClassname());
+	    IAgentCommandProcessor processor = (IAgentCommandProcessor) clazz.newInstance();
+	    return processor;
+	} catch (ClassNotFoundException e) {
+	    throw new SiteWhereAgentException(e);
+	} catch (InstantiationException e) {
+	    throw new SiteWhereAgentException(e);
+	} catch (IllegalAccessException e) {
+	    throw new SiteWhereAgentException(e);
+	}
+    }
+
+    /**
+     * Indicates how outbound events are published.
+     * 
+     * @author Derek
+     */
+    public static enum PublishMode {
+
+	/** Each send waits for the broker to complete the QoS handshake */
+	BLOCKING,
+
+	/** Sends return once the message is queued for publishing */
+	ASYNC;
+    }
+
+    /**
+     * Internal class for sending MQTT outbound messages. Safe for use by any
+     * number of threads at once: encoding uses per-thread buffers, and payloads
+     * are handed to the publisher without holding a lock. With the outbound ring
+     * enabled, the publisher is a {@link RingBufferPublisher} so only its writer
+     * thread calls the MQTT connection.
+     * 
+     * @author Derek
+     */
+    public static class MQTTOutbound implements IAsyncEventDispatcher {
+
+	/** Encoder shared by all outbound instances */
+	private static final EventEncoder ENCODER = new EventEncoder();
+
+	/** QoS for events without a configured policy */
+	public static final QoS DEFAULT_QOS = QoS.EXACTLY_ONCE;
+
+	/** MQTT outbound topic */
+	private String topic;
+
+	/** Topic compact measurement series are published to (null to send samples as events) */
+	private String seriesTopic;
+
+	/** MQTT publisher */
+	private IOutboundPublisher publisher;
+
+	/** Indicates whether sends wait for publish to complete */
+	private boolean blocking = true;
+
+	/** Metrics for outbound publishes */
+	private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+	/** QoS used for each type of event */
+	private Map<Command, QoS> qos = new EnumMap<Command, QoS>(Command.class);
+
+	/** Compresses payloads before publishing (null if disabled) */
+	private PayloadCompressor compressor;
+
+	public MQTTOutbound(IOutboundPublisher publisher, String topic) {
+	    this.publisher = publisher;
+	    this.topic = topic;
+	}
+
+	@Override
+	public void registerDevice(DeviceRegistrationRequest register, String deviceToken, String originator)
+		throws SiteWhereAgentException {
+	    sendMessage(Command.SendRegistration, register, deviceToken, originator, "registration");
+	}
+
+	@Override
+	public void acknowledge(DeviceAcknowledge ack, String deviceToken, String originator)
+		throws SiteWhereAgentException {
+	    sendMessage(Command.SendAcknowledgement, ack, deviceToken, originator, "ack");
+	}
+
+	@Override
+	public void sendMeasurement(DeviceMeasurement measurement, String deviceToken, String originator)
+		throws SiteWhereAgentException {
+	    sendMessage(Command.SendMeasurement, measurement, deviceToken, originator, "measurement");
+	}
+
+	@Override
+	public void sendLocation(DeviceLocation location, String deviceToken, String originator)
+		throws SiteWhereAgentException {
+	    sendMessage(Command.SendLocation, location, deviceToken, originator, "location");
+	}
+
+	@Override
+	public void sendAlert(DeviceAlert alert, String deviceToken, String originator) throws SiteWhereAgentException {
+	    sendMessage(Command.SendAlert, alert, deviceToken, originator, "alert");
+	}
+
+	@Override
+	public void createDeviceStream(DeviceStream stream, String deviceToken, String originator)
+		throws SiteWhereAgentException {
+	    sendMessage(Command.SendDeviceStream, stream, deviceToken, originator, "stream");
+	}
+
+	@Override
+	public void sendDeviceStreamData(DeviceStreamData data, String deviceToken, String originator)
+		throws SiteWhereAgentException {
+	    sendMessage(Command.SendDeviceStreamData, data, deviceToken, originator, "stream.data");
+	}
+
+	@Override
+	public void requestDeviceStreamData(DeviceStreamDataRequest request, String deviceToken, String originator)
+		throws SiteWhereAgentException {
+	    sendMessage(Command.RequestDeviceStreamData, request, deviceToken, originator, "stream.request");
+	}
+
+	@Override
+	public CompletableFuture<Void> registerDeviceAsync(DeviceRegistrationRequest register, String deviceToken,
+		String originator) throws SiteWhereAgentException {
+	    return sendMessageAsync(Command.SendRegistration, register, deviceToken, originator, "registration");
+	}
+
+	@Override
+	public CompletableFuture<Void> acknowledgeAsync(DeviceAcknowledge ack, String deviceToken, String originator)
+		throws SiteWhereAgentException {
+	    return sendMessageAsync(Command.SendAcknowledgement, ack, deviceToken, originator, "ack");
+	}
+
+	@Override
+	public CompletableFuture<Void> sendMeasurementAsync(DeviceMeasurement measurement, String deviceToken,
+		String originator) throws SiteWhereAgentException {
+	    return sendMessageAsync(Command.SendMeasurement, measurement, deviceToken, originator, "measurement");
+	}
+
+	@Override
+	public CompletableFuture<Void> sendLocationAsync(DeviceLocation location, String deviceToken,
+		String originator) throws SiteWhereAgentException {
+	    return sendMessageAsync(Command.SendLocation, location, deviceToken, originator, "location");
+	}
+
+	@Override
+	public CompletableFuture<Void> sendAlertAsync(DeviceAlert alert, String deviceToken, String originator)
+		throws SiteWhereAgentException {
+	    return sendMessageAsync(Command.SendAlert, alert, deviceToken, originator, "alert");
+	}
+
+	@Override
+	public CompletableFuture<Void> createDeviceStreamAsync(DeviceStream stream, String deviceToken,
+		String originator) throws SiteWhereAgentException {
+	    return sendMessageAsync(Command.SendDeviceStream, stream, deviceToken, originator, "stream");
+	}
+
+	@Override
+	public CompletableFuture<Void> sendDeviceStreamDataAsync(DeviceStreamData data, String deviceToken,
+		String originator) throws SiteWhereAgentException {
+	    return sendMessageAsync(Command.SendDeviceStreamData, data, deviceToken, originator, "stream.data");
+	}
+
+	@Override
+	public CompletableFuture<Void> requestDeviceStreamDataAsync(DeviceStreamDataRequest request,
+		String deviceToken, String originator) throws SiteWhereAgentException {
+	    return sendMessageAsync(Command.RequestDeviceStreamData, request, deviceToken, originator,
+		    "stream.request");
+	}
+
+	/**
+	 * Publish all of the events in a single payload.
+	 * 
+	 * @see com.sitewhere.agent.ISiteWhereEventDispatcher#dispatch(java.util.List)
+	 */
+	@Override
+	public void dispatch(List<OutboundEvent> events) throws SiteWhereAgentException {
+	    if (!events.isEmpty()) {
+		complete(dispatchAsync(events), "bulk");
+	    }
+	}
+
+	/**
+	 * Encode all of the events back-to-back into one payload and publish it once,
+	 * with the highest QoS configured for any of the events.
+	 * 
+	 * @see com.sitewhere.agent.IAsyncEventDispatcher#dispatchAsync(java.util.List)
+	 */
+	@Override
+	public CompletableFuture<Void> dispatchAsync(List<OutboundEvent> events) throws SiteWhereAgentException {
+	    if (events.isEmpty()) {
+		return CompletableFuture.completedFuture(null);
+	    }
+	    QoS highest = QoS.AT_MOST_ONCE;
+	    for (OutboundEvent event : events) {
+		QoS qos = getQos(event.getCommand());
+		if (qos.ordinal() > highest.ordinal()) {
+		    highest = qos;
+		}
+	    }
+	    return publish(encode(events), "bulk", highest);
+	}
+
+	@Override
+	public void sendMeasurementSeries(MeasurementSeries series, String deviceToken, String originator)
+		throws SiteWhereAgentException {
+	    complete(sendMeasurementSeriesAsync(series, deviceToken, originator), "series");
+	}
+
+	/**
+	 * With a series topic configured, encode the samples with {@link SeriesCodec}
+	 * and publish them to that topic in a single payload. Otherwise send each
+	 * sample as a measurement event in one bulk payload.
+	 * 
+	 * @see com.sitewhere.agent.IAsyncEventDispatcher#sendMeasurementSeriesAsync(com.
+	 * sitewhere.agent.MeasurementSeries, java.lang.String, java.lang.String)
+	 */
+	@Override
+	public CompletableFuture<Void> sendMeasurementSeriesAsync(MeasurementSeries series, String deviceToken,
+		String originator) throws SiteWhereAgentException {
+	    if (getSeriesTopic() == null) {
+		return IAsyncEventDispatcher.super.sendMeasurementSeriesAsync(series, deviceToken, originator);
+	    }
+	    if (series.size() == 0) {
+		return CompletableFuture.completedFuture(null);
+	    }
+	    byte[] payload = SeriesCodec.encode(series, deviceToken, originator);
+	    return publish(getSeriesTopic(), payload, "series", getQos(Command.SendMeasurement));
+	}
+
+	/**
+	 * Common logic for sending messages via protocol buffers. In blocking mode,
+	 * waits for the publish to complete. Otherwise returns once the message is
+	 * queued and logs any failure that happens later.
+	 * 
+	 * @param command
+	 * @param message
+	 * @param originator
+	 * @param label
+	 * @throws SiteWhereAgentException
+	 */
+	protected void sendMessage(Command command, GeneratedMessageV3 message, String deviceToken, String originator,
+		final String label) throws SiteWhereAgentException {
+	    complete(sendMessageAsync(command, message, deviceToken, originator, label), label);
+	}
+
+	/**
+	 * In blocking mode, wait for a publish to complete. Otherwise log any failure
+	 * that happens later.
+	 * 
+	 * @param future
+	 * @param label
+	 * @throws SiteWhereAgentException
+	 */
+	protected void complete(CompletableFuture<Void> future, final String label) throws SiteWhereAgentException {
+	    if (isBlocking()) {
+		try {
+		    future.get();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    throw new SiteWhereAgentException("Interrupted while publishing " + label + " message.", e);
+		} catch (ExecutionException e) {
+		    throw new SiteWhereAgentException(e.getCause());
+		}
+	    } else {
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+
+		    @Override
+		    public void accept(Void result, Throwable error) {
+			if (error != null) {
+			    LOGGER.log(Level.WARNING, "Unable to publish " + label + " message.", error);
+			}
+		    }
+		});
+	    }
+	}
+
+	/**
+	 * Encodes a message via protocol buffers and hands it to the publisher without
+	 * waiting for delivery. The message is published with the QoS configured for
+	 * its type of event.
+	 * 
+	 * @param command
+	 * @param message
+	 * @param deviceToken
+	 * @param originator
+	 * @param label
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	protected CompletableFuture<Void> sendMessageAsync(Command command, GeneratedMessageV3 message,
+		String deviceToken, String originator, String label) throws SiteWhereAgentException {
+	    byte[] payload;
+	    try {
+		payload = ENCODER.encode(command, message, deviceToken, originator);
+	    } catch (IOException e) {
+		throw new SiteWhereAgentException("Problem encoding " + label + " message.", e);
+	    }
+	    return publish(payload, label, getQos(command));
+	}
+
+	/**
+	 * Write a delimited header followed by the delimited event message. Multiple
+	 * encoded events may be written back-to-back into a single payload.
+	 * 
+	 * @param command
+	 * @param message
+	 * @param deviceToken
+	 * @param originator
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void encode(Command command, GeneratedMessageV3 message, String deviceToken, String originator,
+		OutputStream out) throws IOException {
+	    ENCODER.encode(command, message, deviceToken, originator, out);
+	}
+
+	/**
+	 * Encode several events back-to-back into a single payload.
+	 * 
+	 * @param events
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	public static byte[] encode(List<OutboundEvent> events) throws SiteWhereAgentException {
+	    try {
+		return ENCODER.encode(events);
+	    } catch (IOException e) {
+		throw new SiteWhereAgentException("Problem encoding bulk events.", e);
+	    }
+	}
+
+	/**
+	 * Publish an encoded payload to the outbound topic with the default QoS.
+	 * 
+	 * @param payload
+	 * @param label
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	public CompletableFuture<Void> publish(byte[] payload, String label) throws SiteWhereAgentException {
+	    return publish(payload, label, DEFAULT_QOS);
+	}
+
+	/**
+	 * Publish an encoded payload to the outbound topic, compressing it first if
+	 * compression is enabled.
+	 * 
+	 * @param payload
+	 * @param label
+	 * @param qos
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	public CompletableFuture<Void> publish(byte[] payload, String label, QoS qos) throws SiteWhereAgentException {
+	    return publish(getTopic(), payload, label, qos);
+	}
+
+	/**
+	 * Publish an encoded payload to the given topic, compressing it first if
+	 * compression is enabled.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @param label
+	 * @param qos
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	public CompletableFuture<Void> publish(String topic, byte[] payload, String label, QoS qos)
+		throws SiteWhereAgentException {
+	    long start = getMetrics().isEnabled() ? System.nanoTime() : 0;
+	    if (getCompressor() != null) {
+		int original = payload.length;
+		payload = getCompressor().compress(payload);
+		getMetrics().counter("outbound.compression.saved.bytes").add(original - payload.length);
+	    }
+	    try {
+		CompletableFuture<Void> future = getPublisher().publish(topic, payload, qos, false);
+		if (getMetrics().isEnabled()) {
+		    recordPublish(future, payload.length, label, start);
+		}
+		return future;
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		getMetrics().counter("outbound.failures", "type", label).increment();
+		throw new SiteWhereAgentException("Interrupted while queueing " + label + " message.", e);
+	    } catch (Exception e) {
+		getMetrics().counter("outbound.failures", "type", label).increment();
+		throw new SiteWhereAgentException(e);
+	    }
+	}
+
+	/**
+	 * Record bytes sent and, once the publish completes, its latency or failure.
+	 * 
+	 * @param future
+	 * @param bytes
+	 * @param label
+	 * @param start
+	 */
+	protected void recordPublish(CompletableFuture<Void> future, int bytes, final String label,
+		final long start) {
+	    getMetrics().counter("outbound.bytes", "type", label).add(bytes);
+	    future.whenComplete(new BiConsumer<Void, Throwable>() {
+
+		@Override
+		public void accept(Void result, Throwable error) {
+		    if (error != null) {
+			getMetrics().counter("outbound.failures", "type", label).increment();
+		    } else {
+			getMetrics().counter("outbound.published", "type", label).increment();
+			getMetrics().recorder("outbound.publish.latency", "type", label).recordSince(start);
+		    }
+		}
+	    });
+	}
+
+	public IOutboundPublisher getPublisher() {
+	    return publisher;
+	}
+
+	public void setPublisher(IOutboundPublisher publisher) {
+	    this.publisher = publisher;
+	}
+
+	public boolean isBlocking() {
+	    return blocking;
+	}
+
+	public void setBlocking(boolean blocking) {
+	    this.blocking = blocking;
+	}
+
+	public String getTopic() {
+	    return topic;
+	}
+
+	public void setTopic(String topic) {
+	    this.topic = topic;
+	}
+
+	public String getSeriesTopic() {
+	    return seriesTopic;
+	}
+
+	public void setSeriesTopic(String seriesTopic) {
+	    this.seriesTopic = seriesTopic;
+	}
+
+	public MetricsRegistry getMetrics() {
+	    return metrics;
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+	    this.metrics = metrics;
+	}
+
+	public PayloadCompressor getCompressor() {
+	    return compressor;
+	}
+
+	public void setCompressor(PayloadCompressor compressor) {
+	    this.compressor = compressor;
+	}
+
+	/**
+	 * Get QoS used to publish a type of event.
+	 * 
+	 * @param command
+	 * @return
+	 */
+	public QoS getQos(Command command) {
+	    QoS configured = qos.get(command);
+	    return (configured != null) ? configured : DEFAULT_QOS;
+	}
+
+	/**
+	 * Set QoS used to publish a type of event.
+	 * 
+	 * @param command
+	 * @param qos
+	 */
+	public void setQos(Command command, QoS qos) {
+	    this.qos.put(command, qos);
+	}
+    }
+
+    /**
+     * Handles inbound commands. Monitors two topics for messages. One contains
+     * SiteWhere system messages and the other contains messages defined in the
+     * device specification.
+     * 
+     * @author Derek
+     */
+    public static class MQTTInbound implements Runnable {
 
 	/** MQTT connection */
-	private BlockingConnection connection;
+	private MQTTConnectionManager connection;
+
+	/** SiteWhere inbound MQTT topic */
+	private String sitewhereTopic;
+
+	/** Command inbound MQTT topic */
+	private String commandTopic;
+
+	/** Command processor */
+	private IAgentCommandProcessor processor;
+
+	/** Event dispatcher */
+	private ISiteWhereEventDispatcher dispatcher;
+
+	/** Processors for devices addressed by wildcard topics */
+	private DeviceRegistry registry;
+
+	/** Workers that run commands in parallel, or null to run on receive thread */
+	private OrderedExecutor workers;
+
+	/** Metrics for inbound processing */
+	private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+	public MQTTInbound(MQTTConnectionManager connection, String sitewhereTopic, String commandTopic,
+		IAgentCommandProcessor processor, ISiteWhereEventDispatcher dispatcher) {
+	    this.connection = connection;
+	    this.sitewhereTopic = sitewhereTopic;
+	    this.commandTopic = commandTopic;
+	    this.processor = processor;
+	    this.dispatcher = dispatcher;
+	}
+
+	@Override
+	public void run() {
+	    LOGGER.info("Started MQTT inbound processing thread.");
+	    while (true) {
+		try {
+		    MQTTConnectionManager.ReceivedMessage message = connection.receive();
+		    message.ack();
+		    String topic = message.getTopic();
+		    if (matches(getSitewhereTopic(), topic)) {
+			IAgentCommandProcessor processor = resolve(getSitewhereTopic(), topic);
+			if (processor != null) {
+			    execute(processor, message.getPayloadBuffer().toByteBuffer(), true,
+				    message.getReceivedNanos());
+			}
+		    } else if (matches(getCommandTopic(), topic)) {
+			IAgentCommandProcessor processor = resolve(getCommandTopic(), topic);
+			if (processor != null) {
+			    execute(processor, message.getPayloadBuffer().toByteBuffer(), false,
+				    message.getReceivedNanos());
+			}
+		    } else {
+			LOGGER.warning("Message for unknown topic received: " + topic);
+		    }
+		} catch (InterruptedException e) {
+		    LOGGER.warning("Device event processor interrupted.");
+		    return;
+		} catch (Throwable e) {
+		    LOGGER.log(Level.SEVERE, "Exception processing inbound message", e);
+		}
+	    }
+	}
+
+	/**
+	 * Run a command on the processor. If workers are configured, commands are
+	 * queued on the lane for the processor so that commands for each device
+	 * run in order. Otherwise the command runs on the receive thread.
+	 * 
+	 * If metrics are enabled, time from arrival to the start of the handler and
+	 * time spent in the handler are recorded for the subscription.
+	 * 
+	 * The payload wraps the received frame rather than a copy of it, so
+	 * processors parse commands directly from the network buffer.
+	 * 
+	 * @param processor
+	 * @param payload
+	 * @param system
+	 * @param receivedNanos
+	 * @throws InterruptedException
+	 */
+	protected void execute(final IAgentCommandProcessor processor, final ByteBuffer payload, final boolean system,
+		final long receivedNanos) throws InterruptedException {
+	    Runnable task = new Runnable() {
+
+		@Override
+		public void run() {
+		    String topic = system ? getSitewhereTopic() : getCommandTopic();
+		    long start = getMetrics().isEnabled() ? System.nanoTime() : 0;
+		    if (getMetrics().isEnabled()) {
+			getMetrics().counter("inbound.messages", "topic", topic).increment();
+			if (receivedNanos != 0) {
+			    getMetrics().recorder("inbound.receive.latency", "topic", topic)
+				    .record(start - receivedNanos);
+			}
+		    }
+		    try {
+			if (system) {
+			    processor.processSiteWhereCommand(payload, getDispatcher());
+			} else {
+			    processor.processSpecificationCommand(payload, getDispatcher());
+			}
+		    } catch (Throwable e) {
+			getMetrics().counter("inbound.failures", "topic", topic).increment();
+			LOGGER.log(Level.SEVERE, "Exception processing inbound message", e);
+		    } finally {
+			if (getMetrics().isEnabled()) {
+			    getMetrics().recorder("inbound.handler.time", "topic", topic).recordSince(start);
+			}
+		    }
+		}
+	    };
+	    if (getWorkers() == null) {
+		task.run();
+	    } else {
+		getWorkers().execute(processor, task);
+	    }
+	}
+
+	/**
+	 * Indicates whether a topic matches a subscription. Only a trailing
+	 * single-level wildcard is supported since it stands for the device token.
+	 * 
+	 * @param filter
+	 * @param topic
+	 * @return
+	 */
+	protected boolean matches(String filter, String topic) {
+	    if (!isWildcard(filter)) {
+		return filter.equals(topic);
+	    }
+	    int prefix = filter.length() - SINGLE_LEVEL_WILDCARD.length();
+	    return topic.regionMatches(0, filter, 0, prefix) && (topic.indexOf('/', prefix) < 0);
+	}
+
+	/**
+	 * Find the processor for a message. For wildcard subscriptions, the last
+	 * topic level is the device token used to look up the processor.
+	 * 
+	 * @param filter
+	 * @param topic
+	 * @return
+	 */
+	protected IAgentCommandProcessor resolve(String filter, String topic) {
+	    if (!isWildcard(filter) || (getRegistry() == null)) {
+		return getProcessor();
+	    }
+	    String deviceToken = topic.substring(filter.length() - SINGLE_LEVEL_WILDCARD.length());
+	    IAgentCommandProcessor processor = getRegistry().getProcessor(deviceToken);
+	    if (processor == null) {
+		LOGGER.warning("Message received for unregistered device: " + deviceToken);
+	    }
+	    return processor;
+	}
+
+	/**
+	 * Indicates whether a subscription ends in a single-level wildcard.
+	 * 
+	 * @param filter
+	 * @return
+	 */
+	protected boolean isWildcard(String filter) {
+	    return filter.endsWith("/" + SINGLE_LEVEL_WILDCARD);
+	}
+
+	public MQTTConnectionManager getConnection() {
+	    return connection;
+	}
+
+	public void setConnection(MQTTConnectionManager connection) {
+	    this.connection = connection;
+	}
+
+	public String getSitewhereTopic() {
+	    return sitewhereTopic;
+	}
+
+	public void setSitewhereTopic(String sitewhereTopic) {
+	    this.sitewhereTopic = sitewhereTopic;
+	}
+
+	public String getCommandTopic() {
+	    return commandTopic;
+	}
+
+	public void setCommandTopic(String commandTopic) {
+	    this.commandTopic = commandTopic;
+	}
+
+	public IAgentCommandProcessor getProcessor() {
+	    return processor;
+	}
+
+	public void setProcessor(IAgentCommandProcessor processor) {
+	    this.processor = processor;
+	}
+
+	public ISiteWhereEventDispatcher getDispatcher() {
+	    return dispatcher;
+	}
+
+	public void setDispatcher(ISiteWhereEventDispatcher dispatcher) {
+	    this.dispatcher = dispatcher;
+	}
+
+	public DeviceRegistry getRegistry() {
+	    return registry;
+	}
+
+	public void setRegistry(DeviceRegistry registry) {
+	    this.registry = registry;
+	}
+
+	public OrderedExecutor getWorkers() {
+	    return workers;
+	}
+
+	public void setWorkers(OrderedExecutor workers) {
+	    this.workers = workers;
+	}
+
+	public MetricsRegistry getMetrics() {
+	    return metrics;
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+	    this.metrics = metrics;
+	}
+    }
+
+    /**
+     * Stop the agent, flushing outbound events and closing connections. Called
+     * automatically when the JVM exits.
+     */
+    public synchronized void stop() {
+	if (stopped) {
+	    return;
+	}
+	stopped = true;
+	if (startupExecutor != null) {
+	    startupExecutor.shutdownNow();
+	}
+	if (telemetryScheduler != null) {
+	    telemetryScheduler.close();
+	}
+	if (streamManager != null) {
+	    streamManager.close();
+	}
+	if (inbound != null) {
+	    if (inbound.getWorkers() != null) {
+		inbound.getWorkers().close();
+	    }
+	    executor.shutdownNow();
+	}
+	if (dispatcher instanceof Closeable) {
+	    try {
+		((Closeable) dispatcher).close();
+	    } catch (IOException e) {
+		LOGGER.log(Level.WARNING, "Exception flushing outbound events.", e);
+	    }
+	}
+	for (IOutboundPublisher publisher : publishers) {
+	    if (publisher instanceof Closeable) {
+		try {
+		    ((Closeable) publisher).close();
+		} catch (IOException e) {
+		    LOGGER.log(Level.WARNING, "Exception closing outbound publisher.", e);
+		}
+	    }
+	}
+	for (DeferredPublisher held : deferred) {
+	    try {
+		held.close();
+	    } catch (IOException e) {
+		LOGGER.log(Level.WARNING, "Exception closing outbound publisher.", e);
+	    }
+	}
+	for (MQTTConnectionManager outboundConnection : outboundConnectionManagers) {
+	    outboundConnection.disconnect();
+	}
+	if (connection != null) {
+	    connection.disconnect();
+	}
+	for (IMetricsExporter exporter : getMetricsExporters()) {
+	    try {
+		exporter.close();
+	    } catch (IOException e) {
+		LOGGER.log(Level.WARNING, "Exception closing metrics exporter.", e);
+	    }
+	}
+	if ((shutdownHook != null) && (Thread.currentThread() != shutdownHook)) {
+	    try {
+		Runtime.getRuntime().removeShutdownHook(shutdownHook);
+	    } catch (IllegalStateException e) {
+		// JVM is already shutting down.
+	    }
+	}
+	LOGGER.info("SiteWhere agent stopped.");
+    }
+
+    /**
+     * Handles graceful shutdown of agent.
+     * 
+     * @author Derek
+     */
+    public class ShutdownHandler extends Thread {
+	@Override
+	public void run() {
+	    Agent.this.stop();
+	}
+    }
+
+    /**
+     * Validates the agent configuration.
+     * 
+     * @return
+     */
+    public boolean load(Properties properties) {
+	LOGGER.info("Validating configuration...");
+
+	// Load command processor class name.
+	setCommandProcessorClassname(properties.getProperty(IAgentConfiguration.COMMAND_PROCESSOR_CLASSNAME));
+	if (getCommandProcessorClassname() == null) {
+	    LOGGER.severe("Command processor class name not specified.");
+	    return false;
+	}
+
+	// Validate tenant
+	setTenant(properties.getProperty(IAgentConfiguration.TENANT));
+	if (getTenant() == null) {
+	    LOGGER.severe("Tenant Id not specified in configuration.");
+	    return false;
+	}
+	LOGGER.info("Using configured tenant: " + getTenant());
+
+	// Validate device token
+	setDeviceToken(properties.getProperty(IAgentConfiguration.DEVICE_TOKEN));
+	if (getDeviceToken() == null) {
+	    LOGGER.severe("Device token not specified in configuration.");
+	    return false;
+	}
+	LOGGER.info("Using configured device token: " + getDeviceToken());
+
+	// Validate area token.
+	setAreaToken(properties.getProperty(IAgentConfiguration.AREA_TOKEN));
+	if (getAreaToken() == null) {
+	    LOGGER.severe("Area token not specified in configuration.");
+	    return false;
+	}
+	LOGGER.info("Using configured area token: " + getAreaToken());
+
+	// Validate customer token.
+	setCustomerToken(properties.getProperty(IAgentConfiguration.CUSTOMER_TOKEN));
+	if (getCustomerToken() == null) {
+	    LOGGER.severe("Customer token not specified in configuration.");
+	    return false;
+	}
+	LOGGER.info("Using configured customer token: " + getCustomerToken());
+
+	// Validate device type token.
+	setDeviceTypeToken(properties.getProperty(IAgentConfiguration.DEVICE_TYPE_TOKEN));
+	if (getDeviceTypeToken() == null) {
+	    LOGGER.severe("Device type token not specified in configuration.");
+	    return false;
+	}
+	LOGGER.info("Using configured device type token: " + getDeviceTypeToken());
+
+	// Validate MQTT hostname.
+	setMqttHostname(properties.getProperty(IAgentConfiguration.MQTT_HOSTNAME));
+	if (getMqttHostname() == null) {
+	    LOGGER.warning("Using default MQTT hostname: " + DEFAULT_MQTT_HOSTNAME);
+	    setMqttHostname(DEFAULT_MQTT_HOSTNAME);
+	}
+
+	// Validate MQTT port.
+	String strPort = properties.getProperty(IAgentConfiguration.MQTT_PORT);
+	if (strPort != null) {
+	    try {
+		setMqttPort(Integer.parseInt(strPort));
+	    } catch (NumberFormatException e) {
+		LOGGER.warning("Non-numeric MQTT port specified, using: " + DEFAULT_MQTT_PORT);
+		setMqttPort(DEFAULT_MQTT_PORT);
+	    }
+	} else {
+	    LOGGER.warning("No MQTT port specified, using: " + DEFAULT_MQTT_PORT);
+	    setMqttPort(DEFAULT_MQTT_PORT);
+	}
+
+	// Load specification command format.
+	String strFormat = properties.getProperty(IAgentConfiguration.COMMAND_FORMAT);
+	if (strFormat != null) {
+	    try {
+		setCommandFormat(BaseCommandProcessor.CommandFormat.valueOf(strFormat.trim().toUpperCase()));
+	    } catch (IllegalArgumentException e) {
+		LOGGER.warning("Unknown command format specified, using: " + BaseCommandProcessor.CommandFormat.AUTO);
+	    }
+	}
+	String strNames = properties.getProperty(IAgentConfiguration.COMMAND_PROTOBUF_NAMES);
+	if (strNames != null) {
+	    try {
+		setCommandDecoder(ProtobufCommandDecoder.parse(strNames));
+	    } catch (SiteWhereAgentException e) {
+		LOGGER.log(Level.SEVERE, "Invalid protobuf command names.", e);
+		return false;
+	    }
+	}
+
+	// Load gateway settings.
+	setGatewayEnabled(Boolean.parseBoolean(properties.getProperty(IAgentConfiguration.GATEWAY_ENABLED)));
+	String strTokens = properties.getProperty(IAgentConfiguration.GATEWAY_DEVICE_TOKENS);
+	if (strTokens != null) {
+	    for (String token : strTokens.split(",")) {
+		if (!token.trim().isEmpty()) {
+		    getGatewayDeviceTokens().add(token.trim());
+		}
+	    }
+	}
+	if (isGatewayEnabled()) {
+	    LOGGER.info("Serving " + getGatewayDeviceTokens().size() + " configured devices in gateway mode.");
+	}
+
+	// Load inbound processing settings.
+	setInboundThreads(parsePositiveInt(properties, IAgentConfiguration.INBOUND_THREADS, DEFAULT_INBOUND_THREADS));
+	setInboundQueueSize(parsePositiveInt(properties, IAgentConfiguration.INBOUND_QUEUE_SIZE,
+		OrderedExecutor.DEFAULT_QUEUE_SIZE));
+	setInboundVirtualThreads(
+		Boolean.parseBoolean(properties.getProperty(IAgentConfiguration.INBOUND_VIRTUAL_THREADS)));
+
+	// Load MQTT session settings.
+	setMqttClientId(properties.getProperty(IAgentConfiguration.MQTT_CLIENT_ID));
+	String strClean = properties.getProperty(IAgentConfiguration.MQTT_CLEAN_SESSION);
+	if (strClean != null) {
+	    setMqttCleanSession(Boolean.parseBoolean(strClean.trim()));
+	}
+	setReconnectDelayMs(parsePositiveInt(properties, IAgentConfiguration.MQTT_RECONNECT_DELAY_MS,
+		(int) MQTTConnectionManager.DEFAULT_RECONNECT_DELAY_MS));
+	setReconnectDelayMaxMs(parsePositiveInt(properties, IAgentConfiguration.MQTT_RECONNECT_DELAY_MAX_MS,
+		(int) MQTTConnectionManager.DEFAULT_RECONNECT_DELAY_MAX_MS));
+	setReceiveBuffer(parsePositiveInt(properties, IAgentConfiguration.MQTT_RECEIVE_BUFFER,
+		MQTTConnectionManager.DEFAULT_RECEIVE_BUFFER));
+
+	// Load number of dedicated outbound connections.
+	String strConnections = properties.getProperty(IAgentConfiguration.MQTT_OUTBOUND_CONNECTIONS);
+	if (strConnections != null) {
+	    try {
+		setOutboundConnections(Math.max(0, Integer.parseInt(strConnections.trim())));
+	    } catch (NumberFormatException e) {
+		LOGGER.warning("Invalid number of outbound connections, sharing inbound connection.");
+	    }
+	}
+
+	// Validate MQTT publish mode.
+	String strMode = properties.getProperty(IAgentConfiguration.MQTT_PUBLISH_MODE);
+	if (strMode != null) {
+	    try {
+		setPublishMode(PublishMode.valueOf(strMode.trim().toUpperCase()));
+	    } catch (IllegalArgumentException e) {
+		LOGGER.warning("Unknown MQTT publish mode specified, using: " + DEFAULT_PUBLISH_MODE);
+		setPublishMode(DEFAULT_PUBLISH_MODE);
+	    }
+	}
+
+	// Load QoS policy for outbound events and inbound subscriptions.
+	loadOutboundQos(properties, IAgentConfiguration.MQTT_QOS_REGISTRATION, Command.SendRegistration);
+	loadOutboundQos(properties, IAgentConfiguration.MQTT_QOS_ACK, Command.SendAcknowledgement);
+	loadOutboundQos(properties, IAgentConfiguration.MQTT_QOS_MEASUREMENT, Command.SendMeasurement);
+	loadOutboundQos(properties, IAgentConfiguration.MQTT_QOS_LOCATION, Command.SendLocation);
+	loadOutboundQos(properties, IAgentConfiguration.MQTT_QOS_ALERT, Command.SendAlert);
+	loadOutboundQos(properties, IAgentConfiguration.MQTT_QOS_STREAM, Command.SendDeviceStream,
+		Command.SendDeviceStreamData, Command.RequestDeviceStreamData);
+	setInboundSiteWhereQos(
+		parseQos(properties, IAgentConfiguration.MQTT_INBOUND_SITEWHERE_QOS, getInboundSiteWhereQos()));
+	setInboundCommandQos(
+		parseQos(properties, IAgentConfiguration.MQTT_INBOUND_COMMAND_QOS, getInboundCommandQos()));
+
+	// Validate MQTT in-flight window.
+	String strInFlight = properties.getProperty(IAgentConfiguration.MQTT_PUBLISH_MAX_INFLIGHT);
+	if (strInFlight != null) {
+	    try {
+		setMaxInFlight(Integer.parseInt(strInFlight));
+	    } catch (NumberFormatException e) {
+		LOGGER.warning("Non-numeric MQTT in-flight window specified, using: "
+			+ MQTTPublisher.DEFAULT_MAX_IN_FLIGHT);
+		setMaxInFlight(MQTTPublisher.DEFAULT_MAX_IN_FLIGHT);
+	    }
+	    if (getMaxInFlight() < 1) {
+		LOGGER.warning("MQTT in-flight window must be positive, using: " + MQTTPublisher.DEFAULT_MAX_IN_FLIGHT);
+		setMaxInFlight(MQTTPublisher.DEFAULT_MAX_IN_FLIGHT);
+	    }
+	}
+
+	// Load outbound batching settings.
+	setBatchEnabled(Boolean.parseBoolean(properties.getProperty(IAgentConfiguration.MQTT_BATCH_ENABLED)));
+	setBatchMaxEvents(parsePositiveInt(properties, IAgentConfiguration.MQTT_BATCH_MAX_EVENTS,
+		BatchingEventDispatcher.DEFAULT_MAX_EVENTS));
+	setBatchMaxBytes(parsePositiveInt(properties, IAgentConfiguration.MQTT_BATCH_MAX_BYTES,
+		BatchingEventDispatcher.DEFAULT_MAX_BYTES));
+	setBatchLingerMs(parsePositiveInt(properties, IAgentConfiguration.MQTT_BATCH_LINGER_MS,
+		(int) BatchingEventDispatcher.DEFAULT_LINGER_MS));
+
+	// Load outbound compression settings.
+	setCompressionEnabled(
+		Boolean.parseBoolean(properties.getProperty(IAgentConfiguration.MQTT_COMPRESSION_ENABLED)));
+	setCompressionLevel(parsePositiveInt(properties, IAgentConfiguration.MQTT_COMPRESSION_LEVEL,
+		PayloadCompressor.DEFAULT_LEVEL));
+	if (getCompressionLevel() > Deflater.BEST_COMPRESSION) {
+	    LOGGER.warning("Compression level must be between 1 and 9, using default.");
+	    setCompressionLevel(PayloadCompressor.DEFAULT_LEVEL);
+	}
+	setCompressionMinBytes(parsePositiveInt(properties, IAgentConfiguration.MQTT_COMPRESSION_MIN_BYTES,
+		PayloadCompressor.DEFAULT_MIN_BYTES));
+	setCompressionDictionary(properties.getProperty(IAgentConfiguration.MQTT_COMPRESSION_DICTIONARY));
+
+	// Load outbound ring settings.
+	setRingEnabled(Boolean.parseBoolean(properties.getProperty(IAgentConfiguration.OUTBOUND_RING_ENABLED)));
+	setRingSize(parsePositiveInt(properties, IAgentConfiguration.OUTBOUND_RING_SIZE,
+		RingBufferPublisher.DEFAULT_CAPACITY));
+
+	// Load outbound priority lane settings.
+	setPriorityEnabled(Boolean.parseBoolean(properties.getProperty(IAgentConfiguration.OUTBOUND_PRIORITY_ENABLED)));
+	for (Lane lane : Lane.values()) {
+	    String name = lane.name().toLowerCase();
+	    String rate = String.format(IAgentConfiguration.OUTBOUND_LANE_RATE, name);
+	    if (properties.getProperty(rate) != null) {
+		getLaneRates().put(lane, parseNonNegativeDouble(properties, rate, 0));
+	    }
+	    String burst = String.format(IAgentConfiguration.OUTBOUND_LANE_BURST, name);
+	    if (properties.getProperty(burst) != null) {
+		getLaneBursts().put(lane, parsePositiveInt(properties, burst, 1));
+	    }
+	    String capacity = String.format(IAgentConfiguration.OUTBOUND_LANE_CAPACITY, name);
+	    if (properties.getProperty(capacity) != null) {
+		getLaneCapacities().put(lane,
+			parsePositiveInt(properties, capacity, PriorityEventDispatcher.DEFAULT_CAPACITY));
+	    }
+	}
+	String strOverflow = properties.getProperty(IAgentConfiguration.OUTBOUND_LANE_OVERFLOW);
+	if (strOverflow != null) {
+	    try {
+		setLaneOverflowPolicy(OverflowPolicy.valueOf(strOverflow.trim().toUpperCase()));
+	    } catch (IllegalArgumentException e) {
+		LOGGER.warning("Invalid lane overflow policy '" + strOverflow + "', using: " + getLaneOverflowPolicy());
+	    }
+	}
+
+	// Load measurement aggregation settings.
+	setAggregationEnabled(Boolean.parseBoolean(properties.getProperty(IAgentConfiguration.AGGREGATION_ENABLED)));
+	setAggregationIntervalMs(parsePositiveInt(properties, IAgentConfiguration.AGGREGATION_INTERVAL_MS,
+		(int) AggregatingEventDispatcher.DEFAULT_INTERVAL_MS));
+	String strAggregation = properties.getProperty(IAgentConfiguration.AGGREGATION_MODE);
+	if (strAggregation != null) {
+	    try {
+		setAggregationMode(AggregatingEventDispatcher.Mode.valueOf(strAggregation.trim().toUpperCase()));
+	    } catch (IllegalArgumentException e) {
+		LOGGER.warning("Invalid aggregation mode '" + strAggregation + "', using: " + getAggregationMode());
+	    }
+	}
+	setAggregationDeadband(parseNonNegativeDouble(properties, IAgentConfiguration.AGGREGATION_DEADBAND, 0));
+	setAggregationDeviationPercent(
+		parseNonNegativeDouble(properties, IAgentConfiguration.AGGREGATION_DEVIATION_PERCENT, 0));
+	setAggregationHeartbeatMs(parseNonNegativeLong(properties, IAgentConfiguration.AGGREGATION_HEARTBEAT_MS, 0));
+
+	// Load outbound journal settings.
+	setJournalEnabled(Boolean.parseBoolean(properties.getProperty(IAgentConfiguration.JOURNAL_ENABLED)));
+	String journalDir = properties.getProperty(IAgentConfiguration.JOURNAL_DIRECTORY);
+	if (journalDir != null) {
+	    setJournalDirectory(journalDir);
+	}
+	setJournalSegmentBytes(parsePositiveInt(properties, IAgentConfiguration.JOURNAL_SEGMENT_BYTES,
+		(int) OutboundJournal.DEFAULT_SEGMENT_BYTES));
+	setJournalMaxSegments(parsePositiveInt(properties, IAgentConfiguration.JOURNAL_MAX_SEGMENTS,
+		OutboundJournal.DEFAULT_MAX_SEGMENTS));
+	if (isJournalEnabled()) {
+	    LOGGER.info("Journaling outbound events to: " + getJournalDirectory());
+	}
+
+	// Load device stream settings.
+	setStreamChunkSize(parsePositiveInt(properties, IAgentConfiguration.STREAM_CHUNK_SIZE,
+		DeviceStreamManager.DEFAULT_CHUNK_SIZE));
+	setStreamWindow(
+		parsePositiveInt(properties, IAgentConfiguration.STREAM_WINDOW, DeviceStreamManager.DEFAULT_WINDOW));
+	String strMapped = properties.getProperty(IAgentConfiguration.STREAM_MEMORY_MAPPED);
+	if (strMapped != null) {
+	    setStreamMemoryMapped(Boolean.parseBoolean(strMapped.trim()));
+	}
+	setStreamTimeoutMs(parseNonNegativeLong(properties, IAgentConfiguration.STREAM_TIMEOUT_MS,
+		DeviceStreamManager.DEFAULT_TIMEOUT_MS));
+
+	// Load telemetry settings.
+	setTelemetryThreads(parsePositiveInt(properties, IAgentConfiguration.TELEMETRY_THREADS,
+		TelemetryScheduler.DEFAULT_THREADS));
+
+	// Load event timestamp settings.
+	String strTimestamps = properties.getProperty(IAgentConfiguration.EVENT_TIMESTAMPS_ENABLED);
+	if (strTimestamps != null) {
+	    setTimestampsEnabled(Boolean.parseBoolean(strTimestamps.trim()));
+	}
+	if (!isTimestampsEnabled()) {
+	    LOGGER.info("Events will be dated by SiteWhere when they arrive.");
+	}
+
+	// Load startup settings.
+	setFastStartEnabled(Boolean.parseBoolean(properties.getProperty(IAgentConfiguration.STARTUP_FAST_ENABLED)));
+	setStartupQueueSize(parsePositiveInt(properties, IAgentConfiguration.STARTUP_QUEUE_SIZE,
+		DeferredPublisher.DEFAULT_CAPACITY));
+	if (isFastStartEnabled()) {
+	    LOGGER.info("Starting without waiting for the MQTT broker (holding up to " + getStartupQueueSize()
+		    + " outbound payloads per connection).");
+	}
+
+	// Load metrics settings.
+	setMetricsEnabled(Boolean.parseBoolean(properties.getProperty(IAgentConfiguration.METRICS_ENABLED)));
+	String strJmx = properties.getProperty(IAgentConfiguration.METRICS_JMX_ENABLED);
+	if (strJmx != null) {
+	    setMetricsJmxEnabled(Boolean.parseBoolean(strJmx.trim()));
+	}
+	String metricsHost = properties.getProperty(IAgentConfiguration.METRICS_HTTP_HOST);
+	if (metricsHost != null) {
+	    setMetricsHttpHost(metricsHost.trim());
+	}
+	setMetricsHttpPort(parsePositiveInt(properties, IAgentConfiguration.METRICS_HTTP_PORT, 0));
+	if (isMetricsEnabled()) {
+	    LOGGER.info("Collecting agent metrics.");
+	}
+
+	// Validate outbound SiteWhere topic.
+	setOutboundSiteWhereTopic(properties.getProperty(IAgentConfiguration.MQTT_OUTBOUND_SITEWHERE_TOPIC));
+	if (getOutboundSiteWhereTopic() == null) {
+	    String outboundTopic = buildOutboundTopic();
+	    LOGGER.warning("Using default outbound SiteWhere MQTT topic: " + outboundTopic);
+	    setOutboundSiteWhereTopic(outboundTopic);
+	}
+	setOutboundSeriesTopic(properties.getProperty(IAgentConfiguration.MQTT_OUTBOUND_SERIES_TOPIC));
+	if (getOutboundSeriesTopic() != null) {
+	    LOGGER.info("Publishing compact measurement series to: " + getOutboundSeriesTopic());
+	}
+
+	// Validate inbound SiteWhere topic.
+	setInboundSiteWhereTopic(properties.getProperty(IAgentConfiguration.MQTT_INBOUND_SITEWHERE_TOPIC));
+	if (getInboundSiteWhereTopic() == null) {
+	    String in = calculateInboundSiteWhereTopic();
+	    LOGGER.warning("Using default inbound SiteWhere MQTT topic: " + in);
+	    setInboundSiteWhereTopic(in);
+	}
+
+	// Validate inbound command topic.
+	setInboundCommandTopic(properties.getProperty(IAgentConfiguration.MQTT_INBOUND_COMMAND_TOPIC));
+	if (getInboundCommandTopic() == null) {
+	    String in = calculateInboundCommandTopic();
+	    LOGGER.warning("Using default inbound command MQTT topic: " + in);
+	    setInboundCommandTopic(in);
+	}
+	return true;
+    }
+
+    /**
+     * Parse an optional positive integer property, falling back to a default if
+     * missing or invalid.
+     * 
+     * @param properties
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    protected int parsePositiveInt(Properties properties, String name, int defaultValue) {
+	String value = properties.getProperty(name);
+	if (value == null) {
+	    return defaultValue;
+	}
+	try {
+	    int parsed = Integer.parseInt(value.trim());
+	    if (parsed > 0) {
+		return parsed;
+	    }
+	} catch (NumberFormatException e) {
+	}
+	LOGGER.warning("Invalid value for '" + name + "', using: " + defaultValue);
+	return defaultValue;
+    }
+
+    /**
+     * Parse an optional non-negative long property, falling back to a default if
+     * missing or invalid.
+     * 
+     * @param properties
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    protected long parseNonNegativeLong(Properties properties, String name, long defaultValue) {
+	String value = properties.getProperty(name);
+	if (value == null) {
+	    return defaultValue;
+	}
+	try {
+	    long parsed = Long.parseLong(value.trim());
+	    if (parsed >= 0) {
+		return parsed;
+	    }
+	} catch (NumberFormatException e) {
+	}
+	LOGGER.warning("Invalid value for '" + name + "', using: " + defaultValue);
+	return defaultValue;
+    }
+
+    /**
+     * Parse an optional non-negative decimal property, falling back to a default
+     * if missing or invalid.
+     * 
+     * @param properties
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    protected double parseNonNegativeDouble(Properties properties, String name, double defaultValue) {
+	String value = properties.getProperty(name);
+	if (value == null) {
+	    return defaultValue;
+	}
+	try {
+	    double parsed = Double.parseDouble(value.trim());
+	    if (parsed >= 0) {
+		return parsed;
+	    }
+	} catch (NumberFormatException e) {
+	}
+	LOGGER.warning("Invalid value for '" + name + "', using: " + defaultValue);
+	return defaultValue;
+    }
+
+    /**
+     * Load the QoS for one or more types of outbound event if configured. The
+     * property is parsed once and applies to all of the given commands.
+     * 
+     * @param properties
+     * @param name
+     * @param commands
+     */
+    protected void loadOutboundQos(Properties properties, String name, Command... commands) {
+	if (properties.getProperty(name) != null) {
+	    QoS qos = parseQos(properties, name, MQTTOutbound.DEFAULT_QOS);
+	    for (Command command : commands) {
+		getOutboundQos().put(command, qos);
+	    }
+	    LOGGER.info("Publishing " + Arrays.toString(commands) + " events with QoS " + qos + ".");
+	}
+    }
+
+    /**
+     * Parse an optional QoS property given either as a level (0, 1 or 2) or as a
+     * name such as 'at_least_once', falling back to a default if missing or
+     * invalid.
+     * 
+     * @param properties
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    protected QoS parseQos(Properties properties, String name, QoS defaultValue) {
+	String value = properties.getProperty(name);
+	if (value == null) {
+	    return defaultValue;
+	}
+	value = value.trim();
+	try {
+	    int level = Integer.parseInt(value);
+	    if ((level >= 0) && (level < QoS.values().length)) {
+		return QoS.values()[level];
+	    }
+	} catch (NumberFormatException e) {
+	    try {
+		return QoS.valueOf(value.toUpperCase());
+	    } catch (IllegalArgumentException e1) {
+	    }
+	}
+	LOGGER.warning("Invalid QoS for '" + name + "', using: " + defaultValue);
+	return defaultValue;
+    }
+
+    /**
+     * Calculate a stable MQTT client id from the device token so that the broker
+     * can resume the persistent session after a restart. Tokens longer than MQTT
+     * 3.1 allows are shortened and suffixed with a hash of the full token.
+     * 
+     * @return
+     */
+    protected String calculateClientId() {
+	return shortenClientId(getDeviceToken());
+    }
+
+    /**
+     * Calculate the client id of a dedicated outbound connection by suffixing the
+     * agent client id with the connection index. Ids that end up longer than MQTT
+     * 3.1 allows are shortened like the agent client id, so the hash covers both
+     * the full agent client id and the index.
+     * 
+     * @param clientId
+     * @param index
+     * @return
+     */
+    protected static String calculateOutboundClientId(String clientId, int index) {
+	return shortenClientId(clientId + "-o" + index);
+    }
+
+    /**
+     * Shorten a client id longer than MQTT 3.1 allows by keeping a prefix and
+     * appending a hash of the full id.
+     * 
+     * @param clientId
+     * @return
+     */
+    protected static String shortenClientId(String clientId) {
+	if (clientId.length() <= MAX_CLIENT_ID_LENGTH) {
+	    return clientId;
+	}
+	String hash = String.format("%08x", clientId.hashCode());
+	return clientId.substring(0, MAX_CLIENT_ID_LENGTH - hash.length() - 1) + "-" + hash;
+    }
+
+    private String buildOutboundTopic() {
+	String outboundTopic = String.format(DEFAULT_MQTT_OUTBOUND_SITEWHERE, getTenant());
+	return outboundTopic;
+    }
+
+    /**
+     * SiteWhere/${tenant}/system/${device}
+     * 
+     * @return
+     */
+    protected String calculateInboundSiteWhereTopic() {
+	String topic = String.format("SiteWhere/%s/system/%s", getTenant(), getInboundTopicDevice());
+	return topic;
+    }
+
+    /**
+     * Calculate System Topic Name SiteWhere/${tenant}/command/${device}
+     * 
+     * @return
+     */
+    protected String calculateInboundCommandTopic() {
+	String topic = String.format("SiteWhere/%s/command/%s", getTenant(), getInboundTopicDevice());
+	return topic;
+    }
+
+    /**
+     * Get device level for inbound topics. In gateway mode, a wildcard is used so
+     * that commands for all devices arrive over a single subscription.
+     * 
+     * @return
+     */
+    protected String getInboundTopicDevice() {
+	return isGatewayEnabled() ? SINGLE_LEVEL_WILDCARD : getDeviceToken();
+    }
+
+    public String getCommandProcessorClassname() {
+	return commandProcessorClassname;
+    }
+
+    public void setCommandProcessorClassname(String commandProcessorClassname) {
+	this.commandProcessorClassname = commandProcessorClassname;
+    }
+
+    public String getMqttHostname() {
+	return mqttHostname;
+    }
+
+    public void setMqttHostname(String mqttHostname) {
+	this.mqttHostname = mqttHostname;
+    }
+
+    public int getMqttPort() {
+	return mqttPort;
+    }
+
+    public void setMqttPort(int mqttPort) {
+	this.mqttPort = mqttPort;
+    }
+
+    public String getMqttClientId() {
+	return mqttClientId;
+    }
+
+    public void setMqttClientId(String mqttClientId) {
+	this.mqttClientId = mqttClientId;
+    }
+
+    public boolean isMqttCleanSession() {
+	return mqttCleanSession;
+    }
+
+    public void setMqttCleanSession(boolean mqttCleanSession) {
+	this.mqttCleanSession = mqttCleanSession;
+    }
+
+    public long getReconnectDelayMs() {
+	return reconnectDelayMs;
+    }
+
+    public void setReconnectDelayMs(long reconnectDelayMs) {
+	this.reconnectDelayMs = reconnectDelayMs;
+    }
+
+    public long getReconnectDelayMaxMs() {
+	return reconnectDelayMaxMs;
+    }
+
+    public void setReconnectDelayMaxMs(long reconnectDelayMaxMs) {
+	this.reconnectDelayMaxMs = reconnectDelayMaxMs;
+    }
+
+    public int getReceiveBuffer() {
+	return receiveBuffer;
+    }
+
+    public void setReceiveBuffer(int receiveBuffer) {
+	this.receiveBuffer = receiveBuffer;
+    }
+
+    public boolean isGatewayEnabled() {
+	return gatewayEnabled;
+    }
+
+    public void setGatewayEnabled(boolean gatewayEnabled) {
+	this.gatewayEnabled = gatewayEnabled;
+    }
+
+    public List<String> getGatewayDeviceTokens() {
+	return gatewayDeviceTokens;
+    }
+
+    public void setGatewayDeviceTokens(List<String> gatewayDeviceTokens) {
+	this.gatewayDeviceTokens = gatewayDeviceTokens;
+    }
+
+    public DeviceRegistry getRegistry() {
+	return registry;
+    }
+
+    public int getInboundThreads() {
+	return inboundThreads;
+    }
+
+    public void setInboundThreads(int inboundThreads) {
+	this.inboundThreads = inboundThreads;
+    }
+
+    public int getInboundQueueSize() {
+	return inboundQueueSize;
+    }
+
+    public void setInboundQueueSize(int inboundQueueSize) {
+	this.inboundQueueSize = inboundQueueSize;
+    }
+
+    public boolean isInboundVirtualThreads() {
+	return inboundVirtualThreads;
+    }
+
+    public void setInboundVirtualThreads(boolean inboundVirtualThreads) {
+	this.inboundVirtualThreads = inboundVirtualThreads;
+    }
+
+    public BaseCommandProcessor.CommandFormat getCommandFormat() {
+	return commandFormat;
+    }
+
+    public void setCommandFormat(BaseCommandProcessor.CommandFormat commandFormat) {
+	this.commandFormat = commandFormat;
+    }
+
+    public ProtobufCommandDecoder getCommandDecoder() {
+	return commandDecoder;
+    }
+
+    public void setCommandDecoder(ProtobufCommandDecoder commandDecoder) {
+	this.commandDecoder = commandDecoder;
+    }
+
+    public PublishMode getPublishMode() {
+	return publishMode;
+    }
+
+    public void setPublishMode(PublishMode publishMode) {
+	this.publishMode = publishMode;
+    }
+
+    public int getMaxInFlight() {
+	return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+	this.maxInFlight = maxInFlight;
+    }
+
+    public int getOutboundConnections() {
+	return outboundConnections;
+    }
+
+    public void setOutboundConnections(int outboundConnections) {
+	this.outboundConnections = outboundConnections;
+    }
+
+    public boolean isBatchEnabled() {
+	return batchEnabled;
+    }
+
+    public void setBatchEnabled(boolean batchEnabled) {
+	this.batchEnabled = batchEnabled;
+    }
+
+    public int getBatchMaxEvents() {
+	return batchMaxEvents;
+    }
+
+    public void setBatchMaxEvents(int batchMaxEvents) {
+	this.batchMaxEvents = batchMaxEvents;
+    }
+
+    public int getBatchMaxBytes() {
+	return batchMaxBytes;
+    }
+
+    public void setBatchMaxBytes(int batchMaxBytes) {
+	this.batchMaxBytes = batchMaxBytes;
+    }
+
+    public long getBatchLingerMs() {
+	return batchLingerMs;
+    }
+
+    public void setBatchLingerMs(long batchLingerMs) {
+	this.batchLingerMs = batchLingerMs;
+    }
+
+    public boolean isCompressionEnabled() {
+	return compressionEnabled;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+	this.compressionEnabled = compressionEnabled;
+    }
+
+    public int getCompressionLevel() {
+	return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+	this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionMinBytes() {
+	return compressionMinBytes;
+    }
+
+    public void setCompressionMinBytes(int compressionMinBytes) {
+	this.compressionMinBytes = compressionMinBytes;
+    }
+
+    public String getCompressionDictionary() {
+	return compressionDictionary;
+    }
+
+    public void setCompressionDictionary(String compressionDictionary) {
+	this.compressionDictionary = compressionDictionary;
+    }
+
+    public boolean isRingEnabled() {
+	return ringEnabled;
+    }
+
+    public void setRingEnabled(boolean ringEnabled) {
+	this.ringEnabled = ringEnabled;
+    }
+
+    public int getRingSize() {
+	return ringSize;
+    }
+
+    public void setRingSize(int ringSize) {
+	this.ringSize = ringSize;
+    }
+
+    public boolean isPriorityEnabled() {
+	return priorityEnabled;
+    }
+
+    public void setPriorityEnabled(boolean priorityEnabled) {
+	this.priorityEnabled = priorityEnabled;
+    }
+
+    public Map<Lane, Double> getLaneRates() {
+	return laneRates;
+    }
+
+    public void setLaneRates(Map<Lane, Double> laneRates) {
+	this.laneRates = laneRates;
+    }
+
+    public Map<Lane, Integer> getLaneBursts() {
+	return laneBursts;
+    }
+
+    public void setLaneBursts(Map<Lane, Integer> laneBursts) {
+	this.laneBursts = laneBursts;
+    }
+
+    public Map<Lane, Integer> getLaneCapacities() {
+	return laneCapacities;
+    }
+
+    public void setLaneCapacities(Map<Lane, Integer> laneCapacities) {
+	this.laneCapacities = laneCapacities;
+    }
 
-	/** SiteWhere inbound MQTT topic */
-	private String sitewhereTopic;
+    public OverflowPolicy getLaneOverflowPolicy() {
+	return laneOverflowPolicy;
+    }
 
-	/** Command inbound MQTT topic */
-	private String commandTopic;
+    public void setLaneOverflowPolicy(OverflowPolicy laneOverflowPolicy) {
+	this.laneOverflowPolicy = laneOverflowPolicy;
+    }
 
-	/** Command processor */
-	private IAgentCommandProcessor processor;
+    public boolean isAggregationEnabled() {
+	return aggregationEnabled;
+    }
 
-	/** Event dispatcher */
-	private ISiteWhereEventDispatcher dispatcher;
+    public void setAggregationEnabled(boolean aggregationEnabled) {
+	this.aggregationEnabled = aggregationEnabled;
+    }
 
-	public MQTTInbound(BlockingConnection connection, String sitewhereTopic, String commandTopic,
-		IAgentCommandProcessor processor, ISiteWhereEventDispatcher dispatcher) {
-	    this.connection = connection;
-	    this.sitewhereTopic = sitewhereTopic;
-	    this.commandTopic = commandTopic;
-	    this.processor = processor;
-	    this.dispatcher = dispatcher;
-	}
+    public long getAggregationIntervalMs() {
+	return aggregationIntervalMs;
+    }
 
-	@Override
-	public void run() {
+    public void setAggregationIntervalMs(long aggregationIntervalMs) {
+	this.aggregationIntervalMs = aggregationIntervalMs;
+    }
 
-	    // Subscribe to chosen topic.
-	    Topic[] topics = { new Topic(getSitewhereTopic(), QoS.AT_LEAST_ONCE),
-		    new Topic(getCommandTopic(), QoS.AT_LEAST_ONCE) };
-	    try {
-		connection.subscribe(topics);
-		LOGGER.info("Started MQTT inbound processing thread.");
-		while (true) {
-		    try {
-			Message message = connection.receive();
-			message.ack();
-			if (getSitewhereTopic().equals(message.getTopic())) {
-			    getProcessor().processSiteWhereCommand(message.getPayload(), getDispatcher());
-			} else if (getCommandTopic().equals(message.getTopic())) {
-			    getProcessor().processSpecificationCommand(message.getPayload(), getDispatcher());
-			} else {
-			    LOGGER.warning("Message for unknown topic received: " + message.getTopic());
-			}
-		    } catch (InterruptedException e) {
-			LOGGER.warning("Device event processor interrupted.");
-			return;
-		    } catch (Throwable e) {
-			LOGGER.log(Level.SEVERE, "Exception processing inbound message", e);
-		    }
-		}
-	    } catch (Exception e) {
-		LOGGER.log(Level.SEVERE, "Exception while attempting to subscribe to inbound topics.", e);
-	    }
-	}
+    public AggregatingEventDispatcher.Mode getAggregationMode() {
+	return aggregationMode;
+    }
 
-	public BlockingConnection getConnection() {
-	    return connection;
-	}
+    public void setAggregationMode(AggregatingEventDispatcher.Mode aggregationMode) {
+	this.aggregationMode = aggregationMode;
+    }
 
-	public void setConnection(BlockingConnection connection) {
-	    this.connection = connection;
-	}
+    public double getAggregationDeadband() {
+	return aggregationDeadband;
+    }
 
-	public String getSitewhereTopic() {
-	    return sitewhereTopic;
-	}
+    public void setAggregationDeadband(double aggregationDeadband) {
+	this.aggregationDeadband = aggregationDeadband;
+    }
 
-	public void setSitewhereTopic(String sitewhereTopic) {
-	    this.sitewhereTopic = sitewhereTopic;
-	}
+    public double getAggregationDeviationPercent() {
+	return aggregationDeviationPercent;
+    }
 
-	public String getCommandTopic() {
-	    return commandTopic;
-	}
+    public void setAggregationDeviationPercent(double aggregationDeviationPercent) {
+	this.aggregationDeviationPercent = aggregationDeviationPercent;
+    }
 
-	public void setCommandTopic(String commandTopic) {
-	    this.commandTopic = commandTopic;
-	}
+    public long getAggregationHeartbeatMs() {
+	return aggregationHeartbeatMs;
+    }
 
-	public IAgentCommandProcessor getProcessor() {
-	    return processor;
-	}
+    public void setAggregationHeartbeatMs(long aggregationHeartbeatMs) {
+	this.aggregationHeartbeatMs = aggregationHeartbeatMs;
+    }
 
-	public void setProcessor(IAgentCommandProcessor processor) {
-	    this.processor = processor;
-	}
+    public boolean isJournalEnabled() {
+	return journalEnabled;
+    }
 
-	public ISiteWhereEventDispatcher getDispatcher() {
-	    return dispatcher;
-	}
+    public void setJournalEnabled(boolean journalEnabled) {
+	this.journalEnabled = journalEnabled;
+    }
 
-	public void setDispatcher(ISiteWhereEventDispatcher dispatcher) {
-	    this.dispatcher = dispatcher;
-	}
+    public String getJournalDirectory() {
+	return journalDirectory;
     }
 
-    /**
-     * Handles graceful shutdown of agent.
-     * 
-     * @author Derek
-     */
-    public class ShutdownHandler extends Thread {
-	@Override
-	public void run() {
-	    if (connection != null) {
-		try {
-		    connection.disconnect();
-		    LOGGER.info("Disconnected from MQTT broker.");
-		} catch (Exception e) {
-		    LOGGER.log(Level.WARNING, "Exception disconnecting from MQTT broker.", e);
-		}
-	    }
-	}
+    public void setJournalDirectory(String journalDirectory) {
+	this.journalDirectory = journalDirectory;
     }
 
-    /**
-     * Validates the agent configuration.
-     * 
-     * @return
-     */
-    public boolean load(Properties properties) {
-	LOGGER.info("Validating configuration...");
+    public long getJournalSegmentBytes() {
+	return journalSegmentBytes;
+    }
 
-	// Load command processor class name.
-	setCommandProcessorClassname(properties.getProperty(IAgentConfiguration.COMMAND_PROCESSOR_CLASSNAME));
-	if (getCommandProcessorClassname() == null) {
-	    LOGGER.severe("Command processor class name not specified.");
-	    return false;
-	}
+    public void setJournalSegmentBytes(long journalSegmentBytes) {
+	this.journalSegmentBytes = journalSegmentBytes;
+    }
 
-	// Validate tenant
-	setTenant(properties.getProperty(IAgentConfiguration.TENANT));
-	if (getTenant() == null) {
-	    LOGGER.severe("Tenant Id not specified in configuration.");
-	    return false;
-	}
-	LOGGER.info("Using configured tenant: " + getTenant());
+    public int getJournalMaxSegments() {
+	return journalMaxSegments;
+    }
 
-	// Validate device token
-	setDeviceToken(properties.getProperty(IAgentConfiguration.DEVICE_TOKEN));
-	if (getDeviceToken() == null) {
-	    LOGGER.severe("Device token not specified in configuration.");
-	    return false;
-	}
-	LOGGER.info("Using configured device token: " + getDeviceToken());
+    public void setJournalMaxSegments(int journalMaxSegments) {
+	this.journalMaxSegments = journalMaxSegments;
+    }
 
-	// Validate area token.
-	setAreaToken(properties.getProperty(IAgentConfiguration.AREA_TOKEN));
-	if (getAreaToken() == null) {
-	    LOGGER.severe("Area token not specified in configuration.");
-	    return false;
-	}
-	LOGGER.info("Using configured area token: " + getAreaToken());
+    public int getStreamChunkSize() {
+	return streamChunkSize;
+    }
 
-	// Validate customer token.
-	setCustomerToken(properties.getProperty(IAgentConfiguration.CUSTOMER_TOKEN));
-	if (getCustomerToken() == null) {
-	    LOGGER.severe("Customer token not specified in configuration.");
-	    return false;
-	}
-	LOGGER.info("Using configured customer token: " + getCustomerToken());
+    public void setStreamChunkSize(int streamChunkSize) {
+	this.streamChunkSize = streamChunkSize;
+    }
 
-	// Validate device type token.
-	setDeviceTypeToken(properties.getProperty(IAgentConfiguration.DEVICE_TYPE_TOKEN));
-	if (getDeviceTypeToken() == null) {
-	    LOGGER.severe("Device type token not specified in configuration.");
-	    return false;
-	}
-	LOGGER.info("Using configured device type token: " + getDeviceTypeToken());
+    public int getStreamWindow() {
+	return streamWindow;
+    }
 
-	// Validate MQTT hostname.
-	setMqttHostname(properties.getProperty(IAgentConfiguration.MQTT_HOSTNAME));
-	if (getMqttHostname() == null) {
-	    LOGGER.warning("Using default MQTT hostname: " + DEFAULT_MQTT_HOSTNAME);
-	    setMqttHostname(DEFAULT_MQTT_HOSTNAME);
-	}
+    public void setStreamWindow(int streamWindow) {
+	this.streamWindow = streamWindow;
+    }
 
-	// Validate MQTT port.
-	String strPort = properties.getProperty(IAgentConfiguration.MQTT_PORT);
-	if (strPort != null) {
-	    try {
-		setMqttPort(Integer.parseInt(strPort));
-	    } catch (NumberFormatException e) {
-		LOGGER.warning("Non-numeric MQTT port specified, using: " + DEFAULT_MQTT_PORT);
-		setMqttPort(DEFAULT_MQTT_PORT);
-	    }
-	} else {
-	    LOGGER.warning("No MQTT port specified, using: " + DEFAULT_MQTT_PORT);
-	    setMqttPort(DEFAULT_MQTT_PORT);
-	}
+    public boolean isStreamMemoryMapped() {
+	return streamMemoryMapped;
+    }
 
-	// Validate outbound SiteWhere topic.
-	setOutboundSiteWhereTopic(properties.getProperty(IAgentConfiguration.MQTT_OUTBOUND_SITEWHERE_TOPIC));
-	if (getOutboundSiteWhereTopic() == null) {
-	    String outboundTopic = buildOutboundTopic();
-	    LOGGER.warning("Using default outbound SiteWhere MQTT topic: " + outboundTopic);
-	    setOutboundSiteWhereTopic(outboundTopic);
-	}
+    public void setStreamMemoryMapped(boolean streamMemoryMapped) {
+	this.streamMemoryMapped = streamMemoryMapped;
+    }
 
-	// Validate inbound SiteWhere topic.
-	setInboundSiteWhereTopic(properties.getProperty(IAgentConfiguration.MQTT_INBOUND_SITEWHERE_TOPIC));
-	if (getInboundSiteWhereTopic() == null) {
-	    String in = calculateInboundSiteWhereTopic();
-	    LOGGER.warning("Using default inbound SiteWhere MQTT topic: " + in);
-	    setInboundSiteWhereTopic(in);
-	}
+    public long getStreamTimeoutMs() {
+	return streamTimeoutMs;
+    }
 
-	// Validate inbound command topic.
-	setInboundCommandTopic(properties.getProperty(IAgentConfiguration.MQTT_INBOUND_COMMAND_TOPIC));
-	if (getInboundCommandTopic() == null) {
-	    String in = calculateInboundCommandTopic();
-	    LOGGER.warning("Using default inbound command MQTT topic: " + in);
-	    setInboundCommandTopic(in);
-	}
-	return true;
+    public void setStreamTimeoutMs(long streamTimeoutMs) {
+	this.streamTimeoutMs = streamTimeoutMs;
     }
 
-    private String buildOutboundTopic() {
-	String outboundTopic = String.format(DEFAULT_MQTT_OUTBOUND_SITEWHERE, getTenant());
-	return outboundTopic;
+    public DeviceStreamManager getStreamManager() {
+	return streamManager;
     }
 
-    /**
-     * SiteWhere/${tenant}/system/${device}
-     * 
-     * @return
-     */
-    protected String calculateInboundSiteWhereTopic() {
-	String topic = String.format("SiteWhere/%s/system/%s", getTenant(), getDeviceToken());
-	return topic;
+    public int getTelemetryThreads() {
+	return telemetryThreads;
+    }
+
+    public void setTelemetryThreads(int telemetryThreads) {
+	this.telemetryThreads = telemetryThreads;
+    }
+
+    public boolean isTimestampsEnabled() {
+	return timestampsEnabled;
+    }
+
+    public void setTimestampsEnabled(boolean timestampsEnabled) {
+	this.timestampsEnabled = timestampsEnabled;
+    }
+
+    public EventClock getEventClock() {
+	return eventClock;
+    }
+
+    public boolean isFastStartEnabled() {
+	return fastStartEnabled;
+    }
+
+    public void setFastStartEnabled(boolean fastStartEnabled) {
+	this.fastStartEnabled = fastStartEnabled;
+    }
+
+    public int getStartupQueueSize() {
+	return startupQueueSize;
+    }
+
+    public void setStartupQueueSize(int startupQueueSize) {
+	this.startupQueueSize = startupQueueSize;
+    }
+
+    public StartupTimings getStartupTimings() {
+	return startupTimings;
     }
 
     /**
-     * Calculate System Topic Name SiteWhere/${tenant}/command/${device}
+     * Get a future completed once the agent is connected to the broker and
+     * startup logic has finished. Outside fast start mode this is the case as
+     * soon as {@link #start()} returns.
      * 
      * @return
      */
-    protected String calculateInboundCommandTopic() {
-	String topic = String.format("SiteWhere/%s/command/%s", getTenant(), getDeviceToken());
-	return topic;
+    public CompletableFuture<Void> getReady() {
+	return ready;
     }
 
-    public String getCommandProcessorClassname() {
-	return commandProcessorClassname;
+    public TelemetryScheduler getTelemetryScheduler() {
+	return telemetryScheduler;
     }
 
-    public void setCommandProcessorClassname(String commandProcessorClassname) {
-	this.commandProcessorClassname = commandProcessorClassname;
+    public Map<Command, QoS> getOutboundQos() {
+	return outboundQos;
     }
 
-    public String getMqttHostname() {
-	return mqttHostname;
+    public void setOutboundQos(Map<Command, QoS> outboundQos) {
+	this.outboundQos = outboundQos;
     }
 
-    public void setMqttHostname(String mqttHostname) {
-	this.mqttHostname = mqttHostname;
+    public QoS getInboundSiteWhereQos() {
+	return inboundSiteWhereQos;
     }
 
-    public int getMqttPort() {
-	return mqttPort;
+    public void setInboundSiteWhereQos(QoS inboundSiteWhereQos) {
+	this.inboundSiteWhereQos = inboundSiteWhereQos;
     }
 
-    public void setMqttPort(int mqttPort) {
-	this.mqttPort = mqttPort;
+    public QoS getInboundCommandQos() {
+	return inboundCommandQos;
+    }
+
+    public void setInboundCommandQos(QoS inboundCommandQos) {
+	this.inboundCommandQos = inboundCommandQos;
+    }
+
+    public boolean isMetricsEnabled() {
+	return metricsEnabled;
+    }
+
+    public void setMetricsEnabled(boolean metricsEnabled) {
+	this.metricsEnabled = metricsEnabled;
+    }
+
+    public boolean isMetricsJmxEnabled() {
+	return metricsJmxEnabled;
+    }
+
+    public void setMetricsJmxEnabled(boolean metricsJmxEnabled) {
+	this.metricsJmxEnabled = metricsJmxEnabled;
+    }
+
+    public String getMetricsHttpHost() {
+	return metricsHttpHost;
+    }
+
+    public void setMetricsHttpHost(String metricsHttpHost) {
+	this.metricsHttpHost = metricsHttpHost;
+    }
+
+    public int getMetricsHttpPort() {
+	return metricsHttpPort;
+    }
+
+    public void setMetricsHttpPort(int metricsHttpPort) {
+	this.metricsHttpPort = metricsHttpPort;
+    }
+
+    public MetricsRegistry getMetrics() {
+	return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry metrics) {
+	this.metrics = metrics;
+    }
+
+    public List<IMetricsExporter> getMetricsExporters() {
+	return metricsExporters;
     }
 
     public String getOutboundSiteWhereTopic() {
@@ -567,6 +2840,14 @@ public class Agent {
 	this.outboundSiteWhereTopic = outboundSiteWhereTopic;
     }
 
+    public String getOutboundSeriesTopic() {
+	return outboundSeriesTopic;
+    }
+
+    public void setOutboundSeriesTopic(String outboundSeriesTopic) {
+	this.outboundSeriesTopic = outboundSeriesTopic;
+    }
+
     public String getInboundSiteWhereTopic() {
 	return inboundSiteWhereTopic;
     }
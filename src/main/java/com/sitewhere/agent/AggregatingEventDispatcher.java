@@ -0,0 +1,581 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAcknowledge;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAlert;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceLocation;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceRegistrationRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamDataRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Event dispatcher that aggregates measurements before passing them on.
+ * Samples are collected into tumbling windows for each device and
+ * measurement name, and once per interval every window that received samples
+ * is reduced to a summary according to the configured {@link Mode}. The
+ * summaries from an interval are passed on together in one call. All
+ * other events are passed straight through, as are measurements that answer a
+ * command or carry metadata, since those cannot be merged.
+ * 
+ * Values may additionally be filtered so that a window is only emitted when
+ * its value moves outside a dead-band around the last value sent, either as an
+ * absolute amount or as a percentage of the last value. A heartbeat interval
+ * forces a value out periodically even if it has not changed.
+ * 
+ * @author Derek
+ */
+public class AggregatingEventDispatcher implements IAsyncEventDispatcher, Closeable {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(AggregatingEventDispatcher.class.getName());
+
+    /** Default length of aggregation window in milliseconds */
+    public static final long DEFAULT_INTERVAL_MS = 10000;
+
+    /** Default aggregation mode */
+    public static final Mode DEFAULT_MODE = Mode.MEAN;
+
+    /** Future returned for samples added to a window */
+    private static final CompletableFuture<Void> ACCEPTED = CompletableFuture.completedFuture(null);
+
+    /** Dispatcher that receives aggregated events */
+    private IAsyncEventDispatcher delegate;
+
+    /** Length of aggregation window in milliseconds */
+    private long intervalMs;
+
+    /** Indicates how windows are summarized */
+    private Mode mode;
+
+    /** Absolute change needed before a value is emitted (zero to disable) */
+    private double deadband;
+
+    /** Percentage change needed before a value is emitted (zero to disable) */
+    private double deviationPercent;
+
+    /** Time in milliseconds after which an unchanged value is emitted anyway */
+    private long heartbeatMs;
+
+    /** Metrics for samples and emitted values */
+    private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+    /** Windows indexed by device token, then by measurement name */
+    private Map<String, Map<String, Window>> windows = new HashMap<String, Map<String, Window>>();
+
+    /** Used to close windows at each interval */
+    private ScheduledExecutorService timer = Executors
+	    .newSingleThreadScheduledExecutor(OrderedExecutor.createThreadFactory("sitewhere-aggregation-", false));
+
+    public AggregatingEventDispatcher(IAsyncEventDispatcher delegate) {
+	this(delegate, DEFAULT_INTERVAL_MS, DEFAULT_MODE);
+    }
+
+    public AggregatingEventDispatcher(IAsyncEventDispatcher delegate, long intervalMs, Mode mode) {
+	this.delegate = delegate;
+	this.intervalMs = intervalMs;
+	this.mode = mode;
+    }
+
+    /**
+     * Start closing windows at the configured interval.
+     */
+    public void start() {
+	timer.scheduleAtFixedRate(new Runnable() {
+
+	    @Override
+	    public void run() {
+		flush();
+	    }
+	}, getIntervalMs(), getIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void registerDevice(DeviceRegistrationRequest register, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().registerDevice(register, deviceToken, originator);
+    }
+
+    @Override
+    public void acknowledge(DeviceAcknowledge ack, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().acknowledge(ack, deviceToken, originator);
+    }
+
+    @Override
+    public void sendMeasurement(DeviceMeasurement measurement, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	if (!add(measurement, deviceToken, originator)) {
+	    getDelegate().sendMeasurement(measurement, deviceToken, originator);
+	}
+    }
+
+    @Override
+    public void sendLocation(DeviceLocation location, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().sendLocation(location, deviceToken, originator);
+    }
+
+    @Override
+    public void sendAlert(DeviceAlert alert, String deviceToken, String originator) throws SiteWhereAgentException {
+	getDelegate().sendAlert(alert, deviceToken, originator);
+    }
+
+    @Override
+    public void createDeviceStream(DeviceStream stream, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().createDeviceStream(stream, deviceToken, originator);
+    }
+
+    @Override
+    public void sendDeviceStreamData(DeviceStreamData data, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().sendDeviceStreamData(data, deviceToken, originator);
+    }
+
+    @Override
+    public void requestDeviceStreamData(DeviceStreamDataRequest request, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().requestDeviceStreamData(request, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> registerDeviceAsync(DeviceRegistrationRequest register, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().registerDeviceAsync(register, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeAsync(DeviceAcknowledge ack, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return getDelegate().acknowledgeAsync(ack, deviceToken, originator);
+    }
+
+    /**
+     * Add a measurement to its window. The returned future completes as soon as
+     * the sample is accepted, since it may never be sent on its own.
+     */
+    @Override
+    public CompletableFuture<Void> sendMeasurementAsync(DeviceMeasurement measurement, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	if (add(measurement, deviceToken, originator)) {
+	    return ACCEPTED;
+	}
+	return getDelegate().sendMeasurementAsync(measurement, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendLocationAsync(DeviceLocation location, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return getDelegate().sendLocationAsync(location, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAlertAsync(DeviceAlert alert, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return getDelegate().sendAlertAsync(alert, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> createDeviceStreamAsync(DeviceStream stream, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().createDeviceStreamAsync(stream, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendDeviceStreamDataAsync(DeviceStreamData data, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().sendDeviceStreamDataAsync(data, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> requestDeviceStreamDataAsync(DeviceStreamDataRequest request, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().requestDeviceStreamDataAsync(request, deviceToken, originator);
+    }
+
+    /**
+     * A series carries raw samples from a high-rate sensor, so it is passed on
+     * without being aggregated.
+     * 
+     * @see com.sitewhere.agent.ISiteWhereEventDispatcher#sendMeasurementSeries(com.
+     * sitewhere.agent.MeasurementSeries, java.lang.String, java.lang.String)
+     */
+    @Override
+    public void sendMeasurementSeries(MeasurementSeries series, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().sendMeasurementSeries(series, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMeasurementSeriesAsync(MeasurementSeries series, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().sendMeasurementSeriesAsync(series, deviceToken, originator);
+    }
+
+    @Override
+    public void dispatch(List<OutboundEvent> events) throws SiteWhereAgentException {
+	List<OutboundEvent> remaining = absorb(events);
+	if (!remaining.isEmpty()) {
+	    getDelegate().dispatch(remaining);
+	}
+    }
+
+    /**
+     * Add measurements to their windows and pass the remaining events on
+     * together. The returned future completes once those events are sent.
+     * 
+     * @see com.sitewhere.agent.IAsyncEventDispatcher#dispatchAsync(java.util.List)
+     */
+    @Override
+    public CompletableFuture<Void> dispatchAsync(List<OutboundEvent> events) throws SiteWhereAgentException {
+	List<OutboundEvent> remaining = absorb(events);
+	return remaining.isEmpty() ? ACCEPTED : getDelegate().dispatchAsync(remaining);
+    }
+
+    /**
+     * Add each measurement that can be aggregated to its window.
+     * 
+     * @param events
+     * @return events that must be sent as-is
+     */
+    protected List<OutboundEvent> absorb(List<OutboundEvent> events) {
+	List<OutboundEvent> remaining = new ArrayList<OutboundEvent>(events.size());
+	for (OutboundEvent event : events) {
+	    if ((event.getCommand() != Command.SendMeasurement)
+		    || !add((DeviceMeasurement) event.getMessage(), event.getDeviceToken(), event.getOriginator())) {
+		remaining.add(event);
+	    }
+	}
+	return remaining;
+    }
+
+    /**
+     * Add a measurement to the window for its device and name.
+     * 
+     * @param measurement
+     * @param deviceToken
+     * @param originator
+     * @return false if the measurement cannot be aggregated and must be sent as-is
+     */
+    protected boolean add(DeviceMeasurement measurement, String deviceToken, String originator) {
+	if ((originator != null) || !measurement.hasMeasurementName() || !measurement.hasMeasurementValue()
+		|| (measurement.getMetadataCount() > 0)) {
+	    return false;
+	}
+	long time = measurement.hasEventDate() ? measurement.getEventDate().getValue() : System.currentTimeMillis();
+	String name = measurement.getMeasurementName().getValue();
+	double value = measurement.getMeasurementValue().getValue();
+	synchronized (this) {
+	    Map<String, Window> device = windows.get(deviceToken);
+	    if (device == null) {
+		device = new HashMap<String, Window>();
+		windows.put(deviceToken, device);
+	    }
+	    Window window = device.get(name);
+	    if (window == null) {
+		window = new Window();
+		device.put(name, window);
+	    }
+	    window.add(value, time);
+	}
+	getMetrics().counter("aggregation.samples").increment();
+	return true;
+    }
+
+    /**
+     * Close all windows and send a summary for each window that received
+     * samples and passes the dead-band filter.
+     */
+    public void flush() {
+	long now = System.currentTimeMillis();
+	List<Emission> emissions = new ArrayList<Emission>();
+	synchronized (this) {
+	    for (Map.Entry<String, Map<String, Window>> device : windows.entrySet()) {
+		for (Map.Entry<String, Window> entry : device.getValue().entrySet()) {
+		    Window window = entry.getValue();
+		    if (window.count == 0) {
+			continue;
+		    }
+		    double value = (getMode() == Mode.LAST) ? window.last : window.sum / window.count;
+		    if (shouldEmit(window, value, now)) {
+			emit(emissions, device.getKey(), entry.getKey(), window, value);
+			window.lastEmitted = value;
+			window.lastEmittedAt = now;
+			window.emitted = true;
+		    } else {
+			getMetrics().counter("aggregation.suppressed").increment();
+		    }
+		    window.reset();
+		}
+	    }
+	}
+	if (!emissions.isEmpty()) {
+	    send(emissions);
+	}
+    }
+
+    /**
+     * Indicates whether a window value differs enough from the last value sent to
+     * be emitted.
+     * 
+     * @param window
+     * @param value
+     * @param now
+     * @return
+     */
+    protected boolean shouldEmit(Window window, double value, long now) {
+	if (!window.emitted) {
+	    return true;
+	}
+	if ((getHeartbeatMs() > 0) && (now - window.lastEmittedAt >= getHeartbeatMs())) {
+	    return true;
+	}
+	double change = Math.abs(value - window.lastEmitted);
+	if ((getDeadband() > 0) && (change <= getDeadband())) {
+	    return false;
+	}
+	if ((getDeviationPercent() > 0) && (change <= Math.abs(window.lastEmitted) * getDeviationPercent() / 100)) {
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Add the measurements summarizing a window.
+     * 
+     * @param emissions
+     * @param deviceToken
+     * @param name
+     * @param window
+     * @param value
+     */
+    protected void emit(List<Emission> emissions, String deviceToken, String name, Window window, double value) {
+	if (getMode() == Mode.SUMMARY) {
+	    emissions.add(new Emission(deviceToken, name + ".min", window.min, window.time));
+	    emissions.add(new Emission(deviceToken, name + ".max", window.max, window.time));
+	    emissions.add(new Emission(deviceToken, name + ".mean", value, window.time));
+	    emissions.add(new Emission(deviceToken, name + ".count", window.count, window.time));
+	} else {
+	    emissions.add(new Emission(deviceToken, name, value, window.time));
+	}
+    }
+
+    /**
+     * Send the aggregated measurements from one interval to the delegate
+     * together.
+     * 
+     * @param emissions
+     */
+    protected void send(List<Emission> emissions) {
+	List<OutboundEvent> events = new ArrayList<OutboundEvent>(emissions.size());
+	for (Emission emission : emissions) {
+	    DeviceMeasurement measurement = DeviceMeasurement.newBuilder()
+		    .setMeasurementName(GOptionalString.newBuilder().setValue(emission.name))
+		    .setMeasurementValue(GOptionalDouble.newBuilder().setValue(emission.value))
+		    .setEventDate(GOptionalFixed64.newBuilder().setValue(emission.time)).build();
+	    events.add(OutboundEvent.measurement(measurement, emission.deviceToken, null));
+	}
+	try {
+	    getDelegate().dispatchAsync(events).whenComplete(new BiConsumer<Void, Throwable>() {
+
+		@Override
+		public void accept(Void result, Throwable error) {
+		    if (error != null) {
+			LOGGER.log(Level.WARNING, "Unable to publish aggregated measurements.", error);
+		    }
+		}
+	    });
+	    getMetrics().counter("aggregation.emitted").add(events.size());
+	} catch (SiteWhereAgentException e) {
+	    LOGGER.log(Level.WARNING, "Unable to send aggregated measurements.", e);
+	}
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	timer.shutdownNow();
+	flush();
+	if (getDelegate() instanceof Closeable) {
+	    ((Closeable) getDelegate()).close();
+	}
+    }
+
+    public IAsyncEventDispatcher getDelegate() {
+	return delegate;
+    }
+
+    public long getIntervalMs() {
+	return intervalMs;
+    }
+
+    public Mode getMode() {
+	return mode;
+    }
+
+    public double getDeadband() {
+	return deadband;
+    }
+
+    public void setDeadband(double deadband) {
+	this.deadband = deadband;
+    }
+
+    public double getDeviationPercent() {
+	return deviationPercent;
+    }
+
+    public void setDeviationPercent(double deviationPercent) {
+	this.deviationPercent = deviationPercent;
+    }
+
+    public long getHeartbeatMs() {
+	return heartbeatMs;
+    }
+
+    public void setHeartbeatMs(long heartbeatMs) {
+	this.heartbeatMs = heartbeatMs;
+    }
+
+    public MetricsRegistry getMetrics() {
+	return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry metrics) {
+	this.metrics = metrics;
+    }
+
+    /**
+     * Indicates how a window is summarized.
+     * 
+     * @author Derek
+     */
+    public static enum Mode {
+
+	/** Send the most recent value */
+	LAST,
+
+	/** Send the mean of all values */
+	MEAN,
+
+	/** Send minimum, maximum, mean and count as separate measurements */
+	SUMMARY;
+    }
+
+    /**
+     * Running statistics for a device and measurement name. Fields are only
+     * accessed while holding the dispatcher lock.
+     * 
+     * @author Derek
+     */
+    private static class Window {
+
+	/** Number of samples in current window */
+	private int count;
+
+	/** Smallest sample in current window */
+	private double min;
+
+	/** Largest sample in current window */
+	private double max;
+
+	/** Sum of samples in current window */
+	private double sum;
+
+	/** Most recent sample */
+	private double last;
+
+	/** Time of most recent sample */
+	private long time;
+
+	/** Indicates whether a value has been emitted */
+	private boolean emitted;
+
+	/** Last value emitted */
+	private double lastEmitted;
+
+	/** Time last value was emitted */
+	private long lastEmittedAt;
+
+	public void add(double value, long time) {
+	    if ((count == 0) || (value < min)) {
+		min = value;
+	    }
+	    if ((count == 0) || (value > max)) {
+		max = value;
+	    }
+	    sum += value;
+	    last = value;
+	    this.time = time;
+	    count++;
+	}
+
+	public void reset() {
+	    count = 0;
+	    sum = 0;
+	}
+    }
+
+    /**
+     * Aggregated measurement waiting to be sent.
+     * 
+     * @author Derek
+     */
+    private static class Emission {
+
+	/** Device token */
+	private String deviceToken;
+
+	/** Measurement name */
+	private String name;
+
+	/** Measurement value */
+	private double value;
+
+	/** Event date in milliseconds */
+	private long time;
+
+	public Emission(String deviceToken, String name, double value, long time) {
+	    this.deviceToken = deviceToken;
+	    this.name = name;
+	    this.value = value;
+	    this.time = time;
+	}
+    }
+}
\ No newline at end of file
@@ -17,14 +17,20 @@ package com.sitewhere.agent;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.StreamCorruptedException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.sitewhere.communication.protobuf.proto.SiteWhere.Device;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Parser;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.DeviceStreamAck;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.DeviceStreamData;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.Header;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.RegistrationAck;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAcknowledge;
@@ -33,6 +39,7 @@ import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceLo
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceRegistrationRequest;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
 import com.sitewhere.spi.device.event.IDeviceEventOriginator;
 
@@ -48,6 +55,13 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
     /** Static logger instance */
     private static final Logger LOGGER = Logger.getLogger(BaseCommandProcessor.class.getName());
 
+    /**
+     * Event date indicating the event is sent without a date. It is then dated by
+     * the agent clock if event timestamps are enabled, or by SiteWhere when it
+     * arrives otherwise.
+     */
+    public static final long UNDATED = Long.MIN_VALUE;
+
     /** device token */
     private String deviceToken;
 
@@ -63,6 +77,30 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
     /** SiteWhere event dispatcher */
     private ISiteWhereEventDispatcher eventDispatcher;
 
+    /** Handlers for specification commands, shared by all instances of a class */
+    private CommandDispatchTable dispatchTable = CommandDispatchTable.forClass(getClass());
+
+    /** Format expected for specification commands */
+    private CommandFormat commandFormat = CommandFormat.AUTO;
+
+    /** Decoder for protobuf specification commands */
+    private ProtobufCommandDecoder commandDecoder;
+
+    /** Coordinates device stream transfers */
+    private DeviceStreamManager streamManager;
+
+    /** Runs periodic telemetry tasks */
+    private TelemetryScheduler telemetryScheduler;
+
+    /** Clock used to date events when they are created (null to leave undated) */
+    private EventClock eventClock;
+
+    /** Indicates a subclass overrides the byte[] form of system command processing */
+    private boolean arraySiteWhereCommands = overridesArrayMethod("processSiteWhereCommand");
+
+    /** Indicates a subclass overrides the byte[] form of specification command processing */
+    private boolean arraySpecificationCommands = overridesArrayMethod("processSpecificationCommand");
+
     /*
      * (non-Javadoc)
      * 
@@ -85,21 +123,50 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
     @Override
     public void processSiteWhereCommand(byte[] message, ISiteWhereEventDispatcher dispatcher)
 	    throws SiteWhereAgentException {
-	ByteArrayInputStream stream = new ByteArrayInputStream(message);
+	decodeSiteWhereCommand(ByteBuffer.wrap(message));
+    }
+
+    /*
+     * @see
+     * com.sitewhere.agent.IAgentCommandProcessor#processSiteWhereCommand(java.nio.
+     * ByteBuffer, com.sitewhere.agent.ISiteWhereEventDispatcher)
+     */
+    @Override
+    public void processSiteWhereCommand(ByteBuffer message, ISiteWhereEventDispatcher dispatcher)
+	    throws SiteWhereAgentException {
+	if (arraySiteWhereCommands) {
+	    IAgentCommandProcessor.super.processSiteWhereCommand(message, dispatcher);
+	} else {
+	    decodeSiteWhereCommand(message);
+	}
+    }
+
+    /**
+     * Parse a SiteWhere system command directly from a buffer and handle it.
+     * 
+     * @param message
+     * @throws SiteWhereAgentException
+     */
+    protected void decodeSiteWhereCommand(ByteBuffer message) throws SiteWhereAgentException {
+	CodedInputStream in = CodedInputStream.newInstance(message);
 	try {
-	    Header header = Device.Header.parseDelimitedFrom(stream);
+	    Header header = readDelimited(in, Header.parser());
 	    switch (header.getCommand()) {
 	    case REGISTRATION_ACK: {
-		RegistrationAck ack = RegistrationAck.parseDelimitedFrom(stream);
+		RegistrationAck ack = readDelimited(in, RegistrationAck.parser());
 		handleRegistrationAck(header, ack);
 		break;
 	    }
 	    case DEVICE_STREAM_ACK: {
-		// TODO: Add device stream support.
+		DeviceStreamAck ack = readDelimited(in, DeviceStreamAck.parser());
+		handleDeviceStreamAck(header, ack);
 		break;
 	    }
 	    case RECEIVE_DEVICE_STREAM_DATA: {
-		// TODO: Add device stream support.
+		// Chunk data refers to the received buffer rather than a copy.
+		in.enableAliasing(true);
+		DeviceStreamData data = readDelimited(in, DeviceStreamData.parser());
+		handleDeviceStreamData(header, data);
 		break;
 	    }
 	    case UNRECOGNIZED: {
@@ -121,34 +188,52 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
     @Override
     public void processSpecificationCommand(byte[] message, ISiteWhereEventDispatcher dispatcher)
 	    throws SiteWhereAgentException {
+	decodeSpecificationCommand(ByteBuffer.wrap(message));
+    }
+
+    /*
+     * @see
+     * com.sitewhere.agent.IAgentCommandProcessor#processSpecificationCommand(java.
+     * nio.ByteBuffer, com.sitewhere.agent.ISiteWhereEventDispatcher)
+     */
+    @Override
+    public void processSpecificationCommand(ByteBuffer message, ISiteWhereEventDispatcher dispatcher)
+	    throws SiteWhereAgentException {
+	if (arraySpecificationCommands) {
+	    IAgentCommandProcessor.super.processSpecificationCommand(message, dispatcher);
+	} else {
+	    decodeSpecificationCommand(message);
+	}
+    }
+
+    /**
+     * Decode a specification command from a buffer and invoke the matching
+     * handler.
+     * 
+     * @param message
+     */
+    protected void decodeSpecificationCommand(ByteBuffer message) {
+	if (isProtobufCommand(message)) {
+	    processProtobufCommand(message);
+	    return;
+	}
 	try {
-	    ByteArrayInputStream encoded = new ByteArrayInputStream(message);
-	    ObjectInputStream in = new ObjectInputStream(encoded);
+	    ObjectInputStream in = new ObjectInputStream(asStream(message));
 
 	    String commandName = (String) in.readObject();
 	    Object[] parameters = (Object[]) in.readObject();
-	    Object[] parametersWithOriginator = new Object[parameters.length + 1];
-	    Class<?>[] types = new Class[parameters.length];
-	    Class<?>[] typesWithOriginator = new Class[parameters.length + 1];
-	    int i = 0;
-	    for (Object parameter : parameters) {
-		types[i] = parameter.getClass();
-		typesWithOriginator[i] = types[i];
-		parametersWithOriginator[i] = parameters[i];
-		i++;
-	    }
 	    IDeviceEventOriginator originator = (IDeviceEventOriginator) in.readObject();
-	    typesWithOriginator[i] = IDeviceEventOriginator.class;
-	    parametersWithOriginator[i] = originator;
 
-	    Method method = null;
+	    CommandDispatchTable.Handler handler = dispatchTable.getHandler(commandName, parameters);
+	    if (handler == null) {
+		LOGGER.warning("Unable to find method signature that matches command '" + commandName + "' with "
+			+ parameters.length + " parameters.");
+		return;
+	    }
 	    try {
-		method = getClass().getMethod(commandName, typesWithOriginator);
-		method.invoke(this, parametersWithOriginator);
-	    } catch (NoSuchMethodException e) {
-		LOGGER.log(Level.WARNING, "Unable to find method with originator parameter.", e);
-		method = getClass().getMethod(commandName, types);
-		method.invoke(this, parameters);
+		handler.invoke(this, parameters, originator);
+	    } catch (Throwable e) {
+		LOGGER.log(Level.WARNING, "Unable to call method for command.", e);
 	    }
 	} catch (StreamCorruptedException e) {
 	    LOGGER.log(Level.WARNING, "Unable to decode command in hybrid mode.", e);
@@ -156,14 +241,130 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
 	    LOGGER.log(Level.WARNING, "Unable to read command in hybrid mode.", e);
 	} catch (ClassNotFoundException e) {
 	    LOGGER.log(Level.WARNING, "Unable to resolve parameter class.", e);
+	}
+    }
+
+    /**
+     * Indicates whether a specification command is in protobuf format. In
+     * {@link CommandFormat#AUTO} mode, messages that do not start with the Java
+     * serialization stream header are treated as protobuf if a decoder is
+     * configured.
+     * 
+     * @param message
+     * @return
+     */
+    protected boolean isProtobufCommand(byte[] message) {
+	return isProtobufCommand(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Indicates whether a specification command held in a buffer is in protobuf
+     * format.
+     * 
+     * @param message
+     * @return
+     */
+    protected boolean isProtobufCommand(ByteBuffer message) {
+	switch (getCommandFormat()) {
+	case PROTOBUF:
+	    return true;
+	case HYBRID:
+	    return false;
+	default:
+	    int position = message.position();
+	    boolean serialized = (message.remaining() >= 2) && (message.get(position) == (byte) 0xac)
+		    && (message.get(position + 1) == (byte) 0xed);
+	    return !serialized && (getCommandDecoder() != null);
+	}
+    }
+
+    /**
+     * Decode a protobuf specification command and invoke the matching handler.
+     * 
+     * @param message
+     */
+    protected void processProtobufCommand(byte[] message) {
+	processProtobufCommand(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Decode a protobuf specification command held in a buffer and invoke the
+     * matching handler.
+     * 
+     * @param message
+     */
+    protected void processProtobufCommand(ByteBuffer message) {
+	if (getCommandDecoder() == null) {
+	    LOGGER.warning("Unable to decode protobuf command since no command names are configured.");
+	    return;
+	}
+	try {
+	    ProtobufCommandDecoder.Command command = getCommandDecoder().decode(message);
+	    CommandDispatchTable.Handler handler = dispatchTable.getHandler(command.getName(),
+		    command.getMaxField());
+	    if (handler == null) {
+		LOGGER.warning("Unable to find method signature that matches command '" + command.getName() + "'.");
+		return;
+	    }
+	    Object[] parameters = command.getParameters(handler.getParameterTypes());
+	    try {
+		handler.invoke(this, parameters, command.getOriginator());
+	    } catch (Throwable e) {
+		LOGGER.log(Level.WARNING, "Unable to call method for command.", e);
+	    }
+	} catch (IOException e) {
+	    LOGGER.log(Level.WARNING, "Unable to read command in protobuf mode.", e);
+	} catch (SiteWhereAgentException e) {
+	    LOGGER.log(Level.WARNING, "Unable to decode command in protobuf mode.", e);
+	}
+    }
+
+    /**
+     * Read a length-delimited protobuf message.
+     * 
+     * @param in
+     * @param parser
+     * @return
+     * @throws IOException
+     */
+    protected static <T> T readDelimited(CodedInputStream in, Parser<T> parser) throws IOException {
+	int limit = in.pushLimit(in.readRawVarint32());
+	T message = parser.parseFrom(in);
+	in.popLimit(limit);
+	return message;
+    }
+
+    /**
+     * Get a stream over the remaining bytes of a buffer. Heap buffers are read in
+     * place while direct buffers are copied.
+     * 
+     * @param message
+     * @return
+     */
+    protected static InputStream asStream(ByteBuffer message) {
+	if (message.hasArray()) {
+	    return new ByteArrayInputStream(message.array(), message.arrayOffset() + message.position(),
+		    message.remaining());
+	}
+	byte[] bytes = new byte[message.remaining()];
+	message.duplicate().get(bytes);
+	return new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * Indicates whether the concrete class overrides the byte[] form of a
+     * command processing method. Such classes keep receiving byte[] payloads so
+     * their overrides are not bypassed by the buffer form.
+     * 
+     * @param name
+     * @return
+     */
+    protected boolean overridesArrayMethod(String name) {
+	try {
+	    return getClass().getMethod(name, byte[].class, ISiteWhereEventDispatcher.class)
+		    .getDeclaringClass() != BaseCommandProcessor.class;
 	} catch (NoSuchMethodException e) {
-	    LOGGER.log(Level.WARNING, "Unable to find method signature that matches command.", e);
-	} catch (IllegalAccessException e) {
-	    LOGGER.log(Level.WARNING, "Not allowed to call method for command.", e);
-	} catch (IllegalArgumentException e) {
-	    LOGGER.log(Level.WARNING, "Invalid argument for command.", e);
-	} catch (InvocationTargetException e) {
-	    LOGGER.log(Level.WARNING, "Unable to call method for command.", e);
+	    return false;
 	}
     }
 
@@ -220,6 +421,46 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
 	return eventDispatcher;
     }
 
+    public CommandFormat getCommandFormat() {
+	return commandFormat;
+    }
+
+    public void setCommandFormat(CommandFormat commandFormat) {
+	this.commandFormat = commandFormat;
+    }
+
+    public ProtobufCommandDecoder getCommandDecoder() {
+	return commandDecoder;
+    }
+
+    public void setCommandDecoder(ProtobufCommandDecoder commandDecoder) {
+	this.commandDecoder = commandDecoder;
+    }
+
+    public DeviceStreamManager getStreamManager() {
+	return streamManager;
+    }
+
+    public void setStreamManager(DeviceStreamManager streamManager) {
+	this.streamManager = streamManager;
+    }
+
+    public TelemetryScheduler getTelemetryScheduler() {
+	return telemetryScheduler;
+    }
+
+    public void setTelemetryScheduler(TelemetryScheduler telemetryScheduler) {
+	this.telemetryScheduler = telemetryScheduler;
+    }
+
+    public EventClock getEventClock() {
+	return eventClock;
+    }
+
+    public void setEventClock(EventClock eventClock) {
+	this.eventClock = eventClock;
+    }
+
     /**
      * Handle the registration acknowledgement message.
      * 
@@ -229,6 +470,33 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
     public void handleRegistrationAck(Header header, RegistrationAck ack) {
     }
 
+    /**
+     * Handle acknowledgement of a device stream being created. By default the
+     * acknowledgement is passed to the stream manager.
+     * 
+     * @param header
+     * @param ack
+     */
+    public void handleDeviceStreamAck(Header header, DeviceStreamAck ack) {
+	if (getStreamManager() != null) {
+	    getStreamManager().handleStreamAck(getDeviceToken(), ack);
+	}
+    }
+
+    /**
+     * Handle a chunk of device stream data sent by SiteWhere. By default the
+     * chunk is passed to the stream manager. The chunk data may share memory with
+     * the received message, so it should be copied if kept after the call.
+     * 
+     * @param header
+     * @param data
+     */
+    public void handleDeviceStreamData(Header header, DeviceStreamData data) {
+	if (getStreamManager() != null) {
+	    getStreamManager().handleStreamData(getDeviceToken(), data);
+	}
+    }
+
     /**
      * Convenience method for sending device registration information to SiteWhere.
      * 
@@ -267,7 +535,8 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
     }
 
     /**
-     * Convenience method for sending a measurement event to SiteWhere.
+     * Convenience method for sending a measurement event to SiteWhere, dated with
+     * the current time.
      * 
      * @param deviceToken
      * @param name
@@ -277,10 +546,30 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
      */
     public void sendMeasurement(String deviceToken, String name, double value, IDeviceEventOriginator originator)
 	    throws SiteWhereAgentException {
+	sendMeasurement(deviceToken, name, value, getCurrentEventDate(), originator);
+    }
+
+    /**
+     * Convenience method for sending a measurement event taken at a given time to
+     * SiteWhere.
+     * 
+     * @param deviceToken
+     * @param name
+     * @param value
+     * @param eventDate time in milliseconds the value was taken ({@link #UNDATED} to
+     *            send it undated)
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public void sendMeasurement(String deviceToken, String name, double value, long eventDate,
+	    IDeviceEventOriginator originator) throws SiteWhereAgentException {
 	DeviceMeasurement.Builder builder = DeviceMeasurement.newBuilder();
 
 	builder.setMeasurementName(GOptionalString.newBuilder().setValue(name));
 	builder.setMeasurementValue(GOptionalDouble.newBuilder().setValue(value));
+	if (eventDate != UNDATED) {
+	    builder.setEventDate(GOptionalFixed64.newBuilder().setValue(eventDate));
+	}
 
 	DeviceMeasurement measurement = builder.build();
 
@@ -288,7 +577,81 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
     }
 
     /**
-     * Convenience method for sending a location event to SiteWhere.
+     * Convenience method for sending several measurements to SiteWhere at once,
+     * all dated with the current time. The measurements are sent in the iteration
+     * order of the map, together if the dispatcher supports it.
+     * 
+     * @param deviceToken
+     * @param values measurement values indexed by name
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public void sendMeasurements(String deviceToken, Map<String, Double> values, IDeviceEventOriginator originator)
+	    throws SiteWhereAgentException {
+	sendMeasurements(deviceToken, values, getCurrentEventDate(), originator);
+    }
+
+    /**
+     * Convenience method for sending several measurements taken at the same time
+     * to SiteWhere at once.
+     * 
+     * @param deviceToken
+     * @param values measurement values indexed by name
+     * @param eventDate time in milliseconds the values were taken ({@link #UNDATED}
+     *            to send them undated)
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public void sendMeasurements(String deviceToken, Map<String, Double> values, long eventDate,
+	    IDeviceEventOriginator originator) throws SiteWhereAgentException {
+	List<DeviceMeasurement> measurements = new ArrayList<DeviceMeasurement>(values.size());
+	GOptionalFixed64 date = null;
+	if (eventDate != UNDATED) {
+	    date = GOptionalFixed64.newBuilder().setValue(eventDate).build();
+	}
+	for (Map.Entry<String, Double> entry : values.entrySet()) {
+	    DeviceMeasurement.Builder builder = DeviceMeasurement.newBuilder();
+
+	    builder.setMeasurementName(GOptionalString.newBuilder().setValue(entry.getKey()));
+	    builder.setMeasurementValue(GOptionalDouble.newBuilder().setValue(entry.getValue()));
+	    if (date != null) {
+		builder.setEventDate(date);
+	    }
+
+	    measurements.add(builder.build());
+	}
+	getEventDispatcher().sendMeasurements(measurements, deviceToken, getOriginatorEventId(originator));
+    }
+
+    /**
+     * Convenience method for sending many samples of one measurement taken over
+     * time, such as readings from a high-rate sensor. The samples are sent in the
+     * compact series encoding if a series topic is configured.
+     * 
+     * @param deviceToken
+     * @param series
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public void sendMeasurementSeries(String deviceToken, MeasurementSeries series,
+	    IDeviceEventOriginator originator) throws SiteWhereAgentException {
+	getEventDispatcher().sendMeasurementSeries(series, deviceToken, getOriginatorEventId(originator));
+    }
+
+    /**
+     * Convenience method for sending several events of any type to SiteWhere at
+     * once. The events are sent in order, together if the dispatcher supports it.
+     * 
+     * @param events
+     * @throws SiteWhereAgentException
+     */
+    public void sendEvents(List<OutboundEvent> events) throws SiteWhereAgentException {
+	getEventDispatcher().dispatch(events);
+    }
+
+    /**
+     * Convenience method for sending a location event to SiteWhere, dated with
+     * the current time.
      * 
      * @param deviceToken
      * @param originator
@@ -300,11 +663,32 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
      */
     public void sendLocation(String deviceToken, double latitude, double longitude, double elevation,
 	    IDeviceEventOriginator originator) throws SiteWhereAgentException {
+	sendLocation(deviceToken, latitude, longitude, elevation, getCurrentEventDate(), originator);
+    }
+
+    /**
+     * Convenience method for sending a location taken at a given time to
+     * SiteWhere.
+     * 
+     * @param deviceToken
+     * @param latitude
+     * @param longitude
+     * @param elevation
+     * @param eventDate time in milliseconds the location was taken
+     *            ({@link #UNDATED} to send it undated)
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public void sendLocation(String deviceToken, double latitude, double longitude, double elevation,
+	    long eventDate, IDeviceEventOriginator originator) throws SiteWhereAgentException {
 	DeviceLocation.Builder builder = DeviceLocation.newBuilder();
 
 	builder.setLatitude(GOptionalDouble.newBuilder().setValue(latitude));
 	builder.setLongitude(GOptionalDouble.newBuilder().setValue(longitude));
 	builder.setElevation(GOptionalDouble.newBuilder().setValue(elevation));
+	if (eventDate != UNDATED) {
+	    builder.setEventDate(GOptionalFixed64.newBuilder().setValue(eventDate));
+	}
 
 	DeviceLocation location = builder.build();
 
@@ -312,7 +696,8 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
     }
 
     /**
-     * Convenience method for sending an alert event to SiteWhere.
+     * Convenience method for sending an alert event to SiteWhere, dated with the
+     * current time.
      * 
      * @param deviceToken
      * @param alertType
@@ -322,16 +707,45 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
      */
     public void sendAlert(String deviceToken, String alertType, String message, IDeviceEventOriginator originator)
 	    throws SiteWhereAgentException {
+	sendAlert(deviceToken, alertType, message, getCurrentEventDate(), originator);
+    }
+
+    /**
+     * Convenience method for sending an alert raised at a given time to SiteWhere.
+     * 
+     * @param deviceToken
+     * @param alertType
+     * @param message
+     * @param eventDate time in milliseconds the alert was raised ({@link #UNDATED}
+     *            to send it undated)
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public void sendAlert(String deviceToken, String alertType, String message, long eventDate,
+	    IDeviceEventOriginator originator) throws SiteWhereAgentException {
 	DeviceAlert.Builder builder = DeviceAlert.newBuilder();
 
 	builder.setAlertType(GOptionalString.newBuilder().setValue(alertType));
 	builder.setAlertMessage(GOptionalString.newBuilder().setValue(message));
+	if (eventDate != UNDATED) {
+	    builder.setEventDate(GOptionalFixed64.newBuilder().setValue(eventDate));
+	}
 
 	DeviceAlert alert = builder.build();
 
 	getEventDispatcher().sendAlert(alert, deviceToken, getOriginatorEventId(originator));
     }
 
+    /**
+     * Get the time to date a new event with, or {@link #UNDATED} if no event clock
+     * is set.
+     * 
+     * @return
+     */
+    protected long getCurrentEventDate() {
+	return (getEventClock() != null) ? getEventClock().now() : UNDATED;
+    }
+
     /**
      * Gets event id of the originating command if available.
      * 
@@ -344,4 +758,21 @@ public abstract class BaseCommandProcessor implements IAgentCommandProcessor {
 	}
 	return originator.getEventId().toString();
     }
+
+    /**
+     * Encodings supported for specification commands.
+     * 
+     * @author Derek
+     */
+    public static enum CommandFormat {
+
+	/** Detect format of each message */
+	AUTO,
+
+	/** Java serialized command name, parameters and originator */
+	HYBRID,
+
+	/** Protobuf header and parameter message generated from device type */
+	PROTOBUF;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,453 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.fusesource.mqtt.client.QoS;
+
+import com.google.protobuf.GeneratedMessageV3;
+import com.sitewhere.agent.Agent.MQTTOutbound;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAcknowledge;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAlert;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceLocation;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceRegistrationRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamDataRequest;
+
+/**
+ * Event dispatcher that coalesces events into batches which are sent as a
+ * single MQTT publish. Each batch payload contains back-to-back delimited
+ * header and event pairs, the same framing used for a single event. A batch is
+ * flushed when it reaches the configured number of events or byte budget, or
+ * once the linger time has elapsed since the first event was added.
+ * Registration, acknowledgement, stream creation and stream data requests flush
+ * the batch immediately since SiteWhere or the device is waiting on them, and
+ * stream data chunks are published on their own. A batch is published with the
+ * highest QoS configured for any of the events it contains. Events dispatched
+ * together are encoded in one pass and always land in the same batch.
+ * 
+ * When the outbound is blocking, synchronous sends wait until the batch holding
+ * the event has been published, which may take up to the linger time, and
+ * report failures to the caller.
+ * 
+ * @author Derek
+ */
+public class BatchingEventDispatcher implements IAsyncEventDispatcher, Closeable {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(BatchingEventDispatcher.class.getName());
+
+    /** Default maximum number of events per batch */
+    public static final int DEFAULT_MAX_EVENTS = 100;
+
+    /** Default maximum number of bytes per batch */
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    /** Default time in milliseconds a batch may wait before being flushed */
+    public static final long DEFAULT_LINGER_MS = 50;
+
+    /** Outbound used to publish batches */
+    private MQTTOutbound outbound;
+
+    /** Maximum number of events per batch */
+    private int maxEvents;
+
+    /** Maximum number of bytes per batch */
+    private int maxBytes;
+
+    /** Time in milliseconds a batch may wait before being flushed */
+    private long lingerMs;
+
+    /** Buffer for the batch being assembled */
+    private ByteArrayOutputStream buffer;
+
+    /** Futures for events in the batch being assembled */
+    private List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+
+    /** Highest QoS of events in the batch being assembled */
+    private QoS batchQos = QoS.AT_MOST_ONCE;
+
+    /** Incremented for each flush so stale linger timers can be ignored */
+    private long generation;
+
+    /** Used to flush batches once linger time has elapsed */
+    private ScheduledExecutorService timer = Executors
+	    .newSingleThreadScheduledExecutor(OrderedExecutor.createThreadFactory("sitewhere-batching-", false));
+
+    public BatchingEventDispatcher(MQTTOutbound outbound) {
+	this(outbound, DEFAULT_MAX_EVENTS, DEFAULT_MAX_BYTES, DEFAULT_LINGER_MS);
+    }
+
+    public BatchingEventDispatcher(MQTTOutbound outbound, int maxEvents, int maxBytes, long lingerMs) {
+	this.outbound = outbound;
+	this.maxEvents = maxEvents;
+	this.maxBytes = maxBytes;
+	this.lingerMs = lingerMs;
+	this.buffer = new ByteArrayOutputStream(Math.min(maxBytes, DEFAULT_MAX_BYTES) + 256);
+    }
+
+    @Override
+    public void registerDevice(DeviceRegistrationRequest register, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(registerDeviceAsync(register, deviceToken, originator), "registration");
+    }
+
+    @Override
+    public void acknowledge(DeviceAcknowledge ack, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(acknowledgeAsync(ack, deviceToken, originator), "ack");
+    }
+
+    @Override
+    public void sendMeasurement(DeviceMeasurement measurement, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(sendMeasurementAsync(measurement, deviceToken, originator), "measurement");
+    }
+
+    @Override
+    public void sendLocation(DeviceLocation location, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(sendLocationAsync(location, deviceToken, originator), "location");
+    }
+
+    @Override
+    public void sendAlert(DeviceAlert alert, String deviceToken, String originator) throws SiteWhereAgentException {
+	complete(sendAlertAsync(alert, deviceToken, originator), "alert");
+    }
+
+    @Override
+    public void createDeviceStream(DeviceStream stream, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(createDeviceStreamAsync(stream, deviceToken, originator), "stream");
+    }
+
+    @Override
+    public void sendDeviceStreamData(DeviceStreamData data, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(sendDeviceStreamDataAsync(data, deviceToken, originator), "stream.data");
+    }
+
+    @Override
+    public void requestDeviceStreamData(DeviceStreamDataRequest request, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(requestDeviceStreamDataAsync(request, deviceToken, originator), "stream.request");
+    }
+
+    @Override
+    public CompletableFuture<Void> registerDeviceAsync(DeviceRegistrationRequest register, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return add(Command.SendRegistration, register, deviceToken, originator, "registration", true);
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeAsync(DeviceAcknowledge ack, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return add(Command.SendAcknowledgement, ack, deviceToken, originator, "ack", true);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMeasurementAsync(DeviceMeasurement measurement, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return add(Command.SendMeasurement, measurement, deviceToken, originator, "measurement", false);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendLocationAsync(DeviceLocation location, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return add(Command.SendLocation, location, deviceToken, originator, "location", false);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAlertAsync(DeviceAlert alert, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return add(Command.SendAlert, alert, deviceToken, originator, "alert", false);
+    }
+
+    @Override
+    public CompletableFuture<Void> createDeviceStreamAsync(DeviceStream stream, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return add(Command.SendDeviceStream, stream, deviceToken, originator, "stream", true);
+    }
+
+    /**
+     * Stream chunks are usually as large as a whole batch, so the current batch is
+     * flushed and the chunk is published on its own.
+     * 
+     * @see com.sitewhere.agent.IAsyncEventDispatcher#sendDeviceStreamDataAsync(com.
+     * sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamData,
+     * java.lang.String, java.lang.String)
+     */
+    @Override
+    public synchronized CompletableFuture<Void> sendDeviceStreamDataAsync(DeviceStreamData data,
+	    String deviceToken, String originator) throws SiteWhereAgentException {
+	flush();
+	return getOutbound().sendDeviceStreamDataAsync(data, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> requestDeviceStreamDataAsync(DeviceStreamDataRequest request, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return add(Command.RequestDeviceStreamData, request, deviceToken, originator, "stream.request", true);
+    }
+
+    @Override
+    public void dispatch(List<OutboundEvent> events) throws SiteWhereAgentException {
+	complete(dispatchAsync(events), "bulk");
+    }
+
+    /**
+     * Encode the events together and add them to the current batch. The batch is
+     * flushed afterward if any of the events would have flushed it on its own, or
+     * if a limit is reached.
+     * 
+     * @see com.sitewhere.agent.IAsyncEventDispatcher#dispatchAsync(java.util.List)
+     */
+    @Override
+    public synchronized CompletableFuture<Void> dispatchAsync(List<OutboundEvent> events)
+	    throws SiteWhereAgentException {
+	if (events.isEmpty()) {
+	    return CompletableFuture.completedFuture(null);
+	}
+	byte[] encoded = MQTTOutbound.encode(events);
+	int mark = buffer.size();
+	buffer.write(encoded, 0, encoded.length);
+	CompletableFuture<Void> future = new CompletableFuture<Void>();
+	pending.add(future);
+	boolean urgent = false;
+	for (OutboundEvent event : events) {
+	    QoS qos = getOutbound().getQos(event.getCommand());
+	    if (qos.ordinal() > batchQos.ordinal()) {
+		batchQos = qos;
+	    }
+	    urgent |= isUrgent(event.getCommand());
+	}
+	if (urgent || (pending.size() >= getMaxEvents()) || (buffer.size() >= getMaxBytes())) {
+	    flush();
+	} else if (mark == 0) {
+	    scheduleLinger();
+	}
+	return future;
+    }
+
+    @Override
+    public void sendMeasurementSeries(MeasurementSeries series, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(sendMeasurementSeriesAsync(series, deviceToken, originator), "series");
+    }
+
+    /**
+     * Without a series topic the samples are added to the batch as measurement
+     * events. Otherwise the current batch is flushed and the encoded series is
+     * published on its own.
+     * 
+     * @see com.sitewhere.agent.IAsyncEventDispatcher#sendMeasurementSeriesAsync(com.
+     * sitewhere.agent.MeasurementSeries, java.lang.String, java.lang.String)
+     */
+    @Override
+    public synchronized CompletableFuture<Void> sendMeasurementSeriesAsync(MeasurementSeries series,
+	    String deviceToken, String originator) throws SiteWhereAgentException {
+	if (getOutbound().getSeriesTopic() == null) {
+	    return IAsyncEventDispatcher.super.sendMeasurementSeriesAsync(series, deviceToken, originator);
+	}
+	flush();
+	return getOutbound().sendMeasurementSeriesAsync(series, deviceToken, originator);
+    }
+
+    /**
+     * Indicates whether SiteWhere or the device is waiting on a type of event, so
+     * a batch containing it should be sent right away.
+     * 
+     * @param command
+     * @return
+     */
+    protected static boolean isUrgent(Command command) {
+	switch (command) {
+	case SendMeasurement:
+	case SendLocation:
+	case SendAlert:
+	case SendDeviceStreamData: {
+	    return false;
+	}
+	default: {
+	    return true;
+	}
+	}
+    }
+
+    /**
+     * Add an event to the current batch, flushing if a limit is reached.
+     * 
+     * @param command
+     * @param message
+     * @param deviceToken
+     * @param originator
+     * @param label
+     * @param urgent
+     * @return future completed when the batch containing the event is published
+     * @throws SiteWhereAgentException
+     */
+    protected synchronized CompletableFuture<Void> add(Command command, GeneratedMessageV3 message,
+	    String deviceToken, String originator, String label, boolean urgent) throws SiteWhereAgentException {
+	int mark = buffer.size();
+	try {
+	    MQTTOutbound.encode(command, message, deviceToken, originator, buffer);
+	} catch (IOException e) {
+	    throw new SiteWhereAgentException("Problem encoding " + label + " message.", e);
+	}
+	CompletableFuture<Void> future = new CompletableFuture<Void>();
+	pending.add(future);
+	QoS qos = getOutbound().getQos(command);
+	if (qos.ordinal() > batchQos.ordinal()) {
+	    batchQos = qos;
+	}
+	if (urgent || (pending.size() >= getMaxEvents()) || (buffer.size() >= getMaxBytes())) {
+	    flush();
+	} else if (mark == 0) {
+	    scheduleLinger();
+	}
+	return future;
+    }
+
+    /**
+     * Flush the batch just started once the linger time has elapsed, unless it is
+     * flushed before then.
+     */
+    protected void scheduleLinger() {
+	final long scheduled = generation;
+	timer.schedule(new Runnable() {
+
+	    @Override
+	    public void run() {
+		flushIfCurrent(scheduled);
+	    }
+	}, getLingerMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publish the current batch if it has not already been flushed.
+     * 
+     * @param scheduled
+     */
+    protected synchronized void flushIfCurrent(long scheduled) {
+	if (scheduled != generation) {
+	    return;
+	}
+	try {
+	    flush();
+	} catch (SiteWhereAgentException e) {
+	    LOGGER.log(Level.WARNING, "Unable to flush event batch.", e);
+	}
+    }
+
+    /**
+     * Publish all buffered events as a single payload.
+     * 
+     * @throws SiteWhereAgentException
+     */
+    public synchronized void flush() throws SiteWhereAgentException {
+	generation++;
+	if (pending.isEmpty()) {
+	    return;
+	}
+	byte[] payload = buffer.toByteArray();
+	final List<CompletableFuture<Void>> batch = pending;
+	QoS qos = batchQos;
+	buffer.reset();
+	pending = new ArrayList<CompletableFuture<Void>>();
+	batchQos = QoS.AT_MOST_ONCE;
+
+	CompletableFuture<Void> published;
+	try {
+	    published = getOutbound().publish(payload, "batch", qos);
+	} catch (SiteWhereAgentException e) {
+	    for (CompletableFuture<Void> future : batch) {
+		future.completeExceptionally(e);
+	    }
+	    throw e;
+	}
+	published.whenComplete(new BiConsumer<Void, Throwable>() {
+
+	    @Override
+	    public void accept(Void result, Throwable error) {
+		for (CompletableFuture<Void> future : batch) {
+		    if (error != null) {
+			future.completeExceptionally(error);
+		    } else {
+			future.complete(null);
+		    }
+		}
+	    }
+	});
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	try {
+	    flush();
+	} catch (SiteWhereAgentException e) {
+	    throw new IOException("Unable to flush final event batch.", e);
+	} finally {
+	    timer.shutdownNow();
+	}
+    }
+
+    /**
+     * Complete a synchronous send the same way the outbound does: wait for the
+     * batch holding the event to be published when the outbound is blocking,
+     * otherwise log if it fails.
+     * 
+     * @param future
+     * @param label
+     * @throws SiteWhereAgentException
+     */
+    protected void complete(CompletableFuture<Void> future, String label) throws SiteWhereAgentException {
+	getOutbound().complete(future, label);
+    }
+
+    public MQTTOutbound getOutbound() {
+	return outbound;
+    }
+
+    public int getMaxEvents() {
+	return maxEvents;
+    }
+
+    public int getMaxBytes() {
+	return maxBytes;
+    }
+
+    public long getLingerMs() {
+	return lingerMs;
+    }
+}
\ No newline at end of file
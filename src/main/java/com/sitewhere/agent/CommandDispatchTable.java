@@ -0,0 +1,277 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Table of command handlers for a command processor class. The public methods
+ * of the class are scanned once and indexed by name and parameter count, with
+ * a {@link MethodHandle} prepared for each so that dispatching a command does
+ * not involve reflective lookups. Methods whose last parameter is an
+ * {@link IDeviceEventOriginator} are preferred over methods without one.
+ * 
+ * @author Derek
+ */
+public class CommandDispatchTable {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(CommandDispatchTable.class.getName());
+
+    /** Tables already built, indexed by processor class */
+    private static final Map<Class<?>, CommandDispatchTable> TABLES =
+	    new ConcurrentHashMap<Class<?>, CommandDispatchTable>();
+
+    /** Handlers indexed by command name and parameter count */
+    private Map<String, List<Handler>> handlers = new HashMap<String, List<Handler>>();
+
+    /** Handlers indexed by command name */
+    private Map<String, List<Handler>> handlersByName = new HashMap<String, List<Handler>>();
+
+    protected CommandDispatchTable(Class<?> processorClass) {
+	MethodHandles.Lookup lookup = MethodHandles.lookup();
+	for (Method method : processorClass.getMethods()) {
+	    if (Modifier.isStatic(method.getModifiers()) || (method.getDeclaringClass() == Object.class)) {
+		continue;
+	    }
+	    try {
+		method.setAccessible(true);
+		Handler handler = new Handler(method, lookup.unreflect(method));
+		add(handlers, getKey(method.getName(), method.getParameterTypes().length), handler);
+		add(handlersByName, method.getName(), handler);
+	    } catch (Exception e) {
+		LOGGER.log(Level.FINE, "Unable to create handle for method '" + method.getName() + "'.", e);
+	    }
+	}
+    }
+
+    /**
+     * Get the dispatch table for a processor class, building it on first use.
+     * 
+     * @param processorClass
+     * @return
+     */
+    public static CommandDispatchTable forClass(Class<?> processorClass) {
+	CommandDispatchTable table = TABLES.get(processorClass);
+	if (table == null) {
+	    table = new CommandDispatchTable(processorClass);
+	    CommandDispatchTable existing = TABLES.putIfAbsent(processorClass, table);
+	    if (existing != null) {
+		table = existing;
+	    }
+	}
+	return table;
+    }
+
+    /**
+     * Find the handler for a command. A handler that accepts the parameters
+     * followed by the originator is preferred. If none exists, a handler that
+     * accepts only the parameters is used.
+     * 
+     * @param commandName
+     * @param parameters
+     * @return handler or null if no method matches
+     */
+    public Handler getHandler(String commandName, Object[] parameters) {
+	List<Handler> withOriginator = getHandlers(commandName, parameters.length + 1);
+	for (Handler handler : withOriginator) {
+	    if (handler.hasOriginator() && handler.accepts(parameters)) {
+		return handler;
+	    }
+	}
+	for (Handler handler : getHandlers(commandName, parameters.length)) {
+	    if (handler.accepts(parameters)) {
+		return handler;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Find the handler for a command whose parameters are identified by position
+     * rather than type. The handler with the fewest parameters that still covers
+     * the highest parameter position is used, preferring one that accepts the
+     * originator.
+     * 
+     * @param commandName
+     * @param minParameters
+     * @return handler or null if no method matches
+     */
+    public Handler getHandler(String commandName, int minParameters) {
+	List<Handler> list = handlersByName.get(commandName);
+	if (list == null) {
+	    return null;
+	}
+	Handler best = null;
+	for (Handler handler : list) {
+	    int count = handler.getParameterTypes().length;
+	    if (count < minParameters) {
+		continue;
+	    }
+	    if ((best == null) || (count < best.getParameterTypes().length)
+		    || ((count == best.getParameterTypes().length) && handler.hasOriginator())) {
+		best = handler;
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * Add a handler to the list stored under a key.
+     * 
+     * @param map
+     * @param key
+     * @param handler
+     */
+    protected static void add(Map<String, List<Handler>> map, String key, Handler handler) {
+	List<Handler> list = map.get(key);
+	if (list == null) {
+	    list = new ArrayList<Handler>();
+	    map.put(key, list);
+	}
+	list.add(handler);
+    }
+
+    /**
+     * Get handlers with the given name and parameter count.
+     * 
+     * @param commandName
+     * @param arity
+     * @return
+     */
+    protected List<Handler> getHandlers(String commandName, int arity) {
+	List<Handler> list = handlers.get(getKey(commandName, arity));
+	if (list == null) {
+	    return Collections.emptyList();
+	}
+	return list;
+    }
+
+    /**
+     * Build lookup key for name and parameter count.
+     * 
+     * @param name
+     * @param arity
+     * @return
+     */
+    protected static String getKey(String name, int arity) {
+	return name + "/" + arity;
+    }
+
+    /**
+     * Prepared invoker for a single command method.
+     * 
+     * @author Derek
+     */
+    public static class Handler {
+
+	/** Method being invoked */
+	private Method method;
+
+	/** Declared parameter types */
+	private Class<?>[] declared;
+
+	/** Parameter types with primitives replaced by wrappers */
+	private Class<?>[] types;
+
+	/** Indicates whether last parameter is the originator */
+	private boolean originator;
+
+	/** Parameter types not including the originator */
+	private Class<?>[] parameterTypes;
+
+	/** Handle taking target and parameter array */
+	private MethodHandle invoker;
+
+	public Handler(Method method, MethodHandle handle) {
+	    this.method = method;
+	    this.declared = method.getParameterTypes();
+	    this.types = new Class<?>[declared.length];
+	    for (int i = 0; i < declared.length; i++) {
+		types[i] = MethodType.methodType(declared[i]).wrap().returnType();
+	    }
+	    this.originator = (declared.length > 0)
+		    && (declared[declared.length - 1] == IDeviceEventOriginator.class);
+	    this.parameterTypes = originator ? Arrays.copyOf(declared, declared.length - 1) : declared;
+	    this.invoker = handle.asType(handle.type().generic()).asSpreader(Object[].class, declared.length);
+	}
+
+	/**
+	 * Indicates whether parameters can be passed to the method. The originator
+	 * parameter, if any, is not checked.
+	 * 
+	 * @param parameters
+	 * @return
+	 */
+	public boolean accepts(Object[] parameters) {
+	    for (int i = 0; i < parameters.length; i++) {
+		if (parameters[i] == null) {
+		    if (declared[i].isPrimitive()) {
+			return false;
+		    }
+		} else if (!types[i].isInstance(parameters[i])) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+
+	/**
+	 * Invoke the method on a processor.
+	 * 
+	 * @param target
+	 * @param parameters
+	 * @param originator
+	 * @throws Throwable
+	 */
+	public void invoke(Object target, Object[] parameters, IDeviceEventOriginator originator) throws Throwable {
+	    Object[] arguments = parameters;
+	    if (hasOriginator()) {
+		arguments = new Object[parameters.length + 1];
+		System.arraycopy(parameters, 0, arguments, 0, parameters.length);
+		arguments[parameters.length] = originator;
+	    }
+	    invoker.invoke(target, arguments);
+	}
+
+	public boolean hasOriginator() {
+	    return originator;
+	}
+
+	public Class<?>[] getParameterTypes() {
+	    return parameterTypes;
+	}
+
+	public Method getMethod() {
+	    return method;
+	}
+    }
+}
\ No newline at end of file
@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Publisher that compresses payloads before passing them to the wrapped
+ * publisher. Placed behind a {@link RingBufferPublisher}, it runs on the ring's
+ * writer thread, so producers neither compress nor contend for the shared
+ * {@link PayloadCompressor}.
+ * 
+ * @author Derek
+ */
+public class CompressingPublisher implements IOutboundPublisher, Closeable {
+
+    /** Publisher compressed payloads are passed to */
+    private IOutboundPublisher delegate;
+
+    /** Compressor applied to each payload */
+    private PayloadCompressor compressor;
+
+    /** Metrics for bytes saved */
+    private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+    public CompressingPublisher(IOutboundPublisher delegate, PayloadCompressor compressor) {
+	this.delegate = delegate;
+	this.compressor = compressor;
+    }
+
+    /*
+     * @see com.sitewhere.agent.IOutboundPublisher#publish(java.lang.String, byte[],
+     * org.fusesource.mqtt.client.QoS, boolean)
+     */
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, QoS qos, boolean retain)
+	    throws InterruptedException {
+	byte[] compressed = getCompressor().compress(payload);
+	getMetrics().counter("outbound.compression.saved.bytes").add(payload.length - compressed.length);
+	return getDelegate().publish(topic, compressed, qos, retain);
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	if (getDelegate() instanceof Closeable) {
+	    ((Closeable) getDelegate()).close();
+	}
+    }
+
+    public IOutboundPublisher getDelegate() {
+	return delegate;
+    }
+
+    public PayloadCompressor getCompressor() {
+	return compressor;
+    }
+
+    public MetricsRegistry getMetrics() {
+	return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry metrics) {
+	this.metrics = metrics;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,271 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Publisher used when the agent starts without waiting for the broker. Until
+ * the first connection is established, payloads are held in memory and
+ * producers block only once the queue is full. When the connection comes up,
+ * held payloads are handed to the wrapped publisher in order on a separate
+ * thread, after which publishes pass straight through. Later losses of the
+ * connection are handled by the wrapped publisher as usual.
+ * 
+ * @author Derek
+ */
+public class DeferredPublisher implements IOutboundPublisher, IConnectionStateListener, Closeable {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(DeferredPublisher.class.getName());
+
+    /** Default number of payloads held until the broker is connected */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /** Publisher that delivers payloads to the broker */
+    private IOutboundPublisher delegate;
+
+    /** Maximum number of payloads held */
+    private int capacity;
+
+    /** Payloads waiting for the first connection, in publish order */
+    private Deque<Held> held = new ArrayDeque<Held>();
+
+    /** Set once held payloads have been handed off and publishes pass through */
+    private volatile boolean open;
+
+    /** Set once release of held payloads has started */
+    private boolean releasing;
+
+    /** Set when the publisher is closed */
+    private boolean closed;
+
+    /** Used to release held payloads off the MQTT dispatch queue */
+    private ExecutorService executor = Executors
+	    .newSingleThreadExecutor(OrderedExecutor.createThreadFactory("sitewhere-deferred-release-", false));
+
+    public DeferredPublisher(IOutboundPublisher delegate) {
+	this(delegate, DEFAULT_CAPACITY);
+    }
+
+    public DeferredPublisher(IOutboundPublisher delegate, int capacity) {
+	if (capacity < 1) {
+	    throw new IllegalArgumentException("Startup queue must hold at least one payload.");
+	}
+	this.delegate = delegate;
+	this.capacity = capacity;
+    }
+
+    /*
+     * @see com.sitewhere.agent.IOutboundPublisher#publish(java.lang.String, byte[],
+     * org.fusesource.mqtt.client.QoS, boolean)
+     */
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, QoS qos, boolean retain)
+	    throws InterruptedException {
+	if (!open) {
+	    synchronized (held) {
+		while (!open && !closed && (held.size() >= capacity)) {
+		    held.wait();
+		}
+		if (closed) {
+		    throw new IllegalStateException("Publisher is closed.");
+		}
+		if (!open) {
+		    Held payloadHeld = new Held(topic, payload, qos, retain);
+		    held.addLast(payloadHeld);
+		    return payloadHeld.result;
+		}
+	    }
+	}
+	return getDelegate().publish(topic, payload, qos, retain);
+    }
+
+    /**
+     * Release held payloads the first time the connection is established. May be
+     * called more than once.
+     * 
+     * @see com.sitewhere.agent.IConnectionStateListener#onConnected()
+     */
+    @Override
+    public void onConnected() {
+	synchronized (held) {
+	    if (releasing || closed) {
+		return;
+	    }
+	    releasing = true;
+	}
+	executor.execute(new Releaser());
+	executor.shutdown();
+    }
+
+    /*
+     * @see
+     * com.sitewhere.agent.IConnectionStateListener#onDisconnected(java.lang.
+     * Throwable)
+     */
+    @Override
+    public void onDisconnected(Throwable cause) {
+    }
+
+    /**
+     * Fail any payloads still held and stop releasing.
+     * 
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	executor.shutdownNow();
+	Deque<Held> unsent;
+	synchronized (held) {
+	    closed = true;
+	    unsent = new ArrayDeque<Held>(held);
+	    held.clear();
+	    held.notifyAll();
+	}
+	if (!unsent.isEmpty()) {
+	    LOGGER.warning("Discarding " + unsent.size() + " outbound payloads held before connecting.");
+	}
+	for (Held payloadHeld : unsent) {
+	    payloadHeld.result.completeExceptionally(new IllegalStateException("Not connected to MQTT broker."));
+	}
+    }
+
+    /**
+     * Get number of payloads waiting for the first connection.
+     * 
+     * @return
+     */
+    public int getHeldCount() {
+	synchronized (held) {
+	    return held.size();
+	}
+    }
+
+    public boolean isOpen() {
+	return open;
+    }
+
+    public IOutboundPublisher getDelegate() {
+	return delegate;
+    }
+
+    public int getCapacity() {
+	return capacity;
+    }
+
+    /**
+     * Payload published before the first connection.
+     * 
+     * @author Derek
+     */
+    private static class Held {
+
+	/** Topic to publish to */
+	private final String topic;
+
+	/** Encoded payload */
+	private final byte[] payload;
+
+	/** Delivery QoS */
+	private final QoS qos;
+
+	/** Indicates message is retained */
+	private final boolean retain;
+
+	/** Completed when the wrapped publisher completes the publish */
+	private final CompletableFuture<Void> result = new CompletableFuture<Void>();
+
+	public Held(String topic, byte[] payload, QoS qos, boolean retain) {
+	    this.topic = topic;
+	    this.payload = payload;
+	    this.qos = qos;
+	    this.retain = retain;
+	}
+    }
+
+    /**
+     * Hands held payloads to the wrapped publisher in order. The queue is only
+     * opened once it is empty, so later publishes cannot overtake held ones.
+     * 
+     * @author Derek
+     */
+    private class Releaser implements Runnable {
+
+	@Override
+	public void run() {
+	    int released = 0;
+	    while (true) {
+		Held next;
+		synchronized (held) {
+		    next = held.pollFirst();
+		    if ((next == null) || closed) {
+			open = !closed;
+			held.notifyAll();
+			break;
+		    }
+		    held.notifyAll();
+		}
+		try {
+		    release(next);
+		    released++;
+		} catch (InterruptedException e) {
+		    next.result.completeExceptionally(e);
+		    break;
+		}
+	    }
+	    LOGGER.info("Released " + released + " outbound payloads held before connecting.");
+	}
+
+	/**
+	 * Publish a held payload, completing its future with the result.
+	 * 
+	 * @param payloadHeld
+	 * @throws InterruptedException
+	 */
+	protected void release(final Held payloadHeld) throws InterruptedException {
+	    CompletableFuture<Void> future;
+	    try {
+		future = getDelegate().publish(payloadHeld.topic, payloadHeld.payload, payloadHeld.qos,
+			payloadHeld.retain);
+	    } catch (RuntimeException e) {
+		payloadHeld.result.completeExceptionally(e);
+		return;
+	    }
+	    future.whenComplete(new BiConsumer<Void, Throwable>() {
+
+		@Override
+		public void accept(Void result, Throwable error) {
+		    if (error != null) {
+			payloadHeld.result.completeExceptionally(error);
+		    } else {
+			payloadHeld.result.complete(null);
+		    }
+		}
+	    });
+	}
+    }
+}
\ No newline at end of file
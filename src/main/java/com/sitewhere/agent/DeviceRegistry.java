@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of devices served by an agent running in gateway mode. Maps each
+ * device token to the command processor handling commands for that device.
+ * Devices may be added or removed while the agent is running.
+ * 
+ * @author Derek
+ */
+public class DeviceRegistry {
+
+    /** Command processors indexed by device token */
+    private Map<String, IAgentCommandProcessor> processors = new ConcurrentHashMap<String, IAgentCommandProcessor>();
+
+    /**
+     * Register the command processor for a device.
+     * 
+     * @param deviceToken
+     * @param processor
+     * @throws SiteWhereAgentException
+     */
+    public void register(String deviceToken, IAgentCommandProcessor processor) throws SiteWhereAgentException {
+	if (processors.putIfAbsent(deviceToken, processor) != null) {
+	    throw new SiteWhereAgentException("Device '" + deviceToken + "' is already registered.");
+	}
+    }
+
+    /**
+     * Remove a device from the registry.
+     * 
+     * @param deviceToken
+     * @return processor for the device or null if not registered
+     */
+    public IAgentCommandProcessor unregister(String deviceToken) {
+	return processors.remove(deviceToken);
+    }
+
+    /**
+     * Get the command processor for a device.
+     * 
+     * @param deviceToken
+     * @return processor for the device or null if not registered
+     */
+    public IAgentCommandProcessor getProcessor(String deviceToken) {
+	return processors.get(deviceToken);
+    }
+
+    /**
+     * Get tokens for all registered devices.
+     * 
+     * @return
+     */
+    public Set<String> getDeviceTokens() {
+	return Collections.unmodifiableSet(processors.keySet());
+    }
+
+    /**
+     * Get number of registered devices.
+     * 
+     * @return
+     */
+    public int size() {
+	return processors.size();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,261 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.protobuf.ByteString;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamDataRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Receives a device stream from SiteWhere into a file. Chunks are requested by
+ * sequence number, keeping up to <code>window</code> requests outstanding, and
+ * written to the channel in sequence order at increasing positions. Chunks that
+ * arrive early are held until the gap before them is filled, so at most one
+ * window of chunks is ever held in memory. An empty chunk marks the end of the
+ * stream. A download that receives no chunks for the timeout of its
+ * {@link DeviceStreamManager} fails with a {@link TimeoutException}.
+ * 
+ * The position and sequence number of the next chunk are available while the
+ * download runs, so an interrupted download may be resumed by starting a new
+ * one from the same point.
+ * 
+ * @author Derek
+ */
+public class DeviceStreamDownload {
+
+    /** Dispatcher requests are sent through */
+    private ISiteWhereEventDispatcher dispatcher;
+
+    /** Token of device that owns the stream */
+    private String deviceToken;
+
+    /** Stream id */
+    private String streamId;
+
+    /** Channel data is written to */
+    private FileChannel channel;
+
+    /** Maximum number of chunks requested ahead of the next one written */
+    private int window;
+
+    /** Metrics for stream traffic */
+    private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+    /** Position in the channel the next chunk is written to */
+    private long position;
+
+    /** Sequence number of the next chunk to write */
+    private long nextSequence;
+
+    /** Sequence number of the next chunk to request */
+    private long nextRequest;
+
+    /** Number of bytes written */
+    private long received;
+
+    /** Chunks received ahead of the next one to write */
+    private TreeMap<Long, ByteString> early = new TreeMap<Long, ByteString>();
+
+    /** Time in nanoseconds the download started or last accepted a chunk */
+    private long lastActivity = System.nanoTime();
+
+    /** Completed with number of bytes written once the stream ends */
+    private CompletableFuture<Long> future = new CompletableFuture<Long>();
+
+    public DeviceStreamDownload(ISiteWhereEventDispatcher dispatcher, String deviceToken, String streamId,
+	    FileChannel channel, int window, long position, long sequence) {
+	if (window <= 0) {
+	    throw new IllegalArgumentException("Window must be positive.");
+	}
+	this.dispatcher = dispatcher;
+	this.deviceToken = deviceToken;
+	this.streamId = streamId;
+	this.channel = channel;
+	this.window = window;
+	this.position = position;
+	this.nextSequence = sequence;
+	this.nextRequest = sequence;
+    }
+
+    /**
+     * Request the first window of chunks.
+     * 
+     * @throws SiteWhereAgentException
+     */
+    public synchronized void start() throws SiteWhereAgentException {
+	lastActivity = System.nanoTime();
+	requestMore();
+    }
+
+    /**
+     * Handle a chunk of stream data. Chunks outside the current window, and any
+     * that arrive after the download has finished, are ignored.
+     * 
+     * @param sequence
+     * @param data
+     */
+    public synchronized void handleData(long sequence, ByteString data) {
+	if (future.isDone() || (sequence < nextSequence) || (sequence >= nextSequence + getWindow())) {
+	    return;
+	}
+	lastActivity = System.nanoTime();
+	early.put(sequence, data);
+	try {
+	    ByteString chunk;
+	    while ((chunk = early.remove(nextSequence)) != null) {
+		if (chunk.isEmpty()) {
+		    early.clear();
+		    future.complete(received);
+		    return;
+		}
+		write(chunk);
+		nextSequence++;
+	    }
+	    requestMore();
+	} catch (IOException e) {
+	    future.completeExceptionally(e);
+	} catch (SiteWhereAgentException e) {
+	    future.completeExceptionally(e);
+	}
+    }
+
+    /**
+     * Stop the download. Chunks that arrive later are ignored.
+     */
+    public synchronized void cancel() {
+	early.clear();
+	future.completeExceptionally(
+		new CancellationException("Download of stream '" + getStreamId() + "' cancelled."));
+    }
+
+    /**
+     * Fail the download if it has not accepted a chunk within the timeout.
+     * 
+     * @param timeoutMs
+     * @return milliseconds left before the download times out, or zero once it
+     *         has finished
+     */
+    public synchronized long expire(long timeoutMs) {
+	if (future.isDone()) {
+	    return 0;
+	}
+	long idleMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+	if (idleMs < timeoutMs) {
+	    return timeoutMs - idleMs;
+	}
+	early.clear();
+	future.completeExceptionally(new TimeoutException(
+		"Download of stream '" + getStreamId() + "' received no data for " + timeoutMs + " ms."));
+	return 0;
+    }
+
+    /**
+     * Write a chunk at the current position.
+     * 
+     * @param chunk
+     * @throws IOException
+     */
+    protected void write(ByteString chunk) throws IOException {
+	ByteBuffer buffer = chunk.asReadOnlyByteBuffer();
+	while (buffer.hasRemaining()) {
+	    position += getChannel().write(buffer, position);
+	}
+	received += chunk.size();
+	getMetrics().counter("stream.chunks.received").increment();
+	getMetrics().counter("stream.bytes.received").add(chunk.size());
+    }
+
+    /**
+     * Request chunks until a full window is outstanding.
+     * 
+     * @throws SiteWhereAgentException
+     */
+    protected void requestMore() throws SiteWhereAgentException {
+	while (nextRequest < nextSequence + getWindow()) {
+	    DeviceStreamDataRequest request = DeviceStreamDataRequest.newBuilder()
+		    .setStreamId(GOptionalString.newBuilder().setValue(getStreamId()))
+		    .setSequenceNumber(GOptionalFixed64.newBuilder().setValue(nextRequest)).build();
+	    getDispatcher().requestDeviceStreamData(request, getDeviceToken(), null);
+	    nextRequest++;
+	}
+    }
+
+    /**
+     * Get future completed with the number of bytes written once the stream
+     * ends.
+     * 
+     * @return
+     */
+    public CompletableFuture<Long> getFuture() {
+	return future;
+    }
+
+    /**
+     * Get position in the channel the next chunk is written to.
+     * 
+     * @return
+     */
+    public synchronized long getPosition() {
+	return position;
+    }
+
+    /**
+     * Get sequence number of the next chunk to write.
+     * 
+     * @return
+     */
+    public synchronized long getNextSequence() {
+	return nextSequence;
+    }
+
+    public ISiteWhereEventDispatcher getDispatcher() {
+	return dispatcher;
+    }
+
+    public String getDeviceToken() {
+	return deviceToken;
+    }
+
+    public String getStreamId() {
+	return streamId;
+    }
+
+    public FileChannel getChannel() {
+	return channel;
+    }
+
+    public int getWindow() {
+	return window;
+    }
+
+    public MetricsRegistry getMetrics() {
+	return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry metrics) {
+	this.metrics = metrics;
+    }
+}
\ No newline at end of file
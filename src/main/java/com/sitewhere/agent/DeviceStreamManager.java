@@ -0,0 +1,375 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.DeviceStreamAck;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.DeviceStreamAckState;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Coordinates device stream transfers for an agent. Streams are created through
+ * the event dispatcher and the acknowledgement from SiteWhere completes the
+ * future returned to the caller. Uploads send a file to a stream in chunks and
+ * downloads receive stream data into a file. Stream acknowledgements and data
+ * arriving on the SiteWhere system topic are routed here by
+ * {@link BaseCommandProcessor}.
+ * 
+ * A stream that is not acknowledged, or a download that stops receiving data,
+ * fails with a {@link TimeoutException} once the timeout passes.
+ * 
+ * @author Derek
+ */
+public class DeviceStreamManager implements Closeable {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(DeviceStreamManager.class.getName());
+
+    /** Default number of bytes per uploaded chunk */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /** Default number of chunks outstanding per transfer */
+    public static final int DEFAULT_WINDOW = 8;
+
+    /** Default time in milliseconds to wait for an acknowledgement or data */
+    public static final long DEFAULT_TIMEOUT_MS = 60000;
+
+    /** Dispatcher stream messages are sent through */
+    private ISiteWhereEventDispatcher dispatcher;
+
+    /** Number of bytes per uploaded chunk */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /** Number of chunks outstanding per transfer */
+    private int window = DEFAULT_WINDOW;
+
+    /** Indicates whether uploads read files through a memory mapping */
+    private boolean memoryMapped = true;
+
+    /** Time in milliseconds to wait for an acknowledgement or data (zero to wait forever) */
+    private long timeoutMs = DEFAULT_TIMEOUT_MS;
+
+    /** Fails streams that time out */
+    private ScheduledExecutorService timer;
+
+    /** Metrics for stream traffic */
+    private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+    /** Streams waiting for acknowledgement indexed by device token and stream id */
+    private Map<String, PendingStream> creating = new ConcurrentHashMap<String, PendingStream>();
+
+    /** Running downloads indexed by device token and stream id */
+    private Map<String, DeviceStreamDownload> downloads = new ConcurrentHashMap<String, DeviceStreamDownload>();
+
+    public DeviceStreamManager(ISiteWhereEventDispatcher dispatcher) {
+	this.dispatcher = dispatcher;
+	ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1,
+		OrderedExecutor.createThreadFactory("sitewhere-stream-timeout-", false));
+	pool.setRemoveOnCancelPolicy(true);
+	this.timer = pool;
+    }
+
+    /**
+     * Create a stream for a device. The future completes with the state reported
+     * by SiteWhere. {@link DeviceStreamAckState#STREAM_EXISTS} is expected when
+     * resuming an upload to an existing stream.
+     * 
+     * @param deviceToken
+     * @param streamId
+     * @param contentType
+     * @param metadata
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public CompletableFuture<DeviceStreamAckState> createStream(String deviceToken, String streamId,
+	    String contentType, Map<String, String> metadata) throws SiteWhereAgentException {
+	DeviceStream.Builder builder = DeviceStream.newBuilder();
+	builder.setStreamId(GOptionalString.newBuilder().setValue(streamId));
+	if (contentType != null) {
+	    builder.setContentType(GOptionalString.newBuilder().setValue(contentType));
+	}
+	if (metadata != null) {
+	    builder.putAllMetadata(metadata);
+	}
+	final String key = getKey(deviceToken, streamId);
+	final PendingStream pending = new PendingStream(deviceToken, streamId);
+	creating.put(key, pending);
+	try {
+	    getDispatcher().createDeviceStream(builder.build(), deviceToken, null);
+	} catch (SiteWhereAgentException e) {
+	    creating.remove(key, pending);
+	    throw e;
+	}
+	if (getTimeoutMs() > 0) {
+	    final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+
+		@Override
+		public void run() {
+		    if (creating.remove(key, pending)) {
+			pending.future.completeExceptionally(new TimeoutException("Stream '" + pending.streamId
+				+ "' was not acknowledged within " + getTimeoutMs() + " ms."));
+		    }
+		}
+	    }, getTimeoutMs(), TimeUnit.MILLISECONDS);
+	    pending.future.whenComplete(new BiConsumer<DeviceStreamAckState, Throwable>() {
+
+		@Override
+		public void accept(DeviceStreamAckState result, Throwable error) {
+		    timeout.cancel(false);
+		}
+	    });
+	}
+	return pending.future;
+    }
+
+    /**
+     * Create an upload of a file to a stream. Call
+     * {@link DeviceStreamUpload#transfer(long)} to send the data.
+     * 
+     * @param deviceToken
+     * @param streamId
+     * @param channel
+     * @return
+     */
+    public DeviceStreamUpload createUpload(String deviceToken, String streamId, FileChannel channel) {
+	DeviceStreamUpload upload = new DeviceStreamUpload(getDispatcher(), deviceToken, streamId, channel,
+		getChunkSize(), getWindow());
+	upload.setMemoryMapped(isMemoryMapped());
+	upload.setMetrics(getMetrics());
+	return upload;
+    }
+
+    /**
+     * Start downloading a stream into a file. Data is written starting at the
+     * given channel position, beginning with the chunk with the given sequence
+     * number. Pass zero for both to download the whole stream.
+     * 
+     * @param deviceToken
+     * @param streamId
+     * @param channel
+     * @param position
+     * @param sequence
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public DeviceStreamDownload startDownload(String deviceToken, String streamId, FileChannel channel,
+	    long position, long sequence) throws SiteWhereAgentException {
+	final String key = getKey(deviceToken, streamId);
+	final DeviceStreamDownload download = new DeviceStreamDownload(getDispatcher(), deviceToken, streamId,
+		channel, getWindow(), position, sequence);
+	download.setMetrics(getMetrics());
+	if (downloads.putIfAbsent(key, download) != null) {
+	    throw new SiteWhereAgentException("Stream '" + streamId + "' is already being downloaded.");
+	}
+	download.getFuture().whenComplete(new BiConsumer<Long, Throwable>() {
+
+	    @Override
+	    public void accept(Long result, Throwable error) {
+		downloads.remove(key, download);
+	    }
+	});
+	try {
+	    download.start();
+	} catch (SiteWhereAgentException e) {
+	    download.getFuture().completeExceptionally(e);
+	    throw e;
+	}
+	if (getTimeoutMs() > 0) {
+	    scheduleTimeout(download, getTimeoutMs());
+	}
+	return download;
+    }
+
+    /**
+     * Check a download for a timeout after the given delay, checking again later
+     * if it has received data in the meantime.
+     * 
+     * @param download
+     * @param delayMs
+     */
+    protected void scheduleTimeout(final DeviceStreamDownload download, long delayMs) {
+	try {
+	    timer.schedule(new Runnable() {
+
+		@Override
+		public void run() {
+		    long remaining = download.expire(getTimeoutMs());
+		    if (remaining > 0) {
+			scheduleTimeout(download, remaining);
+		    }
+		}
+	    }, delayMs, TimeUnit.MILLISECONDS);
+	} catch (RejectedExecutionException e) {
+	    // Manager is closed.
+	}
+    }
+
+    /**
+     * Handle acknowledgement of a stream being created.
+     * 
+     * @param deviceToken
+     * @param ack
+     */
+    public void handleStreamAck(String deviceToken, DeviceStreamAck ack) {
+	String streamId = ack.getStreamId().getValue();
+	PendingStream pending = creating.remove(getKey(deviceToken, streamId));
+	if (pending == null) {
+	    LOGGER.fine("Ignoring acknowledgement for unknown stream '" + streamId + "'.");
+	    return;
+	}
+	pending.future.complete(ack.getState());
+    }
+
+    /**
+     * Handle a chunk of data for a stream being downloaded. The device token in
+     * the message is used if present.
+     * 
+     * @param deviceToken
+     * @param data
+     */
+    public void handleStreamData(String deviceToken, DeviceStreamData data) {
+	String token = data.hasDeviceToken() ? data.getDeviceToken().getValue() : deviceToken;
+	String streamId = data.getStreamId().getValue();
+	DeviceStreamDownload download = downloads.get(getKey(token, streamId));
+	if (download == null) {
+	    LOGGER.fine("Ignoring data for stream '" + streamId + "' which is not being downloaded.");
+	    return;
+	}
+	download.handleData(data.getSequenceNumber().getValue(), data.getData());
+    }
+
+    /**
+     * Stop all stream creations and downloads for a device. Futures waiting on
+     * them complete with a {@link CancellationException}.
+     * 
+     * @param deviceToken
+     */
+    public void closeStreams(String deviceToken) {
+	for (Map.Entry<String, PendingStream> entry : creating.entrySet()) {
+	    PendingStream pending = entry.getValue();
+	    if (pending.deviceToken.equals(deviceToken) && creating.remove(entry.getKey(), pending)) {
+		pending.future.completeExceptionally(
+			new CancellationException("Creation of stream '" + pending.streamId + "' cancelled."));
+	    }
+	}
+	for (DeviceStreamDownload download : downloads.values()) {
+	    if (download.getDeviceToken().equals(deviceToken)) {
+		download.cancel();
+	    }
+	}
+    }
+
+    /**
+     * Get key for a stream owned by a device.
+     * 
+     * @param deviceToken
+     * @param streamId
+     * @return
+     */
+    protected static String getKey(String deviceToken, String streamId) {
+	return deviceToken + "/" + streamId;
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+	timer.shutdownNow();
+    }
+
+    public ISiteWhereEventDispatcher getDispatcher() {
+	return dispatcher;
+    }
+
+    public int getChunkSize() {
+	return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+	this.chunkSize = chunkSize;
+    }
+
+    public int getWindow() {
+	return window;
+    }
+
+    public void setWindow(int window) {
+	this.window = window;
+    }
+
+    public boolean isMemoryMapped() {
+	return memoryMapped;
+    }
+
+    public void setMemoryMapped(boolean memoryMapped) {
+	this.memoryMapped = memoryMapped;
+    }
+
+    public long getTimeoutMs() {
+	return timeoutMs;
+    }
+
+    public void setTimeoutMs(long timeoutMs) {
+	this.timeoutMs = timeoutMs;
+    }
+
+    public MetricsRegistry getMetrics() {
+	return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry metrics) {
+	this.metrics = metrics;
+    }
+
+    /**
+     * Stream waiting for acknowledgement of its creation.
+     * 
+     * @author Derek
+     */
+    private static class PendingStream {
+
+	/** Token of device that owns the stream */
+	private String deviceToken;
+
+	/** Stream id */
+	private String streamId;
+
+	/** Completed with the state reported by SiteWhere */
+	private CompletableFuture<DeviceStreamAckState> future = new CompletableFuture<DeviceStreamAckState>();
+
+	public PendingStream(String deviceToken, String streamId) {
+	    this.deviceToken = deviceToken;
+	    this.streamId = streamId;
+	}
+    }
+}
\ No newline at end of file
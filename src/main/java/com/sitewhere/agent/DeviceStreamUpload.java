@@ -0,0 +1,302 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Sends the contents of a file to a device stream as a sequence of fixed-size
+ * chunks. Chunk n covers the bytes starting at offset n times the chunk size,
+ * so the sequence number of each chunk follows from its offset. At most
+ * <code>window</code> chunks are outstanding at a time; a new chunk is only
+ * read once an earlier one has been published, so memory use is bounded by the
+ * window no matter how large the file is.
+ * 
+ * Chunks are read through a memory mapping of the file if enabled, otherwise
+ * with positional reads from the channel. If the upload fails,
+ * {@link #getAcknowledgedOffset()} gives the offset up to which every chunk was
+ * delivered, and a new upload may be resumed from there.
+ * 
+ * @author Derek
+ */
+public class DeviceStreamUpload {
+
+    /** Maximum number of bytes mapped at a time */
+    public static final long MAPPED_REGION_BYTES = 16 * 1024 * 1024;
+
+    /** Dispatcher chunks are sent through */
+    private ISiteWhereEventDispatcher dispatcher;
+
+    /** Token of device that owns the stream */
+    private String deviceToken;
+
+    /** Stream id */
+    private String streamId;
+
+    /** Channel data is read from */
+    private FileChannel channel;
+
+    /** Number of bytes per chunk */
+    private int chunkSize;
+
+    /** Maximum number of chunks outstanding */
+    private int window;
+
+    /** Indicates whether the file is read through a memory mapping */
+    private boolean memoryMapped = true;
+
+    /** Metrics for stream traffic */
+    private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+    /** Size of the file when the upload started */
+    private long size;
+
+    /** Offset below which every chunk has been delivered */
+    private long acknowledgedOffset;
+
+    /** Sequence numbers of delivered chunks above the acknowledged offset */
+    private Set<Long> delivered = new HashSet<Long>();
+
+    /** First failure reported for a chunk */
+    private volatile Throwable failure;
+
+    /** Permits for chunks that may be outstanding */
+    private Semaphore permits;
+
+    public DeviceStreamUpload(ISiteWhereEventDispatcher dispatcher, String deviceToken, String streamId,
+	    FileChannel channel, int chunkSize, int window) {
+	if ((chunkSize <= 0) || (window <= 0)) {
+	    throw new IllegalArgumentException("Chunk size and window must be positive.");
+	}
+	this.dispatcher = dispatcher;
+	this.deviceToken = deviceToken;
+	this.streamId = streamId;
+	this.channel = channel;
+	this.chunkSize = chunkSize;
+	this.window = window;
+    }
+
+    /**
+     * Send the file from the given offset to the end, returning once every chunk
+     * has been delivered.
+     * 
+     * @param offset
+     * @return number of bytes sent
+     * @throws SiteWhereAgentException
+     */
+    public long transfer(long offset) throws SiteWhereAgentException {
+	if ((offset < 0) || ((offset % getChunkSize()) != 0)) {
+	    throw new SiteWhereAgentException("Upload offset must be a multiple of the chunk size.");
+	}
+	try {
+	    size = getChannel().size();
+	} catch (IOException e) {
+	    throw new SiteWhereAgentException("Unable to get size of stream source.", e);
+	}
+	synchronized (this) {
+	    acknowledgedOffset = Math.min(offset, size);
+	    delivered.clear();
+	}
+	failure = null;
+	permits = new Semaphore(getWindow());
+
+	long regionBytes = Math.max(getChunkSize(), MAPPED_REGION_BYTES / getChunkSize() * getChunkSize());
+	MappedByteBuffer region = null;
+	long regionStart = 0;
+	try {
+	    for (long position = offset; position < size; position += getChunkSize()) {
+		permits.acquire();
+		checkFailure();
+		int length = (int) Math.min(getChunkSize(), size - position);
+		ByteString data;
+		if (isMemoryMapped()) {
+		    if ((region == null) || (position >= regionStart + region.capacity())) {
+			regionStart = position;
+			region = getChannel().map(FileChannel.MapMode.READ_ONLY, position,
+				Math.min(regionBytes, size - position));
+		    }
+		    ByteBuffer chunk = region.duplicate();
+		    chunk.position((int) (position - regionStart));
+		    chunk.limit(chunk.position() + length);
+		    data = UnsafeByteOperations.unsafeWrap(chunk.slice());
+		} else {
+		    ByteBuffer chunk = ByteBuffer.allocate(length);
+		    while (chunk.hasRemaining()) {
+			if (getChannel().read(chunk, position + chunk.position()) < 0) {
+			    throw new EOFException("Stream source was truncated during upload.");
+			}
+		    }
+		    data = UnsafeByteOperations.unsafeWrap(chunk.array());
+		}
+		send(position / getChunkSize(), data);
+	    }
+
+	    // Wait for outstanding chunks.
+	    permits.acquire(getWindow());
+	    permits.release(getWindow());
+	    checkFailure();
+	    return size - offset;
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SiteWhereAgentException("Interrupted while uploading stream '" + getStreamId() + "'.", e);
+	} catch (IOException e) {
+	    throw new SiteWhereAgentException("Unable to read data for stream '" + getStreamId() + "'.", e);
+	}
+    }
+
+    /**
+     * Send a chunk, releasing its permit once it has been published.
+     * 
+     * @param sequence
+     * @param data
+     * @throws SiteWhereAgentException
+     */
+    protected void send(final long sequence, final ByteString data) throws SiteWhereAgentException {
+	DeviceStreamData message = DeviceStreamData.newBuilder()
+		.setStreamId(GOptionalString.newBuilder().setValue(getStreamId()))
+		.setSequenceNumber(GOptionalFixed64.newBuilder().setValue(sequence)).setData(data).build();
+	try {
+	    if (getDispatcher() instanceof IAsyncEventDispatcher) {
+		CompletableFuture<Void> future = ((IAsyncEventDispatcher) getDispatcher())
+			.sendDeviceStreamDataAsync(message, getDeviceToken(), null);
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+
+		    @Override
+		    public void accept(Void result, Throwable error) {
+			if (error != null) {
+			    failed(error);
+			} else {
+			    delivered(sequence, data.size());
+			}
+			permits.release();
+		    }
+		});
+	    } else {
+		getDispatcher().sendDeviceStreamData(message, getDeviceToken(), null);
+		delivered(sequence, data.size());
+		permits.release();
+	    }
+	} catch (SiteWhereAgentException e) {
+	    failed(e);
+	    permits.release();
+	    throw e;
+	}
+    }
+
+    /**
+     * Record delivery of a chunk and advance the acknowledged offset past any
+     * contiguous delivered chunks.
+     * 
+     * @param sequence
+     * @param bytes
+     */
+    protected synchronized void delivered(long sequence, int bytes) {
+	delivered.add(sequence);
+	while (delivered.remove(acknowledgedOffset / getChunkSize())) {
+	    acknowledgedOffset = Math.min(acknowledgedOffset + getChunkSize(), size);
+	}
+	getMetrics().counter("stream.chunks.sent").increment();
+	getMetrics().counter("stream.bytes.sent").add(bytes);
+    }
+
+    /**
+     * Record the first failure so the upload stops before reading more data.
+     * 
+     * @param error
+     */
+    protected void failed(Throwable error) {
+	if (failure == null) {
+	    failure = error;
+	}
+    }
+
+    /**
+     * Throw if a chunk failed to send.
+     * 
+     * @throws SiteWhereAgentException
+     */
+    protected void checkFailure() throws SiteWhereAgentException {
+	Throwable error = failure;
+	if (error != null) {
+	    throw new SiteWhereAgentException("Unable to upload stream '" + getStreamId() + "'. Resume from offset "
+		    + getAcknowledgedOffset() + ".", error);
+	}
+    }
+
+    /**
+     * Get offset below which every chunk has been delivered.
+     * 
+     * @return
+     */
+    public synchronized long getAcknowledgedOffset() {
+	return acknowledgedOffset;
+    }
+
+    public ISiteWhereEventDispatcher getDispatcher() {
+	return dispatcher;
+    }
+
+    public String getDeviceToken() {
+	return deviceToken;
+    }
+
+    public String getStreamId() {
+	return streamId;
+    }
+
+    public FileChannel getChannel() {
+	return channel;
+    }
+
+    public int getChunkSize() {
+	return chunkSize;
+    }
+
+    public int getWindow() {
+	return window;
+    }
+
+    public boolean isMemoryMapped() {
+	return memoryMapped;
+    }
+
+    public void setMemoryMapped(boolean memoryMapped) {
+	this.memoryMapped = memoryMapped;
+    }
+
+    public MetricsRegistry getMetrics() {
+	return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry metrics) {
+	this.metrics = metrics;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Clock used to date events when they are created rather than when SiteWhere
+ * receives them. The wall-clock time is read once and cached along with
+ * {@link System#nanoTime()}, and later times are computed by adding the
+ * elapsed monotonic time to it. The cached time is refreshed from the wall
+ * clock periodically so it follows clock corrections, but never moves
+ * backward, so events taken in order on a thread are always dated in order.
+ * 
+ * @author Derek
+ */
+public class EventClock {
+
+    /** Default time in milliseconds between refreshes from the wall clock */
+    public static final long DEFAULT_RESYNC_MS = 1000;
+
+    /** Nanoseconds in a millisecond */
+    private static final long NANOS_PER_MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** Wall-clock time and the monotonic time it was read at */
+    private AtomicReference<Anchor> anchor;
+
+    /** Time in nanoseconds between refreshes from the wall clock */
+    private long resyncNanos;
+
+    public EventClock() {
+	this(DEFAULT_RESYNC_MS);
+    }
+
+    public EventClock(long resyncMs) {
+	this.resyncNanos = TimeUnit.MILLISECONDS.toNanos(resyncMs);
+	this.anchor = new AtomicReference<Anchor>(new Anchor(System.currentTimeMillis(), System.nanoTime()));
+    }
+
+    /**
+     * Get the current time in milliseconds since the epoch.
+     * 
+     * @return
+     */
+    public long now() {
+	Anchor current = anchor.get();
+	long nanos = System.nanoTime();
+	if (nanos - current.nanos >= resyncNanos) {
+	    current = resync(current, nanos);
+	    nanos = Math.max(nanos, current.nanos);
+	}
+	return current.at(nanos);
+    }
+
+    /**
+     * Read the wall clock again, keeping the time from moving backward if the
+     * wall clock was set back. If another thread refreshed the time first, its
+     * anchor is used instead.
+     * 
+     * @param previous
+     * @param nanos
+     * @return
+     */
+    protected Anchor resync(Anchor previous, long nanos) {
+	Anchor next = new Anchor(Math.max(System.currentTimeMillis(), previous.at(nanos)), nanos);
+	return anchor.compareAndSet(previous, next) ? next : anchor.get();
+    }
+
+    /**
+     * Wall-clock time captured along with the monotonic time it was read at.
+     * 
+     * @author Derek
+     */
+    private static class Anchor {
+
+	/** Wall-clock time in milliseconds */
+	private final long millis;
+
+	/** Monotonic time in nanoseconds */
+	private final long nanos;
+
+	public Anchor(long millis, long nanos) {
+	    this.millis = millis;
+	    this.nanos = nanos;
+	}
+
+	/**
+	 * Get the wall-clock time at a later monotonic time.
+	 * 
+	 * @param now
+	 * @return
+	 */
+	public long at(long now) {
+	    return millis + (now - nanos) / NANOS_PER_MS;
+	}
+    }
+}
\ No newline at end of file
@@ -0,0 +1,258 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.WireFormat;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Header;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Encodes events as a delimited {@link Header} followed by the delimited event
+ * message without building intermediate objects. The serialized header for each
+ * command and device token is computed once and cached, and the originator (if
+ * any) is appended to it directly. Since the encoded size is known up front,
+ * events are written straight into an array of the exact size that is then
+ * handed to the MQTT client as-is. The bytes produced are identical to those
+ * produced by the generated protobuf builders. A list of events is encoded
+ * back-to-back into a single array in the same way.
+ * 
+ * @author Derek
+ */
+public class EventEncoder {
+
+    /** Default maximum number of cached headers per command */
+    public static final int DEFAULT_MAX_CACHED_HEADERS = 4096;
+
+    /** Header field number for originator */
+    private static final int ORIGINATOR_FIELD = Header.ORIGINATOR_FIELD_NUMBER;
+
+    /** Optional string field number for value */
+    private static final int VALUE_FIELD = GOptionalString.VALUE_FIELD_NUMBER;
+
+    /** Initial size of per-thread scratch buffer used for stream encoding */
+    private static final int INITIAL_SCRATCH_BYTES = 256;
+
+    /** Serialized headers without originator indexed by command and token */
+    private Map<Command, Map<String, byte[]>> headers = new EnumMap<Command, Map<String, byte[]>>(Command.class);
+
+    /** Maximum number of cached headers per command */
+    private int maxCachedHeaders;
+
+    /** Scratch buffer reused by each thread when encoding to a stream */
+    private ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+
+	@Override
+	protected byte[] initialValue() {
+	    return new byte[INITIAL_SCRATCH_BYTES];
+	}
+    };
+
+    public EventEncoder() {
+	this(DEFAULT_MAX_CACHED_HEADERS);
+    }
+
+    public EventEncoder(int maxCachedHeaders) {
+	this.maxCachedHeaders = maxCachedHeaders;
+	for (Command command : Command.values()) {
+	    headers.put(command, new ConcurrentHashMap<String, byte[]>());
+	}
+    }
+
+    /**
+     * Encode an event into a new array of exactly the encoded size.
+     * 
+     * @param command
+     * @param message
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws IOException
+     */
+    public byte[] encode(Command command, GeneratedMessageV3 message, String deviceToken, String originator)
+	    throws IOException {
+	byte[] header = getHeader(command, deviceToken);
+	byte[] payload = new byte[getEncodedSize(header, message, originator)];
+	CodedOutputStream output = CodedOutputStream.newInstance(payload);
+	write(header, message, originator, output);
+	output.checkNoSpaceLeft();
+	return payload;
+    }
+
+    /**
+     * Encode several events back-to-back into a new array of exactly the encoded
+     * size.
+     * 
+     * @param events
+     * @return
+     * @throws IOException
+     */
+    public byte[] encode(List<OutboundEvent> events) throws IOException {
+	int size = 0;
+	for (OutboundEvent event : events) {
+	    size += getEncodedSize(event.getCommand(), event.getMessage(), event.getDeviceToken(),
+		    event.getOriginator());
+	}
+	byte[] payload = new byte[size];
+	CodedOutputStream output = CodedOutputStream.newInstance(payload);
+	for (OutboundEvent event : events) {
+	    write(getHeader(event.getCommand(), event.getDeviceToken()), event.getMessage(), event.getOriginator(),
+		    output);
+	}
+	output.checkNoSpaceLeft();
+	return payload;
+    }
+
+    /**
+     * Encode an event and write it to a stream. The event is assembled in a
+     * per-thread scratch buffer and written with a single call.
+     * 
+     * @param command
+     * @param message
+     * @param deviceToken
+     * @param originator
+     * @param out
+     * @throws IOException
+     */
+    public void encode(Command command, GeneratedMessageV3 message, String deviceToken, String originator,
+	    OutputStream out) throws IOException {
+	byte[] header = getHeader(command, deviceToken);
+	int size = getEncodedSize(header, message, originator);
+	byte[] buffer = scratch.get();
+	if (buffer.length < size) {
+	    buffer = new byte[Math.max(size, buffer.length * 2)];
+	    scratch.set(buffer);
+	}
+	CodedOutputStream output = CodedOutputStream.newInstance(buffer, 0, size);
+	write(header, message, originator, output);
+	out.write(buffer, 0, size);
+    }
+
+    /**
+     * Get number of bytes needed to encode an event.
+     * 
+     * @param command
+     * @param message
+     * @param deviceToken
+     * @param originator
+     * @return
+     */
+    public int getEncodedSize(Command command, GeneratedMessageV3 message, String deviceToken, String originator) {
+	return getEncodedSize(getHeader(command, deviceToken), message, originator);
+    }
+
+    /**
+     * Get serialized header (without originator) for a command and device token,
+     * serializing and caching it on first use.
+     * 
+     * @param command
+     * @param deviceToken
+     * @return
+     */
+    protected byte[] getHeader(Command command, String deviceToken) {
+	Map<String, byte[]> byToken = headers.get(command);
+	byte[] header = byToken.get(deviceToken);
+	if (header == null) {
+	    header = Header.newBuilder().setCommand(command)
+		    .setDeviceToken(GOptionalString.newBuilder().setValue(deviceToken)).build().toByteArray();
+	    if (byToken.size() >= maxCachedHeaders) {
+		byToken.clear();
+	    }
+	    byToken.put(deviceToken, header);
+	}
+	return header;
+    }
+
+    /**
+     * Compute encoded size given the cached header.
+     * 
+     * @param header
+     * @param message
+     * @param originator
+     * @return
+     */
+    protected int getEncodedSize(byte[] header, GeneratedMessageV3 message, String originator) {
+	int headerSize = getHeaderSize(header, originator);
+	int messageSize = message.getSerializedSize();
+	return CodedOutputStream.computeUInt32SizeNoTag(headerSize) + headerSize
+		+ CodedOutputStream.computeUInt32SizeNoTag(messageSize) + messageSize;
+    }
+
+    /**
+     * Compute size of header including originator.
+     * 
+     * @param header
+     * @param originator
+     * @return
+     */
+    protected int getHeaderSize(byte[] header, String originator) {
+	if (originator == null) {
+	    return header.length;
+	}
+	int originatorSize = getOriginatorValueSize(originator);
+	return header.length + CodedOutputStream.computeTagSize(ORIGINATOR_FIELD)
+		+ CodedOutputStream.computeUInt32SizeNoTag(originatorSize) + originatorSize;
+    }
+
+    /**
+     * Compute size of the optional string wrapping the originator. Empty strings
+     * are not written, matching proto3 serialization.
+     * 
+     * @param originator
+     * @return
+     */
+    protected int getOriginatorValueSize(String originator) {
+	return originator.isEmpty() ? 0 : CodedOutputStream.computeStringSize(VALUE_FIELD, originator);
+    }
+
+    /**
+     * Write delimited header and delimited message.
+     * 
+     * @param header
+     * @param message
+     * @param originator
+     * @param output
+     * @throws IOException
+     */
+    protected void write(byte[] header, GeneratedMessageV3 message, String originator, CodedOutputStream output)
+	    throws IOException {
+	output.writeUInt32NoTag(getHeaderSize(header, originator));
+	output.writeRawBytes(header);
+	if (originator != null) {
+	    output.writeTag(ORIGINATOR_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+	    output.writeUInt32NoTag(getOriginatorValueSize(originator));
+	    if (!originator.isEmpty()) {
+		output.writeString(VALUE_FIELD, originator);
+	    }
+	}
+	output.writeUInt32NoTag(message.getSerializedSize());
+	message.writeTo(output);
+	output.flush();
+    }
+
+    public int getMaxCachedHeaders() {
+	return maxCachedHeaders;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,263 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves agent metrics over HTTP in the Prometheus text exposition format so
+ * they can be scraped locally. Counters gain a <code>_total</code> suffix and
+ * latency recorders are written as summaries in seconds along with their
+ * maximum. The server binds to the loopback interface unless configured
+ * otherwise.
+ * 
+ * @author Derek
+ */
+public class HttpMetricsExporter implements IMetricsExporter {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(HttpMetricsExporter.class.getName());
+
+    /** Default host the endpoint binds to */
+    public static final String DEFAULT_HOST = "127.0.0.1";
+
+    /** Path metrics are served from */
+    public static final String PATH = "/metrics";
+
+    /** Prefix added to all metric names */
+    private static final String PREFIX = "sitewhere_agent_";
+
+    /** Content type for text exposition format */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Host to bind to */
+    private String host;
+
+    /** Port to listen on */
+    private int port;
+
+    /** Metrics being exported */
+    private MetricsRegistry metrics;
+
+    /** Embedded HTTP server */
+    private HttpServer server;
+
+    /** Thread handling scrape requests */
+    private ExecutorService executor;
+
+    public HttpMetricsExporter(String host, int port) {
+	this.host = host;
+	this.port = port;
+    }
+
+    /*
+     * @see com.sitewhere.agent.IMetricsExporter#start(com.sitewhere.agent.
+     * MetricsRegistry)
+     */
+    @Override
+    public void start(MetricsRegistry metrics) throws SiteWhereAgentException {
+	this.metrics = metrics;
+	try {
+	    server = HttpServer.create(new InetSocketAddress(getHost(), getPort()), 0);
+	} catch (IOException e) {
+	    throw new SiteWhereAgentException("Unable to start metrics endpoint on port " + getPort() + ".", e);
+	}
+	server.createContext(PATH, new MetricsHandler());
+	executor = Executors.newSingleThreadExecutor(OrderedExecutor.createThreadFactory("sitewhere-metrics-", false));
+	server.setExecutor(executor);
+	server.start();
+	LOGGER.info(
+		"Serving agent metrics at 'http://" + getHost() + ":" + server.getAddress().getPort() + PATH + "'.");
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+	if (server != null) {
+	    server.stop(0);
+	    executor.shutdownNow();
+	}
+    }
+
+    /**
+     * Write all metrics in text exposition format.
+     * 
+     * @param out
+     */
+    protected void write(StringBuilder out) {
+	for (MetricsRegistry.Family family : metrics.getFamilies().values()) {
+	    String name = PREFIX + sanitize(family.getName());
+	    if (family.getType() == MetricsRegistry.Counter.class) {
+		name += "_total";
+		out.append("# TYPE ").append(name).append(" counter\n");
+		for (Map.Entry<String, Object> member : family.getMembers().entrySet()) {
+		    sample(out, name, family.getLabel(), member.getKey(), null, null,
+			    ((MetricsRegistry.Counter) member.getValue()).getCount());
+		}
+	    } else if (family.getType() == IGauge.class) {
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		for (Map.Entry<String, Object> member : family.getMembers().entrySet()) {
+		    sample(out, name, family.getLabel(), member.getKey(), null, null,
+			    ((IGauge) member.getValue()).getValue());
+		}
+	    } else if (family.getType() == LatencyRecorder.class) {
+		name += "_seconds";
+		out.append("# TYPE ").append(name).append(" summary\n");
+		for (Map.Entry<String, Object> member : family.getMembers().entrySet()) {
+		    LatencyRecorder recorder = (LatencyRecorder) member.getValue();
+		    for (double percentile : MetricsRegistry.PERCENTILES) {
+			sample(out, name, family.getLabel(), member.getKey(), "quantile",
+				toQuantile(percentile), toSeconds(recorder.getValueAtPercentile(percentile)));
+		    }
+		    sample(out, name + "_sum", family.getLabel(), member.getKey(), null, null,
+			    toSeconds(recorder.getSum()));
+		    sample(out, name + "_count", family.getLabel(), member.getKey(), null, null, recorder.getCount());
+		}
+		out.append("# TYPE ").append(name).append("_max gauge\n");
+		for (Map.Entry<String, Object> member : family.getMembers().entrySet()) {
+		    sample(out, name + "_max", family.getLabel(), member.getKey(), null, null,
+			    toSeconds(((LatencyRecorder) member.getValue()).getMax()));
+		}
+	    }
+	}
+    }
+
+    /**
+     * Write a single sample line.
+     * 
+     * @param out
+     * @param name
+     * @param label
+     * @param value
+     * @param extraLabel
+     * @param extraValue
+     * @param sample
+     */
+    protected void sample(StringBuilder out, String name, String label, String value, String extraLabel,
+	    String extraValue, Number sample) {
+	out.append(name);
+	boolean labeled = (label != null) && !value.isEmpty();
+	if (labeled || (extraLabel != null)) {
+	    out.append('{');
+	    if (labeled) {
+		out.append(sanitize(label)).append("=\"").append(escape(value)).append('"');
+	    }
+	    if (extraLabel != null) {
+		out.append(labeled ? "," : "").append(extraLabel).append("=\"").append(extraValue).append('"');
+	    }
+	    out.append('}');
+	}
+	out.append(' ').append(sample).append('\n');
+    }
+
+    /**
+     * Replace characters not allowed in metric and label names.
+     * 
+     * @param name
+     * @return
+     */
+    protected static String sanitize(String name) {
+	StringBuilder result = new StringBuilder(name.length());
+	for (int i = 0; i < name.length(); i++) {
+	    char c = name.charAt(i);
+	    boolean valid = ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || (c == '_')
+		    || ((c >= '0') && (c <= '9') && (i > 0));
+	    result.append(valid ? c : '_');
+	}
+	return result.toString();
+    }
+
+    /**
+     * Escape a label value.
+     * 
+     * @param value
+     * @return
+     */
+    protected static String escape(String value) {
+	return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Convert a percentile to a quantile label value (99.9 becomes 0.999).
+     * 
+     * @param percentile
+     * @return
+     */
+    protected static String toQuantile(double percentile) {
+	return BigDecimal.valueOf(percentile).movePointLeft(2).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Convert nanoseconds to seconds.
+     * 
+     * @param nanos
+     * @return
+     */
+    protected static double toSeconds(long nanos) {
+	return (double) nanos / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    public String getHost() {
+	return host;
+    }
+
+    public int getPort() {
+	return port;
+    }
+
+    /**
+     * Handles scrape requests.
+     * 
+     * @author Derek
+     */
+    private class MetricsHandler implements HttpHandler {
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+	    try {
+		if (!"GET".equals(exchange.getRequestMethod())) {
+		    exchange.sendResponseHeaders(405, -1);
+		    return;
+		}
+		StringBuilder text = new StringBuilder();
+		write(text);
+		byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	    } finally {
+		exchange.close();
+	    }
+	}
+    }
+}
\ No newline at end of file
@@ -15,6 +15,8 @@
  */
 package com.sitewhere.agent;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interface for classes that process commands for an agent.
  * 
@@ -55,6 +57,41 @@ public interface IAgentCommandProcessor {
     public void processSpecificationCommand(byte[] message, ISiteWhereEventDispatcher dispatcher)
 	    throws SiteWhereAgentException;
 
+    /**
+     * Process a SiteWhere system command held in a buffer. The command is read
+     * from the buffer position to its limit without changing either. The buffer
+     * may share memory with the received MQTT frame, so it must not be modified
+     * or kept after the call returns. The default implementation copies the
+     * bytes and calls {@link #processSiteWhereCommand(byte[], ISiteWhereEventDispatcher)}.
+     * 
+     * @param message
+     * @param dispatcher
+     * @throws SiteWhereAgentException
+     */
+    public default void processSiteWhereCommand(ByteBuffer message, ISiteWhereEventDispatcher dispatcher)
+	    throws SiteWhereAgentException {
+	byte[] bytes = new byte[message.remaining()];
+	message.duplicate().get(bytes);
+	processSiteWhereCommand(bytes, dispatcher);
+    }
+
+    /**
+     * Process a specification command held in a buffer. The same rules apply as
+     * for {@link #processSiteWhereCommand(ByteBuffer, ISiteWhereEventDispatcher)}.
+     * The default implementation copies the bytes and calls
+     * {@link #processSpecificationCommand(byte[], ISiteWhereEventDispatcher)}.
+     * 
+     * @param message
+     * @param dispatcher
+     * @throws SiteWhereAgentException
+     */
+    public default void processSpecificationCommand(ByteBuffer message, ISiteWhereEventDispatcher dispatcher)
+	    throws SiteWhereAgentException {
+	byte[] bytes = new byte[message.remaining()];
+	message.duplicate().get(bytes);
+	processSpecificationCommand(bytes, dispatcher);
+    }
+
     /**
      * Set the device Token
      * 
@@ -25,6 +25,12 @@ public interface IAgentConfiguration {
     /** Property for command processor classname */
     public static final String COMMAND_PROCESSOR_CLASSNAME = "command.processor.classname";
 
+    /** Property for specification command format (auto, hybrid or protobuf) */
+    public static final String COMMAND_FORMAT = "command.format";
+
+    /** Property for comma-separated command names used to decode protobuf commands */
+    public static final String COMMAND_PROTOBUF_NAMES = "command.protobuf.names";
+
     /** Property for Tenant Id */
     public static final String TENANT = "tenant";
 
@@ -49,9 +55,186 @@ public interface IAgentConfiguration {
     /** Property for outbound SiteWhere MQTT topic */
     public static final String MQTT_OUTBOUND_SITEWHERE_TOPIC = "mqtt.outbound.sitewhere.topic";
 
+    /** Property for MQTT topic compact measurement series are published to */
+    public static final String MQTT_OUTBOUND_SERIES_TOPIC = "mqtt.outbound.series.topic";
+
     /** Property for inbound SiteWhere MQTT topic */
     public static final String MQTT_INBOUND_SITEWHERE_TOPIC = "mqtt.inbound.sitewhere.topic";
 
     /** Property for inbound command MQTT topic */
     public static final String MQTT_INBOUND_COMMAND_TOPIC = "mqtt.inbound.command.topic";
+
+    /** Property that enables serving multiple devices over one connection */
+    public static final String GATEWAY_ENABLED = "gateway.enabled";
+
+    /** Property for comma-separated tokens of devices served in gateway mode */
+    public static final String GATEWAY_DEVICE_TOKENS = "gateway.device.tokens";
+
+    /** Property for number of workers processing inbound commands */
+    public static final String INBOUND_THREADS = "inbound.threads";
+
+    /** Property for number of inbound commands queued per worker */
+    public static final String INBOUND_QUEUE_SIZE = "inbound.queue.size";
+
+    /** Property indicating whether inbound workers use virtual threads */
+    public static final String INBOUND_VIRTUAL_THREADS = "inbound.virtual.threads";
+
+    /** Property for MQTT client id (defaults to value derived from device token) */
+    public static final String MQTT_CLIENT_ID = "mqtt.client.id";
+
+    /** Property indicating whether broker discards session state on connect */
+    public static final String MQTT_CLEAN_SESSION = "mqtt.clean.session";
+
+    /** Property for initial delay in milliseconds before reconnecting */
+    public static final String MQTT_RECONNECT_DELAY_MS = "mqtt.reconnect.delay.ms";
+
+    /** Property for maximum delay in milliseconds before reconnecting */
+    public static final String MQTT_RECONNECT_DELAY_MAX_MS = "mqtt.reconnect.delay.max.ms";
+
+    /** Property for number of inbound messages buffered before reading is suspended */
+    public static final String MQTT_RECEIVE_BUFFER = "mqtt.receive.buffer";
+
+    /** Property for number of dedicated outbound connections (zero to share the inbound connection) */
+    public static final String MQTT_OUTBOUND_CONNECTIONS = "mqtt.outbound.connections";
+
+    /** Property for MQTT publish mode (blocking or async) */
+    public static final String MQTT_PUBLISH_MODE = "mqtt.publish.mode";
+
+    /** Property for QoS of registration events (0, 1 or 2) */
+    public static final String MQTT_QOS_REGISTRATION = "mqtt.qos.registration";
+
+    /** Property for QoS of acknowledgement events (0, 1 or 2) */
+    public static final String MQTT_QOS_ACK = "mqtt.qos.ack";
+
+    /** Property for QoS of measurement events (0, 1 or 2) */
+    public static final String MQTT_QOS_MEASUREMENT = "mqtt.qos.measurement";
+
+    /** Property for QoS of location events (0, 1 or 2) */
+    public static final String MQTT_QOS_LOCATION = "mqtt.qos.location";
+
+    /** Property for QoS of alert events (0, 1 or 2) */
+    public static final String MQTT_QOS_ALERT = "mqtt.qos.alert";
+
+    /** Property for QoS of device stream messages (0, 1 or 2) */
+    public static final String MQTT_QOS_STREAM = "mqtt.qos.stream";
+
+    /** Property for QoS of inbound SiteWhere topic subscription (0, 1 or 2) */
+    public static final String MQTT_INBOUND_SITEWHERE_QOS = "mqtt.inbound.sitewhere.qos";
+
+    /** Property for QoS of inbound command topic subscription (0, 1 or 2) */
+    public static final String MQTT_INBOUND_COMMAND_QOS = "mqtt.inbound.command.qos";
+
+    /** Property for maximum number of outbound publishes in flight */
+    public static final String MQTT_PUBLISH_MAX_INFLIGHT = "mqtt.publish.max.inflight";
+
+    /** Property that enables batching of outbound events */
+    public static final String MQTT_BATCH_ENABLED = "mqtt.batch.enabled";
+
+    /** Property for maximum number of events per outbound batch */
+    public static final String MQTT_BATCH_MAX_EVENTS = "mqtt.batch.max.events";
+
+    /** Property for maximum number of bytes per outbound batch */
+    public static final String MQTT_BATCH_MAX_BYTES = "mqtt.batch.max.bytes";
+
+    /** Property for time in milliseconds an outbound batch may wait before being sent */
+    public static final String MQTT_BATCH_LINGER_MS = "mqtt.batch.linger.ms";
+
+    /** Property that enables compression of outbound payloads */
+    public static final String MQTT_COMPRESSION_ENABLED = "mqtt.compression.enabled";
+
+    /** Property for deflate compression level (1-9) */
+    public static final String MQTT_COMPRESSION_LEVEL = "mqtt.compression.level";
+
+    /** Property for size in bytes below which payloads are not compressed */
+    public static final String MQTT_COMPRESSION_MIN_BYTES = "mqtt.compression.min.bytes";
+
+    /** Property for file holding the preset compression dictionary */
+    public static final String MQTT_COMPRESSION_DICTIONARY = "mqtt.compression.dictionary";
+
+    /** Property that enables queueing outbound events in priority lanes */
+    public static final String OUTBOUND_PRIORITY_ENABLED = "outbound.priority.enabled";
+
+    /** Property format for events per second allowed in a lane (high, normal or low) */
+    public static final String OUTBOUND_LANE_RATE = "outbound.lane.%s.rate";
+
+    /** Property format for events a lane may send at once after an idle period */
+    public static final String OUTBOUND_LANE_BURST = "outbound.lane.%s.burst";
+
+    /** Property format for maximum number of events queued in a lane */
+    public static final String OUTBOUND_LANE_CAPACITY = "outbound.lane.%s.capacity";
+
+    /** Property for policy used when the low lane is full (drop_oldest, drop_newest or coalesce) */
+    public static final String OUTBOUND_LANE_OVERFLOW = "outbound.lane.overflow";
+
+    /** Property that enables handing outbound payloads to a single writer thread through a ring */
+    public static final String OUTBOUND_RING_ENABLED = "outbound.ring.enabled";
+
+    /** Property for number of slots in the outbound ring (rounded up to a power of two) */
+    public static final String OUTBOUND_RING_SIZE = "outbound.ring.size";
+
+    /** Property that enables aggregation of measurements before sending */
+    public static final String AGGREGATION_ENABLED = "aggregation.enabled";
+
+    /** Property for length of measurement aggregation window in milliseconds */
+    public static final String AGGREGATION_INTERVAL_MS = "aggregation.interval.ms";
+
+    /** Property for how aggregated measurements are summarized (last, mean or summary) */
+    public static final String AGGREGATION_MODE = "aggregation.mode";
+
+    /** Property for absolute change needed before an aggregated value is sent */
+    public static final String AGGREGATION_DEADBAND = "aggregation.deadband";
+
+    /** Property for percentage change needed before an aggregated value is sent */
+    public static final String AGGREGATION_DEVIATION_PERCENT = "aggregation.deviation.percent";
+
+    /** Property for time in milliseconds after which an unchanged value is sent anyway */
+    public static final String AGGREGATION_HEARTBEAT_MS = "aggregation.heartbeat.ms";
+
+    /** Property that enables collection of agent metrics */
+    public static final String METRICS_ENABLED = "metrics.enabled";
+
+    /** Property indicating whether metrics are exposed over JMX */
+    public static final String METRICS_JMX_ENABLED = "metrics.jmx.enabled";
+
+    /** Property for host the metrics endpoint binds to */
+    public static final String METRICS_HTTP_HOST = "metrics.http.host";
+
+    /** Property for port of the metrics endpoint (disabled if not set) */
+    public static final String METRICS_HTTP_PORT = "metrics.http.port";
+
+    /** Property that enables journaling outbound events to disk */
+    public static final String JOURNAL_ENABLED = "journal.enabled";
+
+    /** Property for directory holding outbound journal */
+    public static final String JOURNAL_DIRECTORY = "journal.directory";
+
+    /** Property for size in bytes at which a new journal segment is started */
+    public static final String JOURNAL_SEGMENT_BYTES = "journal.segment.bytes";
+
+    /** Property for maximum number of journal segments retained */
+    public static final String JOURNAL_MAX_SEGMENTS = "journal.max.segments";
+
+    /** Property for number of bytes per uploaded device stream chunk */
+    public static final String STREAM_CHUNK_SIZE = "stream.chunk.size";
+
+    /** Property for number of device stream chunks outstanding per transfer */
+    public static final String STREAM_WINDOW = "stream.window";
+
+    /** Property indicating whether stream uploads read files through a memory mapping */
+    public static final String STREAM_MEMORY_MAPPED = "stream.memory.mapped";
+
+    /** Property for milliseconds to wait for a stream acknowledgement or data (zero to wait forever) */
+    public static final String STREAM_TIMEOUT_MS = "stream.timeout.ms";
+
+    /** Property for number of threads running periodic telemetry tasks */
+    public static final String TELEMETRY_THREADS = "telemetry.threads";
+
+    /** Property indicating whether events are dated when they are created */
+    public static final String EVENT_TIMESTAMPS_ENABLED = "event.timestamps.enabled";
+
+    /** Property indicating whether startup continues while the broker connection is made */
+    public static final String STARTUP_FAST_ENABLED = "startup.fast.enabled";
+
+    /** Property for number of outbound payloads held per connection until it is established */
+    public static final String STARTUP_QUEUE_SIZE = "startup.queue.size";
 }
\ No newline at end of file
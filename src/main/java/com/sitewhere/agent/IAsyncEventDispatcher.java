@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent;
+
+/**
+ * Event dispatcher that returns a future for each event rather than waiting for
+ * delivery to complete.
+ * 
+ * @author Derek
+ */
+public interface IAsyncEventDispatcher extends ISiteWhereEventDispatcher {
+
+    /**
+     * Register a device asynchronously.
+     * 
+     * @param register
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public CompletableFuture<Void> registerDeviceAsync(DeviceEvent.DeviceRegistrationRequest register,
+	    String deviceToken, String originator) throws SiteWhereAgentException;
+
+    /**
+     * Send an acknowledgement message asynchronously.
+     * 
+     * @param ack
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public CompletableFuture<Void> acknowledgeAsync(DeviceEvent.DeviceAcknowledge ack, String deviceToken,
+	    String originator) throws SiteWhereAgentException;
+
+    /**
+     * Send a measurement event asynchronously.
+     * 
+     * @param measurement
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public CompletableFuture<Void> sendMeasurementAsync(DeviceEvent.DeviceMeasurement measurement, String deviceToken,
+	    String originator) throws SiteWhereAgentException;
+
+    /**
+     * Send a location event asynchronously.
+     * 
+     * @param location
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public CompletableFuture<Void> sendLocationAsync(DeviceEvent.DeviceLocation location, String deviceToken,
+	    String originator) throws SiteWhereAgentException;
+
+    /**
+     * Send an alert event asynchronously.
+     * 
+     * @param alert
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public CompletableFuture<Void> sendAlertAsync(DeviceEvent.DeviceAlert alert, String deviceToken, String originator)
+	    throws SiteWhereAgentException;
+
+    /**
+     * Create a device stream asynchronously. By default the synchronous method
+     * is called.
+     * 
+     * @param stream
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public default CompletableFuture<Void> createDeviceStreamAsync(DeviceEvent.DeviceStream stream,
+	    String deviceToken, String originator) throws SiteWhereAgentException {
+	createDeviceStream(stream, deviceToken, originator);
+	return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Send a chunk of device stream data asynchronously. By default the
+     * synchronous method is called.
+     * 
+     * @param data
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public default CompletableFuture<Void> sendDeviceStreamDataAsync(DeviceEvent.DeviceStreamData data,
+	    String deviceToken, String originator) throws SiteWhereAgentException {
+	sendDeviceStreamData(data, deviceToken, originator);
+	return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Request a chunk of device stream data asynchronously. By default the
+     * synchronous method is called.
+     * 
+     * @param request
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public default CompletableFuture<Void> requestDeviceStreamDataAsync(
+	    DeviceEvent.DeviceStreamDataRequest request, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	requestDeviceStreamData(request, deviceToken, originator);
+	return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Send several measurement events for a device asynchronously.
+     * 
+     * @param measurements
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public default CompletableFuture<Void> sendMeasurementsAsync(
+	    Collection<DeviceEvent.DeviceMeasurement> measurements, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	List<OutboundEvent> events = new ArrayList<OutboundEvent>(measurements.size());
+	for (DeviceEvent.DeviceMeasurement measurement : measurements) {
+	    events.add(OutboundEvent.measurement(measurement, deviceToken, originator));
+	}
+	return dispatchAsync(events);
+    }
+
+    /**
+     * Send the samples of a single measurement taken over time asynchronously. By
+     * default each sample is sent as a measurement event dated with its sample
+     * time.
+     * 
+     * @param series
+     * @param deviceToken
+     * @param originator
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public default CompletableFuture<Void> sendMeasurementSeriesAsync(MeasurementSeries series, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return sendMeasurementsAsync(series.toMeasurements(), deviceToken, originator);
+    }
+
+    /**
+     * Send several events of any type in order asynchronously. The returned
+     * future completes once all of the events have been sent. By default each
+     * event is sent through the method for its type.
+     * 
+     * @param events
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public default CompletableFuture<Void> dispatchAsync(List<OutboundEvent> events) throws SiteWhereAgentException {
+	CompletableFuture<?>[] futures = new CompletableFuture<?>[events.size()];
+	for (int i = 0; i < futures.length; i++) {
+	    futures[i] = events.get(i).sendAsyncTo(this);
+	}
+	return CompletableFuture.allOf(futures);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+/**
+ * Receives notifications when the MQTT connection is established or lost.
+ * Callbacks are made on the MQTT dispatch queue and must not block.
+ * 
+ * @author Derek
+ */
+public interface IConnectionStateListener {
+
+    /**
+     * Called once the connection is established and inbound subscriptions are in
+     * place.
+     */
+    public void onConnected();
+
+    /**
+     * Called when an established connection is lost.
+     * 
+     * @param cause
+     */
+    public void onDisconnected(Throwable cause);
+}
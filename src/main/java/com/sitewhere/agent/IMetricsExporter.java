@@ -0,0 +1,35 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+
+/**
+ * Makes the contents of a {@link MetricsRegistry} available outside the agent.
+ * Exporters are started once the agent is running and closed on shutdown.
+ * 
+ * @author Derek
+ */
+public interface IMetricsExporter extends Closeable {
+
+    /**
+     * Start exporting metrics.
+     * 
+     * @param metrics
+     * @throws SiteWhereAgentException
+     */
+    public void start(MetricsRegistry metrics) throws SiteWhereAgentException;
+}
\ No newline at end of file
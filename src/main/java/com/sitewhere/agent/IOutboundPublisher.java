@@ -0,0 +1,42 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Interface for classes that deliver encoded payloads to the MQTT broker.
+ * 
+ * @author Derek
+ */
+public interface IOutboundPublisher {
+
+    /**
+     * Publish an encoded payload.
+     * 
+     * @param topic
+     * @param payload
+     * @param qos
+     * @param retain
+     * @return future completed once the publisher has taken responsibility for the
+     *         payload
+     * @throws InterruptedException
+     */
+    public CompletableFuture<Void> publish(String topic, byte[] payload, QoS qos, boolean retain)
+	    throws InterruptedException;
+}
@@ -15,6 +15,10 @@
  */
 package com.sitewhere.agent;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent;
 
 /**
@@ -78,4 +82,93 @@ public interface ISiteWhereEventDispatcher {
      */
     public void sendAlert(DeviceEvent.DeviceAlert alert, String deviceToken, String originator)
 	    throws SiteWhereAgentException;
+
+    /**
+     * Create a device stream. Dispatchers that do not support device streams
+     * need not implement this.
+     * 
+     * @param stream
+     * @param deviceToken
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public default void createDeviceStream(DeviceEvent.DeviceStream stream, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	throw new SiteWhereAgentException("Device streams not supported.");
+    }
+
+    /**
+     * Send a chunk of device stream data. Dispatchers that do not support device
+     * streams need not implement this.
+     * 
+     * @param data
+     * @param deviceToken
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public default void sendDeviceStreamData(DeviceEvent.DeviceStreamData data, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	throw new SiteWhereAgentException("Device streams not supported.");
+    }
+
+    /**
+     * Request a chunk of device stream data be sent to the device. Dispatchers
+     * that do not support device streams need not implement this.
+     * 
+     * @param request
+     * @param deviceToken
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public default void requestDeviceStreamData(DeviceEvent.DeviceStreamDataRequest request, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	throw new SiteWhereAgentException("Device streams not supported.");
+    }
+
+    /**
+     * Send several measurement events for a device.
+     * 
+     * @param measurements
+     * @param deviceToken
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public default void sendMeasurements(Collection<DeviceEvent.DeviceMeasurement> measurements, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	List<OutboundEvent> events = new ArrayList<OutboundEvent>(measurements.size());
+	for (DeviceEvent.DeviceMeasurement measurement : measurements) {
+	    events.add(OutboundEvent.measurement(measurement, deviceToken, originator));
+	}
+	dispatch(events);
+    }
+
+    /**
+     * Send the samples of a single measurement taken over time. By default each
+     * sample is sent as a measurement event dated with its sample time.
+     * Dispatchers configured with a series topic publish the whole series as one
+     * {@link SeriesCodec} payload instead.
+     * 
+     * @param series
+     * @param deviceToken
+     * @param originator
+     * @throws SiteWhereAgentException
+     */
+    public default void sendMeasurementSeries(MeasurementSeries series, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	sendMeasurements(series.toMeasurements(), deviceToken, originator);
+    }
+
+    /**
+     * Send several events of any type in order. Dispatchers that can publish the
+     * events together should override this. By default each event is sent
+     * through the method for its type.
+     * 
+     * @param events
+     * @throws SiteWhereAgentException
+     */
+    public default void dispatch(List<OutboundEvent> events) throws SiteWhereAgentException {
+	for (OutboundEvent event : events) {
+	    event.sendTo(this);
+	}
+    }
 }
\ No newline at end of file
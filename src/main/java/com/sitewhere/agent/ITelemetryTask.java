@@ -0,0 +1,32 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+/**
+ * Periodic work run by the {@link TelemetryScheduler}, typically sampling a
+ * sensor and sending the readings to SiteWhere.
+ * 
+ * @author Derek
+ */
+public interface ITelemetryTask {
+
+    /**
+     * Run one cycle of the task.
+     * 
+     * @throws SiteWhereAgentException
+     */
+    public void run() throws SiteWhereAgentException;
+}
\ No newline at end of file
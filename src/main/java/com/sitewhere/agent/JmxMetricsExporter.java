@@ -0,0 +1,176 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes agent metrics as read-only attributes of a dynamic MBean. The
+ * attribute set follows the registry, so metrics created after the MBean is
+ * registered show up the next time its info is read.
+ * 
+ * @author Derek
+ */
+public class JmxMetricsExporter implements IMetricsExporter, DynamicMBean {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(JmxMetricsExporter.class.getName());
+
+    /** Domain for agent MBeans */
+    public static final String DOMAIN = "com.sitewhere.agent";
+
+    /** Distinguishes agents running in the same JVM */
+    private String agentName;
+
+    /** Metrics being exported */
+    private MetricsRegistry metrics;
+
+    /** Name under which MBean is registered */
+    private ObjectName objectName;
+
+    public JmxMetricsExporter(String agentName) {
+	this.agentName = agentName;
+    }
+
+    /*
+     * @see com.sitewhere.agent.IMetricsExporter#start(com.sitewhere.agent.
+     * MetricsRegistry)
+     */
+    @Override
+    public void start(MetricsRegistry metrics) throws SiteWhereAgentException {
+	this.metrics = metrics;
+	try {
+	    objectName = new ObjectName(DOMAIN + ":type=Metrics,name=" + ObjectName.quote(getAgentName()));
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    if (server.isRegistered(objectName)) {
+		server.unregisterMBean(objectName);
+	    }
+	    server.registerMBean(this, objectName);
+	    LOGGER.info("Exposing agent metrics over JMX as '" + objectName + "'.");
+	} catch (JMException e) {
+	    throw new SiteWhereAgentException("Unable to register metrics MBean.", e);
+	}
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+	if (objectName == null) {
+	    return;
+	}
+	try {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+	} catch (JMException e) {
+	    LOGGER.log(Level.FINE, "Metrics MBean was already unregistered.", e);
+	}
+    }
+
+    /*
+     * @see javax.management.DynamicMBean#getAttribute(java.lang.String)
+     */
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+	Number value = metrics.snapshot().get(attribute);
+	if (value == null) {
+	    throw new AttributeNotFoundException("No metric named '" + attribute + "'.");
+	}
+	return value;
+    }
+
+    /*
+     * @see javax.management.DynamicMBean#getAttributes(java.lang.String[])
+     */
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+	Map<String, Number> snapshot = metrics.snapshot();
+	AttributeList list = new AttributeList();
+	for (String attribute : attributes) {
+	    Number value = snapshot.get(attribute);
+	    if (value != null) {
+		list.add(new Attribute(attribute, value));
+	    }
+	}
+	return list;
+    }
+
+    /*
+     * @see javax.management.DynamicMBean#setAttribute(javax.management.Attribute)
+     */
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+	throw new AttributeNotFoundException("Metric attributes are read-only.");
+    }
+
+    /*
+     * @see javax.management.DynamicMBean#setAttributes(javax.management.
+     * AttributeList)
+     */
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+	return new AttributeList();
+    }
+
+    /*
+     * @see javax.management.DynamicMBean#invoke(java.lang.String,
+     * java.lang.Object[], java.lang.String[])
+     */
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+	    throws MBeanException, ReflectionException {
+	throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics MBean has no operations.");
+    }
+
+    /*
+     * @see javax.management.DynamicMBean#getMBeanInfo()
+     */
+    @Override
+    public MBeanInfo getMBeanInfo() {
+	List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+	for (Map.Entry<String, Number> entry : metrics.snapshot().entrySet()) {
+	    attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+		    entry.getKey(), true, false, false));
+	}
+	return new MBeanInfo(getClass().getName(), "SiteWhere agent metrics",
+		attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+
+    public String getAgentName() {
+	return agentName;
+    }
+
+    public ObjectName getObjectName() {
+	return objectName;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,353 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Store-and-forward publisher that writes every payload to an
+ * {@link OutboundJournal} before it is sent. Producers return as soon as the
+ * payload is journaled. A background thread drains the journal in order through
+ * the wrapped publisher, keeping as many publishes in flight as the wrapped
+ * publisher allows, and commits records as they are acknowledged. If a publish
+ * fails, draining backs off and resumes from the first unacknowledged record,
+ * so delivery is at-least-once. Draining pauses while the broker connection is
+ * down and resumes as soon as it is restored.
+ * 
+ * @author Derek
+ */
+public class JournalingPublisher implements IOutboundPublisher, IConnectionStateListener, Closeable {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(JournalingPublisher.class.getName());
+
+    /** Time in milliseconds between checkpoints of the committed position */
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+
+    /** Initial delay in milliseconds before retrying after a failure */
+    private static final long INITIAL_RETRY_DELAY_MS = 500;
+
+    /** Maximum delay in milliseconds before retrying after a failure */
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+
+    /** Publisher that delivers payloads to the broker */
+    private IOutboundPublisher delegate;
+
+    /** Journal holding undelivered payloads */
+    private OutboundJournal journal;
+
+    /** Records published but not yet committed, in journal order */
+    private Deque<InFlight> inFlight = new ArrayDeque<InFlight>();
+
+    /** Set when a publish fails so draining backs off */
+    private volatile boolean failed;
+
+    /** Set when a record is committed so retry backoff can be reset */
+    private volatile boolean progressed;
+
+    /** Set while the broker connection is down */
+    private volatile boolean paused;
+
+    /** Used to wake drain thread when connection is restored */
+    private Object resumed = new Object();
+
+    /** Indicates whether the drain thread should keep running */
+    private volatile boolean running;
+
+    /** Used to run drain loop in separate thread */
+    private ExecutorService executor = Executors
+	    .newSingleThreadExecutor(OrderedExecutor.createThreadFactory("sitewhere-journal-", false));
+
+    public JournalingPublisher(IOutboundPublisher delegate, OutboundJournal journal) {
+	this.delegate = delegate;
+	this.journal = journal;
+    }
+
+    /**
+     * Open the journal and start draining it.
+     * 
+     * @throws IOException
+     */
+    public void start() throws IOException {
+	journal.open();
+	running = true;
+	executor.execute(new Drainer());
+    }
+
+    /*
+     * @see com.sitewhere.agent.IOutboundPublisher#publish(java.lang.String, byte[],
+     * org.fusesource.mqtt.client.QoS, boolean)
+     */
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, QoS qos, boolean retain)
+	    throws InterruptedException {
+	CompletableFuture<Void> result = new CompletableFuture<Void>();
+	try {
+	    journal.append(encodeRecord(topic, payload, qos, retain));
+	    result.complete(null);
+	} catch (IOException e) {
+	    result.completeExceptionally(e);
+	}
+	return result;
+    }
+
+    /*
+     * @see com.sitewhere.agent.IConnectionStateListener#onConnected()
+     */
+    @Override
+    public void onConnected() {
+	synchronized (resumed) {
+	    paused = false;
+	    resumed.notifyAll();
+	}
+    }
+
+    /*
+     * @see
+     * com.sitewhere.agent.IConnectionStateListener#onDisconnected(java.lang.
+     * Throwable)
+     */
+    @Override
+    public void onDisconnected(Throwable cause) {
+	paused = true;
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	running = false;
+	executor.shutdownNow();
+	try {
+	    executor.awaitTermination(5, TimeUnit.SECONDS);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	journal.close();
+    }
+
+    /**
+     * Called when the broker acknowledges or rejects a journaled record. Commits
+     * all leading records that have been acknowledged.
+     * 
+     * @param record
+     * @param error
+     */
+    protected void onComplete(InFlight record, Throwable error) {
+	synchronized (inFlight) {
+	    record.done = true;
+	    record.error = error;
+	    while (!inFlight.isEmpty() && inFlight.peekFirst().done) {
+		InFlight head = inFlight.peekFirst();
+		if (head.error != null) {
+		    failed = true;
+		    break;
+		}
+		journal.commit(head.entry);
+		inFlight.removeFirst();
+		progressed = true;
+	    }
+	    inFlight.notifyAll();
+	}
+    }
+
+    /**
+     * Wait for outstanding publishes to finish, then rewind the journal to the
+     * first unacknowledged record.
+     * 
+     * @throws InterruptedException
+     */
+    protected void recover() throws InterruptedException {
+	synchronized (inFlight) {
+	    while (hasPending()) {
+		inFlight.wait();
+	    }
+	    inFlight.clear();
+	    journal.rewind();
+	    failed = false;
+	}
+    }
+
+    /**
+     * Indicates whether any in-flight publish has not completed.
+     * 
+     * @return
+     */
+    protected boolean hasPending() {
+	for (InFlight record : inFlight) {
+	    if (!record.done) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Encode topic, delivery options and payload as a journal record.
+     * 
+     * @param topic
+     * @param payload
+     * @param qos
+     * @param retain
+     * @return
+     */
+    protected static byte[] encodeRecord(String topic, byte[] payload, QoS qos, boolean retain) {
+	byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+	ByteBuffer buffer = ByteBuffer.allocate(4 + topicBytes.length + payload.length);
+	buffer.put((byte) qos.ordinal());
+	buffer.put((byte) (retain ? 1 : 0));
+	buffer.putShort((short) topicBytes.length);
+	buffer.put(topicBytes);
+	buffer.put(payload);
+	return buffer.array();
+    }
+
+    public IOutboundPublisher getDelegate() {
+	return delegate;
+    }
+
+    public OutboundJournal getJournal() {
+	return journal;
+    }
+
+    /**
+     * Journal record that has been handed to the delegate publisher.
+     * 
+     * @author Derek
+     */
+    protected static class InFlight {
+
+	/** Journal entry */
+	private OutboundJournal.Entry entry;
+
+	/** Indicates publish has completed */
+	private boolean done;
+
+	/** Error if publish failed */
+	private Throwable error;
+
+	public InFlight(OutboundJournal.Entry entry) {
+	    this.entry = entry;
+	}
+    }
+
+    /**
+     * Reads journal records in order and publishes them.
+     * 
+     * @author Derek
+     */
+    private class Drainer implements Runnable {
+
+	@Override
+	public void run() {
+	    LOGGER.info("Started outbound journal drain thread.");
+	    long lastCheckpoint = System.currentTimeMillis();
+	    long retryDelay = INITIAL_RETRY_DELAY_MS;
+	    while (running) {
+		try {
+		    if (failed) {
+			recover();
+			if (progressed) {
+			    retryDelay = INITIAL_RETRY_DELAY_MS;
+			    progressed = false;
+			}
+			if (!paused) {
+			    LOGGER.warning("Publish from outbound journal failed. Retrying in " + retryDelay + " ms.");
+			    Thread.sleep(retryDelay);
+			    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+			}
+			continue;
+		    }
+		    if (paused) {
+			synchronized (resumed) {
+			    if (paused) {
+				resumed.wait(CHECKPOINT_INTERVAL_MS);
+			    }
+			}
+			journal.checkpoint();
+			continue;
+		    }
+		    if (System.currentTimeMillis() - lastCheckpoint > CHECKPOINT_INTERVAL_MS) {
+			journal.checkpoint();
+			lastCheckpoint = System.currentTimeMillis();
+		    }
+		    OutboundJournal.Entry entry = journal.poll(CHECKPOINT_INTERVAL_MS);
+		    if (entry == null) {
+			continue;
+		    }
+		    publishEntry(entry);
+		} catch (InterruptedException e) {
+		    break;
+		} catch (Throwable e) {
+		    LOGGER.log(Level.SEVERE, "Exception draining outbound journal.", e);
+		    failed = true;
+		}
+	    }
+	    LOGGER.info("Stopped outbound journal drain thread.");
+	}
+
+	/**
+	 * Decode a journal record and hand it to the delegate publisher.
+	 * 
+	 * @param entry
+	 * @throws InterruptedException
+	 */
+	protected void publishEntry(OutboundJournal.Entry entry) throws InterruptedException {
+	    ByteBuffer buffer = ByteBuffer.wrap(entry.getBody());
+	    QoS qos = QoS.values()[buffer.get()];
+	    boolean retain = buffer.get() != 0;
+	    byte[] topicBytes = new byte[buffer.getShort()];
+	    buffer.get(topicBytes);
+	    String topic = new String(topicBytes, StandardCharsets.UTF_8);
+	    byte[] payload = Arrays.copyOfRange(entry.getBody(), buffer.position(), entry.getBody().length);
+
+	    final InFlight record = new InFlight(entry);
+	    synchronized (inFlight) {
+		inFlight.addLast(record);
+	    }
+	    CompletableFuture<Void> future;
+	    try {
+		future = getDelegate().publish(topic, payload, qos, retain);
+	    } catch (RuntimeException e) {
+		onComplete(record, e);
+		return;
+	    }
+	    future.whenComplete(new BiConsumer<Void, Throwable>() {
+
+		@Override
+		public void accept(Void result, Throwable error) {
+		    onComplete(record, error);
+		}
+	    });
+	}
+    }
+}
\ No newline at end of file
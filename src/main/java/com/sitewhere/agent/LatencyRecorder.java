@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records a distribution of durations in nanoseconds using log-linear buckets
+ * in the style of HdrHistogram. Values below twice the sub-bucket count are
+ * recorded exactly, and larger values fall into one of a fixed number of
+ * sub-buckets for each power of two, which bounds the relative error of any
+ * reported percentile to about three percent. Recording is lock-free and does
+ * not allocate.
+ * 
+ * @author Derek
+ */
+public class LatencyRecorder {
+
+    /** Number of bits used to index sub-buckets within a power of two */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /** Number of sub-buckets within a power of two */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /** Largest value that can be recorded (larger values are clamped) */
+    public static final long MAX_VALUE = TimeUnit.HOURS.toNanos(1);
+
+    /** Number of buckets needed to cover all values up to the maximum */
+    private static final int BUCKET_COUNT = getBucketIndex(MAX_VALUE) + 1;
+
+    /** Number of values recorded in each bucket */
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /** Total number of values recorded */
+    private LongAdder count = new LongAdder();
+
+    /** Sum of values recorded */
+    private LongAdder sum = new LongAdder();
+
+    /** Largest value recorded */
+    private AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration in nanoseconds.
+     * 
+     * @param nanos
+     */
+    public void record(long nanos) {
+	long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+	buckets.incrementAndGet(getBucketIndex(value));
+	count.increment();
+	sum.add(value);
+	long current;
+	while ((value > (current = max.get())) && !max.compareAndSet(current, value)) {
+	}
+    }
+
+    /**
+     * Record time elapsed since a start time taken from {@link System#nanoTime()}.
+     * 
+     * @param startNanos
+     */
+    public void recordSince(long startNanos) {
+	record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Get the value below which the given percentage of recorded values fall.
+     * The highest value that shares a bucket with the percentile is returned.
+     * 
+     * @param percentile
+     *            percentile between 0 and 100
+     * @return
+     */
+    public long getValueAtPercentile(double percentile) {
+	long[] counts = new long[BUCKET_COUNT];
+	long total = 0;
+	for (int i = 0; i < BUCKET_COUNT; i++) {
+	    counts[i] = buckets.get(i);
+	    total += counts[i];
+	}
+	if (total == 0) {
+	    return 0;
+	}
+	long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+	long seen = 0;
+	for (int i = 0; i < BUCKET_COUNT; i++) {
+	    seen += counts[i];
+	    if (seen >= target) {
+		return Math.min(getHighestValue(i), getMax());
+	    }
+	}
+	return getMax();
+    }
+
+    /**
+     * Get bucket holding a value. Values are shifted right until they fit in the
+     * sub-bucket range, and the shift selects the group of sub-buckets.
+     * 
+     * @param value
+     * @return
+     */
+    protected static int getBucketIndex(long value) {
+	if (value < (SUB_BUCKET_COUNT << 1)) {
+	    return (int) value;
+	}
+	int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+	return (SUB_BUCKET_COUNT * shift) + (int) (value >>> shift);
+    }
+
+    /**
+     * Get the highest value that falls into a bucket.
+     * 
+     * @param index
+     * @return
+     */
+    protected static long getHighestValue(int index) {
+	if (index < (SUB_BUCKET_COUNT << 1)) {
+	    return index;
+	}
+	int shift = (index / SUB_BUCKET_COUNT) - 1;
+	long subBucket = index - (SUB_BUCKET_COUNT * shift);
+	return ((subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+	return count.sum();
+    }
+
+    public long getSum() {
+	return sum.sum();
+    }
+
+    public long getMax() {
+	return max.get();
+    }
+
+    /**
+     * Get mean of recorded values.
+     * 
+     * @return
+     */
+    public double getMean() {
+	long total = getCount();
+	return (total == 0) ? 0 : (double) getSum() / total;
+    }
+}
\ No newline at end of file
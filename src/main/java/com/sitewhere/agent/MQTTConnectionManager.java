@@ -0,0 +1,566 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.mqtt.client.Callback;
+import org.fusesource.mqtt.client.CallbackConnection;
+import org.fusesource.mqtt.client.ExtendedListener;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.Message;
+import org.fusesource.mqtt.client.Promise;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.client.Topic;
+
+/**
+ * Manages the lifecycle of the MQTT connection. If the connection is lost, a
+ * new one is established after a jittered exponential backoff and inbound
+ * subscriptions are restored. Inbound messages from every connection are
+ * queued for {@link #receive()}. Interested parties can register an
+ * {@link IConnectionStateListener} to pause work while disconnected.
+ * 
+ * Inbound messages are acknowledged as they are taken from the queue, so for
+ * QoS 1 and 2 subscriptions the broker's in-flight window throttles delivery
+ * while the queue backs up. Reading from the socket is only suspended while
+ * the queue is full if enabled with {@link #setSuspendWhenFull(boolean)}. That
+ * must not be enabled when outbound events are published on the same
+ * connection, since a publisher waiting for an acknowledgement would never see
+ * it and the handler that drains the queue could stall behind the publisher.
+ * 
+ * When metrics are enabled, connection attempts and state changes are counted
+ * and each inbound message is stamped with the time it arrived.
+ * 
+ * The reconnect logic built into the MQTT client is disabled so that the
+ * manager controls backoff and resubscription.
+ * 
+ * @author Derek
+ */
+public class MQTTConnectionManager {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(MQTTConnectionManager.class.getName());
+
+    /** Default initial delay in milliseconds before reconnecting */
+    public static final long DEFAULT_RECONNECT_DELAY_MS = 1000;
+
+    /** Default maximum delay in milliseconds before reconnecting */
+    public static final long DEFAULT_RECONNECT_DELAY_MAX_MS = 60000;
+
+    /** Default number of inbound messages buffered before reading is suspended */
+    public static final int DEFAULT_RECEIVE_BUFFER = 1000;
+
+    /** Factor by which reconnect delay grows after each failed attempt */
+    private static final int BACKOFF_MULTIPLIER = 2;
+
+    /** Timeout in milliseconds for a clean disconnect */
+    private static final long DISCONNECT_TIMEOUT_MS = 5000;
+
+    /** MQTT client settings */
+    private MQTT mqtt;
+
+    /** Topics subscribed on every connection */
+    private Topic[] subscriptions = new Topic[0];
+
+    /** Initial delay in milliseconds before reconnecting */
+    private long reconnectDelayMs = DEFAULT_RECONNECT_DELAY_MS;
+
+    /** Maximum delay in milliseconds before reconnecting */
+    private long reconnectDelayMaxMs = DEFAULT_RECONNECT_DELAY_MAX_MS;
+
+    /** Number of inbound messages buffered before reading is suspended */
+    private int receiveBuffer = DEFAULT_RECEIVE_BUFFER;
+
+    /** Indicates whether reading is suspended while the inbound queue is full */
+    private boolean suspendWhenFull;
+
+    /** Listeners notified of connection state changes */
+    private List<IConnectionStateListener> listeners = new CopyOnWriteArrayList<IConnectionStateListener>();
+
+    /** Inbound messages waiting to be processed */
+    private LinkedBlockingQueue<ReceivedMessage> received = new LinkedBlockingQueue<ReceivedMessage>();
+
+    /** Metrics for connection state */
+    private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+    /** Current connection */
+    private volatile CallbackConnection connection;
+
+    /** Indicates whether current connection is established */
+    private volatile boolean connected;
+
+    /** Indicates whether reading from current connection is suspended */
+    private volatile boolean suspended;
+
+    /** Indicates whether manager should keep connection alive */
+    private volatile boolean running;
+
+    /** Number of consecutive failed connection attempts */
+    private int attempts;
+
+    /** Used to schedule reconnect attempts */
+    private ScheduledExecutorService timer = Executors
+	    .newSingleThreadScheduledExecutor(OrderedExecutor.createThreadFactory("sitewhere-reconnect-", false));
+
+    /** Used to add jitter to reconnect delay */
+    private Random random = new Random();
+
+    public MQTTConnectionManager(MQTT mqtt) {
+	this.mqtt = mqtt;
+	mqtt.setConnectAttemptsMax(1);
+	mqtt.setReconnectAttemptsMax(0);
+    }
+
+    /**
+     * Establish the initial connection, waiting until it is connected and
+     * subscribed. Later losses of the connection are recovered automatically.
+     * 
+     * @throws SiteWhereAgentException
+     */
+    public void connect() throws SiteWhereAgentException {
+	running = true;
+	Promise<Void> initial = new Promise<Void>();
+	attempt(initial);
+	try {
+	    initial.await();
+	} catch (Exception e) {
+	    running = false;
+	    throw new SiteWhereAgentException("Unable to establish MQTT connection.", e);
+	}
+    }
+
+    /**
+     * Start connecting without waiting for the connection. Unlike
+     * {@link #connect()}, a failed first attempt is retried with the usual
+     * backoff rather than reported.
+     * 
+     * @return future completed once the first connection is established and
+     *         subscribed
+     */
+    public CompletableFuture<Void> connectAsync() {
+	final CompletableFuture<Void> established = new CompletableFuture<Void>();
+	addListener(new IConnectionStateListener() {
+
+	    @Override
+	    public void onConnected() {
+		removeListener(this);
+		established.complete(null);
+	    }
+
+	    @Override
+	    public void onDisconnected(Throwable cause) {
+	    }
+	});
+	running = true;
+	attempt(null);
+	return established;
+    }
+
+    /**
+     * Disconnect from the broker and stop reconnecting.
+     */
+    public void disconnect() {
+	running = false;
+	timer.shutdownNow();
+	final CallbackConnection current = connection;
+	connected = false;
+	if (current == null) {
+	    return;
+	}
+	final Promise<Void> done = new Promise<Void>();
+	current.getDispatchQueue().execute(new Runnable() {
+
+	    @Override
+	    public void run() {
+		current.disconnect(done);
+	    }
+	});
+	try {
+	    done.await(DISCONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	    LOGGER.info("Disconnected from MQTT broker.");
+	} catch (Exception e) {
+	    LOGGER.log(Level.WARNING, "Exception disconnecting from MQTT broker.", e);
+	}
+    }
+
+    /**
+     * Publish a payload on the current connection. Fails immediately if not
+     * connected.
+     * 
+     * @param topic
+     * @param payload
+     * @param qos
+     * @param retain
+     * @param callback
+     */
+    public void publish(final UTF8Buffer topic, final Buffer payload, final QoS qos, final boolean retain,
+	    final Callback<Void> callback) {
+	final CallbackConnection current = connection;
+	if ((current == null) || !connected) {
+	    callback.onFailure(new IllegalStateException("Not connected to MQTT broker."));
+	    return;
+	}
+	current.getDispatchQueue().execute(new Runnable() {
+
+	    @Override
+	    public void run() {
+		current.publish(topic, payload, qos, retain, callback);
+	    }
+	});
+    }
+
+    /**
+     * Wait for the next inbound message.
+     * 
+     * @return
+     * @throws InterruptedException
+     */
+    public ReceivedMessage receive() throws InterruptedException {
+	ReceivedMessage message = received.take();
+	if (suspended && (received.size() <= receiveBuffer / 2)) {
+	    final CallbackConnection current = connection;
+	    suspended = false;
+	    if (current != null) {
+		current.getDispatchQueue().execute(new Runnable() {
+
+		    @Override
+		    public void run() {
+			current.resume();
+		    }
+		});
+	    }
+	}
+	return message;
+    }
+
+    /**
+     * Start a connection attempt.
+     * 
+     * @param initial
+     *            promise for initial connection or null if reconnecting
+     */
+    protected void attempt(final Promise<Void> initial) {
+	if (!running) {
+	    return;
+	}
+	final CallbackConnection candidate = mqtt.callbackConnection();
+	connection = candidate;
+	candidate.listener(new ConnectionListener(candidate));
+	candidate.getDispatchQueue().execute(new Runnable() {
+
+	    @Override
+	    public void run() {
+		candidate.connect(new Callback<Void>() {
+
+		    @Override
+		    public void onSuccess(Void value) {
+			subscribe(candidate, initial);
+		    }
+
+		    @Override
+		    public void onFailure(Throwable error) {
+			handleFailure(candidate, error, initial);
+		    }
+		});
+	    }
+	});
+    }
+
+    /**
+     * Restore inbound subscriptions on a newly established connection.
+     * 
+     * @param candidate
+     * @param initial
+     */
+    protected void subscribe(final CallbackConnection candidate, final Promise<Void> initial) {
+	if (subscriptions.length == 0) {
+	    handleEstablished(candidate, initial);
+	    return;
+	}
+	candidate.subscribe(subscriptions, new Callback<byte[]>() {
+
+	    @Override
+	    public void onSuccess(byte[] value) {
+		handleEstablished(candidate, initial);
+	    }
+
+	    @Override
+	    public void onFailure(Throwable error) {
+		handleFailure(candidate, error, initial);
+	    }
+	});
+    }
+
+    /**
+     * Called once a connection is established and subscribed.
+     * 
+     * @param candidate
+     * @param initial
+     */
+    protected void handleEstablished(CallbackConnection candidate, Promise<Void> initial) {
+	if (candidate != connection) {
+	    return;
+	}
+	attempts = 0;
+	connected = true;
+	metrics.counter("connection.established").increment();
+	if (suspended) {
+	    candidate.suspend();
+	}
+	LOGGER.info("Connected to MQTT broker at '" + mqtt.getHost() + "'.");
+	if (initial != null) {
+	    initial.onSuccess(null);
+	}
+	for (IConnectionStateListener listener : listeners) {
+	    listener.onConnected();
+	}
+    }
+
+    /**
+     * Called when a connection attempt fails or an established connection is
+     * lost.
+     * 
+     * @param candidate
+     * @param error
+     * @param initial
+     */
+    protected void handleFailure(CallbackConnection candidate, Throwable error, Promise<Void> initial) {
+	if (candidate != connection) {
+	    return;
+	}
+	boolean wasConnected = connected;
+	connected = false;
+	if (candidate.transport() != null) {
+	    candidate.kill(new Callback<Void>() {
+
+		@Override
+		public void onSuccess(Void value) {
+		}
+
+		@Override
+		public void onFailure(Throwable error) {
+		}
+	    });
+	}
+	metrics.counter(wasConnected ? "connection.lost" : "connection.failed").increment();
+	if (initial != null) {
+	    initial.onFailure(error);
+	    return;
+	}
+	if (wasConnected) {
+	    LOGGER.log(Level.WARNING, "Lost connection to MQTT broker.", error);
+	    for (IConnectionStateListener listener : listeners) {
+		listener.onDisconnected(error);
+	    }
+	}
+	scheduleReconnect();
+    }
+
+    /**
+     * Schedule a reconnect attempt after a jittered exponential backoff.
+     */
+    protected void scheduleReconnect() {
+	if (!running) {
+	    return;
+	}
+	long delay = getNextReconnectDelay();
+	LOGGER.info("Reconnecting to MQTT broker in " + delay + " ms.");
+	try {
+	    timer.schedule(new Runnable() {
+
+		@Override
+		public void run() {
+		    attempt(null);
+		}
+	    }, delay, TimeUnit.MILLISECONDS);
+	} catch (RuntimeException e) {
+	    LOGGER.log(Level.FINE, "Reconnect not scheduled since manager is stopping.", e);
+	}
+    }
+
+    /**
+     * Compute next reconnect delay. The delay doubles with each failed attempt up
+     * to the maximum, and a random amount of up to half the delay is subtracted so
+     * that many agents do not reconnect in lockstep.
+     * 
+     * @return
+     */
+    protected long getNextReconnectDelay() {
+	double exponential = reconnectDelayMs * Math.pow(BACKOFF_MULTIPLIER, Math.min(attempts, 30));
+	long delay = (long) Math.min(exponential, reconnectDelayMaxMs);
+	attempts++;
+	return delay - (long) (random.nextDouble() * (delay / 2));
+    }
+
+    public void addListener(IConnectionStateListener listener) {
+	listeners.add(listener);
+    }
+
+    public void removeListener(IConnectionStateListener listener) {
+	listeners.remove(listener);
+    }
+
+    public boolean isConnected() {
+	return connected;
+    }
+
+    /**
+     * Get number of inbound messages waiting to be processed.
+     * 
+     * @return
+     */
+    public int getReceivedCount() {
+	return received.size();
+    }
+
+    public MQTT getMqtt() {
+	return mqtt;
+    }
+
+    public Topic[] getSubscriptions() {
+	return subscriptions;
+    }
+
+    public void setSubscriptions(Topic... subscriptions) {
+	this.subscriptions = subscriptions;
+    }
+
+    public long getReconnectDelayMs() {
+	return reconnectDelayMs;
+    }
+
+    public void setReconnectDelayMs(long reconnectDelayMs) {
+	this.reconnectDelayMs = reconnectDelayMs;
+    }
+
+    public long getReconnectDelayMaxMs() {
+	return reconnectDelayMaxMs;
+    }
+
+    public void setReconnectDelayMaxMs(long reconnectDelayMaxMs) {
+	this.reconnectDelayMaxMs = reconnectDelayMaxMs;
+    }
+
+    public int getReceiveBuffer() {
+	return receiveBuffer;
+    }
+
+    public void setReceiveBuffer(int receiveBuffer) {
+	this.receiveBuffer = receiveBuffer;
+    }
+
+    public boolean isSuspendWhenFull() {
+	return suspendWhenFull;
+    }
+
+    public void setSuspendWhenFull(boolean suspendWhenFull) {
+	this.suspendWhenFull = suspendWhenFull;
+    }
+
+    public MetricsRegistry getMetrics() {
+	return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry metrics) {
+	this.metrics = metrics;
+    }
+
+    /**
+     * Inbound message along with the time it arrived from the broker.
+     * 
+     * @author Derek
+     */
+    public static class ReceivedMessage extends Message {
+
+	/** Value of {@link System#nanoTime()} on arrival, or zero if not recorded */
+	private long receivedNanos;
+
+	public ReceivedMessage(DispatchQueue queue, UTF8Buffer topic, Buffer payload,
+		Callback<Callback<Void>> onComplete, long receivedNanos) {
+	    super(queue, topic, payload, onComplete);
+	    this.receivedNanos = receivedNanos;
+	}
+
+	public long getReceivedNanos() {
+	    return receivedNanos;
+	}
+    }
+
+    /**
+     * Listens for events on a single connection.
+     * 
+     * @author Derek
+     */
+    private class ConnectionListener implements ExtendedListener {
+
+	/** Connection being listened to */
+	private CallbackConnection owner;
+
+	public ConnectionListener(CallbackConnection owner) {
+	    this.owner = owner;
+	}
+
+	@Override
+	public void onConnected() {
+	}
+
+	@Override
+	public void onDisconnected() {
+	}
+
+	@Override
+	public void onPublish(UTF8Buffer topic, Buffer body, Callback<Callback<Void>> ack) {
+	    long now = metrics.isEnabled() ? System.nanoTime() : 0;
+	    received.add(new ReceivedMessage(owner.getDispatchQueue(), topic, body, ack, now));
+	    if (suspendWhenFull && !suspended && (received.size() >= receiveBuffer)) {
+		suspended = true;
+		owner.suspend();
+	    }
+	}
+
+	@Override
+	public void onPublish(UTF8Buffer topic, Buffer body, final Runnable ack) {
+	    onPublish(topic, body, new Callback<Callback<Void>>() {
+
+		@Override
+		public void onSuccess(Callback<Void> value) {
+		    ack.run();
+		}
+
+		@Override
+		public void onFailure(Throwable error) {
+		}
+	    });
+	}
+
+	@Override
+	public void onFailure(Throwable error) {
+	    handleFailure(owner, error, null);
+	}
+    }
+}
\ No newline at end of file
@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.mqtt.client.Callback;
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Pipelined MQTT publisher built on the non-blocking callback API of the
+ * connection held by an {@link MQTTConnectionManager}. Up to a configurable
+ * number of publishes may be in flight at once, so the QoS handshake for one
+ * message overlaps with the transmission of others.
+ * Callers that exceed the window block until an outstanding publish completes.
+ * 
+ * Note that {@link #publish(String, byte[], QoS, boolean)} must not be called
+ * from the MQTT dispatch queue since waiting for the window would stall the
+ * acknowledgements that free it.
+ * 
+ * @author Derek
+ */
+public class MQTTPublisher implements IOutboundPublisher {
+
+    /** Default number of publishes allowed in flight */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    /** MQTT connection */
+    private MQTTConnectionManager connection;
+
+    /** Maximum number of publishes in flight */
+    private int maxInFlight;
+
+    /** Permits for in-flight publishes */
+    private Semaphore window;
+
+    public MQTTPublisher(MQTTConnectionManager connection) {
+	this(connection, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public MQTTPublisher(MQTTConnectionManager connection, int maxInFlight) {
+	if (maxInFlight < 1) {
+	    throw new IllegalArgumentException("In-flight window must allow at least one publish.");
+	}
+	this.connection = connection;
+	this.maxInFlight = maxInFlight;
+	this.window = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Publish a payload without waiting for the broker to acknowledge it. Blocks
+     * only if the in-flight window is full.
+     * 
+     * @param topic
+     * @param payload
+     * @param qos
+     * @param retain
+     * @return future completed once the QoS handshake for the message finishes
+     * @throws InterruptedException
+     */
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, QoS qos, boolean retain)
+	    throws InterruptedException {
+	window.acquire();
+	final CompletableFuture<Void> result = new CompletableFuture<Void>();
+	try {
+	    getConnection().publish(new UTF8Buffer(topic), new Buffer(payload), qos, retain, new Callback<Void>() {
+
+		@Override
+		public void onSuccess(Void value) {
+		    window.release();
+		    result.complete(null);
+		}
+
+		@Override
+		public void onFailure(Throwable error) {
+		    window.release();
+		    result.completeExceptionally(error);
+		}
+	    });
+	} catch (RuntimeException e) {
+	    window.release();
+	    throw e;
+	}
+	return result;
+    }
+
+    /**
+     * Get number of publishes currently awaiting acknowledgement.
+     * 
+     * @return
+     */
+    public int getInFlightCount() {
+	return maxInFlight - window.availablePermits();
+    }
+
+    public MQTTConnectionManager getConnection() {
+	return connection;
+    }
+
+    public int getMaxInFlight() {
+	return maxInFlight;
+    }
+}
\ No newline at end of file
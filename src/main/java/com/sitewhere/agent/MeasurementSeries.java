@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Samples taken for a single measurement name, each with the time in
+ * milliseconds it was taken. Used to send many samples of a high-rate sensor
+ * in one call without repeating the name for each of them.
+ * 
+ * @author Derek
+ */
+public class MeasurementSeries {
+
+    /** Number of samples a series holds before growing */
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /** Measurement name shared by all samples */
+    private String name;
+
+    /** Sample times in milliseconds */
+    private long[] times;
+
+    /** Sample values */
+    private double[] values;
+
+    /** Number of samples added */
+    private int size;
+
+    public MeasurementSeries(String name) {
+	this(name, DEFAULT_CAPACITY);
+    }
+
+    public MeasurementSeries(String name, int capacity) {
+	this.name = name;
+	this.times = new long[Math.max(1, capacity)];
+	this.values = new double[this.times.length];
+    }
+
+    /**
+     * Add a sample to the end of the series.
+     * 
+     * @param time
+     * @param value
+     */
+    public void add(long time, double value) {
+	if (size == times.length) {
+	    times = Arrays.copyOf(times, size * 2);
+	    values = Arrays.copyOf(values, size * 2);
+	}
+	times[size] = time;
+	values[size] = value;
+	size++;
+    }
+
+    /**
+     * Remove all samples so the series can be reused.
+     */
+    public void clear() {
+	size = 0;
+    }
+
+    /**
+     * Create a measurement event for each sample, carrying its sample time as the
+     * event date.
+     * 
+     * @return
+     */
+    public List<DeviceMeasurement> toMeasurements() {
+	List<DeviceMeasurement> measurements = new ArrayList<DeviceMeasurement>(size);
+	GOptionalString measurementName = GOptionalString.newBuilder().setValue(getName()).build();
+	for (int i = 0; i < size; i++) {
+	    measurements.add(DeviceMeasurement.newBuilder().setMeasurementName(measurementName)
+		    .setMeasurementValue(GOptionalDouble.newBuilder().setValue(values[i]))
+		    .setEventDate(GOptionalFixed64.newBuilder().setValue(times[i])).build());
+	}
+	return measurements;
+    }
+
+    public String getName() {
+	return name;
+    }
+
+    public int size() {
+	return size;
+    }
+
+    public long getTime(int index) {
+	if (index >= size) {
+	    throw new IndexOutOfBoundsException("Sample " + index + " of " + size);
+	}
+	return times[index];
+    }
+
+    public double getValue(int index) {
+	if (index >= size) {
+	    throw new IndexOutOfBoundsException("Sample " + index + " of " + size);
+	}
+	return values[index];
+    }
+}
\ No newline at end of file
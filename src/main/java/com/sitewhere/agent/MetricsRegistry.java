@@ -0,0 +1,321 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds counters, latency recorders and gauges for the agent. Metrics are
+ * grouped into families by name, and a family may have a single label whose
+ * values distinguish its members (for instance the event type of a publish).
+ * Lookups by name and label value do not allocate once the member exists.
+ * 
+ * When the registry is disabled, lookups return shared instruments that are
+ * never exported, and instrumented code checks {@link #isEnabled()} before
+ * reading the clock, so metrics cost next to nothing unless turned on.
+ * 
+ * @author Derek
+ */
+public class MetricsRegistry {
+
+    /** Registry used when metrics are turned off */
+    public static final MetricsRegistry DISABLED = new MetricsRegistry(false);
+
+    /** Percentiles reported for latency recorders */
+    public static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    /** Member key used for metrics without a label */
+    private static final String UNLABELED = "";
+
+    /** Counter handed out while disabled */
+    private static final Counter DETACHED_COUNTER = new Counter();
+
+    /** Recorder handed out while disabled */
+    private static final LatencyRecorder DETACHED_RECORDER = new LatencyRecorder();
+
+    /** Indicates whether metrics are collected */
+    private boolean enabled;
+
+    /** Metric families indexed by name */
+    private ConcurrentMap<String, Family> families = new ConcurrentHashMap<String, Family>();
+
+    public MetricsRegistry() {
+	this(true);
+    }
+
+    public MetricsRegistry(boolean enabled) {
+	this.enabled = enabled;
+    }
+
+    /**
+     * Get or create a counter.
+     * 
+     * @param name
+     * @return
+     */
+    public Counter counter(String name) {
+	return counter(name, null, null);
+    }
+
+    /**
+     * Get or create the member of a labeled counter family.
+     * 
+     * @param name
+     * @param label
+     * @param value
+     * @return
+     */
+    public Counter counter(String name, String label, String value) {
+	if (!isEnabled()) {
+	    return DETACHED_COUNTER;
+	}
+	Family family = getFamily(name, label, Counter.class);
+	Object metric = family.getMembers().get(key(value));
+	if (metric == null) {
+	    Counter created = new Counter();
+	    metric = family.getMembers().putIfAbsent(key(value), created);
+	    return (metric == null) ? created : (Counter) metric;
+	}
+	return (Counter) metric;
+    }
+
+    /**
+     * Get or create a latency recorder.
+     * 
+     * @param name
+     * @return
+     */
+    public LatencyRecorder recorder(String name) {
+	return recorder(name, null, null);
+    }
+
+    /**
+     * Get or create the member of a labeled latency recorder family.
+     * 
+     * @param name
+     * @param label
+     * @param value
+     * @return
+     */
+    public LatencyRecorder recorder(String name, String label, String value) {
+	if (!isEnabled()) {
+	    return DETACHED_RECORDER;
+	}
+	Family family = getFamily(name, label, LatencyRecorder.class);
+	Object metric = family.getMembers().get(key(value));
+	if (metric == null) {
+	    LatencyRecorder created = new LatencyRecorder();
+	    metric = family.getMembers().putIfAbsent(key(value), created);
+	    return (metric == null) ? created : (LatencyRecorder) metric;
+	}
+	return (LatencyRecorder) metric;
+    }
+
+    /**
+     * Register a gauge, replacing any existing gauge with the same name.
+     * 
+     * @param name
+     * @param gauge
+     */
+    public void gauge(String name, IGauge gauge) {
+	gauge(name, null, null, gauge);
+    }
+
+    /**
+     * Register the member of a labeled gauge family.
+     * 
+     * @param name
+     * @param label
+     * @param value
+     * @param gauge
+     */
+    public void gauge(String name, String label, String value, IGauge gauge) {
+	if (isEnabled()) {
+	    getFamily(name, label, IGauge.class).getMembers().put(key(value), gauge);
+	}
+    }
+
+    /**
+     * Get family for a metric name, creating it if necessary.
+     * 
+     * @param name
+     * @param label
+     * @param type
+     * @return
+     */
+    protected Family getFamily(String name, String label, Class<?> type) {
+	Family family = families.get(name);
+	if (family == null) {
+	    Family created = new Family(name, label, type);
+	    family = families.putIfAbsent(name, created);
+	    if (family == null) {
+		return created;
+	    }
+	}
+	if (family.getType() != type) {
+	    throw new IllegalArgumentException("Metric '" + name + "' is already registered as a "
+		    + family.getType().getSimpleName() + ".");
+	}
+	return family;
+    }
+
+    /**
+     * Get member key for a label value.
+     * 
+     * @param value
+     * @return
+     */
+    protected static String key(String value) {
+	return (value == null) ? UNLABELED : value;
+    }
+
+    /**
+     * Get families sorted by name.
+     * 
+     * @return
+     */
+    public Map<String, Family> getFamilies() {
+	return new TreeMap<String, Family>(families);
+    }
+
+    /**
+     * Get current values flattened into a map keyed by metric name, with the
+     * label value and statistic appended for labeled metrics and recorders.
+     * Latencies are reported in milliseconds.
+     * 
+     * @return
+     */
+    public Map<String, Number> snapshot() {
+	Map<String, Number> values = new TreeMap<String, Number>();
+	for (Family family : families.values()) {
+	    for (Map.Entry<String, Object> member : family.getMembers().entrySet()) {
+		String name = member.getKey().isEmpty() ? family.getName() : family.getName() + "." + member.getKey();
+		Object metric = member.getValue();
+		if (metric instanceof Counter) {
+		    values.put(name, ((Counter) metric).getCount());
+		} else if (metric instanceof IGauge) {
+		    values.put(name, ((IGauge) metric).getValue());
+		} else if (metric instanceof LatencyRecorder) {
+		    LatencyRecorder recorder = (LatencyRecorder) metric;
+		    values.put(name + ".count", recorder.getCount());
+		    values.put(name + ".mean", toMillis(recorder.getMean()));
+		    values.put(name + ".max", toMillis(recorder.getMax()));
+		    for (double percentile : PERCENTILES) {
+			values.put(name + ".p" + formatPercentile(percentile),
+				toMillis(recorder.getValueAtPercentile(percentile)));
+		    }
+		}
+	    }
+	}
+	return values;
+    }
+
+    /**
+     * Format a percentile for use in a metric name (99.9 becomes 999).
+     * 
+     * @param percentile
+     * @return
+     */
+    protected static String formatPercentile(double percentile) {
+	String value = (percentile == Math.rint(percentile)) ? String.valueOf((long) percentile)
+		: String.valueOf(percentile);
+	return value.replace(".", "");
+    }
+
+    /**
+     * Convert nanoseconds to milliseconds.
+     * 
+     * @param nanos
+     * @return
+     */
+    protected static double toMillis(double nanos) {
+	return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * Monotonically increasing count.
+     * 
+     * @author Derek
+     */
+    public static class Counter {
+
+	/** Current count */
+	private LongAdder count = new LongAdder();
+
+	public void increment() {
+	    count.increment();
+	}
+
+	public void add(long amount) {
+	    count.add(amount);
+	}
+
+	public long getCount() {
+	    return count.sum();
+	}
+    }
+
+    /**
+     * Metrics sharing a name and type.
+     * 
+     * @author Derek
+     */
+    public static class Family {
+
+	/** Metric name */
+	private String name;
+
+	/** Name of label distinguishing members, or null if unlabeled */
+	private String label;
+
+	/** Type of members */
+	private Class<?> type;
+
+	/** Members indexed by label value */
+	private ConcurrentMap<String, Object> members = new ConcurrentHashMap<String, Object>();
+
+	public Family(String name, String label, Class<?> type) {
+	    this.name = name;
+	    this.label = label;
+	    this.type = type;
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	public String getLabel() {
+	    return label;
+	}
+
+	public Class<?> getType() {
+	    return type;
+	}
+
+	public ConcurrentMap<String, Object> getMembers() {
+	    return members;
+	}
+    }
+}
\ No newline at end of file
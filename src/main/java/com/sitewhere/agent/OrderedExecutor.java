@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes tasks on a fixed number of lanes, each with its own worker thread
+ * and bounded queue. Tasks submitted with the same key always run on the same
+ * lane, so they execute one at a time in submission order while tasks for
+ * other keys run in parallel. Submitting to a full lane blocks the caller,
+ * which pushes back on whatever is producing the tasks.
+ * 
+ * Worker threads may optionally be virtual threads when running on a JDK that
+ * supports them.
+ * 
+ * @author Derek
+ */
+public class OrderedExecutor implements Closeable {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(OrderedExecutor.class.getName());
+
+    /** Default number of tasks queued per lane */
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+
+    /** Queues of pending tasks for each lane */
+    private BlockingQueue<Runnable>[] queues;
+
+    /** Worker threads for each lane */
+    private Thread[] workers;
+
+    /** Indicates whether workers should keep running */
+    private volatile boolean running = true;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public OrderedExecutor(int lanes, int queueSize, ThreadFactory factory) {
+	if (lanes < 1) {
+	    throw new IllegalArgumentException("Executor must have at least one lane.");
+	}
+	this.queues = new BlockingQueue[lanes];
+	this.workers = new Thread[lanes];
+	for (int i = 0; i < lanes; i++) {
+	    queues[i] = new ArrayBlockingQueue<Runnable>(queueSize);
+	    workers[i] = factory.newThread(new Worker(queues[i]));
+	    workers[i].start();
+	}
+    }
+
+    /**
+     * Queue a task on the lane for the given key, waiting if the lane is full.
+     * 
+     * @param key
+     * @param task
+     * @throws InterruptedException
+     */
+    public void execute(Object key, Runnable task) throws InterruptedException {
+	if (!running) {
+	    throw new IllegalStateException("Executor has been closed.");
+	}
+	queues[getLane(key)].put(task);
+    }
+
+    /**
+     * Get lane index for a key. Hash bits are spread so that keys with similar
+     * hash codes do not pile onto the same lane.
+     * 
+     * @param key
+     * @return
+     */
+    protected int getLane(Object key) {
+	int hash = key.hashCode();
+	hash ^= (hash >>> 16);
+	return (hash & Integer.MAX_VALUE) % queues.length;
+    }
+
+    /**
+     * Get number of tasks waiting across all lanes.
+     * 
+     * @return
+     */
+    public int getQueuedCount() {
+	int count = 0;
+	for (BlockingQueue<Runnable> queue : queues) {
+	    count += queue.size();
+	}
+	return count;
+    }
+
+    /**
+     * Get number of lanes.
+     * 
+     * @return
+     */
+    public int getLaneCount() {
+	return queues.length;
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+	running = false;
+	for (Thread worker : workers) {
+	    worker.interrupt();
+	}
+    }
+
+    /**
+     * Create a factory for worker threads. If virtual threads are requested but
+     * not supported by the JDK, platform threads are used instead.
+     * 
+     * @param prefix
+     * @param virtual
+     * @return
+     */
+    public static ThreadFactory createThreadFactory(final String prefix, boolean virtual) {
+	if (virtual) {
+	    try {
+		Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+		Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+		builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+		return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+	    } catch (Exception e) {
+		LOGGER.warning("Virtual threads are not supported by this JDK. Using platform threads.");
+	    }
+	}
+	return new ThreadFactory() {
+
+	    /** Counter used to name threads */
+	    private AtomicInteger counter = new AtomicInteger();
+
+	    @Override
+	    public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, prefix + counter.getAndIncrement());
+		thread.setDaemon(true);
+		return thread;
+	    }
+	};
+    }
+
+    /**
+     * Runs tasks from a single lane in order.
+     * 
+     * @author Derek
+     */
+    private class Worker implements Runnable {
+
+	/** Queue for lane */
+	private BlockingQueue<Runnable> queue;
+
+	public Worker(BlockingQueue<Runnable> queue) {
+	    this.queue = queue;
+	}
+
+	@Override
+	public void run() {
+	    while (running) {
+		Runnable task;
+		try {
+		    task = queue.take();
+		} catch (InterruptedException e) {
+		    break;
+		}
+		try {
+		    task.run();
+		} catch (Throwable e) {
+		    LOGGER.log(Level.SEVERE, "Unhandled exception in ordered task.", e);
+		}
+	    }
+	}
+    }
+}
\ No newline at end of file
@@ -0,0 +1,198 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.google.protobuf.GeneratedMessageV3;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAcknowledge;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAlert;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceLocation;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceRegistrationRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamDataRequest;
+
+/**
+ * An event waiting to be sent to SiteWhere, along with the command that
+ * identifies its type and the device it belongs to. Used to pass several events
+ * of any type to a dispatcher in one call.
+ * 
+ * @author Derek
+ */
+public class OutboundEvent {
+
+    /** Command identifying type of event */
+    private Command command;
+
+    /** Event message */
+    private GeneratedMessageV3 message;
+
+    /** Token of device the event belongs to */
+    private String deviceToken;
+
+    /** Id of the event that caused this one (may be null) */
+    private String originator;
+
+    protected OutboundEvent(Command command, GeneratedMessageV3 message, String deviceToken, String originator) {
+	this.command = command;
+	this.message = message;
+	this.deviceToken = deviceToken;
+	this.originator = originator;
+    }
+
+    public static OutboundEvent registration(DeviceRegistrationRequest register, String deviceToken,
+	    String originator) {
+	return new OutboundEvent(Command.SendRegistration, register, deviceToken, originator);
+    }
+
+    public static OutboundEvent acknowledge(DeviceAcknowledge ack, String deviceToken, String originator) {
+	return new OutboundEvent(Command.SendAcknowledgement, ack, deviceToken, originator);
+    }
+
+    public static OutboundEvent measurement(DeviceMeasurement measurement, String deviceToken, String originator) {
+	return new OutboundEvent(Command.SendMeasurement, measurement, deviceToken, originator);
+    }
+
+    public static OutboundEvent location(DeviceLocation location, String deviceToken, String originator) {
+	return new OutboundEvent(Command.SendLocation, location, deviceToken, originator);
+    }
+
+    public static OutboundEvent alert(DeviceAlert alert, String deviceToken, String originator) {
+	return new OutboundEvent(Command.SendAlert, alert, deviceToken, originator);
+    }
+
+    public static OutboundEvent stream(DeviceStream stream, String deviceToken, String originator) {
+	return new OutboundEvent(Command.SendDeviceStream, stream, deviceToken, originator);
+    }
+
+    public static OutboundEvent streamData(DeviceStreamData data, String deviceToken, String originator) {
+	return new OutboundEvent(Command.SendDeviceStreamData, data, deviceToken, originator);
+    }
+
+    public static OutboundEvent streamRequest(DeviceStreamDataRequest request, String deviceToken,
+	    String originator) {
+	return new OutboundEvent(Command.RequestDeviceStreamData, request, deviceToken, originator);
+    }
+
+    /**
+     * Send the event through the dispatcher method for its type.
+     * 
+     * @param dispatcher
+     * @throws SiteWhereAgentException
+     */
+    public void sendTo(ISiteWhereEventDispatcher dispatcher) throws SiteWhereAgentException {
+	switch (getCommand()) {
+	case SendRegistration: {
+	    dispatcher.registerDevice((DeviceRegistrationRequest) getMessage(), getDeviceToken(), getOriginator());
+	    break;
+	}
+	case SendAcknowledgement: {
+	    dispatcher.acknowledge((DeviceAcknowledge) getMessage(), getDeviceToken(), getOriginator());
+	    break;
+	}
+	case SendMeasurement: {
+	    dispatcher.sendMeasurement((DeviceMeasurement) getMessage(), getDeviceToken(), getOriginator());
+	    break;
+	}
+	case SendLocation: {
+	    dispatcher.sendLocation((DeviceLocation) getMessage(), getDeviceToken(), getOriginator());
+	    break;
+	}
+	case SendAlert: {
+	    dispatcher.sendAlert((DeviceAlert) getMessage(), getDeviceToken(), getOriginator());
+	    break;
+	}
+	case SendDeviceStream: {
+	    dispatcher.createDeviceStream((DeviceStream) getMessage(), getDeviceToken(), getOriginator());
+	    break;
+	}
+	case SendDeviceStreamData: {
+	    dispatcher.sendDeviceStreamData((DeviceStreamData) getMessage(), getDeviceToken(), getOriginator());
+	    break;
+	}
+	case RequestDeviceStreamData: {
+	    dispatcher.requestDeviceStreamData((DeviceStreamDataRequest) getMessage(), getDeviceToken(),
+		    getOriginator());
+	    break;
+	}
+	default: {
+	    throw new SiteWhereAgentException("Unsupported outbound command: " + getCommand());
+	}
+	}
+    }
+
+    /**
+     * Send the event through the asynchronous dispatcher method for its type.
+     * 
+     * @param dispatcher
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public CompletableFuture<Void> sendAsyncTo(IAsyncEventDispatcher dispatcher) throws SiteWhereAgentException {
+	switch (getCommand()) {
+	case SendRegistration: {
+	    return dispatcher.registerDeviceAsync((DeviceRegistrationRequest) getMessage(), getDeviceToken(),
+		    getOriginator());
+	}
+	case SendAcknowledgement: {
+	    return dispatcher.acknowledgeAsync((DeviceAcknowledge) getMessage(), getDeviceToken(), getOriginator());
+	}
+	case SendMeasurement: {
+	    return dispatcher.sendMeasurementAsync((DeviceMeasurement) getMessage(), getDeviceToken(),
+		    getOriginator());
+	}
+	case SendLocation: {
+	    return dispatcher.sendLocationAsync((DeviceLocation) getMessage(), getDeviceToken(), getOriginator());
+	}
+	case SendAlert: {
+	    return dispatcher.sendAlertAsync((DeviceAlert) getMessage(), getDeviceToken(), getOriginator());
+	}
+	case SendDeviceStream: {
+	    return dispatcher.createDeviceStreamAsync((DeviceStream) getMessage(), getDeviceToken(), getOriginator());
+	}
+	case SendDeviceStreamData: {
+	    return dispatcher.sendDeviceStreamDataAsync((DeviceStreamData) getMessage(), getDeviceToken(),
+		    getOriginator());
+	}
+	case RequestDeviceStreamData: {
+	    return dispatcher.requestDeviceStreamDataAsync((DeviceStreamDataRequest) getMessage(), getDeviceToken(),
+		    getOriginator());
+	}
+	default: {
+	    throw new SiteWhereAgentException("Unsupported outbound command: " + getCommand());
+	}
+	}
+    }
+
+    public Command getCommand() {
+	return command;
+    }
+
+    public GeneratedMessageV3 getMessage() {
+	return message;
+    }
+
+    public String getDeviceToken() {
+	return deviceToken;
+    }
+
+    public String getOriginator() {
+	return originator;
+    }
+}
\ No newline at end of file
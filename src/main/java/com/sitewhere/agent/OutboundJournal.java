@@ -0,0 +1,566 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of outbound payloads stored as a sequence of segment
+ * files. Records are appended to the newest segment through a
+ * {@link FileChannel} and a new segment is started once the configured segment
+ * size is reached. Records are read back in order and committed once delivered.
+ * Segments that have been fully committed are deleted, and the oldest segments
+ * are discarded if the retention cap is exceeded while the broker is
+ * unreachable.
+ * 
+ * Each record is stored as a 4-byte length, a 4-byte CRC32 of the body and the
+ * body itself. The committed position is saved to a checkpoint file so that
+ * undelivered records survive a restart.
+ * 
+ * @author Derek
+ */
+public class OutboundJournal implements Closeable {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(OutboundJournal.class.getName());
+
+    /** Default size in bytes at which a new segment is started */
+    public static final long DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    /** Default maximum number of segments retained */
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    /** Suffix for segment files */
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    /** Name of file holding committed position */
+    private static final String CHECKPOINT_FILENAME = "checkpoint";
+
+    /** Number of bytes in record header */
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    /** Directory holding segment files */
+    private File directory;
+
+    /** Size in bytes at which a new segment is started */
+    private long segmentBytes;
+
+    /** Maximum number of segments retained */
+    private int maxSegments;
+
+    /** Segment files indexed by segment id */
+    private TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+    /** Id of segment being written */
+    private long writeSegment;
+
+    /** Channel for segment being written */
+    private FileChannel writeChannel;
+
+    /** Position of next record in segment being written */
+    private long writePosition;
+
+    /** Id of segment being read */
+    private long readSegment;
+
+    /** Channel for segment being read */
+    private FileChannel readChannel;
+
+    /** Position of next unread record */
+    private long readPosition;
+
+    /** Id of segment holding first uncommitted record */
+    private long commitSegment;
+
+    /** Position of first uncommitted record */
+    private long commitPosition;
+
+    /** Reused buffer for headers of appended records */
+    private ByteBuffer writeHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+
+    /** Reused buffer for headers of records being read */
+    private ByteBuffer readHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+
+    /** Used to checksum appended records */
+    private CRC32 writeCrc = new CRC32();
+
+    /** Used to verify records being read */
+    private CRC32 readCrc = new CRC32();
+
+    public OutboundJournal(File directory) {
+	this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public OutboundJournal(File directory, long segmentBytes, int maxSegments) {
+	this.directory = directory;
+	this.segmentBytes = segmentBytes;
+	this.maxSegments = Math.max(2, maxSegments);
+    }
+
+    /**
+     * Open the journal, recovering any segments left from a previous run.
+     * 
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+	if (!directory.isDirectory() && !directory.mkdirs()) {
+	    throw new IOException("Unable to create journal directory: " + directory.getAbsolutePath());
+	}
+	File[] files = directory.listFiles();
+	if (files != null) {
+	    for (File file : files) {
+		String name = file.getName();
+		if (name.endsWith(SEGMENT_SUFFIX)) {
+		    try {
+			segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+		    } catch (NumberFormatException e) {
+			LOGGER.warning("Ignoring unexpected file in journal directory: " + name);
+		    }
+		}
+	    }
+	}
+	if (segments.isEmpty()) {
+	    startSegment(0);
+	} else {
+	    writeSegment = segments.lastKey();
+	    writeChannel = FileChannel.open(segments.get(writeSegment).toPath(), StandardOpenOption.READ,
+		    StandardOpenOption.WRITE);
+	    writePosition = recoverTail(writeChannel);
+	    writeChannel.truncate(writePosition);
+	    writeChannel.position(writePosition);
+	}
+	readCheckpoint();
+	if (!segments.containsKey(commitSegment)) {
+	    commitSegment = segments.firstKey();
+	    commitPosition = 0;
+	}
+	readSegment = commitSegment;
+	readPosition = commitPosition;
+	deleteCommittedSegments();
+	LOGGER.info("Opened outbound journal in '" + directory.getAbsolutePath() + "' with " + segments.size()
+		+ " segment(s).");
+    }
+
+    /**
+     * Append a record to the journal.
+     * 
+     * @param body
+     * @throws IOException
+     */
+    public synchronized void append(byte[] body) throws IOException {
+	if (writeChannel == null) {
+	    throw new IOException("Journal is not open.");
+	}
+	int length = RECORD_HEADER_BYTES + body.length;
+	if ((writePosition > 0) && (writePosition + length > segmentBytes)) {
+	    startSegment(writeSegment + 1);
+	    enforceRetention();
+	}
+	writeCrc.reset();
+	writeCrc.update(body, 0, body.length);
+	writeHeader.clear();
+	writeHeader.putInt(body.length);
+	writeHeader.putInt((int) writeCrc.getValue());
+	writeHeader.flip();
+	ByteBuffer[] buffers = { writeHeader, ByteBuffer.wrap(body) };
+	while (buffers[1].hasRemaining()) {
+	    writeChannel.write(buffers);
+	}
+	writePosition += length;
+	notifyAll();
+    }
+
+    /**
+     * Get the next unread record, waiting up to the given time for one to be
+     * appended.
+     * 
+     * @param timeoutMs
+     * @return record or null if none was available
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public synchronized Entry poll(long timeoutMs) throws IOException, InterruptedException {
+	if (!hasUnread() && (timeoutMs > 0)) {
+	    wait(timeoutMs);
+	}
+	while (hasUnread()) {
+	    if ((readSegment != writeSegment) && (readPosition >= segmentSize(readSegment))) {
+		advanceReadSegment();
+		continue;
+	    }
+	    FileChannel channel = getReadChannel();
+	    readHeader.clear();
+	    readFully(channel, readHeader, readPosition);
+	    readHeader.flip();
+	    int length = readHeader.getInt();
+	    int checksum = readHeader.getInt();
+	    long end = readPosition + RECORD_HEADER_BYTES + length;
+	    if ((length < 0) || (end > segmentSize(readSegment))) {
+		LOGGER.warning("Skipping corrupt journal segment " + readSegment + " at position " + readPosition);
+		advanceReadSegment();
+		continue;
+	    }
+	    byte[] body = new byte[length];
+	    readFully(channel, ByteBuffer.wrap(body), readPosition + RECORD_HEADER_BYTES);
+	    readCrc.reset();
+	    readCrc.update(body, 0, length);
+	    Entry entry = new Entry(readSegment, end, body);
+	    readPosition = end;
+	    if ((int) readCrc.getValue() != checksum) {
+		LOGGER.warning("Skipping journal record with bad checksum in segment " + entry.getSegment() + ".");
+		continue;
+	    }
+	    return entry;
+	}
+	return null;
+    }
+
+    /**
+     * Mark all records up to and including the given one as delivered.
+     * 
+     * @param entry
+     */
+    public synchronized void commit(Entry entry) {
+	if ((entry.getSegment() < commitSegment)
+		|| ((entry.getSegment() == commitSegment) && (entry.getNextPosition() <= commitPosition))) {
+	    return;
+	}
+	boolean crossed = entry.getSegment() != commitSegment;
+	commitSegment = entry.getSegment();
+	commitPosition = entry.getNextPosition();
+	if (crossed) {
+	    deleteCommittedSegments();
+	}
+    }
+
+    /**
+     * Move the read position back to the first uncommitted record so that
+     * undelivered records are read again.
+     */
+    public synchronized void rewind() {
+	if (readSegment != commitSegment) {
+	    closeReadChannel();
+	}
+	readSegment = commitSegment;
+	readPosition = commitPosition;
+    }
+
+    /**
+     * Save the committed position so it survives a restart.
+     * 
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+	if (writeChannel == null) {
+	    return;
+	}
+	writeChannel.force(false);
+	File temp = new File(directory, CHECKPOINT_FILENAME + ".tmp");
+	ByteBuffer buffer = ByteBuffer.allocate(16);
+	buffer.putLong(commitSegment);
+	buffer.putLong(commitPosition);
+	buffer.flip();
+	try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+		StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+	    while (buffer.hasRemaining()) {
+		channel.write(buffer);
+	    }
+	}
+	Files.move(temp.toPath(), new File(directory, CHECKPOINT_FILENAME).toPath(),
+		StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Get number of bytes appended but not yet committed.
+     * 
+     * @return
+     */
+    public synchronized long getBacklogBytes() {
+	long total = 0;
+	for (Map.Entry<Long, File> segment : segments.tailMap(commitSegment, true).entrySet()) {
+	    total += segmentSize(segment.getKey());
+	}
+	return total - commitPosition;
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public synchronized void close() throws IOException {
+	if (writeChannel == null) {
+	    return;
+	}
+	checkpoint();
+	closeReadChannel();
+	writeChannel.close();
+	writeChannel = null;
+	notifyAll();
+    }
+
+    /**
+     * Indicates whether records remain to be read.
+     * 
+     * @return
+     */
+    protected boolean hasUnread() {
+	return (writeChannel != null) && ((readSegment != writeSegment) || (readPosition < writePosition));
+    }
+
+    /**
+     * Start a new segment for writing.
+     * 
+     * @param id
+     * @throws IOException
+     */
+    protected void startSegment(long id) throws IOException {
+	if (writeChannel != null) {
+	    if ((readSegment == writeSegment) && (readChannel == null)) {
+		readChannel = writeChannel;
+	    } else {
+		writeChannel.close();
+	    }
+	}
+	File file = new File(directory, String.format("%019d%s", id, SEGMENT_SUFFIX));
+	writeChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+		StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	writeSegment = id;
+	writePosition = 0;
+	segments.put(id, file);
+    }
+
+    /**
+     * Drop the oldest segments if more than the maximum are retained.
+     */
+    protected void enforceRetention() {
+	while (segments.size() > maxSegments) {
+	    long oldest = segments.firstKey();
+	    if (oldest >= commitSegment) {
+		LOGGER.warning("Outbound journal full. Discarding undelivered events in segment " + oldest + ".");
+		commitSegment = segments.higherKey(oldest);
+		commitPosition = 0;
+	    }
+	    if (readSegment <= oldest) {
+		closeReadChannel();
+		readSegment = commitSegment;
+		readPosition = commitPosition;
+	    }
+	    deleteSegment(oldest);
+	}
+    }
+
+    /**
+     * Delete segments preceding the committed position.
+     */
+    protected void deleteCommittedSegments() {
+	while (!segments.isEmpty() && (segments.firstKey() < commitSegment)) {
+	    deleteSegment(segments.firstKey());
+	}
+    }
+
+    /**
+     * Delete a segment file.
+     * 
+     * @param id
+     */
+    protected void deleteSegment(long id) {
+	File file = segments.remove(id);
+	if ((file != null) && !file.delete()) {
+	    LOGGER.warning("Unable to delete journal segment: " + file.getAbsolutePath());
+	}
+    }
+
+    /**
+     * Move reading to the start of the next segment.
+     */
+    protected void advanceReadSegment() {
+	closeReadChannel();
+	Long next = segments.higherKey(readSegment);
+	readSegment = (next != null) ? next : writeSegment;
+	readPosition = (next != null) ? 0 : writePosition;
+    }
+
+    /**
+     * Get channel for reading the current read segment.
+     * 
+     * @return
+     * @throws IOException
+     */
+    protected FileChannel getReadChannel() throws IOException {
+	if (readSegment == writeSegment) {
+	    return writeChannel;
+	}
+	if (readChannel == null) {
+	    readChannel = FileChannel.open(segments.get(readSegment).toPath(), StandardOpenOption.READ);
+	}
+	return readChannel;
+    }
+
+    /**
+     * Close channel used for reading an older segment.
+     */
+    protected void closeReadChannel() {
+	if (readChannel != null) {
+	    try {
+		readChannel.close();
+	    } catch (IOException e) {
+		LOGGER.warning("Unable to close journal segment.");
+	    }
+	    readChannel = null;
+	}
+    }
+
+    /**
+     * Get size of a segment.
+     * 
+     * @param id
+     * @return
+     */
+    protected long segmentSize(long id) {
+	if (id == writeSegment) {
+	    return writePosition;
+	}
+	File file = segments.get(id);
+	return (file != null) ? file.length() : 0;
+    }
+
+    /**
+     * Scan a segment and return the position after the last complete record. Used
+     * to drop a partially written record left by a crash.
+     * 
+     * @param channel
+     * @return
+     * @throws IOException
+     */
+    protected long recoverTail(FileChannel channel) throws IOException {
+	long size = channel.size();
+	long position = 0;
+	ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+	while (position + RECORD_HEADER_BYTES <= size) {
+	    recordHeader.clear();
+	    readFully(channel, recordHeader, position);
+	    recordHeader.flip();
+	    int length = recordHeader.getInt();
+	    if ((length < 0) || (position + RECORD_HEADER_BYTES + length > size)) {
+		break;
+	    }
+	    position += RECORD_HEADER_BYTES + length;
+	}
+	if (position < size) {
+	    LOGGER.warning("Truncating incomplete record at end of outbound journal.");
+	}
+	return position;
+    }
+
+    /**
+     * Load committed position from the checkpoint file if present.
+     * 
+     * @throws IOException
+     */
+    protected void readCheckpoint() throws IOException {
+	File file = new File(directory, CHECKPOINT_FILENAME);
+	if (!file.exists()) {
+	    return;
+	}
+	ByteBuffer buffer = ByteBuffer.allocate(16);
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    readFully(channel, buffer, 0);
+	    buffer.flip();
+	    commitSegment = buffer.getLong();
+	    commitPosition = Math.min(buffer.getLong(), segmentSize(commitSegment));
+	} catch (IOException e) {
+	    LOGGER.warning("Unable to read journal checkpoint. Replaying all retained segments.");
+	    commitSegment = segments.firstKey();
+	    commitPosition = 0;
+	}
+    }
+
+    /**
+     * Fill a buffer from the given channel position.
+     * 
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    protected static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+	while (buffer.hasRemaining()) {
+	    int read = channel.read(buffer, position);
+	    if (read < 0) {
+		throw new IOException("Unexpected end of journal segment.");
+	    }
+	    position += read;
+	}
+    }
+
+    public File getDirectory() {
+	return directory;
+    }
+
+    public long getSegmentBytes() {
+	return segmentBytes;
+    }
+
+    public int getMaxSegments() {
+	return maxSegments;
+    }
+
+    /**
+     * Record read from the journal.
+     * 
+     * @author Derek
+     */
+    public static class Entry {
+
+	/** Id of segment containing record */
+	private long segment;
+
+	/** Position following record */
+	private long nextPosition;
+
+	/** Record body */
+	private byte[] body;
+
+	public Entry(long segment, long nextPosition, byte[] body) {
+	    this.segment = segment;
+	    this.nextPosition = nextPosition;
+	    this.body = body;
+	}
+
+	public long getSegment() {
+	    return segment;
+	}
+
+	public long getNextPosition() {
+	    return nextPosition;
+	}
+
+	public byte[] getBody() {
+	    return body;
+	}
+    }
+}
\ No newline at end of file
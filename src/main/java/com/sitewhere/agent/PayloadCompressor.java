@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses outbound payloads with deflate, optionally primed with a preset
+ * dictionary of strings that repeat across messages such as device tokens and
+ * measurement names. Since single events are small, the dictionary is what
+ * makes compressing them worthwhile.
+ * 
+ * A compressed payload starts with {@link #MAGIC} followed by a codec byte and
+ * a zlib stream. The zlib header carries the Adler-32 checksum of the
+ * dictionary, so a receiver can tell which dictionary is needed. An encoded
+ * event always starts with the length of a non-empty header, so the leading
+ * zero byte of the magic never occurs in an uncompressed payload. Payloads that
+ * do not shrink are sent uncompressed.
+ * 
+ * @author Derek
+ */
+public class PayloadCompressor {
+
+    /** Marks the start of a compressed payload */
+    public static final byte[] MAGIC = { 0, 'S', 'W', 'Z' };
+
+    /** Codec byte for zlib-wrapped deflate */
+    public static final byte CODEC_DEFLATE = 1;
+
+    /** Default compression level */
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    /** Default size in bytes below which payloads are not compressed */
+    public static final int DEFAULT_MIN_BYTES = 32;
+
+    /** Length of magic and codec byte */
+    private static final int PREFIX_LENGTH = MAGIC.length + 1;
+
+    /** Deflater reused for each payload */
+    private Deflater deflater;
+
+    /** Preset dictionary (may be null) */
+    private byte[] dictionary;
+
+    /** Size in bytes below which payloads are not compressed */
+    private int minBytes;
+
+    /** Buffer reused for compressed output */
+    private byte[] buffer = new byte[1024];
+
+    public PayloadCompressor(byte[] dictionary) {
+	this(DEFAULT_LEVEL, dictionary, DEFAULT_MIN_BYTES);
+    }
+
+    public PayloadCompressor(int level, byte[] dictionary, int minBytes) {
+	this.deflater = new Deflater(level);
+	this.dictionary = dictionary;
+	this.minBytes = minBytes;
+    }
+
+    /**
+     * Compress a payload. Returns the original payload if it is too small or does
+     * not get smaller.
+     * 
+     * @param payload
+     * @return
+     */
+    public synchronized byte[] compress(byte[] payload) {
+	if (payload.length < getMinBytes()) {
+	    return payload;
+	}
+	deflater.reset();
+	if (dictionary != null) {
+	    deflater.setDictionary(dictionary);
+	}
+	deflater.setInput(payload);
+	deflater.finish();
+	int length = PREFIX_LENGTH;
+	while (!deflater.finished()) {
+	    if (length >= payload.length) {
+		return payload;
+	    }
+	    if (length == buffer.length) {
+		buffer = Arrays.copyOf(buffer, buffer.length * 2);
+	    }
+	    length += deflater.deflate(buffer, length, buffer.length - length);
+	}
+	if (length >= payload.length) {
+	    return payload;
+	}
+	System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+	buffer[MAGIC.length] = CODEC_DEFLATE;
+	return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Indicates whether a payload was compressed.
+     * 
+     * @param payload
+     * @return
+     */
+    public static boolean isCompressed(byte[] payload) {
+	if (payload.length < PREFIX_LENGTH) {
+	    return false;
+	}
+	for (int i = 0; i < MAGIC.length; i++) {
+	    if (payload[i] != MAGIC[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Restore a payload produced by {@link #compress(byte[])}. Payloads that are
+     * not compressed are returned as-is.
+     * 
+     * @param payload
+     * @param dictionary dictionary used when compressing (may be null)
+     * @return
+     * @throws IOException if the payload is corrupt or needs a different
+     *             dictionary
+     */
+    public static byte[] decompress(byte[] payload, byte[] dictionary) throws IOException {
+	if (!isCompressed(payload)) {
+	    return payload;
+	}
+	if (payload[MAGIC.length] != CODEC_DEFLATE) {
+	    throw new IOException("Unknown payload codec: " + payload[MAGIC.length]);
+	}
+	Inflater inflater = new Inflater();
+	try {
+	    inflater.setInput(payload, PREFIX_LENGTH, payload.length - PREFIX_LENGTH);
+	    ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+	    byte[] chunk = new byte[1024];
+	    while (!inflater.finished()) {
+		int count = inflater.inflate(chunk);
+		if (count > 0) {
+		    out.write(chunk, 0, count);
+		} else if (inflater.needsDictionary()) {
+		    if ((dictionary == null) || (checksum(dictionary) != inflater.getAdler())) {
+			throw new IOException("Payload was compressed with an unknown dictionary.");
+		    }
+		    inflater.setDictionary(dictionary);
+		} else if (inflater.needsInput()) {
+		    throw new IOException("Compressed payload is truncated.");
+		}
+	    }
+	    return out.toByteArray();
+	} catch (DataFormatException e) {
+	    throw new IOException("Compressed payload is corrupt.", e);
+	} finally {
+	    inflater.end();
+	}
+    }
+
+    /**
+     * Build a dictionary from strings expected to appear in payloads. Deflate
+     * favors matches near the end of the dictionary, so the most common strings
+     * should come last.
+     * 
+     * @param strings
+     * @return
+     */
+    public static byte[] buildDictionary(Collection<String> strings) {
+	StringBuilder builder = new StringBuilder();
+	for (String string : strings) {
+	    builder.append(string);
+	}
+	return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compute the Adler-32 checksum zlib uses to identify a dictionary.
+     * 
+     * @param dictionary
+     * @return
+     */
+    public static int checksum(byte[] dictionary) {
+	Adler32 adler = new Adler32();
+	adler.update(dictionary, 0, dictionary.length);
+	return (int) adler.getValue();
+    }
+
+    public byte[] getDictionary() {
+	return dictionary;
+    }
+
+    public int getMinBytes() {
+	return minBytes;
+    }
+}
\ No newline at end of file
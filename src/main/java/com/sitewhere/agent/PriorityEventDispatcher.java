@@ -0,0 +1,785 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAcknowledge;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAlert;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceLocation;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceRegistrationRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamDataRequest;
+
+/**
+ * Event dispatcher that queues events in priority lanes and sends them from a
+ * single scheduler thread. Alerts go in the {@link Lane#HIGH} lane,
+ * acknowledgements, registrations and device stream traffic in
+ * {@link Lane#NORMAL}, and measurements and locations in {@link Lane#LOW}. The
+ * scheduler always sends from the highest lane that has an event queued and a
+ * token available in its rate limit, so when the publisher backs up, alerts
+ * are not stuck behind a storm of measurements. Events dispatched together are
+ * queued as a single entry in the highest lane any of them belongs to, and take
+ * a single token from its rate limit.
+ * 
+ * When the low lane is full, its {@link OverflowPolicy} decides which event is
+ * shed. Callers adding to a full high or normal lane wait for space instead.
+ * Shed events are counted in metrics and their futures complete normally,
+ * since dropping them is intended.
+ * 
+ * When blocking, synchronous sends wait until the event has left its lane and
+ * been sent, and report failures to the caller.
+ * 
+ * @author Derek
+ */
+public class PriorityEventDispatcher implements IAsyncEventDispatcher, Closeable {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(PriorityEventDispatcher.class.getName());
+
+    /** Default number of events queued per lane */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /** Default policy when low lane is full */
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.COALESCE;
+
+    /** Dispatcher that sends events */
+    private IAsyncEventDispatcher delegate;
+
+    /** Queued events for each lane */
+    private Map<Lane, ArrayDeque<Pending>> queues = new EnumMap<Lane, ArrayDeque<Pending>>(Lane.class);
+
+    /** Rate limit for each lane */
+    private Map<Lane, TokenBucket> limits = new EnumMap<Lane, TokenBucket>(Lane.class);
+
+    /** Maximum number of events queued in each lane */
+    private Map<Lane, Integer> capacities = new EnumMap<Lane, Integer>(Lane.class);
+
+    /** Policy used when low lane is full */
+    private OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+
+    /** Queued low lane events indexed by coalescing key */
+    private Map<String, Pending> coalescing = new HashMap<String, Pending>();
+
+    /** Metrics for lanes */
+    private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+    /** Indicates whether synchronous sends wait for the event to be sent */
+    private boolean blocking = true;
+
+    /** Guards queues and rate limits */
+    private ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when an event is queued */
+    private Condition queued = lock.newCondition();
+
+    /** Signalled when an event is taken from a lane */
+    private Condition taken = lock.newCondition();
+
+    /** Thread sending queued events */
+    private Thread scheduler;
+
+    /** Indicates whether the dispatcher has been closed */
+    private volatile boolean closed;
+
+    public PriorityEventDispatcher(IAsyncEventDispatcher delegate) {
+	this.delegate = delegate;
+	for (Lane lane : Lane.values()) {
+	    queues.put(lane, new ArrayDeque<Pending>());
+	    limits.put(lane, new TokenBucket(0, 1));
+	    capacities.put(lane, DEFAULT_CAPACITY);
+	}
+    }
+
+    /**
+     * Start the scheduler thread.
+     */
+    public void start() {
+	for (final Lane lane : Lane.values()) {
+	    getMetrics().gauge("outbound.lane.depth", "lane", lane.name().toLowerCase(), new IGauge() {
+
+		@Override
+		public double getValue() {
+		    return getDepth(lane);
+		}
+	    });
+	}
+	scheduler = new Thread(new Runnable() {
+
+	    @Override
+	    public void run() {
+		schedule();
+	    }
+	}, "SiteWhere Outbound Scheduler");
+	scheduler.setDaemon(true);
+	scheduler.start();
+    }
+
+    /**
+     * Set the rate limit for a lane.
+     * 
+     * @param lane
+     * @param rate events per second (zero for unlimited)
+     * @param burst events that may be sent at once after an idle period
+     */
+    public void setRateLimit(Lane lane, double rate, int burst) {
+	lock.lock();
+	try {
+	    limits.put(lane, new TokenBucket(rate, burst));
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Set the maximum number of events queued in a lane.
+     * 
+     * @param lane
+     * @param capacity
+     */
+    public void setCapacity(Lane lane, int capacity) {
+	capacities.put(lane, capacity);
+    }
+
+    @Override
+    public void registerDevice(DeviceRegistrationRequest register, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(registerDeviceAsync(register, deviceToken, originator), "registration");
+    }
+
+    @Override
+    public void acknowledge(DeviceAcknowledge ack, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(acknowledgeAsync(ack, deviceToken, originator), "ack");
+    }
+
+    @Override
+    public void sendMeasurement(DeviceMeasurement measurement, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(sendMeasurementAsync(measurement, deviceToken, originator), "measurement");
+    }
+
+    @Override
+    public void sendLocation(DeviceLocation location, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(sendLocationAsync(location, deviceToken, originator), "location");
+    }
+
+    @Override
+    public void sendAlert(DeviceAlert alert, String deviceToken, String originator) throws SiteWhereAgentException {
+	complete(sendAlertAsync(alert, deviceToken, originator), "alert");
+    }
+
+    @Override
+    public void createDeviceStream(DeviceStream stream, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(createDeviceStreamAsync(stream, deviceToken, originator), "stream");
+    }
+
+    @Override
+    public void sendDeviceStreamData(DeviceStreamData data, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(sendDeviceStreamDataAsync(data, deviceToken, originator), "stream.data");
+    }
+
+    @Override
+    public void requestDeviceStreamData(DeviceStreamDataRequest request, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(requestDeviceStreamDataAsync(request, deviceToken, originator), "stream.request");
+    }
+
+    @Override
+    public CompletableFuture<Void> registerDeviceAsync(final DeviceRegistrationRequest register,
+	    final String deviceToken, final String originator) throws SiteWhereAgentException {
+	return enqueue(Lane.NORMAL, null, new Pending() {
+
+	    @Override
+	    public CompletableFuture<Void> send() throws SiteWhereAgentException {
+		return getDelegate().registerDeviceAsync(register, deviceToken, originator);
+	    }
+	});
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeAsync(final DeviceAcknowledge ack, final String deviceToken,
+	    final String originator) throws SiteWhereAgentException {
+	return enqueue(Lane.NORMAL, null, new Pending() {
+
+	    @Override
+	    public CompletableFuture<Void> send() throws SiteWhereAgentException {
+		return getDelegate().acknowledgeAsync(ack, deviceToken, originator);
+	    }
+	});
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMeasurementAsync(final DeviceMeasurement measurement,
+	    final String deviceToken, final String originator) throws SiteWhereAgentException {
+	String key = null;
+	if ((getOverflowPolicy() == OverflowPolicy.COALESCE) && (originator == null)) {
+	    key = deviceToken + "/" + measurement.getMeasurementName().getValue();
+	}
+	return enqueue(Lane.LOW, key, new Pending() {
+
+	    @Override
+	    public CompletableFuture<Void> send() throws SiteWhereAgentException {
+		return getDelegate().sendMeasurementAsync(measurement, deviceToken, originator);
+	    }
+	});
+    }
+
+    @Override
+    public CompletableFuture<Void> sendLocationAsync(final DeviceLocation location, final String deviceToken,
+	    final String originator) throws SiteWhereAgentException {
+	String key = null;
+	if ((getOverflowPolicy() == OverflowPolicy.COALESCE) && (originator == null)) {
+	    key = deviceToken;
+	}
+	return enqueue(Lane.LOW, key, new Pending() {
+
+	    @Override
+	    public CompletableFuture<Void> send() throws SiteWhereAgentException {
+		return getDelegate().sendLocationAsync(location, deviceToken, originator);
+	    }
+	});
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAlertAsync(final DeviceAlert alert, final String deviceToken,
+	    final String originator) throws SiteWhereAgentException {
+	return enqueue(Lane.HIGH, null, new Pending() {
+
+	    @Override
+	    public CompletableFuture<Void> send() throws SiteWhereAgentException {
+		return getDelegate().sendAlertAsync(alert, deviceToken, originator);
+	    }
+	});
+    }
+
+    @Override
+    public CompletableFuture<Void> createDeviceStreamAsync(final DeviceStream stream, final String deviceToken,
+	    final String originator) throws SiteWhereAgentException {
+	return enqueue(Lane.NORMAL, null, new Pending() {
+
+	    @Override
+	    public CompletableFuture<Void> send() throws SiteWhereAgentException {
+		return getDelegate().createDeviceStreamAsync(stream, deviceToken, originator);
+	    }
+	});
+    }
+
+    @Override
+    public CompletableFuture<Void> sendDeviceStreamDataAsync(final DeviceStreamData data, final String deviceToken,
+	    final String originator) throws SiteWhereAgentException {
+	return enqueue(Lane.NORMAL, null, new Pending() {
+
+	    @Override
+	    public CompletableFuture<Void> send() throws SiteWhereAgentException {
+		return getDelegate().sendDeviceStreamDataAsync(data, deviceToken, originator);
+	    }
+	});
+    }
+
+    @Override
+    public CompletableFuture<Void> requestDeviceStreamDataAsync(final DeviceStreamDataRequest request,
+	    final String deviceToken, final String originator) throws SiteWhereAgentException {
+	return enqueue(Lane.NORMAL, null, new Pending() {
+
+	    @Override
+	    public CompletableFuture<Void> send() throws SiteWhereAgentException {
+		return getDelegate().requestDeviceStreamDataAsync(request, deviceToken, originator);
+	    }
+	});
+    }
+
+    @Override
+    public void sendMeasurementSeries(MeasurementSeries series, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	complete(sendMeasurementSeriesAsync(series, deviceToken, originator), "series");
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMeasurementSeriesAsync(final MeasurementSeries series,
+	    final String deviceToken, final String originator) throws SiteWhereAgentException {
+	return enqueue(Lane.LOW, null, new Pending() {
+
+	    @Override
+	    public CompletableFuture<Void> send() throws SiteWhereAgentException {
+		return getDelegate().sendMeasurementSeriesAsync(series, deviceToken, originator);
+	    }
+	});
+    }
+
+    @Override
+    public void dispatch(List<OutboundEvent> events) throws SiteWhereAgentException {
+	complete(dispatchAsync(events), "bulk");
+    }
+
+    @Override
+    public CompletableFuture<Void> dispatchAsync(final List<OutboundEvent> events) throws SiteWhereAgentException {
+	if (events.isEmpty()) {
+	    return CompletableFuture.completedFuture(null);
+	}
+	Lane lane = Lane.LOW;
+	for (OutboundEvent event : events) {
+	    Lane required = getLane(event.getCommand());
+	    if (required.ordinal() < lane.ordinal()) {
+		lane = required;
+	    }
+	}
+	return enqueue(lane, null, new Pending() {
+
+	    @Override
+	    public CompletableFuture<Void> send() throws SiteWhereAgentException {
+		return getDelegate().dispatchAsync(events);
+	    }
+	});
+    }
+
+    /**
+     * Get lane that carries a type of event.
+     * 
+     * @param command
+     * @return
+     */
+    protected static Lane getLane(Command command) {
+	switch (command) {
+	case SendAlert: {
+	    return Lane.HIGH;
+	}
+	case SendMeasurement:
+	case SendLocation: {
+	    return Lane.LOW;
+	}
+	default: {
+	    return Lane.NORMAL;
+	}
+	}
+    }
+
+    /**
+     * Add an event to a lane, applying the overflow policy if the lane is full.
+     * 
+     * @param lane
+     * @param key key used to coalesce events (may be null)
+     * @param pending
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    protected CompletableFuture<Void> enqueue(Lane lane, String key, Pending pending)
+	    throws SiteWhereAgentException {
+	if (closed) {
+	    throw new SiteWhereAgentException("Outbound dispatcher has been closed.");
+	}
+	pending.key = key;
+	pending.lane = lane;
+	pending.queued = getMetrics().isEnabled() ? System.nanoTime() : 0;
+	ArrayDeque<Pending> queue = queues.get(lane);
+	int capacity = capacities.get(lane);
+	lock.lock();
+	try {
+	    if ((lane == Lane.LOW) && (queue.size() >= capacity)) {
+		if (shed(queue, pending)) {
+		    return pending.future;
+		}
+	    }
+	    while (queue.size() >= capacity) {
+		taken.await();
+		if (closed) {
+		    throw new SiteWhereAgentException("Outbound dispatcher has been closed.");
+		}
+	    }
+	    queue.addLast(pending);
+	    if (key != null) {
+		coalescing.put(key, pending);
+	    }
+	    queued.signal();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SiteWhereAgentException("Interrupted while queueing outbound event.", e);
+	} finally {
+	    lock.unlock();
+	}
+	return pending.future;
+    }
+
+    /**
+     * Apply the overflow policy to a full low lane. Called while holding the lock.
+     * 
+     * @param queue
+     * @param pending
+     * @return true if the new event was absorbed and must not be queued
+     */
+    protected boolean shed(ArrayDeque<Pending> queue, Pending pending) {
+	if (getOverflowPolicy() == OverflowPolicy.COALESCE) {
+	    Pending existing = (pending.key != null) ? coalescing.get(pending.key) : null;
+	    if (existing != null) {
+		existing.replace(pending);
+		getMetrics().counter("outbound.lane.coalesced").increment();
+		return true;
+	    }
+	} else if (getOverflowPolicy() == OverflowPolicy.DROP_NEWEST) {
+	    getMetrics().counter("outbound.lane.dropped").increment();
+	    pending.complete(null);
+	    return true;
+	}
+	Pending oldest = queue.pollFirst();
+	unindex(oldest);
+	getMetrics().counter("outbound.lane.dropped").increment();
+	oldest.complete(null);
+	return false;
+    }
+
+    /**
+     * Remove an event from the coalescing index. Called while holding the lock.
+     * 
+     * @param pending
+     */
+    protected void unindex(Pending pending) {
+	if ((pending.key != null) && (coalescing.get(pending.key) == pending)) {
+	    coalescing.remove(pending.key);
+	}
+    }
+
+    /**
+     * Loop that sends events in priority order as rate limits allow.
+     */
+    protected void schedule() {
+	while (!closed) {
+	    Pending next;
+	    try {
+		next = take();
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	    if (next != null) {
+		dispatch(next);
+	    }
+	}
+    }
+
+    /**
+     * Wait for the next event that may be sent.
+     * 
+     * @return next event, or null if the dispatcher was closed
+     * @throws InterruptedException
+     */
+    protected Pending take() throws InterruptedException {
+	lock.lock();
+	try {
+	    while (!closed) {
+		long now = System.nanoTime();
+		long wait = Long.MAX_VALUE;
+		for (Lane lane : Lane.values()) {
+		    ArrayDeque<Pending> queue = queues.get(lane);
+		    if (queue.isEmpty()) {
+			continue;
+		    }
+		    TokenBucket limit = limits.get(lane);
+		    if (limit.tryAcquire(now)) {
+			Pending pending = queue.pollFirst();
+			unindex(pending);
+			taken.signalAll();
+			return pending;
+		    }
+		    wait = Math.min(wait, limit.nanosUntilAvailable(now));
+		}
+		if (wait == Long.MAX_VALUE) {
+		    queued.await();
+		} else {
+		    queued.awaitNanos(wait);
+		}
+	    }
+	    return null;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Hand an event to the delegate and complete its future once sent.
+     * 
+     * @param pending
+     */
+    protected void dispatch(final Pending pending) {
+	if (pending.queued != 0) {
+	    getMetrics().recorder("outbound.lane.wait", "lane", pending.lane.name().toLowerCase())
+		    .recordSince(pending.queued);
+	}
+	try {
+	    pending.sendLatest().whenComplete(new BiConsumer<Void, Throwable>() {
+
+		@Override
+		public void accept(Void result, Throwable error) {
+		    pending.complete(error);
+		}
+	    });
+	} catch (Throwable e) {
+	    pending.complete(e);
+	}
+    }
+
+    /**
+     * Complete a synchronous send, waiting for it if blocking, otherwise logging
+     * if it fails.
+     * 
+     * @param future
+     * @param label
+     * @throws SiteWhereAgentException
+     */
+    protected void complete(CompletableFuture<Void> future, final String label) throws SiteWhereAgentException {
+	if (isBlocking()) {
+	    try {
+		future.get();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new SiteWhereAgentException("Interrupted while sending " + label + " message.", e);
+	    } catch (ExecutionException e) {
+		throw new SiteWhereAgentException(e.getCause());
+	    }
+	    return;
+	}
+	future.whenComplete(new BiConsumer<Void, Throwable>() {
+
+	    @Override
+	    public void accept(Void result, Throwable error) {
+		if (error != null) {
+		    LOGGER.log(Level.WARNING, "Unable to publish " + label + " message.", error);
+		}
+	    }
+	});
+    }
+
+    /**
+     * Get number of events queued in a lane.
+     * 
+     * @param lane
+     * @return
+     */
+    public int getDepth(Lane lane) {
+	lock.lock();
+	try {
+	    return queues.get(lane).size();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	List<Pending> remaining = new ArrayList<Pending>();
+	lock.lock();
+	try {
+	    closed = true;
+	    for (Lane lane : Lane.values()) {
+		remaining.addAll(queues.get(lane));
+		queues.get(lane).clear();
+	    }
+	    coalescing.clear();
+	    queued.signalAll();
+	    taken.signalAll();
+	} finally {
+	    lock.unlock();
+	}
+	if (scheduler != null) {
+	    try {
+		scheduler.join(TimeUnit.SECONDS.toMillis(5));
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+
+	// Send whatever is still queued without rate limiting.
+	for (Pending pending : remaining) {
+	    dispatch(pending);
+	}
+	if (getDelegate() instanceof Closeable) {
+	    ((Closeable) getDelegate()).close();
+	}
+    }
+
+    public IAsyncEventDispatcher getDelegate() {
+	return delegate;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+	return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+	this.overflowPolicy = overflowPolicy;
+    }
+
+    public MetricsRegistry getMetrics() {
+	return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry metrics) {
+	this.metrics = metrics;
+    }
+
+    public boolean isBlocking() {
+	return blocking;
+    }
+
+    public void setBlocking(boolean blocking) {
+	this.blocking = blocking;
+    }
+
+    /**
+     * Priority lanes in the order they are served.
+     * 
+     * @author Derek
+     */
+    public static enum Lane {
+
+	/** Alerts */
+	HIGH,
+
+	/** Acknowledgements, registrations and device streams */
+	NORMAL,
+
+	/** Measurements and locations */
+	LOW;
+    }
+
+    /**
+     * Indicates which event is shed when the low lane is full.
+     * 
+     * @author Derek
+     */
+    public static enum OverflowPolicy {
+
+	/** Drop the oldest queued event */
+	DROP_OLDEST,
+
+	/** Drop the event being added */
+	DROP_NEWEST,
+
+	/**
+	 * Replace a queued event for the same device and measurement name (or the
+	 * same device for locations) with the new one, dropping the oldest event if
+	 * there is none
+	 */
+	COALESCE;
+    }
+
+    /**
+     * Event waiting in a lane.
+     * 
+     * @author Derek
+     */
+    private static abstract class Pending {
+
+	/** Completes once the event is sent */
+	private CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+	/** Newest event coalesced into this one, sent in its place */
+	private Pending replacement;
+
+	/** Futures of events that were replaced in turn */
+	private List<CompletableFuture<Void>> coalesced;
+
+	/** Key used to coalesce events (may be null) */
+	private String key;
+
+	/** Lane holding the event */
+	private Lane lane;
+
+	/** Time in nanoseconds the event was queued (zero if not recorded) */
+	private long queued;
+
+	/**
+	 * Send the event.
+	 * 
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	public abstract CompletableFuture<Void> send() throws SiteWhereAgentException;
+
+	/**
+	 * Send a newer event in place of this one, keeping its position in the lane.
+	 * Futures for both complete when the newer event is sent.
+	 * 
+	 * @param newer
+	 */
+	public void replace(Pending newer) {
+	    if (replacement != null) {
+		if (coalesced == null) {
+		    coalesced = new ArrayList<CompletableFuture<Void>>();
+		}
+		coalesced.add(replacement.future);
+	    }
+	    replacement = newer;
+	}
+
+	/**
+	 * Send the newest event coalesced into this one, or this event if none.
+	 * 
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	public CompletableFuture<Void> sendLatest() throws SiteWhereAgentException {
+	    return (replacement != null) ? replacement.send() : send();
+	}
+
+	/**
+	 * Complete futures for this event and any coalesced into it.
+	 * 
+	 * @param error failure, or null if sent
+	 */
+	public void complete(Throwable error) {
+	    complete(future, error);
+	    if (replacement != null) {
+		complete(replacement.future, error);
+	    }
+	    if (coalesced != null) {
+		for (CompletableFuture<Void> older : coalesced) {
+		    complete(older, error);
+		}
+	    }
+	}
+
+	protected static void complete(CompletableFuture<Void> future, Throwable error) {
+	    if (error != null) {
+		future.completeExceptionally(error);
+	    } else {
+		future.complete(null);
+	    }
+	}
+    }
+}
\ No newline at end of file
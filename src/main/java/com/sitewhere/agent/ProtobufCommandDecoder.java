@@ -0,0 +1,433 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Decodes specification commands sent in the protobuf format generated from a
+ * device type. Each message contains a delimited header carrying the command
+ * number and originating event id, followed by a delimited message with one
+ * field per command parameter, numbered in parameter order. Since the agent
+ * does not have the generated schema, fields are read generically and
+ * converted to the parameter types of the handler method.
+ * 
+ * Fields are kept as raw wire values until the parameter type is known, so
+ * fixed-width fields decode as floating point values for float and double
+ * parameters and as integers otherwise. Zigzag encoded sint32 and sint64
+ * fields look the same as int32 and int64 on the wire and are not supported,
+ * so device types should use int32, int64, sfixed32 or sfixed64 for signed
+ * parameters.
+ * 
+ * Command numbers are mapped to names using the command list of the device
+ * type, configured either as names in order (numbered from one) or as explicit
+ * name=number pairs.
+ * 
+ * @author Derek
+ */
+public class ProtobufCommandDecoder {
+
+    /** Header field holding command number */
+    private static final int HEADER_COMMAND_FIELD = 1;
+
+    /** Header field holding originating event id */
+    private static final int HEADER_ORIGINATOR_FIELD = 2;
+
+    /** Tag of value field when originator is wrapped in an optional string */
+    private static final int WRAPPED_VALUE_TAG = (GOptionalString.VALUE_FIELD_NUMBER << 3)
+	    | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    /** Command names indexed by command number */
+    private Map<Integer, String> commandNames;
+
+    public ProtobufCommandDecoder(Map<Integer, String> commandNames) {
+	this.commandNames = commandNames;
+    }
+
+    /**
+     * Create a decoder from a comma-separated list of command names. Each entry
+     * is either a name, numbered by its position starting at one, or a
+     * name=number pair.
+     * 
+     * @param spec
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public static ProtobufCommandDecoder parse(String spec) throws SiteWhereAgentException {
+	Map<Integer, String> names = new HashMap<Integer, String>();
+	int position = 1;
+	for (String entry : spec.split(",")) {
+	    entry = entry.trim();
+	    if (entry.isEmpty()) {
+		continue;
+	    }
+	    int equals = entry.indexOf('=');
+	    if (equals < 0) {
+		names.put(position, entry);
+	    } else {
+		try {
+		    names.put(Integer.parseInt(entry.substring(equals + 1).trim()), entry.substring(0, equals).trim());
+		} catch (NumberFormatException e) {
+		    throw new SiteWhereAgentException("Invalid command number in '" + entry + "'.", e);
+		}
+	    }
+	    position++;
+	}
+	return new ProtobufCommandDecoder(names);
+    }
+
+    /**
+     * Decode a command message.
+     * 
+     * @param message
+     * @return
+     * @throws IOException
+     * @throws SiteWhereAgentException
+     */
+    public Command decode(byte[] message) throws IOException, SiteWhereAgentException {
+	return decode(CodedInputStream.newInstance(message));
+    }
+
+    /**
+     * Decode a command message from the buffer position to its limit. Heap
+     * buffers are read in place and direct buffers without copying where the
+     * platform allows it.
+     * 
+     * @param message
+     * @return
+     * @throws IOException
+     * @throws SiteWhereAgentException
+     */
+    public Command decode(ByteBuffer message) throws IOException, SiteWhereAgentException {
+	return decode(CodedInputStream.newInstance(message));
+    }
+
+    /**
+     * Decode a command message from a protobuf input stream.
+     * 
+     * @param in
+     * @return
+     * @throws IOException
+     * @throws SiteWhereAgentException
+     */
+    protected Command decode(CodedInputStream in) throws IOException, SiteWhereAgentException {
+	// Read header.
+	int commandNumber = 0;
+	String originator = null;
+	int limit = in.pushLimit(in.readRawVarint32());
+	while (!in.isAtEnd()) {
+	    int tag = in.readTag();
+	    switch (WireFormat.getTagFieldNumber(tag)) {
+	    case HEADER_COMMAND_FIELD: {
+		commandNumber = in.readEnum();
+		break;
+	    }
+	    case HEADER_ORIGINATOR_FIELD: {
+		originator = readOriginator(in.readBytes());
+		break;
+	    }
+	    default: {
+		in.skipField(tag);
+	    }
+	    }
+	}
+	in.popLimit(limit);
+	String name = commandNames.get(commandNumber);
+	if (name == null) {
+	    throw new SiteWhereAgentException("No command name configured for command number " + commandNumber + ".");
+	}
+
+	// Read parameter fields.
+	Map<Integer, Object> fields = new HashMap<Integer, Object>();
+	int maxField = 0;
+	if (!in.isAtEnd()) {
+	    limit = in.pushLimit(in.readRawVarint32());
+	    while (!in.isAtEnd()) {
+		int tag = in.readTag();
+		int field = WireFormat.getTagFieldNumber(tag);
+		Object value = readField(in, tag);
+		if (value != null) {
+		    fields.put(field, value);
+		    maxField = Math.max(maxField, field);
+		}
+	    }
+	    in.popLimit(limit);
+	}
+	return new Command(name, fields, maxField, createOriginator(originator));
+    }
+
+    /**
+     * Read the raw value of a field based on its wire type. Unsupported wire
+     * types are skipped.
+     * 
+     * @param in
+     * @param tag
+     * @return
+     * @throws IOException
+     */
+    protected Object readField(CodedInputStream in, int tag) throws IOException {
+	switch (WireFormat.getTagWireType(tag)) {
+	case WireFormat.WIRETYPE_VARINT:
+	    return in.readRawVarint64();
+	case WireFormat.WIRETYPE_FIXED64:
+	    return new Fixed(in.readRawLittleEndian64(), true);
+	case WireFormat.WIRETYPE_FIXED32:
+	    return new Fixed(in.readRawLittleEndian32(), false);
+	case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+	    return in.readBytes();
+	default:
+	    in.skipField(tag);
+	    return null;
+	}
+    }
+
+    /**
+     * Read originating event id, which may be sent either as a plain string or
+     * wrapped in a {@link GOptionalString}.
+     * 
+     * @param value
+     * @return
+     */
+    protected String readOriginator(ByteString value) {
+	if (!value.isEmpty() && (value.byteAt(0) == WRAPPED_VALUE_TAG)) {
+	    try {
+		return GOptionalString.parseFrom(value).getValue();
+	    } catch (InvalidProtocolBufferException e) {
+		// Fall through and treat as plain string.
+	    }
+	}
+	return value.toStringUtf8();
+    }
+
+    /**
+     * Create originator from the event id in the header.
+     * 
+     * @param eventId
+     * @return
+     */
+    protected IDeviceEventOriginator createOriginator(String eventId) {
+	if ((eventId == null) || eventId.isEmpty()) {
+	    return null;
+	}
+	try {
+	    return new Originator(UUID.fromString(eventId));
+	} catch (IllegalArgumentException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Convert a decoded field to a handler parameter type. Missing fields take
+     * the protobuf default for the type. Integer types are narrowed from the raw
+     * value as the generated parser would, and fixed-width values are read as
+     * IEEE 754 bits for float and double types.
+     * 
+     * @param value
+     * @param type
+     * @return
+     * @throws SiteWhereAgentException
+     */
+    public static Object convert(Object value, Class<?> type) throws SiteWhereAgentException {
+	if ((type == String.class) || (type == CharSequence.class)) {
+	    return (value == null) ? "" : ((ByteString) value).toStringUtf8();
+	} else if (type == byte[].class) {
+	    return (value == null) ? new byte[0] : ((ByteString) value).toByteArray();
+	} else if (type == ByteString.class) {
+	    return (value == null) ? ByteString.EMPTY : value;
+	} else if ((type == boolean.class) || (type == Boolean.class)) {
+	    return toLong(value) != 0;
+	} else if ((type == double.class) || (type == Double.class)) {
+	    return toDouble(value);
+	} else if ((type == float.class) || (type == Float.class)) {
+	    return (float) toDouble(value);
+	} else if ((type == int.class) || (type == Integer.class)) {
+	    return (int) toLong(value);
+	} else if ((type == long.class) || (type == Long.class)) {
+	    return toLong(value);
+	} else if ((type == short.class) || (type == Short.class)) {
+	    return (short) toLong(value);
+	} else if ((type == byte.class) || (type == Byte.class)) {
+	    return (byte) toLong(value);
+	}
+	throw new SiteWhereAgentException("Unsupported parameter type for protobuf command: " + type.getName());
+    }
+
+    /**
+     * Get the raw value of a numeric field as a long. Fixed 32-bit values are
+     * sign extended, as the generated parser does for fixed32 and sfixed32.
+     * 
+     * @param value
+     * @return
+     */
+    protected static long toLong(Object value) {
+	if (value == null) {
+	    return 0;
+	} else if (value instanceof Fixed) {
+	    return ((Fixed) value).getBits();
+	}
+	return ((Number) value).longValue();
+    }
+
+    /**
+     * Get a numeric field as a double. Fixed-width values are read as the bits
+     * of a double or float, while varints are converted from their integer
+     * value.
+     * 
+     * @param value
+     * @return
+     */
+    protected static double toDouble(Object value) {
+	if (value == null) {
+	    return 0;
+	} else if (value instanceof Fixed) {
+	    Fixed fixed = (Fixed) value;
+	    if (fixed.isWide()) {
+		return Double.longBitsToDouble(fixed.getBits());
+	    }
+	    return Float.intBitsToFloat((int) fixed.getBits());
+	}
+	return ((Number) value).doubleValue();
+    }
+
+    public Map<Integer, String> getCommandNames() {
+	return commandNames;
+    }
+
+    /**
+     * Command decoded from a protobuf message.
+     * 
+     * @author Derek
+     */
+    public static class Command {
+
+	/** Command name */
+	private String name;
+
+	/** Raw field values indexed by field number */
+	private Map<Integer, Object> fields;
+
+	/** Highest field number present */
+	private int maxField;
+
+	/** Originating event */
+	private IDeviceEventOriginator originator;
+
+	public Command(String name, Map<Integer, Object> fields, int maxField, IDeviceEventOriginator originator) {
+	    this.name = name;
+	    this.fields = fields;
+	    this.maxField = maxField;
+	    this.originator = originator;
+	}
+
+	/**
+	 * Get parameters converted to the given types. Field numbers start at one.
+	 * 
+	 * @param types
+	 * @return
+	 * @throws SiteWhereAgentException
+	 */
+	public Object[] getParameters(Class<?>[] types) throws SiteWhereAgentException {
+	    Object[] parameters = new Object[types.length];
+	    for (int i = 0; i < types.length; i++) {
+		try {
+		    parameters[i] = convert(fields.get(i + 1), types[i]);
+		} catch (ClassCastException e) {
+		    throw new SiteWhereAgentException("Field " + (i + 1) + " of command '" + name
+			    + "' does not match parameter type " + types[i].getName() + ".", e);
+		}
+	    }
+	    return parameters;
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	public Map<Integer, Object> getFields() {
+	    return fields;
+	}
+
+	public int getMaxField() {
+	    return maxField;
+	}
+
+	public IDeviceEventOriginator getOriginator() {
+	    return originator;
+	}
+    }
+
+    /**
+     * Raw value of a fixed-width field, interpreted once the parameter type is
+     * known.
+     * 
+     * @author Derek
+     */
+    public static class Fixed {
+
+	/** Raw bits, sign extended for 32-bit values */
+	private final long bits;
+
+	/** Indicates a 64-bit rather than 32-bit value */
+	private final boolean wide;
+
+	public Fixed(long bits, boolean wide) {
+	    this.bits = bits;
+	    this.wide = wide;
+	}
+
+	public long getBits() {
+	    return bits;
+	}
+
+	public boolean isWide() {
+	    return wide;
+	}
+    }
+
+    /**
+     * Originator built from the event id in a protobuf command header.
+     * 
+     * @author Derek
+     */
+    private static class Originator implements IDeviceEventOriginator {
+
+	/** Serial version UID */
+	private static final long serialVersionUID = -1880531049442617366L;
+
+	/** Originating event id */
+	private UUID eventId;
+
+	public Originator(UUID eventId) {
+	    this.eventId = eventId;
+	}
+
+	@Override
+	public UUID getEventId() {
+	    return eventId;
+	}
+    }
+}
\ No newline at end of file
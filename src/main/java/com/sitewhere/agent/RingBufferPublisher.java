@@ -0,0 +1,309 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Publisher that hands payloads from any number of producer threads to a
+ * single writer thread through a bounded, lock-free ring of preallocated
+ * slots. Producers claim a slot with a compare-and-set on the claim sequence,
+ * fill it and mark it published, so they never wait on a lock or on each
+ * other. The writer takes slots in sequence order and passes each payload to
+ * the delegate publisher, which is therefore only ever called from one thread.
+ * 
+ * A producer waits only when the ring is full, which happens when the delegate
+ * cannot keep up. The writer spins briefly when the ring is empty before
+ * parking, and producers unpark it after publishing a slot.
+ * 
+ * Closing the publisher stops new payloads from being accepted and waits for
+ * the writer to pass on those already in the ring. A producer that claims a
+ * slot as the publisher is closed fails its future rather than leaving the
+ * payload in a ring that is no longer drained.
+ * 
+ * @author Derek
+ */
+public class RingBufferPublisher implements IOutboundPublisher, Closeable {
+
+    /** Default number of slots in the ring */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** Number of times the writer checks an empty ring before parking */
+    private static final int SPIN_TRIES = 200;
+
+    /** Time in nanoseconds a producer waits before checking a full ring again */
+    private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /** Time in milliseconds to wait for the writer to drain on close */
+    private static final long CLOSE_TIMEOUT_MS = 10000;
+
+    /** Publisher payloads are passed to */
+    private IOutboundPublisher delegate;
+
+    /** Number of slots (a power of two) */
+    private int capacity;
+
+    /** Mask mapping a sequence to a slot index */
+    private int mask;
+
+    /** Preallocated slots */
+    private Slot[] slots;
+
+    /** Sequence most recently published into each slot */
+    private AtomicLongArray published;
+
+    /** Next sequence to be claimed by a producer */
+    private AtomicLong claimed = new AtomicLong();
+
+    /** Next sequence to be taken by the writer */
+    private AtomicLong consumed = new AtomicLong();
+
+    /** Indicates the writer is parked waiting for a slot */
+    private volatile boolean sleeping;
+
+    /** Indicates whether the publisher has been closed */
+    private volatile boolean closed;
+
+    /** Thread passing payloads to the delegate */
+    private Thread writer;
+
+    public RingBufferPublisher(IOutboundPublisher delegate) {
+	this(delegate, DEFAULT_CAPACITY);
+    }
+
+    public RingBufferPublisher(IOutboundPublisher delegate, int capacity) {
+	if (capacity < 1) {
+	    throw new IllegalArgumentException("Ring must have at least one slot.");
+	}
+	this.delegate = delegate;
+	this.capacity = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+	this.mask = this.capacity - 1;
+	this.slots = new Slot[this.capacity];
+	this.published = new AtomicLongArray(this.capacity);
+	for (int i = 0; i < this.capacity; i++) {
+	    slots[i] = new Slot();
+	    published.set(i, -1);
+	}
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public void start() {
+	writer = OrderedExecutor.createThreadFactory("sitewhere-outbound-writer-", false).newThread(new Runnable() {
+
+	    @Override
+	    public void run() {
+		drain();
+	    }
+	});
+	writer.start();
+    }
+
+    /**
+     * Claim a slot, waiting only if the ring is full, and publish the payload
+     * into it.
+     * 
+     * @see com.sitewhere.agent.IOutboundPublisher#publish(java.lang.String, byte[],
+     * org.fusesource.mqtt.client.QoS, boolean)
+     */
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, QoS qos, boolean retain)
+	    throws InterruptedException {
+	long sequence;
+	do {
+	    sequence = claimed.get();
+	    while (sequence - consumed.get() >= capacity) {
+		if (closed) {
+		    throw new IllegalStateException("Outbound writer has been closed.");
+		}
+		LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+		if (Thread.interrupted()) {
+		    throw new InterruptedException();
+		}
+		sequence = claimed.get();
+	    }
+	    if (closed) {
+		throw new IllegalStateException("Outbound writer has been closed.");
+	    }
+	} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+	int index = (int) sequence & mask;
+	Slot slot = slots[index];
+	CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+	// If closed after the slot was claimed, the writer may already have exited.
+	// The slot is published empty so a writer still draining skips it.
+	if (closed) {
+	    future.completeExceptionally(new IllegalStateException("Outbound writer has been closed."));
+	} else {
+	    slot.topic = topic;
+	    slot.payload = payload;
+	    slot.qos = qos;
+	    slot.retain = retain;
+	    slot.future = future;
+	}
+	published.set(index, sequence);
+	if (sleeping) {
+	    LockSupport.unpark(writer);
+	}
+	return future;
+    }
+
+    /**
+     * Writer loop that takes slots in sequence order and passes their payloads to
+     * the delegate. Exits once closed and every claimed slot has been taken.
+     */
+    protected void drain() {
+	long next = consumed.get();
+	int idle = 0;
+	while (true) {
+	    int index = (int) next & mask;
+	    if (published.get(index) == next) {
+		Slot slot = slots[index];
+		String topic = slot.topic;
+		byte[] payload = slot.payload;
+		QoS qos = slot.qos;
+		boolean retain = slot.retain;
+		CompletableFuture<Void> future = slot.future;
+		slot.clear();
+		consumed.lazySet(++next);
+		if (future != null) {
+		    send(topic, payload, qos, retain, future);
+		}
+		idle = 0;
+	    } else if (closed && (claimed.get() == next)) {
+		return;
+	    } else if (idle < SPIN_TRIES) {
+		idle++;
+	    } else {
+		sleeping = true;
+		if ((published.get(index) != next) && !closed) {
+		    LockSupport.park(this);
+		}
+		sleeping = false;
+		Thread.interrupted();
+	    }
+	}
+    }
+
+    /**
+     * Pass a payload to the delegate and complete its future once the delegate
+     * is done with it.
+     * 
+     * @param topic
+     * @param payload
+     * @param qos
+     * @param retain
+     * @param future
+     */
+    protected void send(String topic, byte[] payload, QoS qos, boolean retain,
+	    final CompletableFuture<Void> future) {
+	try {
+	    getDelegate().publish(topic, payload, qos, retain).whenComplete(new BiConsumer<Void, Throwable>() {
+
+		@Override
+		public void accept(Void result, Throwable error) {
+		    if (error != null) {
+			future.completeExceptionally(error);
+		    } else {
+			future.complete(null);
+		    }
+		}
+	    });
+	} catch (Throwable e) {
+	    future.completeExceptionally(e);
+	}
+    }
+
+    /**
+     * Get number of payloads waiting in the ring.
+     * 
+     * @return
+     */
+    public int getDepth() {
+	return (int) Math.max(0, claimed.get() - consumed.get());
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	closed = true;
+	if (writer != null) {
+	    LockSupport.unpark(writer);
+	    try {
+		writer.join(CLOSE_TIMEOUT_MS);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	if (getDelegate() instanceof Closeable) {
+	    ((Closeable) getDelegate()).close();
+	}
+    }
+
+    public IOutboundPublisher getDelegate() {
+	return delegate;
+    }
+
+    public int getCapacity() {
+	return capacity;
+    }
+
+    /**
+     * Preallocated slot holding a payload between producer and writer.
+     * 
+     * @author Derek
+     */
+    private static class Slot {
+
+	/** Topic to publish to */
+	private String topic;
+
+	/** Encoded payload */
+	private byte[] payload;
+
+	/** QoS to publish with */
+	private QoS qos;
+
+	/** Indicates whether the message is retained */
+	private boolean retain;
+
+	/** Completed once the delegate is done with the payload */
+	private CompletableFuture<Void> future;
+
+	/**
+	 * Drop references so payloads can be collected while the slot is unused.
+	 */
+	public void clear() {
+	    topic = null;
+	    payload = null;
+	    qos = null;
+	    future = null;
+	}
+    }
+}
\ No newline at end of file
@@ -0,0 +1,442 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact encoding for a {@link MeasurementSeries}, carrying the device token,
+ * originator and measurement name once followed by the samples compressed as
+ * in Facebook's Gorilla time-series store. Sample times are written as the
+ * difference between consecutive deltas, which takes a single bit for a sensor
+ * sampled at a steady rate. Each value is written as its XOR with the previous
+ * value, storing only the bits between the leading and trailing zeros, which
+ * takes a single bit for a repeated value and few bits for a slowly changing
+ * one.
+ * 
+ * The layout is a magic byte and version, then varint-prefixed UTF-8 strings
+ * for device token, originator (empty if none) and name, a varint sample
+ * count, the first time and the raw bits of the first value, then a bit stream
+ * holding the remaining samples.
+ * 
+ * @author Derek
+ */
+public class SeriesCodec {
+
+    /** First byte of every encoded series */
+    public static final int MAGIC = 0x53;
+
+    /** Version of the encoding */
+    public static final int VERSION = 1;
+
+    /** Delta-of-delta encodings as prefix bits, prefix length and value bits */
+    private static final int[][] TIME_BUCKETS = { { 0x2, 2, 7 }, { 0x6, 3, 9 }, { 0xE, 4, 12 } };
+
+    /** Prefix written before a delta-of-delta that fits no bucket */
+    private static final int TIME_ESCAPE = 0xF;
+
+    /** Largest number of leading zeros that can be stored for a value */
+    private static final int MAX_LEADING = 31;
+
+    private SeriesCodec() {
+    }
+
+    /**
+     * Encode a series of samples for a device.
+     * 
+     * @param series
+     * @param deviceToken
+     * @param originator
+     * @return
+     */
+    public static byte[] encode(MeasurementSeries series, String deviceToken, String originator) {
+	int count = series.size();
+	BitWriter out = new BitWriter(64 + (count * 2));
+	out.writeBits(MAGIC, 8);
+	out.writeBits(VERSION, 8);
+	out.writeString(deviceToken);
+	out.writeString(originator);
+	out.writeString(series.getName());
+	out.writeVarint(count);
+	if (count == 0) {
+	    return out.toByteArray();
+	}
+
+	long time = series.getTime(0);
+	long value = Double.doubleToRawLongBits(series.getValue(0));
+	out.writeBits(time, 64);
+	out.writeBits(value, 64);
+	long delta = 0;
+	int leading = -1;
+	int trailing = 0;
+	for (int i = 1; i < count; i++) {
+	    long nextTime = series.getTime(i);
+	    long nextDelta = nextTime - time;
+	    writeTime(out, nextDelta - delta);
+	    time = nextTime;
+	    delta = nextDelta;
+
+	    long nextValue = Double.doubleToRawLongBits(series.getValue(i));
+	    long xor = nextValue ^ value;
+	    value = nextValue;
+	    if (xor == 0) {
+		out.writeBit(false);
+		continue;
+	    }
+	    out.writeBit(true);
+	    int lead = Math.min(Long.numberOfLeadingZeros(xor), MAX_LEADING);
+	    int trail = Long.numberOfTrailingZeros(xor);
+	    if ((leading >= 0) && (lead >= leading) && (trail >= trailing)) {
+		out.writeBit(false);
+		out.writeBits(xor >>> trailing, 64 - leading - trailing);
+	    } else {
+		leading = lead;
+		trailing = trail;
+		int meaningful = 64 - lead - trail;
+		out.writeBit(true);
+		out.writeBits(lead, 5);
+		out.writeBits(meaningful - 1, 6);
+		out.writeBits(xor >>> trail, meaningful);
+	    }
+	}
+	return out.toByteArray();
+    }
+
+    /**
+     * Write the change in delta between sample times using the smallest bucket
+     * that holds it.
+     * 
+     * @param out
+     * @param dod
+     */
+    protected static void writeTime(BitWriter out, long dod) {
+	if (dod == 0) {
+	    out.writeBit(false);
+	    return;
+	}
+	for (int[] bucket : TIME_BUCKETS) {
+	    long limit = 1L << (bucket[2] - 1);
+	    if ((dod >= -limit) && (dod < limit)) {
+		out.writeBits(bucket[0], bucket[1]);
+		out.writeBits(dod, bucket[2]);
+		return;
+	    }
+	}
+	out.writeBits(TIME_ESCAPE, 4);
+	out.writeBits(dod, 64);
+    }
+
+    /**
+     * Decode a series encoded by {@link #encode(MeasurementSeries, String, String)}.
+     * 
+     * @param payload
+     * @return
+     * @throws IOException if the payload is not a valid series
+     */
+    public static DecodedSeries decode(byte[] payload) throws IOException {
+	BitReader in = new BitReader(payload);
+	if ((in.readBits(8) != MAGIC) || (in.readBits(8) != VERSION)) {
+	    throw new IOException("Payload is not an encoded measurement series.");
+	}
+	String deviceToken = in.readString();
+	String originator = in.readString();
+	String name = in.readString();
+	int count = (int) in.readVarint();
+	if (count < 0) {
+	    throw new IOException("Invalid sample count: " + count);
+	}
+	MeasurementSeries series = new MeasurementSeries(name, count);
+	if (count > 0) {
+	    long time = in.readBits(64);
+	    long value = in.readBits(64);
+	    series.add(time, Double.longBitsToDouble(value));
+	    long delta = 0;
+	    int leading = 0;
+	    int trailing = 0;
+	    for (int i = 1; i < count; i++) {
+		delta += readTime(in);
+		time += delta;
+
+		if (in.readBit()) {
+		    if (in.readBit()) {
+			leading = (int) in.readBits(5);
+			int meaningful = (int) in.readBits(6) + 1;
+			trailing = 64 - leading - meaningful;
+			if (trailing < 0) {
+			    throw new IOException("Invalid value encoding in sample " + i + ".");
+			}
+		    }
+		    value ^= in.readBits(64 - leading - trailing) << trailing;
+		}
+		series.add(time, Double.longBitsToDouble(value));
+	    }
+	}
+	return new DecodedSeries(deviceToken, originator.isEmpty() ? null : originator, series);
+    }
+
+    /**
+     * Read the change in delta between sample times.
+     * 
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    protected static long readTime(BitReader in) throws IOException {
+	if (!in.readBit()) {
+	    return 0;
+	}
+	int prefix = 1;
+	for (int[] bucket : TIME_BUCKETS) {
+	    prefix = (prefix << 1) | (in.readBit() ? 1 : 0);
+	    if (prefix == bucket[0]) {
+		return signExtend(in.readBits(bucket[2]), bucket[2]);
+	    }
+	}
+	return in.readBits(64);
+    }
+
+    /**
+     * Restore the sign of a value stored in fewer than 64 bits.
+     * 
+     * @param value
+     * @param bits
+     * @return
+     */
+    protected static long signExtend(long value, int bits) {
+	return (value << (64 - bits)) >> (64 - bits);
+    }
+
+    /**
+     * Series decoded from a payload along with the device it belongs to.
+     * 
+     * @author Derek
+     */
+    public static class DecodedSeries {
+
+	/** Token of device the series belongs to */
+	private String deviceToken;
+
+	/** Id of the event that caused the series (may be null) */
+	private String originator;
+
+	/** Decoded samples */
+	private MeasurementSeries series;
+
+	public DecodedSeries(String deviceToken, String originator, MeasurementSeries series) {
+	    this.deviceToken = deviceToken;
+	    this.originator = originator;
+	    this.series = series;
+	}
+
+	public String getDeviceToken() {
+	    return deviceToken;
+	}
+
+	public String getOriginator() {
+	    return originator;
+	}
+
+	public MeasurementSeries getSeries() {
+	    return series;
+	}
+    }
+
+    /**
+     * Writes values of any number of bits, most significant bit first, into a
+     * growing array.
+     * 
+     * @author Derek
+     */
+    protected static class BitWriter {
+
+	/** Bytes written so far */
+	private byte[] buffer;
+
+	/** Number of bits written */
+	private long position;
+
+	public BitWriter(int capacity) {
+	    this.buffer = new byte[Math.max(16, capacity)];
+	}
+
+	/**
+	 * Write a single bit.
+	 * 
+	 * @param bit
+	 */
+	public void writeBit(boolean bit) {
+	    writeBits(bit ? 1 : 0, 1);
+	}
+
+	/**
+	 * Write the low bits of a value.
+	 * 
+	 * @param value
+	 * @param bits number of bits from 0 to 64
+	 */
+	public void writeBits(long value, int bits) {
+	    ensureCapacity(bits);
+	    while (bits > 0) {
+		int index = (int) (position >>> 3);
+		int free = 8 - (int) (position & 7);
+		int take = Math.min(free, bits);
+		int chunk = (int) (value >>> (bits - take)) & ((1 << take) - 1);
+		buffer[index] |= chunk << (free - take);
+		position += take;
+		bits -= take;
+	    }
+	}
+
+	/**
+	 * Write an unsigned varint a byte at a time.
+	 * 
+	 * @param value
+	 */
+	public void writeVarint(long value) {
+	    while ((value & ~0x7FL) != 0) {
+		writeBits((value & 0x7F) | 0x80, 8);
+		value >>>= 7;
+	    }
+	    writeBits(value, 8);
+	}
+
+	/**
+	 * Write a string as its UTF-8 length and bytes. A null string is written as
+	 * an empty one.
+	 * 
+	 * @param value
+	 */
+	public void writeString(String value) {
+	    byte[] bytes = (value == null) ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+	    writeVarint(bytes.length);
+	    for (byte b : bytes) {
+		writeBits(b, 8);
+	    }
+	}
+
+	/**
+	 * Grow the buffer to hold the given number of additional bits.
+	 * 
+	 * @param bits
+	 */
+	protected void ensureCapacity(int bits) {
+	    long needed = (position + bits + 7) >>> 3;
+	    if (needed > buffer.length) {
+		buffer = Arrays.copyOf(buffer, (int) Math.max(needed, buffer.length * 2L));
+	    }
+	}
+
+	/**
+	 * Get the bytes written, with the last byte padded with zero bits.
+	 * 
+	 * @return
+	 */
+	public byte[] toByteArray() {
+	    return Arrays.copyOf(buffer, (int) ((position + 7) >>> 3));
+	}
+    }
+
+    /**
+     * Reads values written by {@link BitWriter}.
+     * 
+     * @author Derek
+     */
+    protected static class BitReader {
+
+	/** Bytes being read */
+	private byte[] buffer;
+
+	/** Number of bits read */
+	private long position;
+
+	public BitReader(byte[] buffer) {
+	    this.buffer = buffer;
+	}
+
+	/**
+	 * Read a single bit.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean readBit() throws IOException {
+	    return readBits(1) != 0;
+	}
+
+	/**
+	 * Read a value of the given number of bits.
+	 * 
+	 * @param bits number of bits from 0 to 64
+	 * @return
+	 * @throws IOException if the buffer ends first
+	 */
+	public long readBits(int bits) throws IOException {
+	    if (position + bits > buffer.length * 8L) {
+		throw new EOFException("Encoded series ended unexpectedly.");
+	    }
+	    long value = 0;
+	    while (bits > 0) {
+		int index = (int) (position >>> 3);
+		int available = 8 - (int) (position & 7);
+		int take = Math.min(available, bits);
+		int chunk = (buffer[index] >>> (available - take)) & ((1 << take) - 1);
+		value = (value << take) | chunk;
+		position += take;
+		bits -= take;
+	    }
+	    return value;
+	}
+
+	/**
+	 * Read an unsigned varint.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public long readVarint() throws IOException {
+	    long value = 0;
+	    for (int shift = 0; shift < 64; shift += 7) {
+		long b = readBits(8);
+		value |= (b & 0x7F) << shift;
+		if ((b & 0x80) == 0) {
+		    return value;
+		}
+	    }
+	    throw new IOException("Malformed varint in encoded series.");
+	}
+
+	/**
+	 * Read a string written as its UTF-8 length and bytes.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public String readString() throws IOException {
+	    long length = readVarint();
+	    if ((length < 0) || (length > buffer.length)) {
+		throw new IOException("Invalid string length in encoded series: " + length);
+	    }
+	    byte[] bytes = new byte[(int) length];
+	    for (int i = 0; i < bytes.length; i++) {
+		bytes[i] = (byte) readBits(8);
+	    }
+	    return new String(bytes, StandardCharsets.UTF_8);
+	}
+    }
+}
\ No newline at end of file
@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAcknowledge;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAlert;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceLocation;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceRegistrationRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamDataRequest;
+
+/**
+ * Event dispatcher that spreads events across several dispatchers, each
+ * normally publishing over its own MQTT connection. Events are assigned to a
+ * shard by device token, so all events for a device travel over the same
+ * connection and keep their order.
+ * 
+ * @author Derek
+ */
+public class ShardedEventDispatcher implements IAsyncEventDispatcher, Closeable {
+
+    /** Dispatchers events are spread across */
+    private List<IAsyncEventDispatcher> shards;
+
+    public ShardedEventDispatcher(List<IAsyncEventDispatcher> shards) {
+	if (shards.isEmpty()) {
+	    throw new IllegalArgumentException("At least one shard is required.");
+	}
+	this.shards = new ArrayList<IAsyncEventDispatcher>(shards);
+    }
+
+    /**
+     * Get the shard that carries events for a device.
+     * 
+     * @param deviceToken
+     * @return
+     */
+    public IAsyncEventDispatcher getShard(String deviceToken) {
+	int hash = (deviceToken != null) ? deviceToken.hashCode() : 0;
+	hash ^= (hash >>> 16);
+	return shards.get(Math.floorMod(hash, shards.size()));
+    }
+
+    @Override
+    public void registerDevice(DeviceRegistrationRequest register, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getShard(deviceToken).registerDevice(register, deviceToken, originator);
+    }
+
+    @Override
+    public void acknowledge(DeviceAcknowledge ack, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getShard(deviceToken).acknowledge(ack, deviceToken, originator);
+    }
+
+    @Override
+    public void sendMeasurement(DeviceMeasurement measurement, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getShard(deviceToken).sendMeasurement(measurement, deviceToken, originator);
+    }
+
+    @Override
+    public void sendLocation(DeviceLocation location, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getShard(deviceToken).sendLocation(location, deviceToken, originator);
+    }
+
+    @Override
+    public void sendAlert(DeviceAlert alert, String deviceToken, String originator) throws SiteWhereAgentException {
+	getShard(deviceToken).sendAlert(alert, deviceToken, originator);
+    }
+
+    @Override
+    public void createDeviceStream(DeviceStream stream, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getShard(deviceToken).createDeviceStream(stream, deviceToken, originator);
+    }
+
+    @Override
+    public void sendDeviceStreamData(DeviceStreamData data, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getShard(deviceToken).sendDeviceStreamData(data, deviceToken, originator);
+    }
+
+    @Override
+    public void requestDeviceStreamData(DeviceStreamDataRequest request, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getShard(deviceToken).requestDeviceStreamData(request, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> registerDeviceAsync(DeviceRegistrationRequest register, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getShard(deviceToken).registerDeviceAsync(register, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeAsync(DeviceAcknowledge ack, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return getShard(deviceToken).acknowledgeAsync(ack, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMeasurementAsync(DeviceMeasurement measurement, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getShard(deviceToken).sendMeasurementAsync(measurement, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendLocationAsync(DeviceLocation location, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return getShard(deviceToken).sendLocationAsync(location, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAlertAsync(DeviceAlert alert, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return getShard(deviceToken).sendAlertAsync(alert, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> createDeviceStreamAsync(DeviceStream stream, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getShard(deviceToken).createDeviceStreamAsync(stream, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendDeviceStreamDataAsync(DeviceStreamData data, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getShard(deviceToken).sendDeviceStreamDataAsync(data, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> requestDeviceStreamDataAsync(DeviceStreamDataRequest request, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getShard(deviceToken).requestDeviceStreamDataAsync(request, deviceToken, originator);
+    }
+
+    @Override
+    public void sendMeasurementSeries(MeasurementSeries series, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getShard(deviceToken).sendMeasurementSeries(series, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMeasurementSeriesAsync(MeasurementSeries series, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getShard(deviceToken).sendMeasurementSeriesAsync(series, deviceToken, originator);
+    }
+
+    @Override
+    public void dispatch(List<OutboundEvent> events) throws SiteWhereAgentException {
+	for (Map.Entry<IAsyncEventDispatcher, List<OutboundEvent>> entry : split(events).entrySet()) {
+	    entry.getKey().dispatch(entry.getValue());
+	}
+    }
+
+    @Override
+    public CompletableFuture<Void> dispatchAsync(List<OutboundEvent> events) throws SiteWhereAgentException {
+	Map<IAsyncEventDispatcher, List<OutboundEvent>> byShard = split(events);
+	if (byShard.size() == 1) {
+	    Map.Entry<IAsyncEventDispatcher, List<OutboundEvent>> entry = byShard.entrySet().iterator().next();
+	    return entry.getKey().dispatchAsync(entry.getValue());
+	}
+	List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(byShard.size());
+	for (Map.Entry<IAsyncEventDispatcher, List<OutboundEvent>> entry : byShard.entrySet()) {
+	    futures.add(entry.getKey().dispatchAsync(entry.getValue()));
+	}
+	return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+
+    /**
+     * Group events by the shard that carries them, keeping the order of events
+     * within each shard.
+     * 
+     * @param events
+     * @return
+     */
+    protected Map<IAsyncEventDispatcher, List<OutboundEvent>> split(List<OutboundEvent> events) {
+	Map<IAsyncEventDispatcher, List<OutboundEvent>> byShard =
+		new LinkedHashMap<IAsyncEventDispatcher, List<OutboundEvent>>();
+	for (OutboundEvent event : events) {
+	    IAsyncEventDispatcher shard = getShard(event.getDeviceToken());
+	    List<OutboundEvent> list = byShard.get(shard);
+	    if (list == null) {
+		list = new ArrayList<OutboundEvent>();
+		byShard.put(shard, list);
+	    }
+	    list.add(event);
+	}
+	return byShard;
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	IOException failure = null;
+	for (IAsyncEventDispatcher shard : shards) {
+	    if (shard instanceof Closeable) {
+		try {
+		    ((Closeable) shard).close();
+		} catch (IOException e) {
+		    failure = e;
+		}
+	    }
+	}
+	if (failure != null) {
+	    throw failure;
+	}
+    }
+
+    public List<IAsyncEventDispatcher> getShards() {
+	return shards;
+    }
+}
\ No newline at end of file
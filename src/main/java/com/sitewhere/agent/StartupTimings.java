@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of agent startup took, so that a slow start can
+ * be traced to the phase responsible. Phases may finish on different threads
+ * and are kept in the order they finish. When metrics are enabled, each phase
+ * is also exposed as a member of the 'startup.phase.ms' gauge family.
+ * 
+ * @author Derek
+ */
+public class StartupTimings {
+
+    /** Time startup began */
+    private final long startNanos;
+
+    /** Duration in milliseconds of each finished phase */
+    private Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    /** Metrics the phase durations are exposed through */
+    private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+    public StartupTimings() {
+	this(System.nanoTime());
+    }
+
+    public StartupTimings(long startNanos) {
+	this.startNanos = startNanos;
+    }
+
+    /**
+     * Record a phase that has just finished.
+     * 
+     * @param phase
+     * @param phaseStartNanos
+     *            value of {@link System#nanoTime()} when the phase began
+     * @return duration of the phase in milliseconds
+     */
+    public long record(String phase, long phaseStartNanos) {
+	final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - phaseStartNanos);
+	synchronized (phases) {
+	    phases.put(phase, elapsedMs);
+	}
+	getMetrics().gauge("startup.phase.ms", "phase", phase, new IGauge() {
+
+	    @Override
+	    public double getValue() {
+		return elapsedMs;
+	    }
+	});
+	return elapsedMs;
+    }
+
+    /**
+     * Get time in milliseconds since startup began.
+     * 
+     * @return
+     */
+    public long getElapsedMs() {
+	return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Get duration in milliseconds of each finished phase.
+     * 
+     * @return
+     */
+    public Map<String, Long> getPhases() {
+	synchronized (phases) {
+	    return new LinkedHashMap<String, Long>(phases);
+	}
+    }
+
+    /*
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+	StringBuilder summary = new StringBuilder();
+	for (Map.Entry<String, Long> phase : getPhases().entrySet()) {
+	    if (summary.length() > 0) {
+		summary.append(", ");
+	    }
+	    summary.append(phase.getKey()).append(" ").append(phase.getValue()).append(" ms");
+	}
+	return summary.toString();
+    }
+
+    public long getStartNanos() {
+	return startNanos;
+    }
+
+    public MetricsRegistry getMetrics() {
+	return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry metrics) {
+	this.metrics = metrics;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,406 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs periodic telemetry tasks for all command processors of an agent on a
+ * small shared pool of threads, so devices do not each need a thread that
+ * spends most of its time asleep.
+ * 
+ * Tasks may run at a fixed rate or with a fixed delay between runs, optionally
+ * with random jitter so many devices started together do not all sample at the
+ * same instant. Aligned tasks run when the wall clock reaches a multiple of
+ * their period, and all aligned tasks with the same period share a single
+ * timer and run back-to-back as a batch, so their events arrive together and
+ * can be published together.
+ * 
+ * A task that throws is logged and runs again on its next cycle.
+ * 
+ * Each command processor is given a child created by {@link #createChild()},
+ * which runs its tasks on the shared pool and batches but cancels only its own
+ * tasks when closed, so a removed device stops sending telemetry.
+ * 
+ * @author Derek
+ */
+public class TelemetryScheduler implements Closeable {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(TelemetryScheduler.class.getName());
+
+    /** Default number of scheduler threads */
+    public static final int DEFAULT_THREADS = 1;
+
+    /** Time in milliseconds to wait for running tasks on close */
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    /** Executor running tasks */
+    private ScheduledExecutorService executor;
+
+    /** Batches of aligned tasks indexed by period */
+    private Map<Long, Batch> batches = new HashMap<Long, Batch>();
+
+    /** Metrics for task execution */
+    private MetricsRegistry metrics = MetricsRegistry.DISABLED;
+
+    /** Scheduler that runs the tasks of a child (null unless a child) */
+    private TelemetryScheduler parent;
+
+    /** Tasks scheduled through a child */
+    private List<ScheduledTask> owned = new CopyOnWriteArrayList<ScheduledTask>();
+
+    /** Indicates whether a child has been closed */
+    private boolean closed;
+
+    public TelemetryScheduler() {
+	this(DEFAULT_THREADS);
+    }
+
+    public TelemetryScheduler(int threads) {
+	ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads,
+		OrderedExecutor.createThreadFactory("sitewhere-telemetry-", false));
+	pool.setRemoveOnCancelPolicy(true);
+	pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	this.executor = pool;
+    }
+
+    protected TelemetryScheduler(TelemetryScheduler parent) {
+	this.parent = parent;
+	this.executor = parent.executor;
+    }
+
+    /**
+     * Create a scheduler that runs tasks on this one. Closing the child cancels
+     * the tasks scheduled through it and leaves all others running.
+     * 
+     * @return
+     */
+    public TelemetryScheduler createChild() {
+	return new TelemetryScheduler(this);
+    }
+
+    /**
+     * Run a task every period. The first run happens after a random delay of up
+     * to the jitter, which fixes the phase of the task relative to others.
+     * 
+     * @param task
+     * @param periodMs
+     * @param jitterMs
+     * @return
+     */
+    public ScheduledTask scheduleAtFixedRate(ITelemetryTask task, long periodMs, long jitterMs) {
+	if (parent != null) {
+	    return isClosed() ? closed(task) : own(parent.scheduleAtFixedRate(task, periodMs, jitterMs));
+	}
+	final ScheduledTask scheduled = new ScheduledTask(task);
+	scheduled.future = executor.scheduleAtFixedRate(new Runnable() {
+
+	    @Override
+	    public void run() {
+		scheduled.execute();
+	    }
+	}, jitter(jitterMs), periodMs, TimeUnit.MILLISECONDS);
+	return scheduled;
+    }
+
+    /**
+     * Run a task repeatedly, waiting the delay plus a random jitter between the
+     * end of one run and the start of the next.
+     * 
+     * @param task
+     * @param delayMs
+     * @param jitterMs
+     * @return
+     */
+    public ScheduledTask scheduleWithFixedDelay(ITelemetryTask task, long delayMs, long jitterMs) {
+	if (parent != null) {
+	    return isClosed() ? closed(task) : own(parent.scheduleWithFixedDelay(task, delayMs, jitterMs));
+	}
+	ScheduledTask scheduled = new ScheduledTask(task);
+	new Repeating(scheduled, delayMs, jitterMs).schedule();
+	return scheduled;
+    }
+
+    /**
+     * Run a task each time the wall clock reaches a multiple of the period, in a
+     * batch with all other aligned tasks that have the same period.
+     * 
+     * @param task
+     * @param periodMs
+     * @return
+     */
+    public synchronized ScheduledTask scheduleAligned(ITelemetryTask task, long periodMs) {
+	if (parent != null) {
+	    return isClosed() ? closed(task) : own(parent.scheduleAligned(task, periodMs));
+	}
+	Batch batch = batches.get(periodMs);
+	if (batch == null) {
+	    batch = new Batch(periodMs);
+	    long delay = periodMs - (System.currentTimeMillis() % periodMs);
+	    batch.future = executor.scheduleAtFixedRate(batch, delay, periodMs, TimeUnit.MILLISECONDS);
+	    batches.put(periodMs, batch);
+	}
+	ScheduledTask scheduled = new ScheduledTask(task);
+	scheduled.batch = batch;
+	batch.tasks.add(scheduled);
+	return scheduled;
+    }
+
+    /**
+     * Get a handle for a task scheduled on a closed child, which never runs.
+     * 
+     * @param task
+     * @return
+     */
+    protected ScheduledTask closed(ITelemetryTask task) {
+	ScheduledTask scheduled = new ScheduledTask(task);
+	scheduled.cancelled = true;
+	return scheduled;
+    }
+
+    /**
+     * Record a task scheduled through a child, cancelling it at once if the child
+     * has already been closed.
+     * 
+     * @param scheduled
+     * @return
+     */
+    protected synchronized ScheduledTask own(ScheduledTask scheduled) {
+	if (closed) {
+	    scheduled.cancel();
+	    return scheduled;
+	}
+	for (ScheduledTask existing : owned) {
+	    if (existing.isCancelled()) {
+		owned.remove(existing);
+	    }
+	}
+	owned.add(scheduled);
+	return scheduled;
+    }
+
+    /**
+     * Remove a cancelled task from its batch, stopping the batch timer once no
+     * tasks remain.
+     * 
+     * @param scheduled
+     */
+    protected synchronized void removeFromBatch(ScheduledTask scheduled) {
+	Batch batch = scheduled.batch;
+	batch.tasks.remove(scheduled);
+	if (batch.tasks.isEmpty() && (batches.get(batch.periodMs) == batch)) {
+	    batch.future.cancel(false);
+	    batches.remove(batch.periodMs);
+	}
+    }
+
+    /**
+     * Get a random delay between zero and the given jitter.
+     * 
+     * @param jitterMs
+     * @return
+     */
+    protected static long jitter(long jitterMs) {
+	return (jitterMs > 0) ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0;
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+	if (parent != null) {
+	    synchronized (this) {
+		closed = true;
+	    }
+	    for (ScheduledTask scheduled : owned) {
+		scheduled.cancel();
+	    }
+	    owned.clear();
+	    return;
+	}
+	executor.shutdownNow();
+	try {
+	    if (!executor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+		LOGGER.warning("Telemetry tasks did not finish before shutdown.");
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	synchronized (this) {
+	    batches.clear();
+	}
+    }
+
+    protected synchronized boolean isClosed() {
+	return closed;
+    }
+
+    public MetricsRegistry getMetrics() {
+	return metrics;
+    }
+
+    public void setMetrics(MetricsRegistry metrics) {
+	this.metrics = metrics;
+    }
+
+    /**
+     * Handle for a scheduled task.
+     * 
+     * @author Derek
+     */
+    public class ScheduledTask {
+
+	/** Task being run */
+	private ITelemetryTask task;
+
+	/** Future for the timer running the task (null for aligned tasks) */
+	private volatile ScheduledFuture<?> future;
+
+	/** Batch the task belongs to (null unless aligned) */
+	private Batch batch;
+
+	/** Indicates whether the task has been cancelled */
+	private volatile boolean cancelled;
+
+	public ScheduledTask(ITelemetryTask task) {
+	    this.task = task;
+	}
+
+	/**
+	 * Run one cycle of the task, logging any failure.
+	 */
+	protected void execute() {
+	    if (cancelled) {
+		return;
+	    }
+	    try {
+		task.run();
+		getMetrics().counter("telemetry.runs").increment();
+	    } catch (Throwable e) {
+		getMetrics().counter("telemetry.failures").increment();
+		LOGGER.log(Level.WARNING, "Telemetry task failed.", e);
+	    }
+	}
+
+	/**
+	 * Stop running the task. A run already in progress is allowed to finish.
+	 */
+	public void cancel() {
+	    cancelled = true;
+	    ScheduledFuture<?> current = future;
+	    if (current != null) {
+		current.cancel(false);
+	    }
+	    if (batch != null) {
+		removeFromBatch(this);
+	    }
+	}
+
+	public boolean isCancelled() {
+	    return cancelled;
+	}
+
+	public ITelemetryTask getTask() {
+	    return task;
+	}
+    }
+
+    /**
+     * Reschedules a task after each run with a fresh jittered delay.
+     * 
+     * @author Derek
+     */
+    private class Repeating implements Runnable {
+
+	/** Task being run */
+	private ScheduledTask scheduled;
+
+	/** Delay between runs */
+	private long delayMs;
+
+	/** Maximum random delay added to each wait */
+	private long jitterMs;
+
+	public Repeating(ScheduledTask scheduled, long delayMs, long jitterMs) {
+	    this.scheduled = scheduled;
+	    this.delayMs = delayMs;
+	    this.jitterMs = jitterMs;
+	}
+
+	@Override
+	public void run() {
+	    scheduled.execute();
+	    schedule();
+	}
+
+	/**
+	 * Schedule the next run unless the task was cancelled or the scheduler
+	 * closed.
+	 */
+	protected void schedule() {
+	    if (scheduled.isCancelled()) {
+		return;
+	    }
+	    try {
+		scheduled.future = executor.schedule(this, delayMs + jitter(jitterMs), TimeUnit.MILLISECONDS);
+	    } catch (RejectedExecutionException e) {
+		// Scheduler is closed.
+	    }
+	}
+    }
+
+    /**
+     * Aligned tasks sharing a period.
+     * 
+     * @author Derek
+     */
+    private class Batch implements Runnable {
+
+	/** Period shared by tasks */
+	private long periodMs;
+
+	/** Tasks run each period */
+	private List<ScheduledTask> tasks = new CopyOnWriteArrayList<ScheduledTask>();
+
+	/** Future for the batch timer */
+	private ScheduledFuture<?> future;
+
+	public Batch(long periodMs) {
+	    this.periodMs = periodMs;
+	}
+
+	@Override
+	public void run() {
+	    for (ScheduledTask scheduled : tasks) {
+		scheduled.execute();
+	    }
+	}
+    }
+}
\ No newline at end of file
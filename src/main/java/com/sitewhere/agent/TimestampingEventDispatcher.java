@@ -0,0 +1,301 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAcknowledge;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAlert;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceLocation;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceRegistrationRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamDataRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
+
+/**
+ * Dispatcher placed ahead of all others that dates measurements, locations,
+ * alerts and stream data with the time they were handed to the agent if they
+ * do not carry a date already. The date is part of the event message, so it is
+ * kept while the event waits in a batch, priority lane or journal, and
+ * SiteWhere records when the event happened rather than when it arrived.
+ * 
+ * Events are only rebuilt when they have no date, so events dated by the
+ * command processor pass through unchanged.
+ * 
+ * @author Derek
+ */
+public class TimestampingEventDispatcher implements IAsyncEventDispatcher, Closeable {
+
+    /** Dispatcher that receives dated events */
+    private IAsyncEventDispatcher delegate;
+
+    /** Clock events are dated with */
+    private EventClock clock;
+
+    public TimestampingEventDispatcher(IAsyncEventDispatcher delegate, EventClock clock) {
+	this.delegate = delegate;
+	this.clock = clock;
+    }
+
+    @Override
+    public void registerDevice(DeviceRegistrationRequest register, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().registerDevice(register, deviceToken, originator);
+    }
+
+    @Override
+    public void acknowledge(DeviceAcknowledge ack, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().acknowledge(ack, deviceToken, originator);
+    }
+
+    @Override
+    public void sendMeasurement(DeviceMeasurement measurement, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().sendMeasurement(stamp(measurement), deviceToken, originator);
+    }
+
+    @Override
+    public void sendLocation(DeviceLocation location, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().sendLocation(stamp(location), deviceToken, originator);
+    }
+
+    @Override
+    public void sendAlert(DeviceAlert alert, String deviceToken, String originator) throws SiteWhereAgentException {
+	getDelegate().sendAlert(stamp(alert), deviceToken, originator);
+    }
+
+    @Override
+    public void createDeviceStream(DeviceStream stream, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().createDeviceStream(stream, deviceToken, originator);
+    }
+
+    @Override
+    public void sendDeviceStreamData(DeviceStreamData data, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().sendDeviceStreamData(stamp(data), deviceToken, originator);
+    }
+
+    @Override
+    public void requestDeviceStreamData(DeviceStreamDataRequest request, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().requestDeviceStreamData(request, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> registerDeviceAsync(DeviceRegistrationRequest register, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().registerDeviceAsync(register, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> acknowledgeAsync(DeviceAcknowledge ack, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return getDelegate().acknowledgeAsync(ack, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMeasurementAsync(DeviceMeasurement measurement, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().sendMeasurementAsync(stamp(measurement), deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendLocationAsync(DeviceLocation location, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return getDelegate().sendLocationAsync(stamp(location), deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAlertAsync(DeviceAlert alert, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	return getDelegate().sendAlertAsync(stamp(alert), deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> createDeviceStreamAsync(DeviceStream stream, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().createDeviceStreamAsync(stream, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendDeviceStreamDataAsync(DeviceStreamData data, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().sendDeviceStreamDataAsync(stamp(data), deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> requestDeviceStreamDataAsync(DeviceStreamDataRequest request, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().requestDeviceStreamDataAsync(request, deviceToken, originator);
+    }
+
+    /**
+     * Samples in a series already carry their own times.
+     * 
+     * @see com.sitewhere.agent.ISiteWhereEventDispatcher#sendMeasurementSeries(com.
+     * sitewhere.agent.MeasurementSeries, java.lang.String, java.lang.String)
+     */
+    @Override
+    public void sendMeasurementSeries(MeasurementSeries series, String deviceToken, String originator)
+	    throws SiteWhereAgentException {
+	getDelegate().sendMeasurementSeries(series, deviceToken, originator);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMeasurementSeriesAsync(MeasurementSeries series, String deviceToken,
+	    String originator) throws SiteWhereAgentException {
+	return getDelegate().sendMeasurementSeriesAsync(series, deviceToken, originator);
+    }
+
+    @Override
+    public void dispatch(List<OutboundEvent> events) throws SiteWhereAgentException {
+	getDelegate().dispatch(stamp(events));
+    }
+
+    @Override
+    public CompletableFuture<Void> dispatchAsync(List<OutboundEvent> events) throws SiteWhereAgentException {
+	return getDelegate().dispatchAsync(stamp(events));
+    }
+
+    /**
+     * Date any events in a list that have no date. The list is returned as-is if
+     * every event is already dated.
+     * 
+     * @param events
+     * @return
+     */
+    protected List<OutboundEvent> stamp(List<OutboundEvent> events) {
+	List<OutboundEvent> stamped = null;
+	for (int i = 0; i < events.size(); i++) {
+	    OutboundEvent event = events.get(i);
+	    OutboundEvent dated = isDated(event) ? event : stamp(event);
+	    if ((dated != event) && (stamped == null)) {
+		stamped = new ArrayList<OutboundEvent>(events.subList(0, i));
+	    }
+	    if (stamped != null) {
+		stamped.add(dated);
+	    }
+	}
+	return (stamped != null) ? stamped : events;
+    }
+
+    /**
+     * Indicates whether an event already has a date or is of a type that does not
+     * carry one.
+     * 
+     * @param event
+     * @return
+     */
+    protected static boolean isDated(OutboundEvent event) {
+	switch (event.getCommand()) {
+	case SendMeasurement: {
+	    return ((DeviceMeasurement) event.getMessage()).hasEventDate();
+	}
+	case SendLocation: {
+	    return ((DeviceLocation) event.getMessage()).hasEventDate();
+	}
+	case SendAlert: {
+	    return ((DeviceAlert) event.getMessage()).hasEventDate();
+	}
+	case SendDeviceStreamData: {
+	    return ((DeviceStreamData) event.getMessage()).hasEventDate();
+	}
+	default: {
+	    return true;
+	}
+	}
+    }
+
+    /**
+     * Copy an event without a date, dating it with the current time.
+     * 
+     * @param event
+     * @return
+     */
+    protected OutboundEvent stamp(OutboundEvent event) {
+	String token = event.getDeviceToken();
+	String originator = event.getOriginator();
+	switch (event.getCommand()) {
+	case SendMeasurement: {
+	    return OutboundEvent.measurement(stamp((DeviceMeasurement) event.getMessage()), token, originator);
+	}
+	case SendLocation: {
+	    return OutboundEvent.location(stamp((DeviceLocation) event.getMessage()), token, originator);
+	}
+	case SendAlert: {
+	    return OutboundEvent.alert(stamp((DeviceAlert) event.getMessage()), token, originator);
+	}
+	case SendDeviceStreamData: {
+	    return OutboundEvent.streamData(stamp((DeviceStreamData) event.getMessage()), token, originator);
+	}
+	default: {
+	    return event;
+	}
+	}
+    }
+
+    protected DeviceMeasurement stamp(DeviceMeasurement measurement) {
+	return measurement.hasEventDate() ? measurement : measurement.toBuilder().setEventDate(now()).build();
+    }
+
+    protected DeviceLocation stamp(DeviceLocation location) {
+	return location.hasEventDate() ? location : location.toBuilder().setEventDate(now()).build();
+    }
+
+    protected DeviceAlert stamp(DeviceAlert alert) {
+	return alert.hasEventDate() ? alert : alert.toBuilder().setEventDate(now()).build();
+    }
+
+    protected DeviceStreamData stamp(DeviceStreamData data) {
+	return data.hasEventDate() ? data : data.toBuilder().setEventDate(now()).build();
+    }
+
+    /**
+     * Get the current time as an event date.
+     * 
+     * @return
+     */
+    protected GOptionalFixed64 now() {
+	return GOptionalFixed64.newBuilder().setValue(getClock().now()).build();
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	if (getDelegate() instanceof Closeable) {
+	    ((Closeable) getDelegate()).close();
+	}
+    }
+
+    public IAsyncEventDispatcher getDelegate() {
+	return delegate;
+    }
+
+    public EventClock getClock() {
+	return clock;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that refills at a fixed rate up to a maximum burst. Time is
+ * passed in by the caller so a scheduler can check several buckets against
+ * the same clock reading. Not thread-safe.
+ * 
+ * @author Derek
+ */
+public class TokenBucket {
+
+    /** Nanoseconds per second */
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /** Tokens added per second (zero for unlimited) */
+    private double rate;
+
+    /** Maximum number of tokens held */
+    private double burst;
+
+    /** Tokens currently available */
+    private double tokens;
+
+    /** Time in nanoseconds tokens were last refilled */
+    private long refilled;
+
+    public TokenBucket(double rate, int burst) {
+	this.rate = rate;
+	this.burst = Math.max(1, burst);
+	this.tokens = this.burst;
+	this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Get nanoseconds until a token will be available, or zero if one is
+     * available now.
+     * 
+     * @param now
+     * @return
+     */
+    public long nanosUntilAvailable(long now) {
+	if (isUnlimited()) {
+	    return 0;
+	}
+	refill(now);
+	if (tokens >= 1) {
+	    return 0;
+	}
+	return (long) Math.ceil((1 - tokens) * NANOS_PER_SECOND / rate);
+    }
+
+    /**
+     * Take a token if one is available.
+     * 
+     * @param now
+     * @return
+     */
+    public boolean tryAcquire(long now) {
+	if (isUnlimited()) {
+	    return true;
+	}
+	refill(now);
+	if (tokens >= 1) {
+	    tokens--;
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Add tokens accumulated since the last refill.
+     * 
+     * @param now
+     */
+    protected void refill(long now) {
+	long elapsed = now - refilled;
+	if (elapsed > 0) {
+	    tokens = Math.min(burst, tokens + elapsed * rate / NANOS_PER_SECOND);
+	    refilled = now;
+	}
+    }
+
+    public boolean isUnlimited() {
+	return rate <= 0;
+    }
+
+    public double getRate() {
+	return rate;
+    }
+
+    public double getBurst() {
+	return burst;
+    }
+}
\ No newline at end of file
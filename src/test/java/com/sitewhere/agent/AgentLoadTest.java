@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs short loads through an agent connected to an embedded broker and checks
+ * that no measurements or commands are lost in the common outbound
+ * configurations.
+ * 
+ * @author Derek
+ */
+public class AgentLoadTest {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(AgentLoadTest.class.getName());
+
+    /** Broker shared by agent and load generator */
+    private EmbeddedBroker broker;
+
+    @Before
+    public void startBroker() throws Exception {
+	broker = new EmbeddedBroker();
+	broker.start();
+    }
+
+    @After
+    public void stopBroker() throws Exception {
+	broker.close();
+    }
+
+    @Test
+    public void blockingPublish() throws Exception {
+	run(createGenerator());
+    }
+
+    @Test
+    public void asyncPublish() throws Exception {
+	LoadGenerator generator = createGenerator();
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_PUBLISH_MODE, "async");
+	run(generator);
+    }
+
+    @Test
+    public void batchedAndCompressed() throws Exception {
+	LoadGenerator generator = createGenerator();
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_PUBLISH_MODE, "async");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_BATCH_ENABLED, "true");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_COMPRESSION_ENABLED, "true");
+	run(generator);
+    }
+
+    @Test
+    public void shardedConnections() throws Exception {
+	LoadGenerator generator = createGenerator();
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_PUBLISH_MODE, "async");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_OUTBOUND_CONNECTIONS, "3");
+	run(generator);
+    }
+
+    @Test
+    public void ringWriter() throws Exception {
+	LoadGenerator generator = createGenerator();
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_PUBLISH_MODE, "async");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.OUTBOUND_RING_ENABLED, "true");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.OUTBOUND_RING_SIZE, "256");
+	run(generator);
+    }
+
+    @Test
+    public void ringWriterCompressed() throws Exception {
+	LoadGenerator generator = createGenerator();
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_PUBLISH_MODE, "async");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.OUTBOUND_RING_ENABLED, "true");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_COMPRESSION_ENABLED, "true");
+	run(generator);
+    }
+
+    @Test
+    public void measurementSeries() throws Exception {
+	LoadGenerator generator = createGenerator();
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_OUTBOUND_SERIES_TOPIC,
+		"SiteWhere/default/input/series");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_COMPRESSION_ENABLED, "true");
+	generator.setSeriesSize(50);
+	run(generator);
+    }
+
+    @Test
+    public void fastStart() throws Exception {
+	LoadGenerator generator = createGenerator();
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_PUBLISH_MODE, "async");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.STARTUP_FAST_ENABLED, "true");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.STARTUP_QUEUE_SIZE, "100");
+	run(generator);
+    }
+
+    @Test
+    public void inboundOverflowWithBlockingAcks() throws Exception {
+	run(createOverflowGenerator());
+    }
+
+    @Test
+    public void inboundOverflowWithDedicatedOutbound() throws Exception {
+	LoadGenerator generator = createOverflowGenerator();
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_OUTBOUND_CONNECTIONS, "1");
+	run(generator);
+    }
+
+    /**
+     * Create a generator for a light load that any build machine can sustain.
+     * 
+     * @return
+     */
+    protected LoadGenerator createGenerator() {
+	LoadGenerator generator = new LoadGenerator(broker.getHost(), broker.getPort());
+	generator.setDevices(20);
+	generator.setEventRate(1000);
+	generator.setCommandRate(100);
+	generator.setDurationMs(1000);
+	return generator;
+    }
+
+    /**
+     * Create a generator that sends unacknowledged commands faster than the
+     * handler, which acknowledges each one with a blocking publish, can keep up
+     * with, so the inbound queue fills.
+     * 
+     * @return
+     */
+    protected LoadGenerator createOverflowGenerator() {
+	LoadGenerator generator = createGenerator();
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_RECEIVE_BUFFER, "10");
+	generator.getAgentProperties().setProperty(IAgentConfiguration.MQTT_INBOUND_COMMAND_QOS, "0");
+	generator.setEventRate(100);
+	generator.setCommandRate(200);
+	generator.setAcknowledgeCommands(true);
+	generator.setDrainMs(20000);
+	return generator;
+    }
+
+    /**
+     * Run the load and check that everything sent was received.
+     * 
+     * @param generator
+     * @throws Exception
+     */
+    protected void run(LoadGenerator generator) throws Exception {
+	generator.run();
+	LOGGER.info(generator.getEvents().toString());
+	LOGGER.info(generator.getCommands().toString());
+	assertTrue(generator.getEvents().getSent() > 0);
+	assertEquals(0, generator.getEvents().getLost());
+	assertTrue(generator.getCommands().getSent() > 0);
+	assertEquals(0, generator.getCommands().getLost());
+    }
+}
\ No newline at end of file
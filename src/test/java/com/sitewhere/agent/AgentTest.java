@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Checks agent settings derived from its configuration.
+ * 
+ * @author Derek
+ */
+public class AgentTest {
+
+    /** Longest client id allowed by MQTT 3.1 */
+    private static final int MAX_CLIENT_ID_LENGTH = 23;
+
+    @Test
+    public void shortClientIdKept() {
+	Agent agent = new Agent();
+	agent.setDeviceToken("sensor-1");
+	assertEquals("sensor-1", agent.calculateClientId());
+	assertEquals("sensor-1-o0", Agent.calculateOutboundClientId("sensor-1", 0));
+    }
+
+    @Test
+    public void longClientIdShortened() {
+	Agent agent = new Agent();
+	agent.setDeviceToken("sensor-building-7-floor-3-room-12");
+	String clientId = agent.calculateClientId();
+	assertEquals(MAX_CLIENT_ID_LENGTH, clientId.length());
+	assertTrue(clientId.startsWith("sensor-buildin-"));
+    }
+
+    @Test
+    public void outboundClientIdsUniqueForSharedPrefix() {
+	Set<String> ids = new HashSet<String>();
+	int expected = 0;
+	for (int device = 0; device < 100; device++) {
+	    String clientId = String.format("sensor-building-7-%05d", device);
+	    assertEquals(MAX_CLIENT_ID_LENGTH, clientId.length());
+	    ids.add(clientId);
+	    expected++;
+	    for (int index = 0; index < 4; index++) {
+		String outbound = Agent.calculateOutboundClientId(clientId, index);
+		assertTrue(outbound, outbound.length() <= MAX_CLIENT_ID_LENGTH);
+		ids.add(outbound);
+		expected++;
+	    }
+	}
+	assertEquals(expected, ids.size());
+    }
+}
\ No newline at end of file
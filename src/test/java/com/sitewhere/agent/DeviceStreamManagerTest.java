@@ -0,0 +1,243 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.protobuf.ByteString;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.DeviceStreamAck;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.DeviceStreamAckState;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Checks that stream creations and downloads are stopped when their device is
+ * removed or when they time out.
+ * 
+ * @author Derek
+ */
+public class DeviceStreamManagerTest {
+
+    /** Timeout used for streams that are expected to time out */
+    private static final long SHORT_TIMEOUT_MS = 50;
+
+    /** Time in milliseconds to wait for a future to complete */
+    private static final long COMPLETION_TIMEOUT_MS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Manager under test */
+    private DeviceStreamManager manager;
+
+    /** Channel downloads are written to */
+    private FileChannel channel;
+
+    @Before
+    public void createManager() throws Exception {
+	manager = new DeviceStreamManager(new StreamDispatcher());
+	File file = folder.newFile("download");
+	channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+    }
+
+    @After
+    public void closeChannel() throws Exception {
+	manager.close();
+	channel.close();
+    }
+
+    @Test
+    public void closeStreamsCancelsOnlyDevice() throws Exception {
+	CompletableFuture<DeviceStreamAckState> removed = manager.createStream("device", "stream", null, null);
+	CompletableFuture<DeviceStreamAckState> kept = manager.createStream("device/other", "stream", null, null);
+	DeviceStreamDownload removedDownload = manager.startDownload("device", "download", channel, 0, 0);
+	DeviceStreamDownload keptDownload = manager.startDownload("device/other", "download", channel, 0, 0);
+
+	manager.closeStreams("device");
+	assertCancelled(removed);
+	assertCancelled(removedDownload.getFuture());
+	assertFalse(kept.isDone());
+	assertFalse(keptDownload.getFuture().isDone());
+
+	manager.handleStreamAck("device/other", ack("stream", DeviceStreamAckState.STREAM_CREATED));
+	assertEquals(DeviceStreamAckState.STREAM_CREATED, kept.get());
+    }
+
+    @Test
+    public void streamCanBeRecreatedAfterClose() throws Exception {
+	manager.createStream("device", "stream", null, null);
+	manager.startDownload("device", "download", channel, 0, 0);
+	manager.closeStreams("device");
+
+	CompletableFuture<DeviceStreamAckState> created = manager.createStream("device", "stream", null, null);
+	manager.handleStreamAck("device", ack("stream", DeviceStreamAckState.STREAM_EXISTS));
+	assertEquals(DeviceStreamAckState.STREAM_EXISTS, created.get());
+	manager.startDownload("device", "download", channel, 0, 0);
+    }
+
+    @Test
+    public void unacknowledgedStreamTimesOut() throws Exception {
+	manager.setTimeoutMs(SHORT_TIMEOUT_MS);
+	CompletableFuture<DeviceStreamAckState> created = manager.createStream("device", "stream", null, null);
+	assertTimedOut(created);
+
+	// A late acknowledgement is ignored and the stream may be created again.
+	manager.handleStreamAck("device", ack("stream", DeviceStreamAckState.STREAM_CREATED));
+	manager.setTimeoutMs(0);
+	created = manager.createStream("device", "stream", null, null);
+	manager.handleStreamAck("device", ack("stream", DeviceStreamAckState.STREAM_CREATED));
+	assertEquals(DeviceStreamAckState.STREAM_CREATED, created.get());
+    }
+
+    @Test
+    public void acknowledgedStreamNotTimedOut() throws Exception {
+	manager.setTimeoutMs(SHORT_TIMEOUT_MS);
+	CompletableFuture<DeviceStreamAckState> created = manager.createStream("device", "stream", null, null);
+	manager.handleStreamAck("device", ack("stream", DeviceStreamAckState.STREAM_CREATED));
+	Thread.sleep(SHORT_TIMEOUT_MS * 3);
+	assertEquals(DeviceStreamAckState.STREAM_CREATED, created.get());
+    }
+
+    @Test
+    public void stalledDownloadTimesOut() throws Exception {
+	manager.setTimeoutMs(SHORT_TIMEOUT_MS);
+	DeviceStreamDownload download = manager.startDownload("device", "download", channel, 0, 0);
+	manager.handleStreamData("device", data("download", 0, "abc"));
+	assertTimedOut(download.getFuture());
+	assertEquals(3, download.getPosition());
+
+	// The download is no longer tracked, so it can be resumed.
+	manager.setTimeoutMs(0);
+	download = manager.startDownload("device", "download", channel, 3, 1);
+	manager.handleStreamData("device", data("download", 1, ""));
+	assertEquals(Long.valueOf(0), download.getFuture().get());
+    }
+
+    @Test
+    public void activeDownloadNotTimedOut() throws Exception {
+	manager.setTimeoutMs(SHORT_TIMEOUT_MS * 4);
+	DeviceStreamDownload download = manager.startDownload("device", "download", channel, 0, 0);
+	for (int i = 0; i < 6; i++) {
+	    Thread.sleep(SHORT_TIMEOUT_MS);
+	    manager.handleStreamData("device", data("download", i, "abc"));
+	}
+	manager.handleStreamData("device", data("download", 6, ""));
+	assertEquals(Long.valueOf(18), download.getFuture().get());
+    }
+
+    /**
+     * Check that a future fails with a {@link TimeoutException} within the
+     * completion timeout.
+     * 
+     * @param future
+     * @throws Exception
+     */
+    protected static void assertTimedOut(CompletableFuture<?> future) throws Exception {
+	try {
+	    future.get(COMPLETION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	    fail("Expected timeout.");
+	} catch (ExecutionException e) {
+	    assertTrue(e.getCause() instanceof TimeoutException);
+	}
+    }
+
+    /**
+     * Check that a future failed with a {@link CancellationException}.
+     * 
+     * @param future
+     * @throws InterruptedException
+     */
+    protected static void assertCancelled(CompletableFuture<?> future) throws InterruptedException {
+	assertTrue(future.isCompletedExceptionally());
+	try {
+	    future.get();
+	    fail("Expected cancellation.");
+	} catch (ExecutionException e) {
+	    assertTrue(e.getCause() instanceof CancellationException);
+	} catch (CancellationException e) {
+	    // Completed with the cancellation itself.
+	}
+    }
+
+    protected static DeviceStreamAck ack(String streamId, DeviceStreamAckState state) {
+	return DeviceStreamAck.newBuilder().setStreamId(GOptionalString.newBuilder().setValue(streamId))
+		.setState(state).build();
+    }
+
+    protected static DeviceStreamData data(String streamId, long sequence, String value) {
+	return DeviceStreamData.newBuilder().setStreamId(GOptionalString.newBuilder().setValue(streamId))
+		.setSequenceNumber(GOptionalFixed64.newBuilder().setValue(sequence))
+		.setData(ByteString.copyFromUtf8(value)).build();
+    }
+
+    /**
+     * Dispatcher that accepts stream messages without sending them.
+     * 
+     * @author Derek
+     */
+    private static class StreamDispatcher implements ISiteWhereEventDispatcher {
+
+	@Override
+	public void registerDevice(DeviceEvent.DeviceRegistrationRequest register, String deviceToken,
+		String originator) {
+	}
+
+	@Override
+	public void acknowledge(DeviceEvent.DeviceAcknowledge ack, String deviceToken, String originator) {
+	}
+
+	@Override
+	public void sendMeasurement(DeviceEvent.DeviceMeasurement measurement, String deviceToken, String originator) {
+	}
+
+	@Override
+	public void sendLocation(DeviceEvent.DeviceLocation location, String deviceToken, String originator) {
+	}
+
+	@Override
+	public void sendAlert(DeviceEvent.DeviceAlert alert, String deviceToken, String originator) {
+	}
+
+	@Override
+	public void createDeviceStream(DeviceEvent.DeviceStream stream, String deviceToken, String originator) {
+	}
+
+	@Override
+	public void requestDeviceStreamData(DeviceEvent.DeviceStreamDataRequest request, String deviceToken,
+		String originator) {
+	}
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.apache.activemq.broker.BrokerService;
+
+/**
+ * Non-persistent ActiveMQ broker with an MQTT connector bound to a free port on
+ * the loopback interface, so tests never touch the network.
+ * 
+ * @author Derek
+ */
+public class EmbeddedBroker implements Closeable {
+
+    /** Loopback host the broker listens on */
+    public static final String HOST = "127.0.0.1";
+
+    /** Broker instance */
+    private BrokerService broker;
+
+    /** Port of MQTT connector */
+    private int port;
+
+    /**
+     * Start the broker.
+     * 
+     * @throws Exception
+     */
+    public void start() throws Exception {
+	port = findFreePort();
+	broker = new BrokerService();
+	broker.setBrokerName("sitewhere-test-" + port);
+	broker.setPersistent(false);
+	broker.setUseJmx(false);
+	broker.setAdvisorySupport(false);
+	broker.addConnector("mqtt://" + HOST + ":" + port);
+	broker.start();
+	broker.waitUntilStarted();
+    }
+
+    /*
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+	if (broker == null) {
+	    return;
+	}
+	try {
+	    broker.stop();
+	    broker.waitUntilStopped();
+	} catch (Exception e) {
+	    throw new IOException("Unable to stop embedded broker.", e);
+	}
+    }
+
+    /**
+     * Find a port that is not in use.
+     * 
+     * @return
+     * @throws IOException
+     */
+    protected static int findFreePort() throws IOException {
+	try (ServerSocket socket = new ServerSocket(0)) {
+	    socket.setReuseAddress(true);
+	    return socket.getLocalPort();
+	}
+    }
+
+    public String getHost() {
+	return HOST;
+    }
+
+    public int getPort() {
+	return port;
+    }
+}
\ No newline at end of file
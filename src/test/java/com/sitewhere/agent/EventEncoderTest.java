@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAcknowledge;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceAlert;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceLocation;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceRegistrationRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamData;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceStreamDataRequest;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Header;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Checks that events encoded without builders are byte-for-byte identical to
+ * those encoded through the generated protobuf builders, for every event type.
+ * 
+ * @author Derek
+ */
+public class EventEncoderTest {
+
+    /** Device tokens, including one long enough to need a two-byte length */
+    private static final String[] DEVICE_TOKENS = { "device-1", "", repeat("long-device-token-", 10) };
+
+    /** Originators, including empty, non-ASCII and long values */
+    private static final String[] ORIGINATORS = { null, "", "5b6a1f8e-4c1d-4a7e-9f2b-0c3d4e5f6a7b", "é中🙂",
+	    repeat("originator-", 20) };
+
+    @Test
+    public void singleEventsMatchBuilder() throws Exception {
+	EventEncoder encoder = new EventEncoder();
+	for (OutboundEvent event : createEvents()) {
+	    byte[] expected = encodeWithBuilder(event);
+	    String label = event.getCommand() + " '" + event.getDeviceToken() + "' '" + event.getOriginator() + "'";
+	    assertArrayEquals(label, expected, encoder.encode(event.getCommand(), event.getMessage(),
+		    event.getDeviceToken(), event.getOriginator()));
+	    assertEquals(label, expected.length, encoder.getEncodedSize(event.getCommand(), event.getMessage(),
+		    event.getDeviceToken(), event.getOriginator()));
+
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    encoder.encode(event.getCommand(), event.getMessage(), event.getDeviceToken(), event.getOriginator(), out);
+	    assertArrayEquals(label, expected, out.toByteArray());
+	}
+    }
+
+    @Test
+    public void eventListMatchesBuilder() throws Exception {
+	List<OutboundEvent> events = createEvents();
+	ByteArrayOutputStream expected = new ByteArrayOutputStream();
+	for (OutboundEvent event : events) {
+	    expected.write(encodeWithBuilder(event));
+	}
+	assertArrayEquals(expected.toByteArray(), new EventEncoder().encode(events));
+    }
+
+    @Test
+    public void evictedHeadersMatchBuilder() throws Exception {
+	EventEncoder encoder = new EventEncoder(1);
+	for (int pass = 0; pass < 2; pass++) {
+	    for (OutboundEvent event : createEvents()) {
+		assertArrayEquals(encodeWithBuilder(event), encoder.encode(event.getCommand(), event.getMessage(),
+			event.getDeviceToken(), event.getOriginator()));
+	    }
+	}
+    }
+
+    @Test
+    public void defaultMessagesMatchBuilder() throws Exception {
+	EventEncoder encoder = new EventEncoder();
+	List<OutboundEvent> events = Arrays.asList(
+		OutboundEvent.registration(DeviceRegistrationRequest.getDefaultInstance(), "device-1", null),
+		OutboundEvent.measurement(DeviceMeasurement.getDefaultInstance(), "device-1", ""),
+		OutboundEvent.streamData(DeviceStreamData.getDefaultInstance(), "", null));
+	for (OutboundEvent event : events) {
+	    assertArrayEquals(encodeWithBuilder(event), encoder.encode(event.getCommand(), event.getMessage(),
+		    event.getDeviceToken(), event.getOriginator()));
+	}
+    }
+
+    /**
+     * Encode an event the way the agent did before the encoder was introduced,
+     * with a header built for each event and both messages written delimited.
+     * 
+     * @param event
+     * @return
+     * @throws Exception
+     */
+    protected static byte[] encodeWithBuilder(OutboundEvent event) throws Exception {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	Header.Builder builder = Header.newBuilder();
+	builder.setCommand(event.getCommand());
+	builder.setDeviceToken(GOptionalString.newBuilder().setValue(event.getDeviceToken()));
+	if (event.getOriginator() != null) {
+	    builder.setOriginator(GOptionalString.newBuilder().setValue(event.getOriginator()));
+	}
+	builder.build().writeDelimitedTo(out);
+	event.getMessage().writeDelimitedTo(out);
+	return out.toByteArray();
+    }
+
+    /**
+     * Create an event of every type for every combination of device token and
+     * originator.
+     * 
+     * @return
+     */
+    protected static List<OutboundEvent> createEvents() {
+	GOptionalFixed64 date = GOptionalFixed64.newBuilder().setValue(1571356800000L).build();
+	DeviceRegistrationRequest register = DeviceRegistrationRequest.newBuilder()
+		.setAreaToken(string("area")).setCustomerToken(string("customer"))
+		.setDeviceTypeToken(string("device-type")).build();
+	DeviceAcknowledge ack = DeviceAcknowledge.newBuilder().setMessage(string("Acknowledged.")).build();
+	DeviceMeasurement measurement = DeviceMeasurement.newBuilder().setMeasurementName(string("temperature"))
+		.setMeasurementValue(GOptionalDouble.newBuilder().setValue(-12.5)).setEventDate(date).build();
+	DeviceLocation location = DeviceLocation.newBuilder()
+		.setLatitude(GOptionalDouble.newBuilder().setValue(33.7490))
+		.setLongitude(GOptionalDouble.newBuilder().setValue(-84.3880))
+		.setElevation(GOptionalDouble.newBuilder().setValue(320)).build();
+	DeviceAlert alert = DeviceAlert.newBuilder().setAlertType(string("engine.overheat"))
+		.setAlertMessage(string("Engine temperature is above threshold.")).setEventDate(date).build();
+	DeviceStream stream = DeviceStream.newBuilder().setStreamId(string("video"))
+		.setContentType(string("video/mp4")).putMetadata("camera", "front").build();
+	byte[] chunk = new byte[300];
+	for (int i = 0; i < chunk.length; i++) {
+	    chunk[i] = (byte) i;
+	}
+	DeviceStreamData data = DeviceStreamData.newBuilder().setStreamId(string("video"))
+		.setSequenceNumber(GOptionalFixed64.newBuilder().setValue(7)).setData(ByteString.copyFrom(chunk))
+		.build();
+	DeviceStreamDataRequest request = DeviceStreamDataRequest.newBuilder().setStreamId(string("video"))
+		.setSequenceNumber(GOptionalFixed64.newBuilder().setValue(8)).build();
+
+	List<OutboundEvent> events = new ArrayList<OutboundEvent>();
+	for (String deviceToken : DEVICE_TOKENS) {
+	    for (String originator : ORIGINATORS) {
+		events.add(OutboundEvent.registration(register, deviceToken, originator));
+		events.add(OutboundEvent.acknowledge(ack, deviceToken, originator));
+		events.add(OutboundEvent.measurement(measurement, deviceToken, originator));
+		events.add(OutboundEvent.location(location, deviceToken, originator));
+		events.add(OutboundEvent.alert(alert, deviceToken, originator));
+		events.add(OutboundEvent.stream(stream, deviceToken, originator));
+		events.add(OutboundEvent.streamData(data, deviceToken, originator));
+		events.add(OutboundEvent.streamRequest(request, deviceToken, originator));
+	    }
+	}
+	return events;
+    }
+
+    protected static GOptionalString string(String value) {
+	return GOptionalString.newBuilder().setValue(value).build();
+    }
+
+    protected static String repeat(String value, int count) {
+	StringBuilder builder = new StringBuilder();
+	for (int i = 0; i < count; i++) {
+	    builder.append(value);
+	}
+	return builder.toString();
+    }
+}
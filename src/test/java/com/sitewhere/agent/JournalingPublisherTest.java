@@ -0,0 +1,200 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.mqtt.client.QoS;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that payloads journaled by one run of the publisher and not
+ * acknowledged by the broker are delivered in order by the next run, while
+ * acknowledged payloads are not sent again.
+ * 
+ * @author Derek
+ */
+public class JournalingPublisherTest {
+
+    /** Topic payloads are published to */
+    private static final String TOPIC = "SiteWhere/default/input/protobuf";
+
+    /** Time in milliseconds to wait for payloads to be delivered */
+    private static final long DELIVERY_TIMEOUT_MS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Directory holding the journal */
+    private File directory;
+
+    @Before
+    public void createDirectory() throws Exception {
+	directory = folder.newFolder("journal");
+    }
+
+    @Test
+    public void unacknowledgedPayloadsReplayedAfterRestart() throws Exception {
+	Broker unreachable = new Broker(false);
+	JournalingPublisher publisher = start(unreachable);
+	publisher.publish(TOPIC, bytes("first"), QoS.AT_LEAST_ONCE, false).get();
+	publisher.publish(TOPIC, bytes("second"), QoS.EXACTLY_ONCE, true).get();
+	unreachable.await(2);
+	publisher.close();
+
+	Broker broker = new Broker(true);
+	publisher = start(broker);
+	try {
+	    broker.await(2);
+	    assertEquals(Arrays.asList("first", "second"), broker.getPayloads());
+	    assertEquals(Arrays.asList(QoS.AT_LEAST_ONCE, QoS.EXACTLY_ONCE), broker.getQos());
+	    assertEquals(Arrays.asList(Boolean.FALSE, Boolean.TRUE), broker.getRetained());
+	} finally {
+	    publisher.close();
+	}
+    }
+
+    @Test
+    public void acknowledgedPayloadsNotReplayed() throws Exception {
+	Broker broker = new Broker(true);
+	JournalingPublisher publisher = start(broker);
+	publisher.publish(TOPIC, bytes("first"), QoS.AT_LEAST_ONCE, false).get();
+	publisher.publish(TOPIC, bytes("second"), QoS.AT_LEAST_ONCE, false).get();
+	broker.await(2);
+	awaitCommitted(publisher);
+	publisher.close();
+
+	broker = new Broker(true);
+	publisher = start(broker);
+	try {
+	    publisher.publish(TOPIC, bytes("third"), QoS.AT_LEAST_ONCE, false).get();
+	    broker.await(1);
+	    awaitCommitted(publisher);
+	    assertEquals(Arrays.asList("third"), broker.getPayloads());
+	} finally {
+	    publisher.close();
+	}
+    }
+
+    /**
+     * Start a publisher with a journal in the test directory.
+     * 
+     * @param broker
+     * @return
+     * @throws Exception
+     */
+    protected JournalingPublisher start(Broker broker) throws Exception {
+	JournalingPublisher publisher = new JournalingPublisher(broker, new OutboundJournal(directory));
+	publisher.start();
+	return publisher;
+    }
+
+    /**
+     * Wait until every journaled payload has been committed.
+     * 
+     * @param publisher
+     * @throws InterruptedException
+     */
+    protected void awaitCommitted(JournalingPublisher publisher) throws InterruptedException {
+	long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+	while ((publisher.getJournal().getBacklogBytes() > 0) && (System.currentTimeMillis() < deadline)) {
+	    Thread.sleep(10);
+	}
+	assertEquals(0, publisher.getJournal().getBacklogBytes());
+    }
+
+    protected static byte[] bytes(String value) {
+	return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Publisher standing in for the broker that records what it is sent and
+     * either acknowledges it or leaves it unacknowledged.
+     * 
+     * @author Derek
+     */
+    private static class Broker implements IOutboundPublisher {
+
+	/** Indicates whether publishes are acknowledged */
+	private boolean acknowledge;
+
+	/** Payloads received in order */
+	private List<String> payloads = new ArrayList<String>();
+
+	/** QoS of each payload */
+	private List<QoS> qos = new ArrayList<QoS>();
+
+	/** Retain flag of each payload */
+	private List<Boolean> retained = new ArrayList<Boolean>();
+
+	public Broker(boolean acknowledge) {
+	    this.acknowledge = acknowledge;
+	}
+
+	/*
+	 * @see com.sitewhere.agent.IOutboundPublisher#publish(java.lang.String,
+	 * byte[], org.fusesource.mqtt.client.QoS, boolean)
+	 */
+	@Override
+	public synchronized CompletableFuture<Void> publish(String topic, byte[] payload, QoS qos, boolean retain) {
+	    assertEquals(TOPIC, topic);
+	    payloads.add(new String(payload, StandardCharsets.UTF_8));
+	    this.qos.add(qos);
+	    retained.add(retain);
+	    notifyAll();
+	    return acknowledge ? CompletableFuture.<Void> completedFuture(null) : new CompletableFuture<Void>();
+	}
+
+	/**
+	 * Wait until the given number of payloads has been received.
+	 * 
+	 * @param count
+	 * @throws InterruptedException
+	 */
+	public synchronized void await(int count) throws InterruptedException {
+	    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DELIVERY_TIMEOUT_MS);
+	    long remaining;
+	    while ((payloads.size() < count) && ((remaining = deadline - System.nanoTime()) > 0)) {
+		TimeUnit.NANOSECONDS.timedWait(this, remaining);
+	    }
+	    assertTrue("Received " + payloads + ".", payloads.size() >= count);
+	}
+
+	public synchronized List<String> getPayloads() {
+	    return new ArrayList<String>(payloads);
+	}
+
+	public synchronized List<QoS> getQos() {
+	    return new ArrayList<QoS>(qos);
+	}
+
+	public synchronized List<Boolean> getRetained() {
+	    return new ArrayList<Boolean>(retained);
+	}
+    }
+}
\ No newline at end of file
@@ -0,0 +1,596 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.Message;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.client.Topic;
+
+import com.google.protobuf.CodedInputStream;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.DeviceMeasurement;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Header;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+/**
+ * Drives an {@link Agent} running in gateway mode against a broker with
+ * synthetic devices. Measurements are sent through the agent dispatcher at a
+ * fixed rate and picked up by a subscriber on the outbound topic, while
+ * commands are published to device command topics at a fixed rate and picked up
+ * by the command processor. Each message carries a sequence number so loss and
+ * duplicates can be counted.
+ * 
+ * Run standalone with arguments of the form key=value. The keys devices, rate,
+ * commands, acks, duration, drain and series set the load, and any other key
+ * is passed to the agent as a configuration property, for example:
+ * 
+ * <pre>
+ * LoadGenerator devices=100 rate=20000 duration=30 mqtt.batch.enabled=true
+ * </pre>
+ * 
+ * @author Derek
+ */
+public class LoadGenerator {
+
+    /** Static logger instance */
+    private static final Logger LOGGER = Logger.getLogger(LoadGenerator.class.getName());
+
+    /** Tenant used for topics */
+    private static final String TENANT = "default";
+
+    /** Token of gateway device */
+    private static final String GATEWAY_TOKEN = "load-gateway";
+
+    /** Prefix for tokens of synthetic devices */
+    private static final String DEVICE_PREFIX = "load-device-";
+
+    /** Measurement name carrying sequence numbers */
+    private static final String MEASUREMENT_NAME = "seq";
+
+    /** Time of the sample carrying sequence number zero in a series */
+    private static final long SERIES_EPOCH_MS = 1500000000000L;
+
+    /** Generator whose agent is running */
+    private static volatile LoadGenerator active;
+
+    /** Host of MQTT broker */
+    private String host;
+
+    /** Port of MQTT broker */
+    private int port;
+
+    /** Number of synthetic devices */
+    private int devices = 10;
+
+    /** Measurements sent per second */
+    private double eventRate = 1000;
+
+    /** Commands sent per second */
+    private double commandRate = 100;
+
+    /** Time in milliseconds load is generated */
+    private long durationMs = 2000;
+
+    /** Time in milliseconds to wait for outstanding messages after load stops */
+    private long drainMs = 5000;
+
+    /** Number of samples sent together as a measurement series (0 to send measurements) */
+    private int seriesSize = 0;
+
+    /** Indicates whether each command is acknowledged from its handler */
+    private boolean acknowledgeCommands;
+
+    /** Extra agent configuration */
+    private Properties agentProperties = new Properties();
+
+    /** Dispatcher handed to the command processors */
+    private volatile ISiteWhereEventDispatcher dispatcher;
+
+    /** Indicates whether the agent dates events, so received events must carry a date */
+    private boolean timestamped;
+
+    /** Results for outbound measurements */
+    private LoadReport events;
+
+    /** Results for inbound commands */
+    private LoadReport commands;
+
+    public LoadGenerator(String host, int port) {
+	this.host = host;
+	this.port = port;
+    }
+
+    /**
+     * Start an agent, generate load and wait for outstanding messages.
+     * 
+     * @throws Exception
+     */
+    public void run() throws Exception {
+	events = new LoadReport("events", (int) Math.ceil(getEventRate() * getDurationMs() / 1000) + 1);
+	commands = new LoadReport("commands", (int) Math.ceil(getCommandRate() * getDurationMs() / 1000) + 1);
+
+	Agent agent = new Agent();
+	if (!agent.load(createAgentProperties())) {
+	    throw new SiteWhereAgentException("Invalid agent configuration.");
+	}
+	byte[] dictionary = agent.isCompressionEnabled() ? agent.loadCompressionDictionary() : null;
+	timestamped = agent.isTimestampsEnabled();
+
+	MQTT mqtt = new MQTT();
+	mqtt.setHost(getHost(), getPort());
+	BlockingConnection subscriber = mqtt.blockingConnection();
+	subscriber.connect();
+	subscriber.subscribe(new Topic[] { new Topic(agent.getOutboundSiteWhereTopic(), QoS.AT_LEAST_ONCE) });
+	if (agent.getOutboundSeriesTopic() != null) {
+	    subscriber.subscribe(new Topic[] { new Topic(agent.getOutboundSeriesTopic(), QoS.AT_LEAST_ONCE) });
+	}
+	Receiver receiver = new Receiver(subscriber, agent.getOutboundSeriesTopic(), dictionary);
+	Thread receiverThread = new Thread(receiver, "load-receiver");
+	receiverThread.start();
+
+	BlockingConnection publisher = mqtt.blockingConnection();
+	publisher.connect();
+
+	active = this;
+	try {
+	    agent.start();
+	    Thread commandThread = new Thread(new CommandSender(publisher, agent.getReady()), "load-commands");
+	    commandThread.start();
+	    sendEvents();
+	    commandThread.join();
+
+	    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getDrainMs());
+	    while ((!events.isComplete() || !commands.isComplete()) && (System.nanoTime() < deadline)) {
+		Thread.sleep(10);
+	    }
+	} finally {
+	    agent.stop();
+	    active = null;
+	    receiver.stop();
+	    receiverThread.join();
+	    subscriber.disconnect();
+	    publisher.disconnect();
+	}
+    }
+
+    /**
+     * Build agent configuration for a gateway serving the synthetic devices.
+     * 
+     * @return
+     */
+    protected Properties createAgentProperties() {
+	StringBuilder tokens = new StringBuilder();
+	for (int i = 0; i < getDevices(); i++) {
+	    tokens.append((i == 0) ? "" : ",").append(DEVICE_PREFIX).append(i);
+	}
+	Properties properties = new Properties();
+	properties.setProperty(IAgentConfiguration.COMMAND_PROCESSOR_CLASSNAME, Processor.class.getName());
+	properties.setProperty(IAgentConfiguration.TENANT, TENANT);
+	properties.setProperty(IAgentConfiguration.DEVICE_TOKEN, GATEWAY_TOKEN);
+	properties.setProperty(IAgentConfiguration.AREA_TOKEN, "load-area");
+	properties.setProperty(IAgentConfiguration.CUSTOMER_TOKEN, "load-customer");
+	properties.setProperty(IAgentConfiguration.DEVICE_TYPE_TOKEN, "load-type");
+	properties.setProperty(IAgentConfiguration.MQTT_HOSTNAME, getHost());
+	properties.setProperty(IAgentConfiguration.MQTT_PORT, String.valueOf(getPort()));
+	properties.setProperty(IAgentConfiguration.GATEWAY_ENABLED, "true");
+	properties.setProperty(IAgentConfiguration.GATEWAY_DEVICE_TOKENS, tokens.toString());
+	properties.putAll(getAgentProperties());
+	return properties;
+    }
+
+    /**
+     * Send measurements at the configured rate, spread across devices.
+     * 
+     * @throws SiteWhereAgentException
+     */
+    protected void sendEvents() throws SiteWhereAgentException {
+	int total = (int) (getEventRate() * getDurationMs() / 1000);
+	long start = System.nanoTime();
+	if (getSeriesSize() > 0) {
+	    sendSeries(total, start);
+	    return;
+	}
+	for (int i = 0; i < total; i++) {
+	    long scheduled = pace(start, i, getEventRate());
+	    events.sent(i, scheduled);
+	    DeviceMeasurement measurement = DeviceMeasurement.newBuilder()
+		    .setMeasurementName(GOptionalString.newBuilder().setValue(MEASUREMENT_NAME))
+		    .setMeasurementValue(GOptionalDouble.newBuilder().setValue(i)).build();
+	    dispatcher.sendMeasurement(measurement, DEVICE_PREFIX + (i % getDevices()), null);
+	}
+    }
+
+    /**
+     * Send measurements as series of consecutive sequence numbers, each series to
+     * the next device. Every sample is dated a fixed offset from its sequence
+     * number so the receiver can check that times survive encoding.
+     * 
+     * @param total
+     * @param start
+     * @throws SiteWhereAgentException
+     */
+    protected void sendSeries(int total, long start) throws SiteWhereAgentException {
+	MeasurementSeries series = new MeasurementSeries(MEASUREMENT_NAME, getSeriesSize());
+	for (int i = 0; i < total; i++) {
+	    long scheduled = pace(start, i, getEventRate());
+	    events.sent(i, scheduled);
+	    series.add(SERIES_EPOCH_MS + i, i);
+	    if ((series.size() == getSeriesSize()) || (i == total - 1)) {
+		int batch = i / getSeriesSize();
+		dispatcher.sendMeasurementSeries(series, DEVICE_PREFIX + (batch % getDevices()), null);
+		series = new MeasurementSeries(MEASUREMENT_NAME, getSeriesSize());
+	    }
+	}
+    }
+
+    /**
+     * Wait until the scheduled time of a message.
+     * 
+     * @param start
+     * @param index
+     * @param rate
+     * @return scheduled time in nanoseconds
+     */
+    protected static long pace(long start, long index, double rate) {
+	long scheduled = start + (long) (index * TimeUnit.SECONDS.toNanos(1) / rate);
+	long remaining;
+	while ((remaining = scheduled - System.nanoTime()) > 0) {
+	    LockSupport.parkNanos(remaining);
+	}
+	return scheduled;
+    }
+
+    /**
+     * Decode an outbound payload and record each measurement it carries. When
+     * the agent dates events, measurements without a date are counted as lost.
+     * 
+     * @param payload
+     * @param dictionary
+     * @param receivedNanos
+     * @throws IOException
+     */
+    protected void decode(byte[] payload, byte[] dictionary, long receivedNanos) throws IOException {
+	ByteArrayInputStream in = new ByteArrayInputStream(PayloadCompressor.decompress(payload, dictionary));
+	while (in.available() > 0) {
+	    Header header = Header.parseDelimitedFrom(in);
+	    switch (header.getCommand()) {
+	    case SendMeasurement: {
+		DeviceMeasurement measurement = DeviceMeasurement.parseDelimitedFrom(in);
+		if (!MEASUREMENT_NAME.equals(measurement.getMeasurementName().getValue())) {
+		    break;
+		}
+		int sequence = (int) measurement.getMeasurementValue().getValue();
+		if (timestamped && !measurement.hasEventDate()) {
+		    LOGGER.warning("Measurement " + sequence + " arrived without an event date.");
+		} else {
+		    events.received(sequence, receivedNanos);
+		}
+		break;
+	    }
+	    default: {
+		int length = CodedInputStream.readRawVarint32(in.read(), in);
+		in.skip(length);
+	    }
+	    }
+	}
+    }
+
+    /**
+     * Decode a compact measurement series and record each sample whose time
+     * matches its sequence number. Samples that do not round-trip are counted as
+     * lost.
+     * 
+     * @param payload
+     * @param dictionary
+     * @param receivedNanos
+     * @throws IOException
+     */
+    protected void decodeSeries(byte[] payload, byte[] dictionary, long receivedNanos) throws IOException {
+	SeriesCodec.DecodedSeries decoded = SeriesCodec.decode(PayloadCompressor.decompress(payload, dictionary));
+	MeasurementSeries series = decoded.getSeries();
+	if (!MEASUREMENT_NAME.equals(series.getName()) || !decoded.getDeviceToken().startsWith(DEVICE_PREFIX)) {
+	    throw new IOException("Unexpected series '" + series.getName() + "' for " + decoded.getDeviceToken());
+	}
+	for (int i = 0; i < series.size(); i++) {
+	    int sequence = (int) series.getValue(i);
+	    if (series.getTime(i) == SERIES_EPOCH_MS + sequence) {
+		events.received(sequence, receivedNanos);
+	    } else {
+		LOGGER.warning("Sample " + sequence + " decoded with wrong time " + series.getTime(i) + ".");
+	    }
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	EmbeddedBroker broker = new EmbeddedBroker();
+	broker.start();
+	try {
+	    LoadGenerator generator = new LoadGenerator(broker.getHost(), broker.getPort());
+	    for (String arg : args) {
+		int split = arg.indexOf('=');
+		if (split < 0) {
+		    throw new IllegalArgumentException("Expected key=value but found: " + arg);
+		}
+		generator.configure(arg.substring(0, split), arg.substring(split + 1));
+	    }
+	    generator.run();
+	    LOGGER.info(generator.getEvents().toString());
+	    LOGGER.info(generator.getCommands().toString());
+	} finally {
+	    broker.close();
+	}
+	System.exit(0);
+    }
+
+    /**
+     * Apply a setting given on the command line.
+     * 
+     * @param key
+     * @param value
+     */
+    protected void configure(String key, String value) {
+	if ("devices".equals(key)) {
+	    setDevices(Integer.parseInt(value));
+	} else if ("rate".equals(key)) {
+	    setEventRate(Double.parseDouble(value));
+	} else if ("commands".equals(key)) {
+	    setCommandRate(Double.parseDouble(value));
+	} else if ("duration".equals(key)) {
+	    setDurationMs(TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+	} else if ("drain".equals(key)) {
+	    setDrainMs(TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+	} else if ("series".equals(key)) {
+	    setSeriesSize(Integer.parseInt(value));
+	} else if ("acks".equals(key)) {
+	    setAcknowledgeCommands(Boolean.parseBoolean(value));
+	} else {
+	    getAgentProperties().setProperty(key, value);
+	}
+    }
+
+    public String getHost() {
+	return host;
+    }
+
+    public int getPort() {
+	return port;
+    }
+
+    public int getDevices() {
+	return devices;
+    }
+
+    public void setDevices(int devices) {
+	this.devices = devices;
+    }
+
+    public double getEventRate() {
+	return eventRate;
+    }
+
+    public void setEventRate(double eventRate) {
+	this.eventRate = eventRate;
+    }
+
+    public double getCommandRate() {
+	return commandRate;
+    }
+
+    public void setCommandRate(double commandRate) {
+	this.commandRate = commandRate;
+    }
+
+    public long getDurationMs() {
+	return durationMs;
+    }
+
+    public void setDurationMs(long durationMs) {
+	this.durationMs = durationMs;
+    }
+
+    public long getDrainMs() {
+	return drainMs;
+    }
+
+    public void setDrainMs(long drainMs) {
+	this.drainMs = drainMs;
+    }
+
+    public int getSeriesSize() {
+	return seriesSize;
+    }
+
+    public void setSeriesSize(int seriesSize) {
+	this.seriesSize = seriesSize;
+    }
+
+    public boolean isAcknowledgeCommands() {
+	return acknowledgeCommands;
+    }
+
+    public void setAcknowledgeCommands(boolean acknowledgeCommands) {
+	this.acknowledgeCommands = acknowledgeCommands;
+    }
+
+    public Properties getAgentProperties() {
+	return agentProperties;
+    }
+
+    public LoadReport getEvents() {
+	return events;
+    }
+
+    public LoadReport getCommands() {
+	return commands;
+    }
+
+    /**
+     * Command processor for synthetic devices. Records commands for the running
+     * generator and hands it the agent dispatcher.
+     * 
+     * @author Derek
+     */
+    public static class Processor extends BaseCommandProcessor {
+
+	/*
+	 * @see com.sitewhere.agent.BaseCommandProcessor#executeStartupLogic(java.
+	 * lang.String, java.lang.String, java.lang.String, java.lang.String,
+	 * com.sitewhere.agent.ISiteWhereEventDispatcher)
+	 */
+	@Override
+	public void executeStartupLogic(String deviceToken, String areaToken, String customerToken,
+		String deviceTypeToken, ISiteWhereEventDispatcher dispatcher) throws SiteWhereAgentException {
+	    active.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Capture the dispatcher as soon as it is assigned, since startup logic runs
+	 * in the background in fast start mode.
+	 * 
+	 * @see com.sitewhere.agent.BaseCommandProcessor#setEventDispatcher(com.
+	 * sitewhere.agent.ISiteWhereEventDispatcher)
+	 */
+	@Override
+	public void setEventDispatcher(ISiteWhereEventDispatcher eventDispatcher) {
+	    super.setEventDispatcher(eventDispatcher);
+	    LoadGenerator generator = active;
+	    if (generator != null) {
+		generator.dispatcher = eventDispatcher;
+	    }
+	}
+
+	/**
+	 * Record the command and, if configured, acknowledge it from the handler as
+	 * a device would.
+	 * 
+	 * @see
+	 * com.sitewhere.agent.BaseCommandProcessor#processSpecificationCommand(byte[
+	 * ], com.sitewhere.agent.ISiteWhereEventDispatcher)
+	 */
+	@Override
+	public void processSpecificationCommand(byte[] message, ISiteWhereEventDispatcher dispatcher)
+		throws SiteWhereAgentException {
+	    LoadGenerator generator = active;
+	    if ((generator != null) && (message.length == 4)) {
+		int sequence = ByteBuffer.wrap(message).getInt();
+		generator.commands.received(sequence, System.nanoTime());
+		if (generator.isAcknowledgeCommands()) {
+		    sendAck(getDeviceToken(), "Command " + sequence + " processed.", null);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Publishes commands to the synthetic devices at the configured rate.
+     * 
+     * @author Derek
+     */
+    private class CommandSender implements Runnable {
+
+	/** Connection commands are published on */
+	private BlockingConnection connection;
+
+	/** Completed once the agent has subscribed for commands */
+	private Future<Void> ready;
+
+	public CommandSender(BlockingConnection connection, Future<Void> ready) {
+	    this.connection = connection;
+	    this.ready = ready;
+	}
+
+	@Override
+	public void run() {
+	    int total = (int) (getCommandRate() * getDurationMs() / 1000);
+	    try {
+		ready.get(getDrainMs(), TimeUnit.MILLISECONDS);
+		long start = System.nanoTime();
+		for (int i = 0; i < total; i++) {
+		    long scheduled = pace(start, i, getCommandRate());
+		    commands.sent(i, scheduled);
+		    String topic = "SiteWhere/" + TENANT + "/command/" + DEVICE_PREFIX + (i % getDevices());
+		    connection.publish(topic, ByteBuffer.allocate(4).putInt(i).array(), QoS.AT_LEAST_ONCE, false);
+		}
+	    } catch (Exception e) {
+		LOGGER.log(Level.WARNING, "Unable to publish command.", e);
+	    }
+	}
+    }
+
+    /**
+     * Receives outbound payloads published by the agent.
+     * 
+     * @author Derek
+     */
+    private class Receiver implements Runnable {
+
+	/** Connection subscribed to outbound topic */
+	private BlockingConnection connection;
+
+	/** Topic carrying compact measurement series (may be null) */
+	private String seriesTopic;
+
+	/** Dictionary used to decompress payloads (may be null) */
+	private byte[] dictionary;
+
+	/** Indicates whether receiving should continue */
+	private volatile boolean running = true;
+
+	public Receiver(BlockingConnection connection, String seriesTopic, byte[] dictionary) {
+	    this.connection = connection;
+	    this.seriesTopic = seriesTopic;
+	    this.dictionary = dictionary;
+	}
+
+	@Override
+	public void run() {
+	    while (running) {
+		try {
+		    Message message = connection.receive(100, TimeUnit.MILLISECONDS);
+		    if (message != null) {
+			long now = System.nanoTime();
+			message.ack();
+			if (message.getTopic().equals(seriesTopic)) {
+			    decodeSeries(message.getPayload(), dictionary, now);
+			} else {
+			    decode(message.getPayload(), dictionary, now);
+			}
+		    }
+		} catch (Exception e) {
+		    if (running) {
+			LOGGER.log(Level.WARNING, "Unable to receive outbound payload.", e);
+		    }
+		}
+	    }
+	}
+
+	public void stop() {
+	    running = false;
+	}
+    }
+}
\ No newline at end of file
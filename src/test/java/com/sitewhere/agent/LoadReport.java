@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results of a load run for one direction of traffic. Latency is measured from
+ * the time each message was scheduled to be sent rather than when it actually
+ * was, so a stalled sender shows up as latency instead of hiding it.
+ * 
+ * @author Derek
+ */
+public class LoadReport {
+
+    /** Name of traffic direction */
+    private String name;
+
+    /** Intended send time for each sequence number */
+    private long[] scheduled;
+
+    /** Number of messages sent */
+    private int sent;
+
+    /** Sequence numbers received */
+    private BitSet received = new BitSet();
+
+    /** Number of messages received more than once */
+    private long duplicates;
+
+    /** Time in nanoseconds the first message was scheduled */
+    private long firstScheduled;
+
+    /** Time in nanoseconds the last message was received */
+    private long lastReceived;
+
+    /** End-to-end latency */
+    private LatencyRecorder latency = new LatencyRecorder();
+
+    public LoadReport(String name, int capacity) {
+	this.name = name;
+	this.scheduled = new long[capacity];
+    }
+
+    /**
+     * Record that a message was sent.
+     * 
+     * @param sequence
+     * @param scheduledNanos
+     */
+    public synchronized void sent(int sequence, long scheduledNanos) {
+	if (sent == 0) {
+	    firstScheduled = scheduledNanos;
+	}
+	scheduled[sequence] = scheduledNanos;
+	sent = Math.max(sent, sequence + 1);
+    }
+
+    /**
+     * Record that a message was received.
+     * 
+     * @param sequence
+     * @param receivedNanos
+     */
+    public synchronized void received(int sequence, long receivedNanos) {
+	if ((sequence < 0) || (sequence >= sent)) {
+	    return;
+	}
+	if (received.get(sequence)) {
+	    duplicates++;
+	    return;
+	}
+	received.set(sequence);
+	latency.record(Math.max(0, receivedNanos - scheduled[sequence]));
+	lastReceived = Math.max(lastReceived, receivedNanos);
+    }
+
+    /**
+     * Indicates whether every message sent has been received.
+     * 
+     * @return
+     */
+    public synchronized boolean isComplete() {
+	return received.cardinality() >= sent;
+    }
+
+    public synchronized int getSent() {
+	return sent;
+    }
+
+    public synchronized int getReceived() {
+	return received.cardinality();
+    }
+
+    public synchronized int getLost() {
+	return sent - received.cardinality();
+    }
+
+    public synchronized long getDuplicates() {
+	return duplicates;
+    }
+
+    /**
+     * Get messages received per second, from the first scheduled send to the
+     * last receipt.
+     * 
+     * @return
+     */
+    public synchronized double getThroughput() {
+	long elapsed = lastReceived - firstScheduled;
+	if (elapsed <= 0) {
+	    return 0;
+	}
+	return getReceived() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    public LatencyRecorder getLatency() {
+	return latency;
+    }
+
+    public String getName() {
+	return name;
+    }
+
+    /*
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+	return String.format(
+		"%-8s sent=%d received=%d lost=%d duplicates=%d throughput=%.0f/s "
+			+ "latency p50=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+		getName(), getSent(), getReceived(), getLost(), getDuplicates(), getThroughput(),
+		millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(99)),
+		millis(latency.getValueAtPercentile(99.9)), millis(latency.getMax()));
+    }
+
+    /**
+     * Convert nanoseconds to milliseconds.
+     * 
+     * @param nanos
+     * @return
+     */
+    protected static double millis(long nanos) {
+	return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,259 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the outbound journal recovers from a crash and a restart without
+ * losing undelivered records, and that it cleans up delivered segments.
+ * 
+ * @author Derek
+ */
+public class OutboundJournalTest {
+
+    /** Segment size that fits a single test record */
+    private static final long SMALL_SEGMENT_BYTES = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Directory holding the journal */
+    private File directory;
+
+    /** Journal under test */
+    private OutboundJournal journal;
+
+    @Before
+    public void createDirectory() throws IOException {
+	directory = folder.newFolder("journal");
+    }
+
+    @After
+    public void closeJournal() throws IOException {
+	if (journal != null) {
+	    journal.close();
+	}
+    }
+
+    @Test
+    public void tornRecordBodyDropped() throws Exception {
+	journal = open(OutboundJournal.DEFAULT_SEGMENT_BYTES, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+	journal.append(bytes("first"));
+	journal.append(bytes("second"));
+	journal.close();
+
+	// Header of a 100-byte record followed by only part of its body.
+	appendToSegment(ByteBuffer.allocate(11).putInt(100).putInt(0).put(bytes("abc")).array());
+	assertRecoversAfterTornTail();
+    }
+
+    @Test
+    public void tornRecordHeaderDropped() throws Exception {
+	journal = open(OutboundJournal.DEFAULT_SEGMENT_BYTES, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+	journal.append(bytes("first"));
+	journal.append(bytes("second"));
+	journal.close();
+
+	appendToSegment(new byte[] { 0, 0, 1 });
+	assertRecoversAfterTornTail();
+    }
+
+    @Test
+    public void uncommittedRecordsReplayedAfterRestart() throws Exception {
+	journal = open(OutboundJournal.DEFAULT_SEGMENT_BYTES, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+	journal.append(bytes("first"));
+	journal.append(bytes("second"));
+	journal.append(bytes("third"));
+	journal.commit(journal.poll(0));
+	assertEquals("second", string(journal.poll(0)));
+	journal.close();
+
+	journal = open(OutboundJournal.DEFAULT_SEGMENT_BYTES, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+	assertEquals("second", string(journal.poll(0)));
+	assertEquals("third", string(journal.poll(0)));
+	assertNull(journal.poll(0));
+    }
+
+    @Test
+    public void replayStartsFromLastCheckpoint() throws Exception {
+	journal = open(OutboundJournal.DEFAULT_SEGMENT_BYTES, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+	journal.append(bytes("first"));
+	journal.append(bytes("second"));
+	journal.append(bytes("third"));
+	journal.commit(journal.poll(0));
+	journal.checkpoint();
+
+	// Committed but not checkpointed, so replayed after a crash.
+	journal.commit(journal.poll(0));
+
+	OutboundJournal recovered = open(OutboundJournal.DEFAULT_SEGMENT_BYTES,
+		OutboundJournal.DEFAULT_MAX_SEGMENTS);
+	try {
+	    assertEquals("second", string(recovered.poll(0)));
+	    assertEquals("third", string(recovered.poll(0)));
+	    assertNull(recovered.poll(0));
+	} finally {
+	    recovered.close();
+	}
+    }
+
+    @Test
+    public void rewindRereadsUncommittedRecords() throws Exception {
+	journal = open(OutboundJournal.DEFAULT_SEGMENT_BYTES, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+	journal.append(bytes("first"));
+	journal.append(bytes("second"));
+	journal.commit(journal.poll(0));
+	assertEquals("second", string(journal.poll(0)));
+	journal.rewind();
+	assertEquals("second", string(journal.poll(0)));
+	assertNull(journal.poll(0));
+    }
+
+    @Test
+    public void committedSegmentsDeleted() throws Exception {
+	journal = open(SMALL_SEGMENT_BYTES, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+	for (int i = 0; i < 4; i++) {
+	    journal.append(record(i));
+	}
+	assertEquals(4, countSegments());
+	assertEquals(4 * (8 + record(0).length), journal.getBacklogBytes());
+
+	for (int i = 0; i < 3; i++) {
+	    OutboundJournal.Entry entry = journal.poll(0);
+	    assertEquals(string(record(i)), string(entry));
+	    journal.commit(entry);
+	}
+	assertEquals(2, countSegments());
+	assertEquals(8 + record(0).length, journal.getBacklogBytes());
+	journal.close();
+
+	journal = open(SMALL_SEGMENT_BYTES, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+	assertEquals(string(record(3)), string(journal.poll(0)));
+	assertNull(journal.poll(0));
+    }
+
+    @Test
+    public void oldestSegmentsDiscardedWhenFull() throws Exception {
+	journal = open(SMALL_SEGMENT_BYTES, 2);
+	for (int i = 0; i < 4; i++) {
+	    journal.append(record(i));
+	}
+	assertEquals(2, countSegments());
+	assertEquals(string(record(2)), string(journal.poll(0)));
+	assertEquals(string(record(3)), string(journal.poll(0)));
+	assertNull(journal.poll(0));
+    }
+
+    /**
+     * Reopen the journal after a torn record was left at its end and check that
+     * complete records are kept and new records can be appended after them.
+     * 
+     * @throws Exception
+     */
+    protected void assertRecoversAfterTornTail() throws Exception {
+	journal = open(OutboundJournal.DEFAULT_SEGMENT_BYTES, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+	journal.append(bytes("third"));
+	assertEquals("first", string(journal.poll(0)));
+	assertEquals("second", string(journal.poll(0)));
+	assertEquals("third", string(journal.poll(0)));
+	assertNull(journal.poll(0));
+    }
+
+    /**
+     * Open a journal in the test directory.
+     * 
+     * @param segmentBytes
+     * @param maxSegments
+     * @return
+     * @throws IOException
+     */
+    protected OutboundJournal open(long segmentBytes, int maxSegments) throws IOException {
+	OutboundJournal opened = new OutboundJournal(directory, segmentBytes, maxSegments);
+	opened.open();
+	return opened;
+    }
+
+    /**
+     * Append raw bytes to the newest segment, as a crash in the middle of a write
+     * would leave them.
+     * 
+     * @param data
+     * @throws IOException
+     */
+    protected void appendToSegment(byte[] data) throws IOException {
+	File newest = null;
+	for (File file : directory.listFiles()) {
+	    if (file.getName().endsWith(".journal")
+		    && ((newest == null) || (file.getName().compareTo(newest.getName()) > 0))) {
+		newest = file;
+	    }
+	}
+	try (FileOutputStream out = new FileOutputStream(newest, true)) {
+	    out.write(data);
+	}
+    }
+
+    /**
+     * Count segment files in the journal directory.
+     * 
+     * @return
+     */
+    protected int countSegments() {
+	int count = 0;
+	for (String name : directory.list()) {
+	    if (name.endsWith(".journal")) {
+		count++;
+	    }
+	}
+	return count;
+    }
+
+    /**
+     * Create a record that fills most of a small segment.
+     * 
+     * @param index
+     * @return
+     */
+    protected static byte[] record(int index) {
+	return bytes(String.format("record-%033d", index));
+    }
+
+    protected static byte[] bytes(String value) {
+	return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    protected static String string(byte[] value) {
+	return new String(value, StandardCharsets.UTF_8);
+    }
+
+    protected static String string(OutboundJournal.Entry entry) {
+	return (entry == null) ? null : string(entry.getBody());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,200 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+
+/**
+ * Checks that command parameters decoded without a schema match what the
+ * protobuf parser produces for the same message with the schema, for every
+ * scalar type a device type command can use.
+ * 
+ * @author Derek
+ */
+public class ProtobufCommandDecoderTest {
+
+    /** Protobuf type of each parameter field, numbered from one */
+    private static final FieldDescriptorProto.Type[] FIELD_TYPES = { FieldDescriptorProto.Type.TYPE_DOUBLE,
+	    FieldDescriptorProto.Type.TYPE_FLOAT, FieldDescriptorProto.Type.TYPE_INT32,
+	    FieldDescriptorProto.Type.TYPE_INT64, FieldDescriptorProto.Type.TYPE_UINT32,
+	    FieldDescriptorProto.Type.TYPE_UINT64, FieldDescriptorProto.Type.TYPE_FIXED32,
+	    FieldDescriptorProto.Type.TYPE_FIXED64, FieldDescriptorProto.Type.TYPE_SFIXED32,
+	    FieldDescriptorProto.Type.TYPE_SFIXED64, FieldDescriptorProto.Type.TYPE_BOOL,
+	    FieldDescriptorProto.Type.TYPE_STRING, FieldDescriptorProto.Type.TYPE_BYTES };
+
+    /** Handler parameter types matching the Java types of the fields */
+    private static final Class<?>[] PARAMETER_TYPES = { double.class, float.class, int.class, long.class, int.class,
+	    long.class, int.class, long.class, int.class, long.class, boolean.class, String.class, ByteString.class };
+
+    /** Command header with command number and originating event id */
+    private static Descriptor header;
+
+    /** Command parameters, one field per scalar type */
+    private static Descriptor parameters;
+
+    /** Decoder for command number one */
+    private ProtobufCommandDecoder decoder;
+
+    @BeforeClass
+    public static void buildSchema() throws Exception {
+	DescriptorProto.Builder params = DescriptorProto.newBuilder().setName("Parameters");
+	for (int i = 0; i < FIELD_TYPES.length; i++) {
+	    params.addField(FieldDescriptorProto.newBuilder().setName("field" + (i + 1)).setNumber(i + 1)
+		    .setType(FIELD_TYPES[i]).setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL));
+	}
+	DescriptorProto.Builder head = DescriptorProto.newBuilder().setName("Header");
+	head.addField(FieldDescriptorProto.newBuilder().setName("command").setNumber(1)
+		.setType(FieldDescriptorProto.Type.TYPE_INT32).setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL));
+	head.addField(FieldDescriptorProto.newBuilder().setName("originator").setNumber(2)
+		.setType(FieldDescriptorProto.Type.TYPE_STRING).setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL));
+	FileDescriptor file = FileDescriptor.buildFrom(FileDescriptorProto.newBuilder().setName("command.proto")
+		.addMessageType(head).addMessageType(params).build(), new FileDescriptor[0]);
+	header = file.findMessageTypeByName("Header");
+	parameters = file.findMessageTypeByName("Parameters");
+    }
+
+    @Before
+    public void createDecoder() throws SiteWhereAgentException {
+	decoder = ProtobufCommandDecoder.parse("test");
+    }
+
+    @Test
+    public void typicalValues() throws Exception {
+	assertMatchesParser(1.5, 2.25f, 42, 1L << 40, 7, 1L << 50, 12345, 1L << 60, 54321, 1L << 33, true, "on",
+		ByteString.copyFromUtf8("data"));
+    }
+
+    @Test
+    public void negativeValues() throws Exception {
+	assertMatchesParser(-1.5, -2.25f, -42, -(1L << 40), -7, -(1L << 50), -12345, -(1L << 60), -54321,
+		-(1L << 33), false, "", ByteString.EMPTY);
+    }
+
+    @Test
+    public void extremeValues() throws Exception {
+	assertMatchesParser(Double.MAX_VALUE, Float.MIN_VALUE, Integer.MIN_VALUE, Long.MIN_VALUE, -1, -1L,
+		Integer.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, true, "é中",
+		ByteString.copyFrom(new byte[] { 0, (byte) 0xff }));
+    }
+
+    @Test
+    public void specialFloatingPointValues() throws Exception {
+	assertMatchesParser(Double.NaN, Float.NEGATIVE_INFINITY, 0, 0L, 0, 0L, 0, 0L, 0, 0L, false, "",
+		ByteString.EMPTY);
+	assertMatchesParser(-0.0, -0.0f, 0, 0L, 0, 0L, 0, 0L, 0, 0L, false, "", ByteString.EMPTY);
+    }
+
+    @Test
+    public void missingFieldsTakeDefaults() throws Exception {
+	ProtobufCommandDecoder.Command command = decoder.decode(encode(DynamicMessage.newBuilder(parameters).build(),
+		null));
+	DynamicMessage parsed = DynamicMessage.newBuilder(parameters).build();
+	Object[] decoded = command.getParameters(PARAMETER_TYPES);
+	for (int i = 0; i < FIELD_TYPES.length; i++) {
+	    assertEquals(FIELD_TYPES[i].toString(), parsed.getField(parameters.findFieldByNumber(i + 1)), decoded[i]);
+	}
+	assertNull(command.getOriginator());
+    }
+
+    @Test
+    public void headerDecoded() throws Exception {
+	UUID eventId = UUID.randomUUID();
+	ProtobufCommandDecoder.Command command = decoder.decode(encode(DynamicMessage.newBuilder(parameters).build(),
+		eventId.toString()));
+	assertEquals("test", command.getName());
+	assertEquals(eventId, command.getOriginator().getEventId());
+    }
+
+    @Test
+    public void fixedWidthIntegersAsOtherIntegerTypes() throws Exception {
+	DynamicMessage message = build(0.0, 0.0f, 0, 0L, 0, 0L, -2, 1L << 40, 0, 0L, false, "", ByteString.EMPTY);
+	ProtobufCommandDecoder.Command command = decoder.decode(encode(message, null));
+	assertEquals(-2L, ProtobufCommandDecoder.convert(command.getFields().get(7), long.class));
+	assertEquals((short) -2, ProtobufCommandDecoder.convert(command.getFields().get(7), short.class));
+	assertEquals(1L << 40, ProtobufCommandDecoder.convert(command.getFields().get(8), Long.class));
+    }
+
+    /**
+     * Encode parameters, decode them with the decoder and check each value
+     * equals the one parsed with the schema.
+     * 
+     * @param values
+     * @throws Exception
+     */
+    protected void assertMatchesParser(Object... values) throws Exception {
+	DynamicMessage message = build(values);
+	byte[] encoded = encode(message, null);
+	Object[] decoded = decoder.decode(encoded).getParameters(PARAMETER_TYPES);
+	DynamicMessage parsed = DynamicMessage.parseFrom(parameters, message.toByteArray());
+	for (int i = 0; i < FIELD_TYPES.length; i++) {
+	    assertEquals(FIELD_TYPES[i].toString(), parsed.getField(parameters.findFieldByNumber(i + 1)), decoded[i]);
+	}
+    }
+
+    /**
+     * Build a parameters message with a value for every field.
+     * 
+     * @param values
+     * @return
+     */
+    protected DynamicMessage build(Object... values) {
+	DynamicMessage.Builder builder = DynamicMessage.newBuilder(parameters);
+	List<FieldDescriptor> fields = parameters.getFields();
+	for (int i = 0; i < values.length; i++) {
+	    builder.setField(fields.get(i), values[i]);
+	}
+	return builder.build();
+    }
+
+    /**
+     * Encode a command as a delimited header for command number one followed by
+     * the delimited parameters.
+     * 
+     * @param params
+     * @param originator
+     * @return
+     * @throws Exception
+     */
+    protected byte[] encode(DynamicMessage params, String originator) throws Exception {
+	DynamicMessage.Builder head = DynamicMessage.newBuilder(header);
+	head.setField(header.findFieldByNumber(1), 1);
+	if (originator != null) {
+	    head.setField(header.findFieldByNumber(2), originator);
+	}
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	head.build().writeDelimitedTo(out);
+	params.writeDelimitedTo(out);
+	return out.toByteArray();
+    }
+}
\ No newline at end of file
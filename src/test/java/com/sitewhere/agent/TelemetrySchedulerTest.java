@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2019 SiteWhere, LLC. All rights reserved. https://sitewhere.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that closing the child scheduler of a command processor stops only
+ * the tasks of that processor.
+ * 
+ * @author Derek
+ */
+public class TelemetrySchedulerTest {
+
+    /** Period of tasks under test */
+    private static final long PERIOD_MS = 10;
+
+    /** Time in milliseconds to wait for tasks to run */
+    private static final long RUN_TIMEOUT_MS = 5000;
+
+    /** Scheduler shared by all children */
+    private TelemetryScheduler scheduler;
+
+    @Before
+    public void createScheduler() {
+	scheduler = new TelemetryScheduler();
+    }
+
+    @After
+    public void closeScheduler() {
+	scheduler.close();
+    }
+
+    @Test
+    public void closedChildCancelsOnlyItsTasks() throws Exception {
+	TelemetryScheduler removed = scheduler.createChild();
+	TelemetryScheduler kept = scheduler.createChild();
+	Counter removedRate = new Counter();
+	Counter removedDelay = new Counter();
+	Counter removedAligned = new Counter();
+	Counter keptAligned = new Counter();
+	TelemetryScheduler.ScheduledTask[] tasks = { removed.scheduleAtFixedRate(removedRate, PERIOD_MS, 0),
+		removed.scheduleWithFixedDelay(removedDelay, PERIOD_MS, 0),
+		removed.scheduleAligned(removedAligned, PERIOD_MS) };
+	kept.scheduleAligned(keptAligned, PERIOD_MS);
+	removedRate.await(2);
+	removedDelay.await(2);
+	removedAligned.await(2);
+
+	removed.close();
+	for (TelemetryScheduler.ScheduledTask task : tasks) {
+	    assertTrue(task.isCancelled());
+	}
+	int rate = removedRate.get();
+	int delay = removedDelay.get();
+	int aligned = removedAligned.get();
+	keptAligned.await(keptAligned.get() + 3);
+
+	// A run in progress when the child closed may still finish.
+	assertTrue(removedRate.get() <= rate + 1);
+	assertTrue(removedDelay.get() <= delay + 1);
+	assertTrue(removedAligned.get() <= aligned + 1);
+    }
+
+    @Test
+    public void taskScheduledOnClosedChildCancelled() throws Exception {
+	TelemetryScheduler child = scheduler.createChild();
+	child.close();
+	Counter counter = new Counter();
+	TelemetryScheduler.ScheduledTask task = child.scheduleAtFixedRate(counter, PERIOD_MS, 0);
+	assertTrue(task.isCancelled());
+	Thread.sleep(PERIOD_MS * 5);
+	assertEquals(0, counter.get());
+    }
+
+    @Test
+    public void closedChildLeavesSchedulerRunning() throws Exception {
+	TelemetryScheduler child = scheduler.createChild();
+	child.scheduleAligned(new Counter(), PERIOD_MS);
+	child.close();
+	Counter counter = new Counter();
+	TelemetryScheduler.ScheduledTask task = scheduler.scheduleAligned(counter, PERIOD_MS);
+	counter.await(2);
+	assertFalse(task.isCancelled());
+    }
+
+    /**
+     * Task that counts its runs.
+     * 
+     * @author Derek
+     */
+    private static class Counter implements ITelemetryTask {
+
+	/** Number of runs */
+	private AtomicInteger runs = new AtomicInteger();
+
+	@Override
+	public void run() {
+	    runs.incrementAndGet();
+	}
+
+	public int get() {
+	    return runs.get();
+	}
+
+	/**
+	 * Wait until the task has run the given number of times.
+	 * 
+	 * @param count
+	 * @throws InterruptedException
+	 */
+	public void await(int count) throws InterruptedException {
+	    long deadline = System.currentTimeMillis() + RUN_TIMEOUT_MS;
+	    while ((runs.get() < count) && (System.currentTimeMillis() < deadline)) {
+		Thread.sleep(1);
+	    }
+	    assertTrue("Ran " + runs.get() + " times.", runs.get() >= count);
+	}
+    }
+}